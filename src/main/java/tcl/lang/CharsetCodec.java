@@ -0,0 +1,476 @@
+/*
+ * CharsetCodec.java --
+ *
+ *	Shared charset lookup and conversion between Java strings and
+ *	encoded bytes, used by the encoding command, TclByteArray and
+ *	channels.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ */
+
+package tcl.lang;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts between chars and encoded bytes for Java encoding names, as
+ * returned by EncodingCmd.getJavaName().
+ * <p>
+ * Charsets are resolved once per name and cached. Conversions of whole
+ * blocks use hand-written loops for ISO-8859-1, ASCII and UTF-8, and fall
+ * back to a CharsetEncoder or CharsetDecoder taken from a per-thread pool
+ * for all other encodings, or for the part of the input the fast path can
+ * not handle. The results are the same as with a fresh encoder or decoder
+ * using the same error actions.
+ */
+public final class CharsetCodec {
+
+	/**
+	 * Kind of charset that is not handled by a fast path.
+	 */
+	public static final int OTHER = 0;
+
+	/**
+	 * Kind of the ISO-8859-1 charset.
+	 */
+	public static final int LATIN1 = 1;
+
+	/**
+	 * Kind of the US-ASCII charset.
+	 */
+	public static final int ASCII = 2;
+
+	/**
+	 * Kind of the UTF-8 charset.
+	 */
+	public static final int UTF8 = 3;
+
+	/**
+	 * Resolved charsets, by Java encoding name.
+	 */
+	private static final ConcurrentHashMap<String, Entry> charsets = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Per-thread pools of decoders and encoders, by Java encoding name.
+	 */
+	private static final ThreadLocal<HashMap<String, CharsetDecoder>> decoders = new ThreadLocal<HashMap<String, CharsetDecoder>>() {
+		protected HashMap<String, CharsetDecoder> initialValue() {
+			return new HashMap<String, CharsetDecoder>();
+		}
+	};
+
+	private static final ThreadLocal<HashMap<String, CharsetEncoder>> encoders = new ThreadLocal<HashMap<String, CharsetEncoder>>() {
+		protected HashMap<String, CharsetEncoder> initialValue() {
+			return new HashMap<String, CharsetEncoder>();
+		}
+	};
+
+	/**
+	 * A resolved charset and its kind.
+	 */
+	private static final class Entry {
+		final Charset charset;
+		final int kind;
+
+		Entry(Charset charset) {
+			this.charset = charset;
+			String name = charset.name();
+			if (name.equals("ISO-8859-1")) {
+				kind = LATIN1;
+			} else if (name.equals("US-ASCII")) {
+				kind = ASCII;
+			} else if (name.equals("UTF-8")) {
+				kind = UTF8;
+			} else {
+				kind = OTHER;
+			}
+		}
+	}
+
+	private CharsetCodec() {
+	}
+
+	private static Entry getEntry(String javaName) {
+		Entry entry = charsets.get(javaName);
+		if (entry == null) {
+			entry = new Entry(Charset.forName(javaName));
+			charsets.put(javaName, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * @param javaName
+	 *            Java encoding name
+	 * @return the charset for javaName
+	 * @throws java.nio.charset.UnsupportedCharsetException
+	 *             if the charset is not available
+	 */
+	public static Charset forName(String javaName) {
+		return getEntry(javaName).charset;
+	}
+
+	/**
+	 * @param javaName
+	 *            Java encoding name
+	 * @return LATIN1, ASCII or UTF8 if a fast path exists for the encoding,
+	 *         OTHER if not
+	 */
+	public static int getKind(String javaName) {
+		return getEntry(javaName).kind;
+	}
+
+	/**
+	 * Create a decoder for callers that keep decoding state across calls,
+	 * such as channels. Malformed input and unmappable characters are
+	 * replaced.
+	 *
+	 * @param javaName
+	 *            Java encoding name
+	 * @return a new decoder
+	 */
+	public static CharsetDecoder newDecoder(String javaName) {
+		CharsetDecoder csd = forName(javaName).newDecoder();
+		csd.onMalformedInput(CodingErrorAction.REPLACE);
+		csd.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		return csd;
+	}
+
+	/**
+	 * Create an encoder for callers that keep encoding state across calls,
+	 * such as channels. Malformed input and unmappable characters are
+	 * replaced.
+	 *
+	 * @param javaName
+	 *            Java encoding name
+	 * @return a new encoder
+	 */
+	public static CharsetEncoder newEncoder(String javaName) {
+		CharsetEncoder cse = forName(javaName).newEncoder();
+		cse.onMalformedInput(CodingErrorAction.REPLACE);
+		cse.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		return cse;
+	}
+
+	/**
+	 * @return this thread's reset decoder for javaName
+	 */
+	private static CharsetDecoder pooledDecoder(String javaName, CodingErrorAction onMalformed) {
+		HashMap<String, CharsetDecoder> pool = decoders.get();
+		CharsetDecoder csd = pool.get(javaName);
+		if (csd == null) {
+			csd = forName(javaName).newDecoder();
+			csd.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			pool.put(javaName, csd);
+		} else {
+			csd.reset();
+		}
+		csd.onMalformedInput(onMalformed);
+		return csd;
+	}
+
+	/**
+	 * @return this thread's reset encoder for javaName
+	 */
+	private static CharsetEncoder pooledEncoder(String javaName) {
+		HashMap<String, CharsetEncoder> pool = encoders.get();
+		CharsetEncoder cse = pool.get(javaName);
+		if (cse == null) {
+			cse = newEncoder(javaName);
+			pool.put(javaName, cse);
+		} else {
+			cse.reset();
+		}
+		return cse;
+	}
+
+	/**
+	 * Decode bytes into a String. Unmappable characters are replaced.
+	 *
+	 * @param javaName
+	 *            Java encoding name
+	 * @param bytes
+	 *            encoded bytes
+	 * @param off
+	 *            offset of the first byte to decode
+	 * @param len
+	 *            number of bytes to decode
+	 * @param onMalformed
+	 *            CodingErrorAction.REPLACE or CodingErrorAction.IGNORE
+	 * @return the decoded string
+	 * @throws IllegalArgumentException
+	 *             if onMalformed is CodingErrorAction.REPORT
+	 */
+	public static String decode(String javaName, byte[] bytes, int off, int len, CodingErrorAction onMalformed) {
+		checkAction(onMalformed);
+		Entry entry = getEntry(javaName);
+		final int end = off + len;
+
+		switch (entry.kind) {
+		case LATIN1: {
+			char[] chars = new char[len];
+			for (int i = 0; i < len; i++) {
+				chars[i] = (char) (bytes[off + i] & 0xff);
+			}
+			return new String(chars);
+		}
+		case ASCII: {
+			boolean replace = (onMalformed == CodingErrorAction.REPLACE);
+			char[] chars = new char[len];
+			int n = 0;
+			for (int i = off; i < end; i++) {
+				byte b = bytes[i];
+				if (b >= 0) {
+					chars[n++] = (char) b;
+				} else if (replace) {
+					chars[n++] = '\ufffd';
+				}
+			}
+			return new String(chars, 0, n);
+		}
+		case UTF8: {
+			// Copy the leading run of ASCII bytes, and decode the rest with
+			// a decoder.
+
+			int i = off;
+			while (i < end && bytes[i] >= 0) {
+				i++;
+			}
+			if (i == end) {
+				char[] chars = new char[len];
+				for (int j = 0; j < len; j++) {
+					chars[j] = (char) bytes[off + j];
+				}
+				return new String(chars);
+			}
+			char[] chars = new char[len];
+			for (int j = off; j < i; j++) {
+				chars[j - off] = (char) bytes[j];
+			}
+			int n = decodeTail(javaName, bytes, i, end - i, chars, i - off, onMalformed);
+			return new String(chars, 0, n);
+		}
+		default: {
+			CharsetDecoder csd = pooledDecoder(javaName, onMalformed);
+			char[] chars = new char[(int) Math.ceil(len * (double) csd.maxCharsPerByte())];
+			int n = decode(csd, bytes, off, len, chars, 0);
+			return new String(chars, 0, n);
+		}
+		}
+	}
+
+	/**
+	 * Decode bytes into a char array, for callers that keep their own
+	 * buffers. The array must have room for len chars after charOff for
+	 * ISO-8859-1, ASCII and UTF-8, which never decode to more chars than
+	 * bytes, or for len * maxCharsPerByte() chars for other encodings.
+	 * 
+	 * @param javaName
+	 *            Java encoding name
+	 * @param bytes
+	 *            encoded bytes
+	 * @param off
+	 *            offset of the first byte to decode
+	 * @param len
+	 *            number of bytes to decode
+	 * @param chars
+	 *            array that receives the chars
+	 * @param charOff
+	 *            index in chars of the first decoded char
+	 * @param onMalformed
+	 *            CodingErrorAction.REPLACE or CodingErrorAction.IGNORE
+	 * @return the number of chars decoded
+	 * @throws IllegalArgumentException
+	 *             if onMalformed is CodingErrorAction.REPORT
+	 */
+	public static int decode(String javaName, byte[] bytes, int off, int len, char[] chars, int charOff,
+			CodingErrorAction onMalformed) {
+		checkAction(onMalformed);
+		Entry entry = getEntry(javaName);
+		final int end = off + len;
+
+		switch (entry.kind) {
+		case LATIN1:
+			for (int i = 0; i < len; i++) {
+				chars[charOff + i] = (char) (bytes[off + i] & 0xff);
+			}
+			return len;
+		case ASCII: {
+			boolean replace = (onMalformed == CodingErrorAction.REPLACE);
+			int n = charOff;
+			for (int i = off; i < end; i++) {
+				byte b = bytes[i];
+				if (b >= 0) {
+					chars[n++] = (char) b;
+				} else if (replace) {
+					chars[n++] = '\ufffd';
+				}
+			}
+			return n - charOff;
+		}
+		case UTF8: {
+			int i = off;
+			while (i < end && bytes[i] >= 0) {
+				chars[charOff + i - off] = (char) bytes[i];
+				i++;
+			}
+			if (i == end) {
+				return len;
+			}
+			return decodeTail(javaName, bytes, i, end - i, chars, charOff + i - off, onMalformed) - charOff;
+		}
+		default:
+			return decodeTail(javaName, bytes, off, len, chars, charOff, onMalformed) - charOff;
+		}
+	}
+
+	/**
+	 * The decode methods always return the decoded chars, so they can not
+	 * report malformed input.
+	 */
+	private static void checkAction(CodingErrorAction onMalformed) {
+		if (onMalformed != CodingErrorAction.REPLACE && onMalformed != CodingErrorAction.IGNORE) {
+			throw new IllegalArgumentException("malformed input action must be REPLACE or IGNORE, not "
+					+ onMalformed);
+		}
+	}
+
+	/**
+	 * Decode bytes with the pooled decoder into a char array that is known
+	 * to be large enough to hold the result.
+	 *
+	 * @return the number of chars in the array after decoding
+	 */
+	private static int decodeTail(String javaName, byte[] bytes, int off, int len, char[] chars, int charOff,
+			CodingErrorAction onMalformed) {
+		return decode(pooledDecoder(javaName, onMalformed), bytes, off, len, chars, charOff);
+	}
+
+	private static int decode(CharsetDecoder csd, byte[] bytes, int off, int len, char[] chars, int charOff) {
+		ByteBuffer bb = ByteBuffer.wrap(bytes, off, len);
+		CharBuffer cb = CharBuffer.wrap(chars, charOff, chars.length - charOff);
+		CoderResult result = csd.decode(bb, cb, true);
+		if (result.isUnderflow()) {
+			result = csd.flush(cb);
+		}
+		if (!result.isUnderflow()) {
+			// Should not happen, since the array is large enough and errors
+			// are replaced or ignored.
+			throw new TclRuntimeError("CharsetCodec.decode: " + result);
+		}
+		return cb.position();
+	}
+
+	/**
+	 * Encode a String into bytes. Malformed input and unmappable characters
+	 * are replaced, as in String.getBytes().
+	 *
+	 * @param javaName
+	 *            Java encoding name
+	 * @param str
+	 *            string to encode
+	 * @return a new array holding exactly the encoded bytes
+	 */
+	public static byte[] encode(String javaName, String str) {
+		Entry entry = getEntry(javaName);
+		final int len = str.length();
+
+		switch (entry.kind) {
+		case LATIN1:
+		case ASCII: {
+			char max = (entry.kind == LATIN1) ? '\u00ff' : '\u007f';
+			byte[] bytes = new byte[len];
+			int i = 0;
+			for (; i < len; i++) {
+				char c = str.charAt(i);
+				if (c > max) {
+					break;
+				}
+				bytes[i] = (byte) c;
+			}
+			if (i == len) {
+				return bytes;
+			}
+			return encodeTail(javaName, str, i, bytes);
+		}
+		case UTF8: {
+			// Size the result exactly, unless a surrogate is found, in which
+			// case the encoder handles the string.
+
+			int size = 0;
+			for (int i = 0; i < len; i++) {
+				char c = str.charAt(i);
+				if (c < 0x80) {
+					size += 1;
+				} else if (c < 0x800) {
+					size += 2;
+				} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+					size = -1;
+					break;
+				} else {
+					size += 3;
+				}
+			}
+			if (size < 0) {
+				return encodeTail(javaName, str, 0, new byte[0]);
+			}
+			byte[] bytes = new byte[size];
+			int n = 0;
+			for (int i = 0; i < len; i++) {
+				char c = str.charAt(i);
+				if (c < 0x80) {
+					bytes[n++] = (byte) c;
+				} else if (c < 0x800) {
+					bytes[n++] = (byte) (0xc0 | (c >> 6));
+					bytes[n++] = (byte) (0x80 | (c & 0x3f));
+				} else {
+					bytes[n++] = (byte) (0xe0 | (c >> 12));
+					bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					bytes[n++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			return bytes;
+		}
+		default:
+			return encodeTail(javaName, str, 0, new byte[0]);
+		}
+	}
+
+	/**
+	 * Encode str from index start on with the pooled encoder, and return the
+	 * bytes appended to the first start bytes of head.
+	 */
+	private static byte[] encodeTail(String javaName, String str, int start, byte[] head) {
+		CharsetEncoder cse = pooledEncoder(javaName);
+		CharBuffer cb = CharBuffer.wrap(str, start, str.length());
+		int size = start + (int) Math.ceil(cb.remaining() * (double) cse.maxBytesPerChar());
+		byte[] bytes = new byte[size];
+		System.arraycopy(head, 0, bytes, 0, start);
+		ByteBuffer bb = ByteBuffer.wrap(bytes, start, size - start);
+		CoderResult result = cse.encode(cb, bb, true);
+		if (!result.isOverflow()) {
+			result = cse.flush(bb);
+		}
+		if (result.isOverflow()) {
+			// Should not happen, since maxBytesPerChar bounds the output.
+			throw new TclRuntimeError("CharsetCodec.encode: output buffer overflow");
+		}
+		int n = bb.position();
+		if (n == size) {
+			return bytes;
+		}
+		byte[] exact = new byte[n];
+		System.arraycopy(bytes, 0, exact, 0, n);
+		return exact;
+	}
+}
@@ -88,6 +88,16 @@ abstract public class Extension {
 			String clsName) {
 		interp.createCommand(cmdName, new AutoloadStub(clsName));
 	}
+
+	/**
+	 * @param cmd
+	 *            a command
+	 * @return the name of the class that cmd loads, if it is a stub created
+	 *         by loadOnDemand() that hasn't been invoked yet, otherwise null
+	 */
+	static String getAutoloadClassName(Command cmd) {
+		return (cmd instanceof AutoloadStub) ? ((AutoloadStub) cmd).className : null;
+	}
 }
 
 /**
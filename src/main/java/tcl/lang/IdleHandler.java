@@ -72,7 +72,7 @@ public abstract class IdleHandler {
 			notifier.idleList.add(this);
 			generation = notifier.idleGeneration;
 			if (Thread.currentThread() != notifier.primaryThread) {
-				notifier.notifyAll();
+				notifier.wakeUp();
 			}
 		}
 	}
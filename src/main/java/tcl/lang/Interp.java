@@ -376,7 +376,7 @@ public class Interp extends EventuallyFreed {
 
 	static final String[] unsafeCmds = { "encoding", "exit", "load", "cd", "fconfigure", "file", "glob", "open", "pwd",
 			"socket", "beep", "echo", "ls", "resource", "source", "exec", "jaclloadjava", "jaclloadtjc",
-			"auto_execok", "auto_import", "auto_load", "auto_load_index", "auto_qualify"};
+			"auto_execok", "auto_import", "auto_load", "auto_load_index", "auto_qualify", "chan"};
 
 	// Flags controlling the call of invoke.
 
@@ -445,6 +445,17 @@ public class Interp extends EventuallyFreed {
 	 */
 
 	public Interp() {
+		this(true);
+	}
+
+	/**
+	 * Create an interpreter, with or without evaluating init.tcl. An interpreter created without init.tcl has the
+	 * built-in commands and the tcl_platform, env and other global variables, and is filled in by InterpCloner.
+	 * 
+	 * @param init
+	 *            true to evaluate init.tcl
+	 */
+	Interp(boolean init) {
 
 		// freeProc = null;
 		errorLine = 0;
@@ -644,7 +655,9 @@ public class Interp extends EventuallyFreed {
 
 			// Source the init.tcl script to initialize auto-loading.
 
-			evalResource("/tcl/lang/library/init.tcl");
+			if (init) {
+				evalResource("/tcl/lang/library/init.tcl");
+			}
 
 		} catch (TclException e) {
 			System.out.println(getResult());
@@ -666,6 +679,20 @@ public class Interp extends EventuallyFreed {
 		}
 	}
 
+	/**
+	 * Create a new interpreter in the calling thread that starts as a copy of this one: it has the same namespaces,
+	 * procedures, commands, variables and packages, without evaluating init.tcl and the scripts that loaded them
+	 * again. See InterpCloner for what is and isn't copied. This interpreter must not be in use in another thread
+	 * while it is copied.
+	 * 
+	 * @return the new interpreter
+	 * @throws TclException
+	 *             if this interpreter can't be copied
+	 */
+	public Interp createClone() throws TclException {
+		return InterpCloner.cloneInterp(this);
+	}
+
 	/**
 	 * Invoked to indicate that the interp should be disposed of. If there are no Tcl_Preserve calls in effect for this
 	 * interpreter, it is deleted immediately, otherwise the interpreter is deleted when the last Tcl_Preserve is
@@ -884,6 +911,7 @@ public class Interp extends EventuallyFreed {
 		Extension.loadOnDemand(this, "case", "tcl.lang.cmd.CaseCmd");
 		Extension.loadOnDemand(this, "catch", "tcl.lang.cmd.CatchCmd");
 		Extension.loadOnDemand(this, "cd", "tcl.lang.cmd.CdCmd");
+		Extension.loadOnDemand(this, "chan", "tcl.lang.cmd.ChanCmd");
 		Extension.loadOnDemand(this, "clock", "tcl.lang.cmd.ClockCmd");
 		Extension.loadOnDemand(this, "close", "tcl.lang.cmd.CloseCmd");
 		Extension.loadOnDemand(this, "continue", "tcl.lang.cmd.ContinueCmd");
@@ -0,0 +1,359 @@
+/*
+ * InterpCloner.java --
+ *
+ *	Creates an interpreter as a copy of another one, without
+ *	evaluating the init scripts again.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ */
+
+package tcl.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import tcl.lang.cmd.PackageCmd;
+
+/**
+ * Creates a new interpreter with a copy of the state of a template
+ * interpreter, for Interp.createClone() and 'interp create -clone'. The new
+ * interpreter is created without evaluating init.tcl, and then gets a copy
+ * of the template's
+ * <ul>
+ * <li>namespaces, with their export patterns</li>
+ * <li>procedures; the characters of their bodies are shared</li>
+ * <li>built-in commands, also when they were renamed; commands of the java
+ * package, which keep no state in their objects; and commands of extensions
+ * that haven't been loaded yet. Each of these gets a stub that creates the
+ * command on first use</li>
+ * <li>imported commands</li>
+ * <li>variables; values are copied as strings, which are shared, so large
+ * values are not copied</li>
+ * <li>package table, with the provided versions and ifneeded scripts</li>
+ * <li>working directory and recursion limit</li>
+ * </ul>
+ * Channels, child interpreters, interp aliases, traces, after events,
+ * hidden commands and AssocData are not copied. Neither are other commands
+ * implemented in Java, such as the fleet command or the commands of a fleet,
+ * since a new object of their class wouldn't have the state of the original.
+ * A Java extension that keeps per interpreter state in AssocData, or in its
+ * commands, should be loaded again in the new interpreter.
+ * <p>
+ * The template is only read, but it must not be in use in another thread
+ * while it is copied.
+ */
+class InterpCloner {
+	/**
+	 * Classes of commands outside the built-in ones that keep no state in
+	 * their objects, so the clone can create its own instance
+	 */
+	private static final Set<String> statelessCommands = new HashSet<String>(Arrays.asList(
+			"tcl.pkg.java.JavaBindCmd", "tcl.pkg.java.JavaCallCmd", "tcl.pkg.java.JavaCastCmd",
+			"tcl.pkg.java.JavaDefineClassCmd", "tcl.pkg.java.JavaEventCmd", "tcl.pkg.java.JavaFieldCmd",
+			"tcl.pkg.java.JavaForCmd", "tcl.pkg.java.JavaGetInterpCmd", "tcl.pkg.java.JavaImportCmd",
+			"tcl.pkg.java.JavaInfoCmd", "tcl.pkg.java.JavaInstanceofCmd", "tcl.pkg.java.JavaIsNullCmd",
+			"tcl.pkg.java.JavaLoadCmd", "tcl.pkg.java.JavaNewCmd", "tcl.pkg.java.JavaNullCmd",
+			"tcl.pkg.java.JavaPropCmd", "tcl.pkg.java.JavaThrowCmd", "tcl.pkg.java.JavaTryCmd"));
+
+	/**
+	 * Classes of the built-in commands, which the clone created itself
+	 */
+	private final Set<String> builtinCommands = new HashSet<String>();
+
+	/**
+	 * The interpreter being copied
+	 */
+	private final Interp template;
+
+	/**
+	 * The new interpreter
+	 */
+	private final Interp clone;
+
+	/**
+	 * Imported commands of the template, copied after all other commands
+	 */
+	private final ArrayList<WrappedCommand> imports = new ArrayList<WrappedCommand>();
+
+	private InterpCloner(Interp template, Interp clone) {
+		this.template = template;
+		this.clone = clone;
+	}
+
+	/**
+	 * Create a new interpreter in the calling thread with a copy of the state
+	 * of template
+	 *
+	 * @param template
+	 *            the interpreter to copy
+	 * @return the new interpreter
+	 * @throws TclException
+	 *             if the template's state can't be copied
+	 */
+	static Interp cloneInterp(Interp template) throws TclException {
+		if (template.deleted) {
+			throw new TclException(null, "attempt to clone a deleted interpreter");
+		}
+		Interp clone = new Interp(false);
+		try {
+			new InterpCloner(template, clone).copy();
+		} catch (TclException e) {
+			String msg = clone.getResult().toString();
+			clone.dispose();
+			throw new TclException(null, "error cloning interpreter: " + msg);
+		}
+		return clone;
+	}
+
+	private void copy() throws TclException {
+		findBuiltins(clone.globalNs);
+		createNamespaces(template.globalNs);
+		copyCommands(template.globalNs);
+
+		// An imported command may refer to another imported command, so
+		// repeat until no more can be copied
+
+		int count;
+		do {
+			count = imports.size();
+			for (int i = imports.size() - 1; i >= 0; i--) {
+				if (copyImport(imports.get(i))) {
+					imports.remove(i);
+				}
+			}
+		} while (imports.size() > 0 && imports.size() < count);
+
+		copyVars(template.globalNs);
+
+		PackageCmd.copyPackages(template, clone);
+		clone.setWorkingDir(template.getWorkingDir().getPath());
+		clone.setMaxNestingDepth(template.getMaxNestingDepth());
+		clone.resetResult();
+	}
+
+	/**
+	 * @return the namespace of the clone with the same name as the
+	 *         template's namespace ns, or null
+	 */
+	private Namespace cloneNamespace(Namespace ns) {
+		if (ns.parent == null) {
+			return clone.globalNs;
+		}
+		return Namespace.findNamespace(clone, ns.fullName, null, TCL.GLOBAL_ONLY);
+	}
+
+	/**
+	 * Add the classes of the commands of a namespace of the new clone, and of
+	 * its children, to builtinCommands
+	 */
+	private void findBuiltins(Namespace ns) {
+		for (WrappedCommand wcmd : ns.cmdTable.values()) {
+			if (wcmd.cmd != null) {
+				builtinCommands.add(commandClass(wcmd.cmd));
+			}
+		}
+		for (Namespace child : ns.childTable.values()) {
+			findBuiltins(child);
+		}
+	}
+
+	/**
+	 * @return the name of the class that implements cmd, or that it loads
+	 *         if it is a stub
+	 */
+	private static String commandClass(Command cmd) {
+		String className = Extension.getAutoloadClassName(cmd);
+		return (className != null) ? className : cmd.getClass().getName();
+	}
+
+	/**
+	 * @return the fully qualified name of name in namespace ns
+	 */
+	private static String qualify(Namespace ns, String name) {
+		return ns.parent == null ? "::" + name : ns.fullName + "::" + name;
+	}
+
+	private void createNamespaces(Namespace ns) throws TclException {
+		Namespace nsCopy = cloneNamespace(ns);
+		if (nsCopy == null) {
+			nsCopy = Namespace.createNamespace(clone, ns.fullName, null);
+			if (nsCopy == null) {
+				throw new TclException(clone, "can't create namespace \"" + ns.fullName + "\"");
+			}
+		}
+		if (ns.exportArray != null) {
+			nsCopy.exportArray = ns.exportArray.clone();
+		}
+		nsCopy.numExportPatterns = ns.numExportPatterns;
+		for (Namespace child : ns.childTable.values()) {
+			createNamespaces(child);
+		}
+	}
+
+	/**
+	 * Copy the commands of a template namespace and its children, and delete
+	 * the built-in commands of the clone that the template doesn't have
+	 */
+	private void copyCommands(Namespace ns) throws TclException {
+		Namespace nsCopy = cloneNamespace(ns);
+		for (Map.Entry<String, WrappedCommand> entry : ns.cmdTable.entrySet()) {
+			String name = entry.getKey();
+			WrappedCommand wcmd = entry.getValue();
+			if (wcmd.cmd instanceof ImportedCmdData) {
+				imports.add(wcmd);
+			} else if (!copyCommand(nsCopy, name, wcmd.cmd)) {
+				WrappedCommand existing = nsCopy.cmdTable.get(name);
+				if (existing != null) {
+					clone.deleteCommandFromToken(existing);
+				}
+			}
+		}
+		for (WrappedCommand wcmd : new ArrayList<WrappedCommand>(nsCopy.cmdTable.values())) {
+			if (!ns.cmdTable.containsKey(wcmd.hashKey)) {
+				clone.deleteCommandFromToken(wcmd);
+			}
+		}
+		for (Namespace child : ns.childTable.values()) {
+			copyCommands(child);
+		}
+	}
+
+	/**
+	 * Create a copy of a command in the clone, unless the clone already has
+	 * the same built-in command
+	 *
+	 * @return false if the command can't be copied
+	 */
+	private boolean copyCommand(Namespace nsCopy, String name, Command cmd) throws TclException {
+		String fullName = qualify(nsCopy, name);
+		if (cmd instanceof Procedure) {
+			Procedure proc = new Procedure((Procedure) cmd);
+			clone.createCommand(fullName, proc);
+			proc.wcmd = nsCopy.cmdTable.get(name);
+			return true;
+		}
+
+		String className = commandClass(cmd);
+		WrappedCommand existing = nsCopy.cmdTable.get(name);
+		if (existing != null && existing.cmd != null && commandClass(existing.cmd).equals(className)) {
+			return true;
+		}
+
+		// Other commands implemented in Java may have state that a new
+		// object of their class wouldn't have, so they are not copied
+
+		if (Extension.getAutoloadClassName(cmd) == null && !builtinCommands.contains(className)
+				&& !statelessCommands.contains(className)) {
+			return false;
+		}
+		Extension.loadOnDemand(clone, fullName, className);
+		return true;
+	}
+
+	/**
+	 * Create an imported command in the clone, for an imported command of the
+	 * template
+	 *
+	 * @return false if the real command hasn't been copied (yet)
+	 */
+	private boolean copyImport(WrappedCommand wcmd) throws TclException {
+		WrappedCommand realCmd = ((ImportedCmdData) wcmd.cmd).realCmd;
+		Namespace realNs = cloneNamespace(realCmd.ns);
+		WrappedCommand realCopy = realNs == null ? null : realNs.cmdTable.get(realCmd.hashKey);
+		if (realCopy == null) {
+			return false;
+		}
+
+		Namespace nsCopy = cloneNamespace(wcmd.ns);
+		String fullName = qualify(nsCopy, wcmd.hashKey);
+		ImportedCmdData data = new ImportedCmdData();
+		clone.createCommand(fullName, data);
+		WrappedCommand importedCmd = nsCopy.cmdTable.get(wcmd.hashKey);
+		data.realCmd = realCopy;
+		data.self = importedCmd;
+
+		ImportRef ref = new ImportRef();
+		ref.importedCmd = importedCmd;
+		ref.next = realCopy.importRef;
+		realCopy.importRef = ref;
+		return true;
+	}
+
+	/**
+	 * Copy the variables of a template namespace and its children. The env
+	 * array of the clone is left as is, since it reflects the environment of
+	 * the process.
+	 */
+	private void copyVars(Namespace ns) throws TclException {
+		Namespace nsCopy = cloneNamespace(ns);
+		boolean global = ns.parent == null;
+
+		for (String name : new ArrayList<String>(nsCopy.varTable.keySet())) {
+			Var var = nsCopy.varTable.get(name);
+			if (!ns.varTable.containsKey(name) && !(global && name.equals("env")) && var != null
+					&& !var.isVarUndefined()) {
+				clone.unsetVar(qualify(ns, name), TCL.GLOBAL_ONLY);
+			}
+		}
+
+		for (Map.Entry<String, Var> entry : ns.varTable.entrySet()) {
+			String name = entry.getKey();
+			Var var = entry.getValue();
+			String fullName = qualify(ns, name);
+			if ((global && name.equals("env")) || var.isVarLink()) {
+				continue;
+			}
+			if (var.isVarArray()) {
+				Var existing = nsCopy.varTable.get(name);
+				if (existing != null && !existing.isVarUndefined()) {
+					clone.unsetVar(fullName, TCL.GLOBAL_ONLY);
+				}
+				evalInNamespace(ns, "array", "set", fullName, "");
+				for (Map.Entry<String, Var> el : var.getArrayMap().entrySet()) {
+					Var elVar = el.getValue();
+					if (!elVar.isVarUndefined()) {
+						clone.setVar(fullName, el.getKey(), TclString.newInstance(elVar.getValue().toString()),
+								TCL.GLOBAL_ONLY);
+					}
+				}
+			} else if (!var.isVarUndefined()) {
+				clone.setVar(fullName, TclString.newInstance(var.getValue().toString()), TCL.GLOBAL_ONLY);
+			} else if (!global) {
+				// a variable declared with 'variable name', without a value
+				evalInNamespace(ns, "variable", name, null, null);
+			}
+		}
+
+		for (Namespace child : ns.childTable.values()) {
+			copyVars(child);
+		}
+	}
+
+	/**
+	 * Evaluate a command of up to four words in the clone, in the namespace
+	 * with the name of the template namespace ns
+	 */
+	private void evalInNamespace(Namespace ns, String cmd, String arg1, String arg2, String arg3)
+			throws TclException {
+		TclObject script = TclList.newInstance();
+		TclList.append(clone, script, TclString.newInstance(cmd));
+		TclList.append(clone, script, TclString.newInstance(arg1));
+		if (arg2 != null) {
+			TclList.append(clone, script, TclString.newInstance(arg2));
+		}
+		if (arg3 != null) {
+			TclList.append(clone, script, TclString.newInstance(arg3));
+		}
+		TclObject nsEval = TclList.newInstance();
+		TclList.append(clone, nsEval, TclString.newInstance("namespace"));
+		TclList.append(clone, nsEval, TclString.newInstance("eval"));
+		TclList.append(clone, nsEval, TclString.newInstance(ns.fullName));
+		TclList.append(clone, nsEval, script);
+		clone.eval(nsEval, TCL.EVAL_GLOBAL);
+	}
+}
@@ -0,0 +1,584 @@
+/*
+ * InterpPool.java --
+ *
+ *	A pool of initialized interpreters that are reset when they are
+ *	returned, and leased again.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ */
+
+package tcl.lang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tcl.lang.channel.Channel;
+import tcl.lang.channel.StdChannel;
+import tcl.lang.cmd.PackageCmd;
+
+/**
+ * Keeps interpreters that have been created and initialized, so that code
+ * which needs a fresh interpreter for each request doesn't pay for
+ * new Interp() and its init scripts each time:
+ *
+ * <pre>
+ * InterpPool pool = new InterpPool(&quot;package require mylib&quot;, 4, 1000);
+ * ...
+ * Interp interp = pool.lease();
+ * try {
+ * 	interp.eval(script);
+ * } finally {
+ * 	pool.release(interp);
+ * }
+ * </pre>
+ *
+ * When an interpreter has been created and initialized, the pool records its
+ * state as a baseline. release() brings the interpreter back to that
+ * baseline: variables, namespaces and commands created since are deleted,
+ * changed variables get their baseline value back, channels opened since are
+ * closed, child interpreters are deleted, pending 'after' events are
+ * cancelled, packages that were provided since are forgotten and the working
+ * directory is restored. An interpreter that can't be brought back, because a
+ * baseline command or namespace was deleted or renamed, or a trace was added
+ * to a baseline variable, is disposed of instead.
+ * <p>
+ * An Interp can only be used in the thread that created it, so the pool
+ * keeps the idle interpreters of each thread separately: lease() returns an
+ * interpreter created in the calling thread, and release() must be called in
+ * that thread. This fits servers that handle requests on a fixed set of
+ * worker threads.
+ */
+public class InterpPool {
+	/**
+	 * Name of the AssocData that holds an interpreter's baseline
+	 */
+	private static final String BASELINE = "tclInterpPool";
+
+	/**
+	 * Script evaluated in each new interpreter, or null
+	 */
+	private final String initScript;
+
+	/**
+	 * Most interpreters kept idle for each thread
+	 */
+	private final int maxIdle;
+
+	/**
+	 * Number of times an interpreter is leased before it is disposed of, or 0
+	 * for no limit
+	 */
+	private final int maxUses;
+
+	/**
+	 * Idle interpreters of each thread, the most recently released last
+	 */
+	private final ThreadLocal<ArrayList<Interp>> idle = new ThreadLocal<ArrayList<Interp>>() {
+		@Override
+		protected ArrayList<Interp> initialValue() {
+			return new ArrayList<Interp>();
+		}
+	};
+
+	private final AtomicLong createCount = new AtomicLong();
+	private final AtomicLong createTime = new AtomicLong();
+	private final AtomicLong leaseCount = new AtomicLong();
+	private final AtomicLong reuseCount = new AtomicLong();
+	private final AtomicLong discardCount = new AtomicLong();
+	private final AtomicInteger activeCount = new AtomicInteger();
+
+	/**
+	 * Create an empty pool
+	 *
+	 * @param initScript
+	 *            script evaluated in the global namespace of each new
+	 *            interpreter, such as "package require" commands, or null
+	 * @param maxIdle
+	 *            number of released interpreters kept in each thread; more
+	 *            are disposed of
+	 * @param maxUses
+	 *            number of times an interpreter is leased before it is
+	 *            disposed of, or 0 to keep using it
+	 */
+	public InterpPool(String initScript, int maxIdle, int maxUses) {
+		if (maxIdle < 0 || maxUses < 0) {
+			throw new IllegalArgumentException("negative pool limit");
+		}
+		this.initScript = initScript;
+		this.maxIdle = maxIdle;
+		this.maxUses = maxUses;
+	}
+
+	/**
+	 * Get an interpreter: an idle one of the calling thread if there is one,
+	 * or else a new one
+	 *
+	 * @return an interpreter that must be given back with release()
+	 * @throws TclException
+	 *             if the init script of a new interpreter fails
+	 */
+	public Interp lease() throws TclException {
+		ArrayList<Interp> list = idle.get();
+		Interp interp;
+		if (list.isEmpty()) {
+			interp = create();
+		} else {
+			interp = list.remove(list.size() - 1);
+			reuseCount.incrementAndGet();
+		}
+		Baseline baseline = (Baseline) interp.getAssocData(BASELINE);
+		++baseline.uses;
+		baseline.leased = true;
+		leaseCount.incrementAndGet();
+		activeCount.incrementAndGet();
+		return interp;
+	}
+
+	/**
+	 * Give back an interpreter returned by lease(). The interpreter is reset
+	 * to its baseline and kept for the next lease() in this thread, or
+	 * disposed of.
+	 *
+	 * @param interp
+	 *            the interpreter; it must not be used after this call
+	 */
+	public void release(Interp interp) {
+		Baseline baseline = (Baseline) interp.getAssocData(BASELINE);
+		if (baseline == null || baseline.pool != this || !baseline.leased) {
+			throw new TclRuntimeError("InterpPool.release() of an interp that was not leased from this pool");
+		}
+		if (interp.getNotifier().primaryThread != Thread.currentThread()) {
+			throw new TclRuntimeError("InterpPool.release() invoked in thread other than the one it was leased in");
+		}
+		baseline.leased = false;
+		activeCount.decrementAndGet();
+
+		ArrayList<Interp> list = idle.get();
+		if (list.size() < maxIdle && (maxUses == 0 || baseline.uses < maxUses) && baseline.restore(interp)) {
+			list.add(interp);
+		} else {
+			discardCount.incrementAndGet();
+			interp.dispose();
+		}
+	}
+
+	/**
+	 * Create and initialize interpreters in the calling thread until it has
+	 * count idle ones, or maxIdle
+	 *
+	 * @param count
+	 *            number of idle interpreters wanted
+	 * @throws TclException
+	 *             if the init script fails
+	 */
+	public void prestart(int count) throws TclException {
+		ArrayList<Interp> list = idle.get();
+		count = Math.min(count, maxIdle);
+		while (list.size() < count) {
+			list.add(create());
+		}
+	}
+
+	/**
+	 * Dispose of the idle interpreters of the calling thread. Each thread
+	 * that used the pool should call this before it ends, since interpreters
+	 * can only be disposed of in the thread that created them.
+	 */
+	public void disposeIdle() {
+		ArrayList<Interp> list = idle.get();
+		for (Interp interp : list) {
+			interp.dispose();
+		}
+		list.clear();
+		idle.remove();
+	}
+
+	/**
+	 * @return number of interpreters created by the pool
+	 */
+	public long getCreateCount() {
+		return createCount.get();
+	}
+
+	/**
+	 * @return total time spent creating and initializing interpreters, in
+	 *         seconds
+	 */
+	public double getCreateTime() {
+		return createTime.get() / 1.0e9;
+	}
+
+	/**
+	 * @return number of calls to lease()
+	 */
+	public long getLeaseCount() {
+		return leaseCount.get();
+	}
+
+	/**
+	 * @return number of calls to lease() that returned an idle interpreter
+	 */
+	public long getReuseCount() {
+		return reuseCount.get();
+	}
+
+	/**
+	 * @return number of released interpreters that were disposed of rather
+	 *         than kept
+	 */
+	public long getDiscardCount() {
+		return discardCount.get();
+	}
+
+	/**
+	 * @return number of interpreters leased and not yet released
+	 */
+	public int getActiveCount() {
+		return activeCount.get();
+	}
+
+	/**
+	 * @return number of idle interpreters of the calling thread
+	 */
+	public int getIdleCount() {
+		return idle.get().size();
+	}
+
+	/**
+	 * Create an interpreter, evaluate the init script and record the
+	 * baseline
+	 */
+	private Interp create() throws TclException {
+		long startTime = System.nanoTime();
+		Interp interp = new Interp();
+		if (initScript != null) {
+			try {
+				interp.eval(initScript, TCL.EVAL_GLOBAL);
+			} catch (TclException e) {
+				String msg = interp.getResult().toString();
+				interp.dispose();
+				throw new TclException(null, "error in pool init script: " + msg);
+			}
+		}
+		interp.resetResult();
+		interp.setAssocData(BASELINE, new Baseline(this, interp));
+		createCount.incrementAndGet();
+		createTime.addAndGet(System.nanoTime() - startTime);
+		return interp;
+	}
+
+	/**
+	 * The state of an interpreter after it was initialized, that release()
+	 * brings it back to
+	 */
+	private static class Baseline implements AssocData {
+		/**
+		 * The pool the interpreter belongs to
+		 */
+		final InterpPool pool;
+
+		/**
+		 * Number of times the interpreter was leased
+		 */
+		int uses = 0;
+
+		/**
+		 * True while the interpreter is leased
+		 */
+		boolean leased = false;
+
+		/**
+		 * Each namespace, with its commands and variables
+		 */
+		private final HashMap<Namespace, NamespaceState> namespaces = new HashMap<Namespace, NamespaceState>();
+
+		/**
+		 * Names of the registered channels
+		 */
+		private final HashSet<String> channels;
+
+		/**
+		 * Provided version of each known package
+		 */
+		private final Map<String, String> packages;
+
+		private final String packageUnknown;
+
+		private final String workingDir;
+
+		Baseline(InterpPool pool, Interp interp) {
+			this.pool = pool;
+			record(interp.globalNs);
+			channels = new HashSet<String>(TclIO.getInterpChanTable(interp).keySet());
+			packages = PackageCmd.getProvidedVersions(interp);
+			packageUnknown = interp.packageUnknown;
+			workingDir = interp.getWorkingDir().getPath();
+		}
+
+		private void record(Namespace ns) {
+			namespaces.put(ns, new NamespaceState(ns));
+			for (Namespace child : ns.childTable.values()) {
+				record(child);
+			}
+		}
+
+		/**
+		 * Bring an interpreter back to this baseline
+		 *
+		 * @return false if that could not be done
+		 */
+		boolean restore(Interp interp) {
+			if (interp.deleted) {
+				return false;
+			}
+			try {
+				interp.resetResult();
+				interp.deleteAssocData("tclAfter"); // cancels the 'after' events
+
+				for (Object name : interp.slaveTable.keySet().toArray()) {
+					TclObject cmd = TclList.newInstance();
+					TclList.append(interp, cmd, TclString.newInstance("interp"));
+					TclList.append(interp, cmd, TclString.newInstance("delete"));
+					TclList.append(interp, cmd, TclString.newInstance((String) name));
+					interp.eval(cmd, TCL.EVAL_GLOBAL);
+				}
+
+				HashMap<String, Channel> chanTable = TclIO.getInterpChanTable(interp);
+				for (String name : new ArrayList<String>(chanTable.keySet())) {
+					Channel chan = chanTable.get(name);
+					if (!channels.contains(name) && !(chan instanceof StdChannel)) {
+						TclIO.unregisterChannel(interp, chan);
+					}
+				}
+
+				if (!restoreNamespace(interp, interp.globalNs)) {
+					return false;
+				}
+
+				PackageCmd.restoreProvidedVersions(interp, packages);
+				interp.packageUnknown = packageUnknown;
+				interp.setWorkingDir(workingDir);
+				interp.resetResult();
+				return !interp.deleted;
+			} catch (TclException e) {
+				return false;
+			} catch (TclRuntimeError e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Restore a namespace and its children, and delete the children that
+		 * are not part of the baseline
+		 *
+		 * @return false if the namespace can't be restored
+		 */
+		private boolean restoreNamespace(Interp interp, Namespace ns) throws TclException {
+			NamespaceState state = namespaces.get(ns);
+			for (Namespace child : new ArrayList<Namespace>(ns.childTable.values())) {
+				if (!namespaces.containsKey(child)) {
+					Namespace.deleteNamespace(child);
+				} else if (!restoreNamespace(interp, child)) {
+					return false;
+				}
+			}
+			for (Namespace child : state.children) {
+				if (ns.childTable.get(child.name) != child) {
+					return false; // a baseline namespace was deleted
+				}
+			}
+			return state.restore(interp, ns);
+		}
+
+		public void disposeAssocData(Interp interp) {
+			for (NamespaceState state : namespaces.values()) {
+				state.dispose();
+			}
+			namespaces.clear();
+		}
+	}
+
+	/**
+	 * The commands and variables of a namespace
+	 */
+	private static class NamespaceState {
+		/**
+		 * The namespace's child namespaces
+		 */
+		final ArrayList<Namespace> children;
+
+		/**
+		 * The namespace's commands
+		 */
+		private final HashMap<String, WrappedCommand> commands;
+
+		/**
+		 * Class name of each command that was still an autoload stub; see
+		 * Extension.loadOnDemand()
+		 */
+		private final HashMap<String, String> stubs = new HashMap<String, String>();
+
+		/**
+		 * The value of each variable: a TclObject for a scalar, a HashMap of
+		 * the element values for an array, or null for an undefined variable
+		 */
+		private final HashMap<String, Object> vars = new HashMap<String, Object>();
+
+		/**
+		 * Number of traces on each variable that has traces
+		 */
+		private final HashMap<String, Integer> traceCounts = new HashMap<String, Integer>();
+
+		NamespaceState(Namespace ns) {
+			children = new ArrayList<Namespace>(ns.childTable.values());
+			commands = new HashMap<String, WrappedCommand>(ns.cmdTable);
+			for (Map.Entry<String, WrappedCommand> entry : commands.entrySet()) {
+				String className = Extension.getAutoloadClassName(entry.getValue().cmd);
+				if (className != null) {
+					stubs.put(entry.getKey(), className);
+				}
+			}
+			for (Map.Entry<String, Var> entry : ns.varTable.entrySet()) {
+				Var var = entry.getValue();
+				Object value = null;
+				if (var.isVarArray()) {
+					HashMap<String, TclObject> elements = new HashMap<String, TclObject>();
+					for (Map.Entry<String, Var> el : var.getArrayMap().entrySet()) {
+						Var elVar = el.getValue();
+						if (!elVar.isVarUndefined()) {
+							elVar.getValue().preserve();
+							elements.put(el.getKey(), elVar.getValue());
+						}
+					}
+					value = elements;
+				} else if (!var.isVarUndefined() && !var.isVarLink()) {
+					var.getValue().preserve();
+					value = var.getValue();
+				}
+				vars.put(entry.getKey(), value);
+				if (var.traces != null) {
+					traceCounts.put(entry.getKey(), var.traces.size());
+				}
+			}
+		}
+
+		/**
+		 * Delete the commands and variables created since the baseline, and
+		 * set the baseline variable values again
+		 *
+		 * @return false if the namespace can't be restored
+		 */
+		boolean restore(Interp interp, Namespace ns) throws TclException {
+			for (Map.Entry<String, WrappedCommand> entry : new ArrayList<Map.Entry<String, WrappedCommand>>(
+					ns.cmdTable.entrySet())) {
+				if (!commands.containsKey(entry.getKey())) {
+					interp.deleteCommandFromToken(entry.getValue());
+				}
+			}
+			for (Map.Entry<String, WrappedCommand> entry : commands.entrySet()) {
+				WrappedCommand cmd = ns.cmdTable.get(entry.getKey());
+				if (cmd == entry.getValue()) {
+					continue;
+				}
+				String className = stubs.get(entry.getKey());
+				if (cmd != null && className != null && cmd.cmd != null
+						&& className.equals(cmd.cmd.getClass().getName())) {
+					entry.setValue(cmd); // the stub has loaded the command
+					stubs.remove(entry.getKey());
+					continue;
+				}
+				return false; // a baseline command was deleted or replaced
+			}
+
+			String prefix = ns.parent == null ? "::" : ns.fullName + "::";
+			for (String name : new ArrayList<String>(ns.varTable.keySet())) {
+				Var var = ns.varTable.get(name);
+				if (!vars.containsKey(name) && var != null && !var.isVarUndefined()) {
+					interp.unsetVar(prefix + name, TCL.GLOBAL_ONLY);
+				}
+			}
+			for (Map.Entry<String, Object> entry : vars.entrySet()) {
+				String name = entry.getKey();
+				Var var = ns.varTable.get(name);
+				Integer traceCount = traceCounts.get(name);
+				int traces = (var == null || var.traces == null) ? 0 : var.traces.size();
+				if (traces != (traceCount == null ? 0 : traceCount.intValue())) {
+					return false; // a trace was added to or removed from the variable
+				}
+				if (!restoreVar(interp, prefix + name, var, entry.getValue())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Give a variable back its baseline value
+		 *
+		 * @return false if the variable can't be restored
+		 */
+		@SuppressWarnings("unchecked")
+		private boolean restoreVar(Interp interp, String name, Var var, Object value) throws TclException {
+			boolean defined = var != null && !var.isVarUndefined();
+			if (value == null) {
+				if (defined && !var.isVarLink()) {
+					interp.unsetVar(name, TCL.GLOBAL_ONLY);
+				}
+				return true;
+			}
+			if (value instanceof TclObject) {
+				if (defined && var.isVarArray()) {
+					interp.unsetVar(name, TCL.GLOBAL_ONLY);
+					defined = false;
+				}
+				if (!defined || var.isVarLink() || var.getValue() != value) {
+					interp.setVar(name, (TclObject) value, TCL.GLOBAL_ONLY);
+				}
+				return true;
+			}
+
+			HashMap<String, TclObject> elements = (HashMap<String, TclObject>) value;
+			if (defined && !var.isVarArray()) {
+				interp.unsetVar(name, TCL.GLOBAL_ONLY);
+				defined = false;
+			}
+			if (defined) {
+				for (Iterator<Map.Entry<String, Var>> iter = new ArrayList<Map.Entry<String, Var>>(var.getArrayMap()
+						.entrySet()).iterator(); iter.hasNext();) {
+					Map.Entry<String, Var> el = iter.next();
+					if (!el.getValue().isVarUndefined() && !elements.containsKey(el.getKey())) {
+						interp.unsetVar(name, el.getKey(), TCL.GLOBAL_ONLY);
+					}
+				}
+			}
+			for (Map.Entry<String, TclObject> el : elements.entrySet()) {
+				Var elVar = defined ? var.getArrayMap().get(el.getKey()) : null;
+				if (elVar == null || elVar.isVarUndefined() || elVar.getValue() != el.getValue()) {
+					interp.setVar(name, el.getKey(), el.getValue(), TCL.GLOBAL_ONLY);
+				}
+			}
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		void dispose() {
+			for (Object value : vars.values()) {
+				if (value instanceof TclObject) {
+					((TclObject) value).release();
+				} else if (value != null) {
+					for (TclObject el : ((HashMap<String, TclObject>) value).values()) {
+						el.release();
+					}
+				}
+			}
+			vars.clear();
+		}
+	}
+}
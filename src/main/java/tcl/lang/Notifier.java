@@ -16,7 +16,11 @@
 package tcl.lang;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Implements the Jacl version of the Notifier class. The Notifier is the
@@ -37,14 +41,22 @@ import java.util.HashMap;
  * returns the Notifier for that interpreter (thread).
  */
 public class Notifier implements EventDeleter {
-	
+
 	/**
-	 * timeout for doOneEvent wait()
+	 * Events posted by queueEvent() that have not been moved to the event
+	 * queue yet, as a stack linked by TclEvent.next, most recent first.
+	 * Posting an event only takes a compareAndSet() on this reference, so
+	 * threads that post events never wait for the notifier's monitor, or for
+	 * each other. The thread that holds the monitor takes the whole stack at
+	 * once in takePostedEvents(), and inserts the events in the queue at the
+	 * position they were posted with.
 	 */
-	private static final long PAUSE_WAIT = 100L;
+
+	private final AtomicReference<TclEvent> postedEvents = new AtomicReference<TclEvent>();
 
 	/**
-	 *  First pending event, or null if none.
+	 *  First pending event, or null if none. The event queue is only
+	 *  accessed while holding the notifier's monitor.
 	 */
 
 	private TclEvent firstEvent;
@@ -81,10 +93,41 @@ public class Notifier implements EventDeleter {
 	private static HashMap<Thread, Notifier> notifierTable = new HashMap<Thread, Notifier>();
 
 	/**
-	 *  List of registered timer handlers.
+	 * Registered timer handlers, as a binary heap ordered by firing time.
+	 * Handlers with the same firing time are ordered by creation, see
+	 * TIMER_ORDER. A cancelled handler stays in the heap until it reaches the
+	 * top, or until purgeCancelledTimers() removes it.
+	 */
+
+	private PriorityQueue<TimerHandler> timerQueue;
+
+	/**
+	 * Number of cancelled handlers still in timerQueue
+	 */
+
+	private int cancelledTimers;
+
+	/**
+	 * Sequence number given to the next timer handler added to timerQueue
+	 */
+
+	private long timerSequence;
+
+	/**
+	 * Orders timer handlers by firing time, and in the order they were
+	 * created if they fire at the same time. See comments in
+	 * TimerEvent.processEvent() for why the latter is important. Firing times
+	 * are System.nanoTime() values, so they are compared by their difference.
 	 */
 
-	ArrayList<TimerHandler> timerList;
+	private static final Comparator<TimerHandler> TIMER_ORDER = new Comparator<TimerHandler>() {
+		public int compare(TimerHandler a, TimerHandler b) {
+			long d = a.atTime - b.atTime;
+			if (d != 0)
+				return d < 0 ? -1 : 1;
+			return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+		}
+	};
 
 	/**
 	 *  Used to distinguish older timer handlers from recently-created ones.
@@ -131,7 +174,9 @@ public class Notifier implements EventDeleter {
 		lastEvent = null;
 		markerEvent = null;
 
-		timerList = new ArrayList<TimerHandler>();
+		timerQueue = new PriorityQueue<TimerHandler>(16, TIMER_ORDER);
+		cancelledTimers = 0;
+		timerSequence = 0;
 		timerGeneration = 0;
 		idleList = new ArrayList<IdleHandler>();
 		idleGeneration = 0;
@@ -191,6 +236,108 @@ public class Notifier implements EventDeleter {
 		}
 	}
 
+	/**
+	 * Register a timer handler. Called by the TimerHandler constructor.
+	 * 
+	 * @param h
+	 *            the new timer handler
+	 */
+	synchronized void addTimer(TimerHandler h) {
+		h.generation = timerGeneration;
+		h.sequence = timerSequence++;
+		h.isQueued = true;
+		timerQueue.add(h);
+
+		if (Thread.currentThread() != primaryThread) {
+			wakeUp();
+		}
+	}
+
+	/**
+	 * Wake up the primary thread if it is waiting in doOneEvent(), so that it
+	 * looks for work again. If the primary thread isn't waiting, its next wait
+	 * returns at once. This doesn't take the notifier's monitor, so it can be
+	 * called by any thread at any time.
+	 */
+	void wakeUp() {
+		Thread t = primaryThread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Mark a timer handler as cancelled. Called by TimerHandler.cancel(). The
+	 * handler is left in timerQueue, where it will be skipped, unless
+	 * cancelled handlers have come to make up most of the queue; then they
+	 * are all removed at once.
+	 * 
+	 * @param h
+	 *            the timer handler to cancel
+	 */
+	synchronized void timerCancelled(TimerHandler h) {
+		h.isCancelled = true;
+		if (!h.isQueued)
+			return; // already taken off the queue to be invoked
+		++cancelledTimers;
+		if (cancelledTimers > 64 && cancelledTimers > timerQueue.size() / 2) {
+			purgeCancelledTimers();
+		}
+	}
+
+	/**
+	 * Rebuild timerQueue without its cancelled handlers
+	 */
+	private void purgeCancelledTimers() {
+		PriorityQueue<TimerHandler> live = new PriorityQueue<TimerHandler>(Math.max(16, timerQueue.size()
+				- cancelledTimers), TIMER_ORDER);
+		for (TimerHandler h : timerQueue) {
+			if (h.isCancelled)
+				h.isQueued = false;
+			else
+				live.add(h);
+		}
+		timerQueue = live;
+		cancelledTimers = 0;
+	}
+
+	/**
+	 * @return the registered timer handler that fires first, or null if
+	 *         there are none. Cancelled handlers at the top of the queue are
+	 *         discarded.
+	 */
+	private synchronized TimerHandler firstTimer() {
+		TimerHandler h;
+		while ((h = timerQueue.peek()) != null && h.isCancelled) {
+			timerQueue.poll();
+			h.isQueued = false;
+			--cancelledTimers;
+		}
+		return h;
+	}
+
+	/**
+	 * Remove and return the first timer handler, if it is due to be invoked.
+	 * Called by TimerEvent.processEvent().
+	 * 
+	 * @param gen
+	 *            only handlers created before this timer generation are
+	 *            returned
+	 * @param sysTime
+	 *            only handlers that fire at or before this System.nanoTime()
+	 *            value are returned
+	 * @return the handler, or null if there is none to invoke now
+	 */
+	synchronized TimerHandler takeExpiredTimer(int gen, long sysTime) {
+		TimerHandler h = firstTimer();
+		if (h == null || h.generation > gen || h.atTime - sysTime > 0) {
+			return null;
+		}
+		timerQueue.poll();
+		h.isQueued = false;
+		return h;
+	}
+
 	/**
 	 * Insert an event into the event queue at one of three positions: the head,
 	 * the tail, or before a floating marker. Events inserted before the marker
@@ -198,16 +345,21 @@ public class Notifier implements EventDeleter {
 	 * inserted at the tail of the queue. Events inserted at the head of the
 	 * queue will be processed in last-in-first-out order.
 	 * 
+	 * This method doesn't block: the event is pushed on a lock-free stack of
+	 * posted events, which the primary thread moves to the event queue
+	 * before it next looks for an event to process.
+	 * 
 	 * Results: None.
 	 * 
 	 * Side effects: If this method is invoked by a non-primary thread, the
-	 * primaryThread of this Notifier will be notified about the new event.
+	 * primaryThread of this Notifier will be woken up to process the new
+	 * event.
 	 * 
 	 * @param evt the event to be put on the queue
 	 * @param position one of  TCL.QUEUE_TAIL, TCL.QUEUE_HEAD or TCL.QUEUE_MARK.
 	 */
 
-	public synchronized void queueEvent(TclEvent evt, int position) 
+	public void queueEvent(TclEvent evt, int position) 
 	{
 		if (primaryThread == null) {
 			// queueEvent() invoked after the Notifier has been
@@ -219,53 +371,92 @@ public class Notifier implements EventDeleter {
 					+ "no Interp() objects in the current thread");
 		}
 
+		if (position != TCL.QUEUE_TAIL && position != TCL.QUEUE_HEAD && position != TCL.QUEUE_MARK) {
+			// Wrong flag.
+
+			throw new TclRuntimeError(
+					"wrong position \""
+							+ position
+							+ "\", must be TCL.QUEUE_HEAD, TCL.QUEUE_TAIL or TCL.QUEUE_MARK");
+		}
+
 		evt.notifier = this;
+		evt.position = position;
 
-		if (position == TCL.QUEUE_TAIL) {
-			// Append the event on the end of the queue.
+		// Push the event on the postedEvents stack. It is inserted into the
+		// event queue by takePostedEvents(), before the queue is next
+		// searched.
 
-			evt.next = null;
+		TclEvent top;
+		do {
+			top = postedEvents.get();
+			evt.next = top;
+		} while (!postedEvents.compareAndSet(top, evt));
 
-			if (firstEvent == null) {
-				firstEvent = evt;
-			} else {
-				lastEvent.next = evt;
-			}
-			lastEvent = evt;
-		} else if (position == TCL.QUEUE_HEAD) {
-			// Push the event on the head of the queue.
+		if (Thread.currentThread() != primaryThread) {
+			wakeUp();
+		}
+	}
+
+	/**
+	 * Move all the events posted by queueEvent() into the event queue, in
+	 * the order they were posted, each at the position it was posted with.
+	 * Must be called while holding the notifier's monitor.
+	 */
+	private void takePostedEvents() {
+		if (postedEvents.get() == null) {
+			return;
+		}
+
+		// Take the whole stack, and reverse it to get the posting order.
+
+		TclEvent evt = postedEvents.getAndSet(null);
+		TclEvent posted = null;
+		while (evt != null) {
+			TclEvent next = evt.next;
+			evt.next = posted;
+			posted = evt;
+			evt = next;
+		}
+
+		for (evt = posted; evt != null; evt = posted) {
+			posted = evt.next;
+
+			if (evt.position == TCL.QUEUE_TAIL) {
+				// Append the event on the end of the queue.
+
+				evt.next = null;
 
-			evt.next = firstEvent;
-			if (firstEvent == null) {
+				if (firstEvent == null) {
+					firstEvent = evt;
+				} else {
+					lastEvent.next = evt;
+				}
 				lastEvent = evt;
-			}
-			firstEvent = evt;
-		} else if (position == TCL.QUEUE_MARK) {
-			// Insert the event after the current marker event and advance
-			// the marker to the new event.
+			} else if (evt.position == TCL.QUEUE_HEAD) {
+				// Push the event on the head of the queue.
 
-			if (markerEvent == null) {
 				evt.next = firstEvent;
+				if (firstEvent == null) {
+					lastEvent = evt;
+				}
 				firstEvent = evt;
 			} else {
-				evt.next = markerEvent.next;
-				markerEvent.next = evt;
-			}
-			markerEvent = evt;
-			if (evt.next == null) {
-				lastEvent = evt;
-			}
-		} else {
-			// Wrong flag.
+				// Insert the event after the current marker event and
+				// advance the marker to the new event.
 
-			throw new TclRuntimeError(
-					"wrong position \""
-							+ position
-							+ "\", must be TCL.QUEUE_HEAD, TCL.QUEUE_TAIL or TCL.QUEUE_MARK");
-		}
-
-		if (Thread.currentThread() != primaryThread) {
-			notifyAll();
+				if (markerEvent == null) {
+					evt.next = firstEvent;
+					firstEvent = evt;
+				} else {
+					evt.next = markerEvent.next;
+					markerEvent.next = evt;
+				}
+				markerEvent = evt;
+				if (evt.next == null) {
+					lastEvent = evt;
+				}
+			}
 		}
 	}
 
@@ -288,6 +479,8 @@ public class Notifier implements EventDeleter {
 		TclEvent evt, prev;
 		TclEvent servicedEvent = null;
 
+		takePostedEvents();
+
 		// Handle the special case of deletion of a single event that was just
 		// processed by the serviceEvent() method.
 
@@ -433,9 +626,10 @@ public class Notifier implements EventDeleter {
 	 * Results: The return value is a pointer to the first found event that can
 	 * be processed. If no event is found, this method returns null.
 	 * 
-	 * Side effects: This method synchronizes on the 'notifierMutex', which will
-	 * block any other thread from adding or removing events from the event
-	 * queue.
+	 * Side effects: Events posted by queueEvent() are moved to the event
+	 * queue. This method synchronizes on the notifier, which will block any
+	 * other thread from removing events from the event queue; adding events
+	 * is not blocked.
 	 * 
 	 * ----------------------------------------------------------------------
 	 */
@@ -451,6 +645,8 @@ public class Notifier implements EventDeleter {
 	{
 		TclEvent evt;
 
+		takePostedEvents();
+
 		for (evt = firstEvent; evt != null; evt = evt.next) {
 			if ((evt.isProcessing == false) && (evt.isProcessed == false)
 					&& (evt != skipEvent)) {
@@ -516,16 +712,16 @@ public class Notifier implements EventDeleter {
 				return serviceIdle();
 			}
 
-			long sysTime = System.currentTimeMillis();
+			long sysTime = System.nanoTime();
 
 			// If some timers have been expired, queue them into the
 			// event queue. We can't process expired times right away,
 			// because there may already be other events on the queue.
 
-			if (!timerPending && (timerList.size() > 0)) {
-				TimerHandler h = (TimerHandler) timerList.get(0);
+			if (!timerPending) {
+				TimerHandler h = firstTimer();
 
-				if (h.atTime <= sysTime) {
+				if (h != null && h.atTime - sysTime <= 0) {
 					TimerEvent event = new TimerEvent();
 					event.notifier = this;
 					queueEvent(event, TCL.QUEUE_TAIL);
@@ -558,43 +754,35 @@ public class Notifier implements EventDeleter {
 				break;
 			}
 
-			// We don't have any event to service. We'll wait if
-			// TCL.DONT_WAIT. When the following wait() call returns,
-			// one of the following things may happen:
+			// We don't have any event to service, so wait until the first
+			// timer handler fires, or, if there is none, until another
+			// thread wakes us up with wakeUp() because it:
 			//
-			// (1) waitTime milliseconds has elasped (if waitTime != 0);
+			// (a) queued an event with queueEvent();
+			// (b) created a timer handler with new TimerHandler();
+			// (c) created an idle handler with new IdleHandler().
 			//
-			// (2) The primary notifier has been notify()'ed by other threads:
-			// (a) an event is queued by queueEvent().
-			// (b) a timer handler was created by new TimerHandler();
-			// (c) an idle handler was created by new IdleHandler();
-			// (3) We receive an InterruptedException.
-			//
-
-			try {
-				// Don't acquire the monitor until we are about to wait
-				// for notification from another thread. It is critical
-				// that this entire method not be synchronized since
-				// a call to processEvent via serviceEvent could take
-				// a very long time. We don't want the monitor held
-				// during that time since that would force calls to
-				// queueEvent in other threads to wait.
-
-				synchronized (this) {
-					if (timerList.size() > 0) {
-						TimerHandler h = (TimerHandler) timerList.get(0);
-						long waitTime = h.atTime - sysTime;
-						if (waitTime > 0) {
-							wait(waitTime<PAUSE_WAIT ? waitTime: PAUSE_WAIT);
-						}
-					} else {
-						wait(PAUSE_WAIT);
-					}
-				} // synchronized (this)
-			} catch (InterruptedException e) {
-				// We ignore any InterruptedException and loop continuously
-				// until we receive an event.
+			// The wait is not done under the notifier's monitor, and doesn't
+			// poll: a thread with nothing to do stays parked. A wakeUp() that
+			// comes after the checks above but before we park leaves a permit
+			// that makes park return at once, so it isn't lost. Spurious
+			// returns just take us around the loop again.
+
+			TimerHandler h = firstTimer();
+			if (h == null) {
+				LockSupport.park(this);
+			} else {
+				long waitTime = h.atTime - System.nanoTime();
+				if (waitTime > 0) {
+					LockSupport.parkNanos(this, waitTime);
+				}
 			}
+
+			// We ignore interrupts and loop continuously until we receive an
+			// event, as a wait() here used to. Clear the interrupt status, or
+			// park would not block again.
+
+			Thread.interrupted();
 		}
 
 		return result;
@@ -759,7 +947,7 @@ class TimerEvent extends TclEvent {
 			return 0;
 		}
 
-		long sysTime = System.currentTimeMillis();
+		long sysTime = System.nanoTime();
 		int gen = notifier.timerGeneration;
 		notifier.timerGeneration++;
 
@@ -791,15 +979,8 @@ class TimerEvent extends TclEvent {
 
 		notifier.timerPending = false;
 
-		while (notifier.timerList.size() > 0) {
-			TimerHandler h = (TimerHandler) notifier.timerList.get(0);
-			if (h.generation > gen) {
-				break;
-			}
-			if (h.atTime > sysTime) {
-				break;
-			}
-			notifier.timerList.remove(0);
+		TimerHandler h;
+		while ((h = notifier.takeExpiredTimer(gen, sysTime)) != null) {
 			h.invoke();
 		}
 
@@ -271,18 +271,30 @@ public class Pipeline implements Runnable {
 		if (stdoutRedirect != null) {
 			processes.get(processes.size() - 1).setStdoutRedirect(stdoutRedirect);
 		}
+		/*
+		 * Redirect stderr of every command before any of them is started,
+		 * since a process may start the processes it pipes to along with
+		 * itself
+		 */
+		if (stderrRedirect != null) {
+			for (TclProcess process : processes) {
+				if (process.getStderrRedirect() == null) {
+					process.setStderrRedirect(stderrRedirect);
+				}
+			}
+		}
 		/*
 		 * Execute each command in the pipeline
 		 */
 		for (int i = 0; i < processes.size(); i++) {
 			TclProcess process = processes.get(i);
-			if (process.getStderrRedirect() == null && stderrRedirect != null) {
-				process.setStderrRedirect(stderrRedirect);
-			}
+			if (process.isStarted())
+				continue; // started along with an upstream process
 			try {
 				process.start();
 			} catch (IOException e) {
-				throw new TclPosixException(interp, e, true, "couldn't execute \"" + process.command().get(0) + "\"");
+				throw new TclPosixException(interp, e, true, "couldn't execute \"" + process.failedCommand().get(0)
+						+ "\"");
 			}
 		}
 
@@ -132,6 +132,32 @@ public class Procedure implements Command, CommandWithDispose {
 		body_length = body.length();
 	}
 
+	/**
+	 * Create a copy of a procedure for another interpreter; see InterpCloner.
+	 * The characters of the body are shared, since they are never modified.
+	 * The argument specifiers are copied, since their internal
+	 * representation can change when they are used.
+	 * 
+	 * @param proc
+	 *            the procedure to copy
+	 */
+	Procedure(Procedure proc) {
+		srcFileName = proc.srcFileName;
+		srcLineNumber = proc.srcLineNumber;
+		argList = new TclObject[proc.argList.length][2];
+		for (int i = 0; i < argList.length; i++) {
+			for (int j = 0; j < 2; j++) {
+				if (proc.argList[i][j] != null) {
+					argList[i][j] = TclString.newInstance(proc.argList[i][j].toString());
+					argList[i][j].preserve();
+				}
+			}
+		}
+		isVarArgs = proc.isVarArgs;
+		body = new CharPointer(proc.body);
+		body_length = proc.body_length;
+	}
+
 	/*
 	 * ----------------------------------------------------------------------
 	 * 
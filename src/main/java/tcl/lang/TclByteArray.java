@@ -16,11 +16,6 @@
 
 package tcl.lang;
 
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.CharacterCodingException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
 
 import tcl.lang.cmd.EncodingCmd;
@@ -265,18 +260,7 @@ public class TclByteArray implements InternalRep {
 			return tobj.toString();
 		}
 		String javaEncoding = EncodingCmd.getJavaName(tclEncoding);
-		CharsetDecoder csd = Charset.forName(javaEncoding).newDecoder();
-		csd.onMalformedInput(CodingErrorAction.IGNORE);
-		csd.onUnmappableCharacter(CodingErrorAction.REPLACE);
-		CharBuffer cb = null;
-		try {
-			cb = csd.decode(ByteBuffer.wrap(tbyteArray.bytes, 0, tbyteArray.used));
-		} catch (CharacterCodingException e) {
-		}
-		if (cb == null)
-			return "";
-		else
-			return cb.toString();
+		return CharsetCodec.decode(javaEncoding, tbyteArray.bytes, 0, tbyteArray.used, CodingErrorAction.IGNORE);
 	}
 
 }
@@ -56,7 +56,15 @@ public abstract class TclEvent {
 	boolean isProcessed = false;
 
 	/**
-	 * Links to the next event in the event queue.
+	 * Position the event was queued at: TCL.QUEUE_TAIL, TCL.QUEUE_HEAD or
+	 * TCL.QUEUE_MARK.
+	 */
+
+	int position;
+
+	/**
+	 * Links to the next event in the event queue, or in the notifier's
+	 * stack of posted events.
 	 */
 
 	TclEvent next;
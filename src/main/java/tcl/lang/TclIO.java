@@ -132,6 +132,12 @@ public class TclIO {
 	private static StdChannel stdoutChan = null;
 	private static StdChannel stderrChan = null;
 
+	/**
+	 * Channels removed from their interpreter by detachChannel(), waiting to
+	 * be attached to another one, by name
+	 */
+	private static final HashMap<String, Channel> detachedChannels = new HashMap<String, Channel>();
+
 	/**
 	 * Return a registered Channel object, given its name.
 	 * 
@@ -304,6 +310,64 @@ public class TclIO {
 
 	}
 
+	/**
+	 * Remove a channel from an interpreter without closing it, so that it can
+	 * be attached to another interpreter, in any thread, with
+	 * attachChannel(). The channel's fileevent scripts are removed.
+	 * 
+	 * @param interp
+	 *            Interpreter giving up the channel
+	 * @param chanName
+	 *            Name of the channel
+	 * @throws TclException
+	 *             if the channel cannot be found, or is a standard channel
+	 */
+	public static void detachChannel(Interp interp, String chanName) throws TclException {
+		HashMap<String, Channel> chanTable = getInterpChanTable(interp);
+		Channel channel = chanTable.get(chanName);
+		if (channel == null || !chanName.equals(channel.getChanName())) {
+			throw new TclException(interp, "can not find channel named \"" + chanName + "\"");
+		}
+		if (channel instanceof StdChannel || channel.refCount > 1) {
+			throw new TclException(interp, "channel \"" + chanName + "\" is shared");
+		}
+		FileEventScript.dispose(interp, channel, FileEvent.READABLE);
+		FileEventScript.dispose(interp, channel, FileEvent.WRITABLE);
+		chanTable.remove(chanName);
+		synchronized (detachedChannels) {
+			/* the reference held by the interpreter moves to detachedChannels */
+			detachedChannels.put(chanName, channel);
+		}
+	}
+
+	/**
+	 * Register a channel that was detached with detachChannel() in an
+	 * interpreter
+	 * 
+	 * @param interp
+	 *            Interpreter receiving the channel
+	 * @param chanName
+	 *            Name of the detached channel
+	 * @throws TclException
+	 *             if there is no such detached channel, or the interpreter
+	 *             already has a channel with that name
+	 */
+	public static void attachChannel(Interp interp, String chanName) throws TclException {
+		HashMap<String, Channel> chanTable = getInterpChanTable(interp);
+		Channel channel;
+		synchronized (detachedChannels) {
+			channel = detachedChannels.get(chanName);
+			if (channel == null) {
+				throw new TclException(interp, "can not find detached channel named \"" + chanName + "\"");
+			}
+			if (chanTable.containsKey(chanName)) {
+				throw new TclException(interp, "channel \"" + chanName + "\" already exists");
+			}
+			detachedChannels.remove(chanName);
+		}
+		chanTable.put(chanName, channel);
+	}
+
 	/**
 	 * Unregister a channel and it's FileEventScripts in this interpreter's channel table, and call
 	 * close() on that channel.
@@ -25,6 +25,21 @@ public class TclList implements InternalRep {
 	 */
 	private ArrayList<TclObject> alist;
 
+	/**
+	 * Element strings seen by the last call to toString(), by index, or null.
+	 */
+	private String[] scannedStrings = null;
+
+	/**
+	 * Util.scanElement() flags of scannedStrings, or PLAIN_ELEMENT.
+	 */
+	private int[] scannedFlags = null;
+
+	/**
+	 * Flags value for an element that is appended to the string rep as-is.
+	 */
+	private static final int PLAIN_ELEMENT = -1;
+
 	/**
 	 * Create a new empty Tcl List.
 	 */
@@ -74,6 +89,8 @@ public class TclList implements InternalRep {
 			(alist.get(i)).release();
 		}
 		alist.clear();
+		scannedStrings = null;
+		scannedFlags = null;
 	}
 
 	/**
@@ -117,22 +134,64 @@ public class TclList implements InternalRep {
 		if (size == 0) {
 			return "";
 		}
-		int est = size * 4;
 
-		StringBuffer sbuf = new StringBuffer((est > 64) ? est : 64);
+		// Look up the string and quoting flags of each element first, so the
+		// buffer can be sized up front. An element whose string is the same
+		// String the last call saw at this index reuses its flags, since
+		// lists are typically stringified again after elements are appended.
+		// Numbers generated from their value never need quoting.
+
+		final String[] oldStrings = scannedStrings;
+		final int[] oldFlags = scannedFlags;
+		final int oldSize = (oldStrings == null) ? 0 : oldStrings.length;
+		String[] strings = new String[size];
+		int[] flags = new int[size];
+		int est = size;
+
 		try {
 			for (int i = 0; i < size; i++) {
 				TclObject elm = alist.get(i);
-				if (elm != null) {
-					Util.appendElement(null, sbuf, elm.toString());
+				String s;
+				int f;
+				if (elm == null) {
+					s = "";
+					f = Util.scanElement(null, s);
+				} else if (elm.hasNoStringRep() && (elm.isIntType() || elm.isDoubleType())) {
+					s = elm.toString();
+					f = PLAIN_ELEMENT;
 				} else {
-					Util.appendElement(null, sbuf, "");
+					s = elm.toString();
+					if (i < oldSize && oldStrings[i] == s) {
+						f = oldFlags[i];
+					} else {
+						f = Util.scanElement(null, s);
+					}
+				}
+				strings[i] = s;
+				flags[i] = f;
+				est += s.length();
+				if (f != PLAIN_ELEMENT && f != 0) {
+					est += 2;
 				}
 			}
 		} catch (TclException e) {
 			throw new TclRuntimeError("unexpected TclException: " + e);
 		}
 
+		StringBuilder sbuf = new StringBuilder(est);
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sbuf.append(' ');
+			}
+			if (flags[i] == PLAIN_ELEMENT) {
+				sbuf.append(strings[i]);
+			} else {
+				Util.convertElement(strings[i], flags[i], sbuf);
+			}
+		}
+
+		scannedStrings = strings;
+		scannedFlags = flags;
 		return sbuf.toString();
 	}
 
@@ -146,6 +205,31 @@ public class TclList implements InternalRep {
 		return new TclObject(new TclList());
 	}
 
+	/**
+	 * Creates a new instance of a TclObject with a TclList internal rep
+	 * holding the given elements. The list is allocated to its final size up
+	 * front, so this is cheaper than repeated calls to append().
+	 *
+	 * @param objv
+	 *            array containing the list elements.
+	 * @param startIdx
+	 *            index of the first element to use.
+	 * @param endIdx
+	 *            index one past the last element to use.
+	 * @return the TclObject with the given list value.
+	 */
+
+	public static TclObject newInstance(TclObject[] objv, final int startIdx,
+			final int endIdx) {
+		TclList tlist = new TclList(endIdx - startIdx);
+		for (int i = startIdx; i < endIdx; i++) {
+			TclObject elemObj = objv[i];
+			elemObj.preserve();
+			tlist.alist.add(elemObj);
+		}
+		return new TclObject(tlist);
+	}
+
 	/**
 	 * copy (TclListObjCopy) --
 	 * 
@@ -379,7 +463,7 @@ public class TclList implements InternalRep {
 	 * @exception TclException
 	 *                if tobj is not a valid list.
 	 */
-	public static ArrayList getElementsList(Interp interp, TclObject tobj)
+	public static ArrayList<TclObject> getElementsList(Interp interp, TclObject tobj)
 			throws TclException {
 		if (!tobj.isListType()) {
 			setListFromAny(interp, tobj);
@@ -0,0 +1,175 @@
+/*
+ * TclSubstring.java
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package tcl.lang;
+
+/**
+ * A string value that is a window (offset, length) on a larger source
+ * String. The characters are not copied until a java.lang.String is actually
+ * needed, which is when the TclObject's toString() is called. Until then
+ * length() and charAt() read straight from the source, and a window taken
+ * from a window refers to the original source, so repeated "string range"
+ * and "string index" calls on a big value don't copy the intermediate
+ * results.
+ * <p>
+ * A window keeps its whole source reachable. To keep a small value from
+ * pinning a huge one, newInstance() only creates a window when it is at least
+ * MIN_LENGTH chars long and at least 1/MAX_PIN_RATIO of the source; smaller
+ * ranges are copied right away.
+ */
+public final class TclSubstring implements InternalRep {
+
+	/**
+	 * Ranges shorter than this are always copied.
+	 */
+	static final int MIN_LENGTH = 256;
+
+	/**
+	 * A window may not be more than this many times smaller than its source.
+	 */
+	static final int MAX_PIN_RATIO = 16;
+
+	/**
+	 * The String this is a window on.
+	 */
+	private final String source;
+
+	/**
+	 * Index of the first char of the window in source.
+	 */
+	private final int offset;
+
+	/**
+	 * Number of chars in the window.
+	 */
+	private final int length;
+
+	@SuppressWarnings("unchecked")
+	private TclSubstring(String source, int offset, int length) {
+		this.source = source;
+		this.offset = offset;
+		this.length = length;
+
+		if (TclObject.saveObjRecords) {
+			String key = "TclSubstring";
+			Integer num = (Integer) TclObject.objRecordMap.get(key);
+			if (num == null) {
+				num = new Integer(1);
+			} else {
+				num = new Integer(num.intValue() + 1);
+			}
+			TclObject.objRecordMap.put(key, num);
+		}
+	}
+
+	/**
+	 * Windows are immutable, so the duplicate can share this instance.
+	 */
+	public InternalRep duplicate() {
+		return this;
+	}
+
+	/**
+	 * Implement this no-op for the InternalRep interface.
+	 */
+	public void dispose() {
+	}
+
+	/**
+	 * Copies the window into a new String. This is called only by
+	 * TclObject.toString(), which caches the result.
+	 *
+	 * @return the chars of the window
+	 */
+	public String toString() {
+		return source.substring(offset, offset + length);
+	}
+
+	/**
+	 * Returns a TclObject holding the chars first to end-1 of the string value
+	 * of tobj. If tobj is itself a window whose string has not been generated,
+	 * the new value is a window on the same source.
+	 *
+	 * @param tobj
+	 *            object whose string value is sliced
+	 * @param first
+	 *            index of the first char
+	 * @param end
+	 *            index one past the last char
+	 * @return a new TclObject
+	 */
+	public static TclObject newInstance(TclObject tobj, int first, int end) {
+		if (tobj.hasNoStringRep()) {
+			InternalRep rep = tobj.getInternalRep();
+			if (rep instanceof TclSubstring) {
+				TclSubstring sub = (TclSubstring) rep;
+				return newInstance(sub.source, sub.offset + first, sub.offset + end);
+			}
+		}
+		return newInstance(tobj.toString(), first, end);
+	}
+
+	/**
+	 * Returns a TclObject holding source.substring(first, end), as a window on
+	 * source if the policy described above allows it.
+	 *
+	 * @param source
+	 *            string that is sliced
+	 * @param first
+	 *            index of the first char
+	 * @param end
+	 *            index one past the last char
+	 * @return a new TclObject
+	 */
+	public static TclObject newInstance(String source, int first, int end) {
+		int len = end - first;
+		if (len == source.length()) {
+			return TclString.newInstance(source);
+		}
+		if (len < MIN_LENGTH || len < source.length() / MAX_PIN_RATIO) {
+			return TclString.newInstance(source.substring(first, end));
+		}
+		return new TclObject(new TclSubstring(source, first, len));
+	}
+
+	/**
+	 * @param tobj
+	 *            any TclObject
+	 * @return the number of chars in the string value of tobj, without
+	 *         generating the string of a window
+	 */
+	public static int length(TclObject tobj) {
+		if (tobj.hasNoStringRep()) {
+			InternalRep rep = tobj.getInternalRep();
+			if (rep instanceof TclSubstring) {
+				return ((TclSubstring) rep).length;
+			}
+		}
+		return tobj.toString().length();
+	}
+
+	/**
+	 * @param tobj
+	 *            any TclObject
+	 * @param index
+	 *            index of a char, from 0 to length(tobj)-1
+	 * @return the char at index in the string value of tobj, without
+	 *         generating the string of a window
+	 */
+	public static char charAt(TclObject tobj, int index) {
+		if (tobj.hasNoStringRep()) {
+			InternalRep rep = tobj.getInternalRep();
+			if (rep instanceof TclSubstring) {
+				TclSubstring sub = (TclSubstring) rep;
+				return sub.source.charAt(sub.offset + index);
+			}
+		}
+		return tobj.toString().charAt(index);
+	}
+}
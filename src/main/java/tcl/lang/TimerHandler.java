@@ -21,13 +21,19 @@ package tcl.lang;
  */
 abstract public class TimerHandler {
 
+	/**
+	 * Longest delay, in milliseconds; longer delays are shortened to this, so
+	 * that firing times can be compared without overflow (about 146 years)
+	 */
+	private static final long MAX_DELAY = Long.MAX_VALUE / 2 / 1000000L;
+
 	/**
 	 * Back pointer to the notifier that will fire this timer.
 	 */
 	Notifier notifier;
 
 	/**
-	 * System time at (of after) which the timer should be fired.
+	 * System.nanoTime() value at (or after) which the timer should be fired.
 	 */
 	long atTime;
 
@@ -41,6 +47,17 @@ abstract public class TimerHandler {
 	 */
 	int generation;
 
+	/**
+	 * Orders handlers with the same atTime by creation
+	 */
+	long sequence;
+
+	/**
+	 * True while the handler is in the notifier's timer queue. Guarded by the
+	 * notifier.
+	 */
+	boolean isQueued;
+
 	/**
 	 * Create a timer handler to be fired after the given time lapse.
 	 * Side effects: The timer is registered in the list of timers in the given
@@ -53,37 +70,22 @@ abstract public class TimerHandler {
 	public TimerHandler(Notifier n, 
 			long milliseconds) 
 	{
-		int i;
-
-		atTime = System.currentTimeMillis() + milliseconds;
+		atTime = System.nanoTime() + Math.min(milliseconds, MAX_DELAY) * 1000000L;
 		notifier = n;
 		isCancelled = false;
 
 		/*
-		 * Add timer event to the pending timer list in the correct position
-		 * (ordered by event firing time).
+		 * Add timer event to the notifier's timer queue, which is ordered by
+		 * event firing time.
 		 * 
 		 * NOTE: it's very important that if two timer handlers have the same
-		 * atTime, the newer timer handler always goes after the older handler
-		 * in the list. See comments in Notifier.TimerEvent.processEvent() for
+		 * atTime, the newer timer handler always fires after the older
+		 * handler. The notifier orders them by the sequence number it gives
+		 * them. See comments in Notifier.TimerEvent.processEvent() for
 		 * details.
 		 */
 
-		synchronized (notifier) {
-			generation = notifier.timerGeneration;
-
-			for (i = 0; i < notifier.timerList.size(); i++) {
-				TimerHandler q = (TimerHandler) notifier.timerList.get(i);
-				if (atTime < q.atTime) {
-					break;
-				}
-			}
-			notifier.timerList.add(i, this);
-
-			if (Thread.currentThread() != notifier.primaryThread) {
-				notifier.notifyAll();
-			}
-		}
+		notifier.addTimer(this);
 	}
 
 	/**
@@ -97,22 +99,13 @@ abstract public class TimerHandler {
 			return;
 		}
 
-		isCancelled = true;
-
-		synchronized (notifier) {
-			for (int i = 0; i < notifier.timerList.size(); i++) {
-				if (notifier.timerList.get(i) == this) {
-					notifier.timerList.remove(i);
-
-					/*
-					 * We can return now because the same timer can be
-					 * registered only once in the list of timers.
-					 */
+		/*
+		 * The notifier sets isCancelled. The handler stays in the notifier's
+		 * timer queue, which skips cancelled handlers, so cancelling takes
+		 * constant time.
+		 */
 
-					return;
-				}
-			}
-		}
+		notifier.timerCancelled(this);
 	}
 
 	/**
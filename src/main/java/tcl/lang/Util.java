@@ -1014,6 +1014,27 @@ public class Util {
 		convertElement(s, flags, sbuf);
 	}
 
+	/**
+	 * Same as appendElement(Interp, StringBuffer, String), for an
+	 * unsynchronized buffer.
+	 * 
+	 * @param interp
+	 *            Current interpreter.
+	 * @param sbuf
+	 *            The buffer to append to.
+	 * @param s
+	 *            The string to append.
+	 * @throws TclException
+	 */
+	public static final void appendElement(Interp interp, StringBuilder sbuf, String s) throws TclException {
+		if (sbuf.length() > 0) {
+			sbuf.append(' ');
+		}
+
+		int flags = scanElement(interp, s);
+		convertElement(s, flags, sbuf);
+	}
+
 	/**
 	 * 
 	 * findElement --
@@ -1374,6 +1395,24 @@ public class Util {
 	 *            Buffer to write element to
 	 */
 	public static void convertElement(String s, int flags, StringBuffer sbuf) {
+		final int len = (s == null ? 0 : s.length());
+		StringBuilder sb = new StringBuilder(len + 2);
+		convertElement(s, flags, sb);
+		sbuf.append(sb);
+	}
+
+	/**
+	 * Same as convertElement(String, int, StringBuffer), for an
+	 * unsynchronized buffer.
+	 * 
+	 * @param s
+	 *            Source information for list element.
+	 * @param flags
+	 *            Flags produced by scanElement
+	 * @param sbuf
+	 *            Buffer to write element to
+	 */
+	public static void convertElement(String s, int flags, StringBuilder sbuf) {
 		int i = 0;
 		char c;
 		final int len = (s == null ? 0 : s.length());
@@ -0,0 +1,372 @@
+package tcl.lang.channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.CodingErrorAction;
+
+import tcl.lang.CharsetCodec;
+import tcl.lang.TclIO;
+import tcl.lang.TclObject;
+import tcl.lang.TclString;
+
+/**
+ * Reads a line, or all of the remaining input, straight out of the block held
+ * by an InputBuffer, for the common channel configurations: binary,
+ * iso8859-1, ascii or utf-8 encoding, with any translation. The end of line
+ * is found by scanning the bytes in place, which works because '\r' and '\n'
+ * are single bytes that can't be part of a multi-byte character in these
+ * encodings. The bytes of the line are then decoded by one CharsetCodec call
+ * and appended to the result TclString. This replaces a per-character pass
+ * through MarkableInputStream, UnicodeDecoder and EolInputFilter.
+ * <p>
+ * The input eof character is handled by the EofInputFilter below the
+ * InputBuffer, as on the general path. A BlockDecoder may only be used when
+ * nothing is saved in the MarkableInputStream above the InputBuffer; see
+ * isUsable().
+ *
+ */
+class BlockDecoder {
+	/**
+	 * readLine() return value if the BlockDecoder can't read the line, and
+	 * the general path has to be used; nothing was consumed
+	 */
+	final static int NOT_HANDLED = -3;
+
+	/**
+	 * Lines are decoded from this InputBuffer
+	 */
+	private final InputBuffer inputBuffer;
+
+	/**
+	 * The stream above inputBuffer, which must be empty
+	 */
+	private final MarkableInputStream markableInputStream;
+
+	/**
+	 * The decoder above markableInputStream, which must not have seen EOF
+	 */
+	private final UnicodeDecoder unicodeDecoder;
+
+	/**
+	 * Bytes of a line that spans more than one block, or of all input for
+	 * readAll()
+	 */
+	private byte[] bytes = new byte[0];
+
+	/**
+	 * Decoded chars of the last line
+	 */
+	private char[] chars = new char[0];
+
+	/**
+	 * Accumulated buffers larger than this are dropped after use
+	 */
+	private static final int KEEP_SIZE = 64 * 1024;
+
+	/**
+	 * Set to true if the last line read ended at EOF, rather than with an
+	 * end of line
+	 */
+	private boolean eofSeen = false;
+
+	/**
+	 * Length of the end of line sequence found by the last findEol(): 1 or 2
+	 * bytes, or -1 if the block ends with a '\r' that may or may not be an
+	 * end of line, depending on the next byte
+	 */
+	private int eolLength;
+
+	/**
+	 * Create a BlockDecoder for a channel's input chain
+	 *
+	 * @param inputBuffer
+	 *            the InputBuffer that lines are read from
+	 * @param markableInputStream
+	 *            the MarkableInputStream above inputBuffer
+	 * @param unicodeDecoder
+	 *            the UnicodeDecoder above markableInputStream
+	 */
+	BlockDecoder(InputBuffer inputBuffer, MarkableInputStream markableInputStream, UnicodeDecoder unicodeDecoder) {
+		this.inputBuffer = inputBuffer;
+		this.markableInputStream = markableInputStream;
+		this.unicodeDecoder = unicodeDecoder;
+	}
+
+	/**
+	 * @param encoding
+	 *            the channel's Java encoding name, or null for binary
+	 * @return true if the BlockDecoder can read the channel's input now
+	 */
+	boolean isUsable(String encoding) {
+		if (encoding != null) {
+			if ("symbol".equals(encoding) || CharsetCodec.getKind(encoding) == CharsetCodec.OTHER)
+				return false;
+		}
+		return markableInputStream.isEmpty() && !unicodeDecoder.eofSeen;
+	}
+
+	/**
+	 * @return true if the last line read by readLine() ended at EOF
+	 */
+	boolean eofSeen() {
+		return eofSeen;
+	}
+
+	/**
+	 * Read one line, and append it to tobj without the end of line
+	 * characters.
+	 *
+	 * @param tobj
+	 *            TclString the line is appended to
+	 * @param translation
+	 *            the channel's input translation, one of TclIO.TRANS_*
+	 * @param encoding
+	 *            the channel's Java encoding name, or null for binary
+	 * @param block
+	 *            if true, block until a whole line or EOF is read. If false,
+	 *            only read a line that is complete in the buffer.
+	 * @return the number of chars in the line, EolInputFilter.EOF at EOF, or
+	 *         NOT_HANDLED if the line could not be read without blocking
+	 * @throws IOException
+	 */
+	int readLine(TclObject tobj, int translation, String encoding, boolean block) throws IOException {
+		eofSeen = false;
+		if (!block) {
+			if (inputBuffer.fill(false) <= 0)
+				return NOT_HANDLED;
+			byte[] buf = inputBuffer.array();
+			int pos = inputBuffer.position();
+			int end = findEol(buf, pos, inputBuffer.limit(), translation);
+			if (end < 0 || eolLength < 0)
+				return NOT_HANDLED;
+			int len = appendDecoded(tobj, encoding, buf, pos, end - pos);
+			inputBuffer.consume(end - pos + eolLength);
+			return len;
+		}
+
+		int count = 0; // number of bytes of the line saved in bytes[]
+		boolean pendingCr = false; // last block ended with a possible EOL '\r'
+		while (true) {
+			int avail = inputBuffer.fill(true);
+			if (avail < 0) {
+				if (pendingCr) {
+					if (translation == TclIO.TRANS_AUTO)
+						break; // '\r' at EOF ends the line
+					count = save(count, (byte) '\r');
+				}
+				eofSeen = true;
+				if (count == 0)
+					return EolInputFilter.EOF;
+				break;
+			}
+			byte[] buf = inputBuffer.array();
+			int pos = inputBuffer.position();
+			int lim = inputBuffer.limit();
+
+			if (pendingCr) {
+				pendingCr = false;
+				if (buf[pos] == '\n') {
+					inputBuffer.consume(1);
+					break;
+				}
+				if (translation == TclIO.TRANS_AUTO)
+					break; // a lone '\r' ends the line
+				count = save(count, (byte) '\r');
+			}
+
+			int end = findEol(buf, pos, lim, translation);
+			if (end < 0) {
+				count = save(count, buf, pos, lim - pos);
+				inputBuffer.consume(lim - pos);
+				continue;
+			}
+			if (eolLength < 0) {
+				/* '\r' at the end of the block, need to see the next byte */
+				count = save(count, buf, pos, end - pos);
+				inputBuffer.consume(end - pos + 1);
+				pendingCr = true;
+				continue;
+			}
+			if (count == 0) {
+				/* the whole line is in the block; decode it in place */
+				int len = appendDecoded(tobj, encoding, buf, pos, end - pos);
+				inputBuffer.consume(end - pos + eolLength);
+				return len;
+			}
+			count = save(count, buf, pos, end - pos);
+			inputBuffer.consume(end - pos + eolLength);
+			break;
+		}
+		int len = appendDecoded(tobj, encoding, bytes, 0, count);
+		if (bytes.length > KEEP_SIZE)
+			bytes = new byte[0];
+		return len;
+	}
+
+	/**
+	 * Read all input up to EOF, translate end of line sequences to '\n' and
+	 * append the decoded characters to tobj. Blocks until EOF.
+	 *
+	 * @param tobj
+	 *            TclString the input is appended to
+	 * @param translation
+	 *            the channel's input translation, one of TclIO.TRANS_*
+	 * @param encoding
+	 *            the channel's Java encoding name, or null for binary
+	 * @param direct
+	 *            the channel's direct input stream, if nothing is buffered
+	 *            in the input chain; otherwise null. The bytes it has
+	 *            available are read first, in one read into an array sized
+	 *            to fit.
+	 * @return the number of chars appended
+	 * @throws IOException
+	 */
+	int readAll(TclObject tobj, int translation, String encoding, InputStream direct) throws IOException {
+		int count = 0;
+		if (direct != null) {
+			int size = direct.available();
+			if (bytes.length < size)
+				bytes = new byte[size];
+			while (count < size) {
+				int cnt = direct.read(bytes, count, size - count);
+				if (cnt == -1)
+					break;
+				count += cnt;
+			}
+		}
+		int avail;
+		while ((avail = inputBuffer.fill(true)) >= 0) {
+			count = save(count, inputBuffer.array(), inputBuffer.position(), avail);
+			inputBuffer.consume(avail);
+		}
+		count = translateEol(bytes, count, translation);
+		int len = appendDecoded(tobj, encoding, bytes, 0, count);
+		if (bytes.length > KEEP_SIZE)
+			bytes = new byte[0];
+		return len;
+	}
+
+	/**
+	 * Find the first end of line sequence in a block of bytes, and set
+	 * eolLength.
+	 *
+	 * @return index of the first byte of the end of line sequence, or -1 if
+	 *         there is none in the block
+	 */
+	private int findEol(byte[] buf, int pos, int lim, int translation) {
+		switch (translation) {
+		case TclIO.TRANS_CR:
+			for (int i = pos; i < lim; i++) {
+				if (buf[i] == '\r') {
+					eolLength = 1;
+					return i;
+				}
+			}
+			return -1;
+		case TclIO.TRANS_CRLF:
+		case TclIO.TRANS_AUTO:
+			for (int i = pos; i < lim; i++) {
+				byte b = buf[i];
+				if (b == '\n' && translation == TclIO.TRANS_AUTO) {
+					eolLength = 1;
+					return i;
+				}
+				if (b == '\r') {
+					if (i + 1 == lim) {
+						eolLength = -1;
+						return i;
+					}
+					if (buf[i + 1] == '\n') {
+						eolLength = 2;
+						return i;
+					}
+					if (translation == TclIO.TRANS_AUTO) {
+						eolLength = 1;
+						return i;
+					}
+				}
+			}
+			return -1;
+		default:
+			for (int i = pos; i < lim; i++) {
+				if (buf[i] == '\n') {
+					eolLength = 1;
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Translate end of line sequences to '\n', in place
+	 *
+	 * @return the new number of bytes
+	 */
+	private static int translateEol(byte[] buf, int count, int translation) {
+		switch (translation) {
+		case TclIO.TRANS_CR:
+			for (int i = 0; i < count; i++) {
+				if (buf[i] == '\r')
+					buf[i] = '\n';
+			}
+			return count;
+		case TclIO.TRANS_CRLF:
+		case TclIO.TRANS_AUTO: {
+			int n = 0;
+			for (int i = 0; i < count; i++) {
+				byte b = buf[i];
+				if (b == '\r') {
+					if (i + 1 < count && buf[i + 1] == '\n') {
+						++i;
+					} else if (translation == TclIO.TRANS_CRLF) {
+						buf[n++] = b;
+						continue;
+					}
+					b = '\n';
+				}
+				buf[n++] = b;
+			}
+			return n;
+		}
+		default:
+			return count;
+		}
+	}
+
+	/**
+	 * Append bytes to bytes[], growing it as needed
+	 *
+	 * @return the new number of bytes in bytes[]
+	 */
+	private int save(int count, byte[] b, int off, int len) {
+		if (count + len > bytes.length) {
+			byte[] newBytes = new byte[Math.max(count + len, bytes.length * 2)];
+			System.arraycopy(bytes, 0, newBytes, 0, count);
+			bytes = newBytes;
+		}
+		System.arraycopy(b, off, bytes, count, len);
+		return count + len;
+	}
+
+	private int save(int count, byte b) {
+		return save(count, new byte[] { b }, 0, 1);
+	}
+
+	/**
+	 * Decode bytes and append the chars to tobj
+	 *
+	 * @return the number of chars appended
+	 */
+	private int appendDecoded(TclObject tobj, String encoding, byte[] b, int off, int len) {
+		if (chars.length < len) {
+			chars = new char[len];
+		}
+		int n = CharsetCodec.decode(encoding == null ? "ISO-8859-1" : encoding, b, off, len, chars, 0,
+				CodingErrorAction.REPLACE);
+		TclString.append(tobj, chars, 0, n);
+		if (chars.length > KEEP_SIZE)
+			chars = new char[0];
+		return n;
+	}
+}
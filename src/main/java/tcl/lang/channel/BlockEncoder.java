@@ -0,0 +1,140 @@
+package tcl.lang.channel;
+
+import java.io.IOException;
+
+import tcl.lang.CharsetCodec;
+import tcl.lang.TclIO;
+
+/**
+ * Encodes a string and translates its end of line characters in one pass,
+ * straight into a byte array that is handed to the OutputBuffer, for the
+ * common channel configurations: binary, iso8859-1, ascii or utf-8 encoding,
+ * with any translation. This replaces the copy to a char[], the pass through
+ * EolOutputFilter (which copies again for crlf) and the pass through
+ * UnicodeEncoder. A trailing newline, as written by puts, is encoded with the
+ * string, so that both reach the OutputBuffer in one write.
+ * <p>
+ * These encodings don't keep state between writes, so the BlockEncoder can
+ * stop at any char and leave the rest of the string to the general path. It
+ * does that at the first surrogate char, which the CharsetEncoder handles.
+ *
+ */
+class BlockEncoder {
+	/**
+	 * Chars encoded per write to the OutputBuffer
+	 */
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	/**
+	 * Encoded bytes go to this OutputBuffer
+	 */
+	private final OutputBuffer outputBuffer;
+
+	/**
+	 * Encoded bytes of the current chunk
+	 */
+	private byte[] bytes = new byte[0];
+
+	/**
+	 * Create a BlockEncoder for a channel's output chain
+	 *
+	 * @param outputBuffer
+	 *            the OutputBuffer that encoded bytes are written to
+	 */
+	BlockEncoder(OutputBuffer outputBuffer) {
+		this.outputBuffer = outputBuffer;
+	}
+
+	/**
+	 * @param encoding
+	 *            the channel's Java encoding name, or null for binary
+	 * @return true if the BlockEncoder can encode for the channel
+	 */
+	static boolean isUsable(String encoding) {
+		return encoding == null
+				|| (!"symbol".equals(encoding) && CharsetCodec.getKind(encoding) != CharsetCodec.OTHER);
+	}
+
+	/**
+	 * Encode and write the chars of str, followed by a '\n' if newline is
+	 * true
+	 *
+	 * @param str
+	 *            the chars to write
+	 * @param newline
+	 *            if true, write an end of line after str
+	 * @param translation
+	 *            the channel's output translation, one of TclIO.TRANS_*
+	 * @param encoding
+	 *            the channel's Java encoding name, or null for binary
+	 * @return the number of chars of str that were written. If it is less
+	 *         than str.length(), the char at that index is a surrogate, and
+	 *         the rest of str and the newline must be written by the general
+	 *         path.
+	 * @throws IOException
+	 */
+	int write(String str, boolean newline, int translation, String encoding) throws IOException {
+		int kind = encoding == null ? CharsetCodec.LATIN1 : CharsetCodec.getKind(encoding);
+		int max = kind == CharsetCodec.ASCII ? 0x7f : 0xff;
+		final int len = str.length();
+		int i = 0;
+		do {
+			int end = Math.min(len, i + CHUNK_SIZE);
+			int need = (end - i) * (kind == CharsetCodec.UTF8 ? 3 : 1) * (translation == TclIO.TRANS_CRLF ? 2 : 1) + 2;
+			if (bytes.length < need)
+				bytes = new byte[need];
+			byte[] b = bytes;
+			int n = 0;
+			for (; i < end; i++) {
+				char c = str.charAt(i);
+				if (c == '\n') {
+					n = eol(b, n, translation);
+				} else if (c < 0x80) {
+					b[n++] = (byte) c;
+				} else if (encoding == null) {
+					b[n++] = (byte) c;
+				} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+					break;
+				} else if (kind != CharsetCodec.UTF8) {
+					b[n++] = c <= max ? (byte) c : (byte) '?';
+				} else if (c < 0x800) {
+					b[n++] = (byte) (0xc0 | (c >> 6));
+					b[n++] = (byte) (0x80 | (c & 0x3f));
+				} else {
+					b[n++] = (byte) (0xe0 | (c >> 12));
+					b[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					b[n++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			if (i == len && newline)
+				n = eol(b, n, translation);
+			if (n > 0)
+				outputBuffer.write(b, 0, n);
+			if (i < end)
+				break;
+		} while (i < len);
+		if (bytes.length > 4 * CHUNK_SIZE)
+			bytes = new byte[0];
+		return i;
+	}
+
+	/**
+	 * Store a translated end of line
+	 *
+	 * @return the new number of bytes in b
+	 */
+	private static int eol(byte[] b, int n, int translation) {
+		switch (translation) {
+		case TclIO.TRANS_CR:
+			b[n++] = '\r';
+			break;
+		case TclIO.TRANS_CRLF:
+			b[n++] = '\r';
+			b[n++] = '\n';
+			break;
+		default:
+			b[n++] = '\n';
+		}
+		return n;
+	}
+}
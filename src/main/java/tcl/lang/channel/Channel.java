@@ -18,6 +18,7 @@ import java.io.OutputStream;
 import java.io.Reader;
 import java.io.SyncFailedException;
 import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
 
 import tcl.lang.Interp;
 import tcl.lang.TclByteArray;
@@ -79,6 +80,12 @@ public abstract class Channel {
 	 */
 	protected EolInputFilter eolInputFilter = null;
 
+	/**
+	 * Reads lines and whole input straight out of inputBuffer, for the
+	 * common encodings; see BlockDecoder.isUsable()
+	 */
+	BlockDecoder blockDecoder = null;
+
 	/**
 	 * The EOF input filter for this channel, which translates the EOF
 	 * character.
@@ -120,6 +127,12 @@ public abstract class Channel {
 	 */
 	protected OutputBuffer outputBuffer = null;
 
+	/**
+	 * Encodes and translates strings straight into outputBuffer, for the
+	 * common encodings; see BlockEncoder.isUsable()
+	 */
+	BlockEncoder blockEncoder = null;
+
 	/**
 	 * This OutputStream writes the EOF character, and prevents this Chanel's
 	 * getOutputStream() from being closed by the chain.
@@ -273,6 +286,12 @@ public abstract class Channel {
 
 			switch (readType) {
 			case TclIO.READ_ALL:
+				if (readChars && blocking && blockDecoder.isUsable(encoding)) {
+					int total = blockDecoder.readAll(tobj, inputTranslation, encoding, getUnbufferedDirectInputStream());
+					eofSeen = true;
+					setOwnership(false, READ_OWNERSHIP);
+					return total == 0 ? -1 : total;
+				}
 				/*
 				 * Read the whole of the input (or at least Integer.MAX_VALUE
 				 * bytes, which won't read large files)
@@ -285,31 +304,36 @@ public abstract class Channel {
 				 */
 				int cnt = 0;
 				int total = 0;
+				if (!readChars && numBytes > 0) {
+					total = readDirect(interp, tobj, numBytes);
+				}
 				char[] buf = null;
 				int bufsize = numBytes < 8192 ? numBytes : 8192;
 				if (readChars)
 					buf = new char[bufsize];
-				else
-					TclByteArray.setLength(interp, tobj, 0);
-				while (total < numBytes) {
+				while (total < numBytes && !eofSeen) {
 
 					if (readChars)
 						cnt = finalReader.read(buf, 0, Math.min(buf.length, numBytes - total));
 					else {
-						/* resize array */
+						/*
+						 * resize array; grow it by doubling, so that reading a
+						 * large input isn't quadratic
+						 */
 						int curBufLen = TclByteArray.getLength(interp, tobj);
-	                        
-                        if (curBufLen < total + bufsize) {
-                            TclByteArray.setLength(interp, tobj, curBufLen + bufsize);
-                        }
+						if (curBufLen < total + bufsize) {
+							curBufLen = (int) Math.min(numBytes,
+									Math.max(2L * curBufLen, (long) total + bufsize));
+							TclByteArray.setLength(interp, tobj, curBufLen);
+						}
 
 						/*
 						 * if we are reading unprocessed bytes, this is more
 						 * efficient because it avoids UnicodeDecoder's byte ->
 						 * char conversion
 						 */
-						cnt = finalInputStream.read(TclByteArray.getBytes(interp, tobj), total, Math.min(bufsize,
-								numBytes - total));
+						cnt = finalInputStream.read(TclByteArray.getBytes(interp, tobj), total, Math.min(curBufLen
+								- total, numBytes - total));
 					}
 					if (cnt == -1) {
 						eofSeen = true;
@@ -344,6 +368,19 @@ public abstract class Channel {
 				if (finalReader != eolInputFilter) {
 					throw new TclRuntimeError("finalReader != eolInputFilter, programmer error!");
 				}
+				if (blockDecoder.isUsable(encoding)) {
+					TclString.empty(tobj);
+					int len = blockDecoder.readLine(tobj, inputTranslation, encoding, blocking);
+					if (len != BlockDecoder.NOT_HANDLED) {
+						setOwnership(false, READ_OWNERSHIP);
+						if (len == EolInputFilter.EOF) {
+							eofSeen = true;
+							return -1;
+						}
+						eofSeen = blockDecoder.eofSeen();
+						return len;
+					}
+				}
 				StringBuffer sb = new StringBuffer(64);
 				int rv = eolInputFilter.readLine(sb, blocking);
 				TclString.empty(tobj);
@@ -376,6 +413,62 @@ public abstract class Channel {
 		}
 	}
 
+	/**
+	 * Read the bytes that getDirectInputStream() says are available straight
+	 * into a TclByteArray sized to fit, if the channel has a direct stream
+	 * and nothing is buffered in the input chain. For a file that is the rest
+	 * of the file, read in one bulk read.
+	 * 
+	 * @param interp
+	 *            is used for TclExceptions.
+	 * @param tobj
+	 *            the byte array object that data will be put in.
+	 * @param numBytes
+	 *            the maximum number of bytes to read
+	 * @return the number of bytes read, which is also the new length of
+	 *         tobj; 0 if the bytes can't be read directly. The caller reads
+	 *         the rest through the input chain, unless eofSeen was set.
+	 * @throws IOException
+	 * @throws TclException
+	 */
+	private int readDirect(Interp interp, TclObject tobj, int numBytes) throws IOException, TclException {
+		InputStream direct = getUnbufferedDirectInputStream();
+		if (direct == null)
+			return 0;
+
+		int size = Math.min(numBytes, direct.available());
+		byte[] bytes = TclByteArray.setLength(interp, tobj, size);
+		int total = 0;
+		while (total < size) {
+			int cnt = direct.read(bytes, total, size - total);
+			if (cnt == -1)
+				break;
+			total += cnt;
+		}
+		TclByteArray.setLength(interp, tobj, total);
+		if (blocking && total > 0 && total < numBytes) {
+			/* look for EOF before the caller grows the result for more */
+			int b = finalInputStream.read();
+			if (b == -1) {
+				eofSeen = true;
+			} else {
+				TclByteArray.setLength(interp, tobj, total + 1)[total++] = (byte) b;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return getDirectInputStream(), if it can be read now: nothing is
+	 *         buffered in the input chain, and there is no input eof
+	 *         character to look for. Otherwise null.
+	 */
+	private InputStream getUnbufferedDirectInputStream() throws IOException {
+		if (inputEofChar != 0 || inputBuffer.isRefillInProgress() || getNumBufferedInputBytes() != 0)
+			return null;
+		return getDirectInputStream();
+	}
+
 	/**
 	 * Tcl_WriteObj -> write
 	 * 
@@ -388,6 +481,22 @@ public abstract class Channel {
 	 */
 
 	public void write(Interp interp, TclObject outData) throws IOException, TclException {
+		write(interp, outData, false);
+	}
+
+	/**
+	 * Write data to the Channel, optionally followed by an end of line. The
+	 * data and the end of line are passed down the output chain together, so
+	 * that an unbuffered channel writes them with one write.
+	 * 
+	 * @param interp
+	 *            is used for TclExceptions.
+	 * @param outData
+	 *            the TclObject that holds the data to write.
+	 * @param newline
+	 *            if true, write an end of line after outData
+	 */
+	public void write(Interp interp, TclObject outData, boolean newline) throws IOException, TclException {
 		if (!setOwnership(true, WRITE_OWNERSHIP)) {
 			throw new TclException(interp, "channel is busy");
 		}
@@ -398,21 +507,35 @@ public abstract class Channel {
 			if (outData.isByteArrayType() && encoding == null
 					&& (outputTranslation == TclIO.TRANS_BINARY || outputTranslation == TclIO.TRANS_LF)) {
 				/* Can write with the more efficient firstOutputStream */
-				firstOutputStream.write(TclByteArray.getBytes(interp, outData), 0, TclByteArray.getLength(interp,
-						outData));
+				byte[] bytes = TclByteArray.getBytes(interp, outData);
+				int len = TclByteArray.getLength(interp, outData);
+				if (newline) {
+					byte[] withEol = new byte[len + 1];
+					System.arraycopy(bytes, 0, withEol, 0, len);
+					withEol[len++] = '\n';
+					bytes = withEol;
+				}
+				firstOutputStream.write(bytes, 0, len);
 				/*
 				 * Step in to do line buffering, since we bypassed
 				 * EolOutputFilter
 				 */
 				if (buffering == TclIO.BUFF_LINE) {
-					byte[] bytes = TclByteArray.getBytes(interp, outData);
-					for (byte b : bytes) {
-						if (b == 0x0A) {
+					for (int i = 0; i < len; i++) {
+						if (bytes[i] == 0x0A) {
 							firstOutputStream.flush();
 							break;
 						}
 					}
 				}
+			} else if (!(outData.isByteArrayType() && encoding != null) && BlockEncoder.isUsable(encoding)) {
+				String str = outData.toString();
+				int cnt = blockEncoder.write(str, newline, outputTranslation, encoding);
+				if (cnt < str.length()) {
+					/* the rest starts with a surrogate, which needs the CharsetEncoder */
+					char[] cbuf = (newline ? str.substring(cnt) + "\n" : str.substring(cnt)).toCharArray();
+					firstWriter.write(cbuf, 0, cbuf.length);
+				}
 			} else {
 				char[] cbuf;
 				if (outData.isByteArrayType() && encoding != null) {
@@ -428,6 +551,12 @@ public abstract class Channel {
 				} else {
 					cbuf = outData.toString().toCharArray();
 				}
+				if (newline) {
+					char[] withEol = new char[cbuf.length + 1];
+					System.arraycopy(cbuf, 0, withEol, 0, cbuf.length);
+					withEol[cbuf.length] = '\n';
+					cbuf = withEol;
+				}
 				firstWriter.write(cbuf, 0, cbuf.length);
 			}
 		} finally {
@@ -558,6 +687,7 @@ public abstract class Channel {
 			markableInputStream = null;
 			inputBuffer = null;
 			eofInputFilter = null;
+			blockDecoder = null;
 
 		}
 
@@ -575,6 +705,7 @@ public abstract class Channel {
 			eolOutputFilter = null;
 			unicodeEncoder = null;
 			outputBuffer = null;
+			blockEncoder = null;
 			eofOutputFilter = null;
 			nonBlockingOutputStream = null;
 		}
@@ -647,6 +778,18 @@ public abstract class Channel {
 		return -1;
 	}
 
+	/**
+	 * @return a stream that reads the channel's bytes from the current
+	 *         position without any buffering, or null if the channel has
+	 *         none. Its available() should return the number of bytes left,
+	 *         if that is known. read() uses it when nothing is buffered in
+	 *         the input chain, to read that many bytes into a result sized to
+	 *         fit in one copy. The default implementation returns null.
+	 */
+	InputStream getDirectInputStream() {
+		return null;
+	}
+
 	/**
 	 * If we can detect EOF without another read, set eofSeen. Default
 	 * implementation can't do much, but SeekableChannel can.
@@ -674,6 +817,7 @@ public abstract class Channel {
 		markableInputStream = new MarkableInputStream(inputBuffer);
 		unicodeDecoder = new UnicodeDecoder(markableInputStream, encoding);
 		eolInputFilter = new EolInputFilter(unicodeDecoder, inputTranslation);
+		blockDecoder = new BlockDecoder(inputBuffer, markableInputStream, unicodeDecoder);
 
 		/* read() gets characters from finalReader */
 		finalReader = eolInputFilter;
@@ -703,6 +847,7 @@ public abstract class Channel {
 		outputBuffer = new OutputBuffer(nonBlockingOutputStream, bufferSize, buffering);
 		unicodeEncoder = new UnicodeEncoder(outputBuffer, encoding);
 		eolOutputFilter = new EolOutputFilter(unicodeEncoder, outputTranslation);
+		blockEncoder = new BlockEncoder(outputBuffer);
 
 		/* Characters are written to firstWriter */
 		firstWriter = eolOutputFilter;
@@ -774,6 +919,68 @@ public abstract class Channel {
 		}
 	}
 
+	/**
+	 * Run a callback once, when the channel may have become readable according
+	 * to the 'fileevent' definition. The callback can run on another thread,
+	 * so it must be short and must not block.
+	 * 
+	 * @param listener
+	 *            callback to run
+	 * @return true if the callback will run, false if readiness can't be
+	 *         watched and the caller has to poll isReadable()
+	 * @throws IOException
+	 */
+	boolean notifyWhenReadable(Runnable listener) throws IOException {
+		if ((isReadOnly() || isReadWrite()) && !closed) {
+			initInput();
+			if (inputBuffer != null) {
+				return inputBuffer.notifyWhenReady(listener);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Called by the InputBuffer before a read from getInputStream() that may
+	 * block. Channels whose input can be waited for without a thread, such as
+	 * sockets, override this to run the callback once input is ready and
+	 * return true. The default returns false, and the read blocks a
+	 * ChannelSelector worker thread.
+	 * 
+	 * @param callback
+	 *            callback to run when a read won't block; it must not block
+	 * @return true if the callback will run, false if the caller should read
+	 *         now
+	 * @throws IOException
+	 */
+	boolean notifyWhenInputReady(Runnable callback) throws IOException {
+		return false;
+	}
+
+	/**
+	 * Used by fcopy to copy bytes without passing them through the channel's
+	 * buffers. Only override this if getInputStream() reads the returned
+	 * channel at its current position.
+	 * 
+	 * @return the java.nio.channels.FileChannel that this channel reads, or
+	 *         null if there is none
+	 */
+	java.nio.channels.FileChannel getFileChannelForTransfer() {
+		return null;
+	}
+
+	/**
+	 * Used by fcopy to copy bytes without passing them through the channel's
+	 * buffers. Only override this if getOutputStream() writes to the returned
+	 * channel.
+	 * 
+	 * @return the WritableByteChannel that this channel writes to, or null if
+	 *         there is none
+	 */
+	WritableByteChannel getByteChannelForTransfer() {
+		return null;
+	}
+
 	/**
 	 * Returns true if the last read reached the end of file.
 	 */
@@ -898,11 +1105,24 @@ public abstract class Channel {
 	 */
 	public void setBlocking(boolean inBlocking) {
 		blocking = inBlocking;
+		setStreamBlocking(blocking);
+	}
+
+	/**
+	 * Set the blocking mode of the input and output streams only, leaving the
+	 * mode reported by getBlocking() alone. Used by a background fcopy, which
+	 * copies in blocking mode while the channel still looks non-blocking to
+	 * the script.
+	 * 
+	 * @param inBlocking
+	 *            True for blocking mode, false for non-blocking mode.
+	 */
+	void setStreamBlocking(boolean inBlocking) {
 		if (inputBuffer != null) {
-			inputBuffer.setBlockingMode(blocking);
+			inputBuffer.setBlockingMode(inBlocking);
 		}
 		if (nonBlockingOutputStream != null) {
-			nonBlockingOutputStream.setBlocking(blocking);
+			nonBlockingOutputStream.setBlocking(inBlocking);
 		}
 	}
 
@@ -1039,6 +1259,8 @@ public abstract class Channel {
 		if (unicodeDecoder != null) {
 			unicodeDecoder.setEncoding(encoding);
 			encodingChangedSinceLastRead = true;
+			/* the channel is now readable, tell any waiting fileevent */
+			inputBuffer.wakeReadyListeners();
 		}
 		if (unicodeEncoder != null) {
 			unicodeEncoder.setEncoding(encoding);
@@ -0,0 +1,346 @@
+package tcl.lang.channel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The shared I/O reactor for channels. A single daemon thread waits on a
+ * java.nio.channels.Selector for readiness of non-blocking SelectableChannels,
+ * and runs one-shot callbacks when a channel becomes ready. Channels backed by
+ * NIO (sockets) use it instead of a thread blocked in read(), write(),
+ * accept() or connect() per channel, and idle channels cost nothing until data
+ * arrives.
+ * <p>
+ * Callbacks run on the selector thread, so they must be short and must not
+ * block; typically they notify a waiting thread, do a non-blocking read or
+ * queue a TclEvent. Work that may block, such as reading a pipe, is run by
+ * execute() on a pool of worker threads, which only grows while such reads
+ * are actually blocked.
+ *
+ */
+final class ChannelSelector implements Runnable {
+
+	/**
+	 * Idle worker threads exit after this many seconds
+	 */
+	private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+	/**
+	 * The shared instance, created on first use
+	 */
+	private static ChannelSelector instance = null;
+
+	/**
+	 * The selector that all channels are registered with
+	 */
+	private final Selector selector;
+
+	/**
+	 * Interest and cancel requests from other threads, applied by the selector
+	 * thread before it selects again
+	 */
+	private final ConcurrentLinkedQueue<Request> requests = new ConcurrentLinkedQueue<Request>();
+
+	/**
+	 * The callbacks waiting on each registered channel. Kept apart from the
+	 * SelectionKeys, so that the callbacks of a channel that was closed while
+	 * registered still run when it is cancelled. Only used by the selector
+	 * thread.
+	 */
+	private final IdentityHashMap<SelectableChannel, Callbacks> waiting = new IdentityHashMap<SelectableChannel, Callbacks>();
+
+	/**
+	 * Runs tasks given to execute()
+	 */
+	private final ThreadPoolExecutor workers;
+
+	/**
+	 * The selector thread
+	 */
+	private final Thread thread;
+
+	/**
+	 * @return the shared ChannelSelector, starting its thread if needed
+	 * @throws IOException
+	 *             if the selector can't be opened
+	 */
+	static synchronized ChannelSelector getInstance() throws IOException {
+		if (instance == null) {
+			instance = new ChannelSelector();
+		}
+		return instance;
+	}
+
+	private ChannelSelector() throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this);
+		thread.setDaemon(true);
+		thread.setName("ChannelSelector");
+		thread.start();
+		workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r);
+						t.setDaemon(true);
+						t.setName("ChannelSelector worker " + (++count));
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Run a task that may block on a worker thread
+	 *
+	 * @param task
+	 *            task to run
+	 */
+	void execute(Runnable task) {
+		workers.execute(task);
+	}
+
+	/**
+	 * Run a callback once, when a channel is ready for an operation. If the
+	 * channel is closed or cancel() is called first, the callback runs then,
+	 * so anything waiting on it can notice.
+	 *
+	 * @param channel
+	 *            a non-blocking channel
+	 * @param op
+	 *            one of SelectionKey.OP_READ, OP_WRITE, OP_CONNECT or
+	 *            OP_ACCEPT
+	 * @param callback
+	 *            run on the selector thread
+	 */
+	void notifyWhenReady(SelectableChannel channel, int op, Runnable callback) {
+		requests.offer(new Request(channel, op, callback));
+		selector.wakeup();
+	}
+
+	/**
+	 * Block the calling thread until a channel is ready for an operation, or
+	 * is closed.
+	 *
+	 * @param channel
+	 *            a non-blocking channel
+	 * @param op
+	 *            one of SelectionKey.OP_READ, OP_WRITE, OP_CONNECT or
+	 *            OP_ACCEPT
+	 * @throws InterruptedIOException
+	 *             if the calling thread is interrupted
+	 */
+	void awaitReady(SelectableChannel channel, int op) throws InterruptedIOException {
+		final boolean[] ready = new boolean[1];
+		notifyWhenReady(channel, op, new Runnable() {
+			public void run() {
+				synchronized (ready) {
+					ready[0] = true;
+					ready.notifyAll();
+				}
+			}
+		});
+		synchronized (ready) {
+			while (!ready[0]) {
+				try {
+					ready.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deregister a channel, and run all of its pending callbacks. Call this
+	 * when the channel is closed.
+	 *
+	 * @param channel
+	 *            channel to deregister
+	 */
+	void cancel(SelectableChannel channel) {
+		requests.offer(new Request(channel, 0, null));
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				applyRequests();
+				selector.select();
+			} catch (IOException e) {
+				continue;
+			} catch (ClosedSelectorException e) {
+				return;
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				Callbacks callbacks = waiting.get(key.channel());
+				if (callbacks == null) {
+					continue;
+				}
+				int readyOps;
+				try {
+					readyOps = key.readyOps();
+					key.interestOps(key.interestOps() & ~readyOps);
+				} catch (CancelledKeyException e) {
+					waiting.remove(key.channel());
+					callbacks.runAll();
+					continue;
+				}
+				callbacks.run(readyOps);
+				if (callbacks.isEmpty()) {
+					waiting.remove(key.channel());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply the queued requests. Called on the selector thread only.
+	 */
+	private void applyRequests() {
+		Request request;
+		while ((request = requests.poll()) != null) {
+			SelectableChannel channel = request.channel;
+			SelectionKey key = channel.keyFor(selector);
+			if (request.callback == null) {
+				// cancel
+				if (key != null) {
+					key.cancel();
+				}
+				Callbacks callbacks = waiting.remove(channel);
+				if (callbacks != null) {
+					callbacks.runAll();
+				}
+				continue;
+			}
+			try {
+				if (key == null || !key.isValid()) {
+					channel.register(selector, request.op);
+				} else {
+					key.interestOps(key.interestOps() | request.op);
+				}
+			} catch (ClosedChannelException e) {
+				request.callback.run();
+				continue;
+			} catch (CancelledKeyException e) {
+				request.callback.run();
+				continue;
+			} catch (IllegalArgumentException e) {
+				// op is not supported by the channel
+				request.callback.run();
+				continue;
+			} catch (IllegalBlockingModeException e) {
+				request.callback.run();
+				continue;
+			}
+			Callbacks callbacks = waiting.get(channel);
+			if (callbacks == null) {
+				callbacks = new Callbacks();
+				waiting.put(channel, callbacks);
+			}
+			callbacks.add(request.op, request.callback);
+		}
+	}
+
+	/**
+	 * A pending interest or cancel request
+	 */
+	private static class Request {
+		final SelectableChannel channel;
+		final int op;
+		/**
+		 * Callback for an interest request, null for a cancel request
+		 */
+		final Runnable callback;
+
+		Request(SelectableChannel channel, int op, Runnable callback) {
+			this.channel = channel;
+			this.op = op;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * The callbacks waiting on one channel, by operation
+	 */
+	private static class Callbacks {
+		private final ArrayList<Runnable> read = new ArrayList<Runnable>(2);
+		private final ArrayList<Runnable> write = new ArrayList<Runnable>(2);
+		private final ArrayList<Runnable> other = new ArrayList<Runnable>(1);
+
+		private ArrayList<Runnable> listFor(int op) {
+			switch (op) {
+			case SelectionKey.OP_READ:
+				return read;
+			case SelectionKey.OP_WRITE:
+				return write;
+			default:
+				return other;
+			}
+		}
+
+		void add(int op, Runnable callback) {
+			listFor(op).add(callback);
+		}
+
+		/**
+		 * Run and remove the callbacks for the ready operations
+		 */
+		void run(int readyOps) {
+			if ((readyOps & SelectionKey.OP_READ) != 0) {
+				runList(read);
+			}
+			if ((readyOps & SelectionKey.OP_WRITE) != 0) {
+				runList(write);
+			}
+			if ((readyOps & (SelectionKey.OP_ACCEPT | SelectionKey.OP_CONNECT)) != 0) {
+				runList(other);
+			}
+		}
+
+		boolean isEmpty() {
+			return read.isEmpty() && write.isEmpty() && other.isEmpty();
+		}
+
+		void runAll() {
+			runList(read);
+			runList(write);
+			runList(other);
+		}
+
+		private static void runList(ArrayList<Runnable> list) {
+			if (list.isEmpty()) {
+				return;
+			}
+			Runnable[] callbacks = list.toArray(new Runnable[list.size()]);
+			list.clear();
+			for (Runnable callback : callbacks) {
+				try {
+					callback.run();
+				} catch (RuntimeException e) {
+					// don't let a broken callback stop the selector thread
+				}
+			}
+		}
+	}
+}
@@ -1,6 +1,11 @@
 package tcl.lang.channel;
 
 import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
 import tcl.lang.Interp;
 import tcl.lang.TCL;
 import tcl.lang.TclEvent;
@@ -8,7 +13,12 @@ import tcl.lang.TclException;
 import tcl.lang.TclIO;
 
 /**
- * This class implements an efficient copy between Channels
+ * This class implements an efficient copy between Channels. When bytes can
+ * be copied unchanged from a file, they are moved with
+ * java.nio.channels.FileChannel.transferTo(), which lets the operating system
+ * copy them without passing through the Java heap (sendfile() for a socket
+ * destination). Otherwise data is copied through a buffer and the channels'
+ * filters.
  * 
  * @author Dan Bodoh
  * 
@@ -80,9 +90,25 @@ public class Fcopy {
 	 */
 	byte[] bbuf = null;
 	/**
-	 * If a background fcopy is taking place, this is the thread responsible
+	 * Set to true if bytes can be copied with FileChannel.transferTo()
+	 */
+	boolean directTransfer = false;
+	/**
+	 * Largest number of bytes moved by one transferTo() call, so that closed
+	 * channels are noticed during a long copy
+	 */
+	private static final long DIRECT_TRANSFER_CHUNK = 8 * 1024 * 1024;
+	/**
+	 * Id the channels are owned by during the copy; the id of the calling
+	 * thread for a foreground copy, or a unique id that no thread has for a
+	 * background copy, which runs on a ChannelSelector worker thread
+	 */
+	long ownerId;
+	/**
+	 * Source of ownership ids for background copies, counting down from a
+	 * value no Thread.getId() reaches
 	 */
-	Thread backgroundCopy = null;
+	private static final AtomicLong backgroundOwnerIds = new AtomicLong(Long.MAX_VALUE);
 	/**
 	 * The current interpreter, for error reporting
 	 */
@@ -139,7 +165,8 @@ public class Fcopy {
 	public long start() throws TclException {
 		if (callback == null) {
 			/* wait for copy to complete */
-			getChannelOwnership(Thread.currentThread().getId());
+			ownerId = Thread.currentThread().getId();
+			getChannelOwnership(ownerId);
 			try {
 				setup();
 				doCopy();
@@ -187,11 +214,14 @@ public class Fcopy {
 					interp.getNotifier().queueEvent(event, TCL.QUEUE_TAIL);
 				}
 			};
-			backgroundCopy = new Thread(r);
-			getChannelOwnership(backgroundCopy.getId());
-			backgroundCopy.setDaemon(true);
-			backgroundCopy.setName("Fcopy (" + interp.toString() + "): " + source.getChanName() + " -> " + destination.getChanName());
-			backgroundCopy.start();
+			ownerId = backgroundOwnerIds.getAndDecrement();
+			getChannelOwnership(ownerId);
+			try {
+				ChannelSelector.getInstance().execute(r);
+			} catch (IOException e) {
+				releaseChannelOwnership();
+				throw new TclException(interp, e.getMessage());
+			}
 			return 0;
 		}
 	}
@@ -200,7 +230,8 @@ public class Fcopy {
 	 * Get channel ownership of source and destination, or throw TclException
 	 * 
 	 * @param id
-	 *            Thread.getId() of thread that will own the channel
+	 *            Thread.getId() of thread that will own the channel, or a
+	 *            background copy id
 	 * @throws TclException
 	 *             if one of the channels is busy
 	 */
@@ -209,11 +240,19 @@ public class Fcopy {
 			throw new TclException(interp, "channel \"" + source.getChanName() + "\" is busy");
 		}
 		if (!destination.setOwnership(true, Channel.WRITE_OWNERSHIP, id)) {
-			source.setOwnership(false, Channel.READ_OWNERSHIP);
+			source.setOwnership(false, Channel.READ_OWNERSHIP, id);
 			throw new TclException(interp, "channel \"" + destination.getChanName() + "\" is busy");
 		}
 	}
 
+	/**
+	 * Give up the channel ownership taken by getChannelOwnership()
+	 */
+	private void releaseChannelOwnership() {
+		source.setOwnership(false, Channel.READ_OWNERSHIP, ownerId);
+		destination.setOwnership(false, Channel.WRITE_OWNERSHIP, ownerId);
+	}
+
 	/**
 	 * Save state of Channels, change channel buffering and blocking for
 	 * efficient data transfer, and create Fcopy's internal buffer
@@ -230,10 +269,12 @@ public class Fcopy {
 
 		/*
 		 * Turn blocking on; background copy is done with a thread. Blocking is
-		 * turned on to prevent extra buffer copying for background read/write
+		 * turned on to prevent extra buffer copying for background read/write.
+		 * Only the streams are switched, so that fconfigure still reports the
+		 * script's setting while the copy runs.
 		 */
-		source.setBlocking(true);
-		destination.setBlocking(true);
+		source.setStreamBlocking(true);
+		destination.setStreamBlocking(true);
 
 		sourceBuffering = source.getBuffering();
 		destinationBuffering = destination.getBuffering();
@@ -255,6 +296,13 @@ public class Fcopy {
 		transferBytes = srcEncoding.equals(dstEncoding)
 				&& (source.getInputTranslation() == destination.getOutputTranslation());
 
+		/*
+		 * Bytes can skip the channel buffers altogether if the source is a
+		 * file and there is no input eof character to stop at.
+		 */
+		directTransfer = transferBytes && source.getInputEofChar() == 0
+				&& source.getFileChannelForTransfer() != null && destination.getByteChannelForTransfer() != null;
+
 		/*
 		 * If the source is encoded, but the destination is not, the fcopy spec
 		 * says that the output should be utf-8 encoded; and vice versa.
@@ -287,8 +335,7 @@ public class Fcopy {
 		destination.setBlocking(destinationBlocking);
 		source.setBuffering(sourceBuffering);
 		destination.setBuffering(destinationBuffering);
-		source.setOwnership(false, Channel.READ_OWNERSHIP);
-		destination.setOwnership(false, Channel.WRITE_OWNERSHIP);
+		releaseChannelOwnership();
 		if (doUtf8OutputEncoding) {
 			destination.setEncoding(null);
 		}
@@ -305,6 +352,10 @@ public class Fcopy {
 	 * @throws IOException
 	 */
 	private long doCopy() throws IOException {
+		if (directTransfer && !source.eof() && source.getNumBufferedInputBytes() == 0
+				&& !source.inputBuffer.isRefillInProgress()) {
+			return doDirectCopy();
+		}
 		int cnt;
 		long startCount = destination.outputBuffer.getReceivedByteCount();
 		while (!source.eof()) {
@@ -353,4 +404,60 @@ public class Fcopy {
 		return bytesWritten;
 	}
 
+	/**
+	 * Copy bytes from the source's FileChannel straight to the destination's
+	 * WritableByteChannel, until EOF or size bytes have been written to the
+	 * destination. Nothing may be buffered in the source channel.
+	 * 
+	 * @return number of bytes written to the destination
+	 * @throws IOException
+	 */
+	private long doDirectCopy() throws IOException {
+		/* write out anything the destination already has, to keep order */
+		destination.firstWriter.flush();
+		if (destination instanceof SeekableChannel && (destination.mode & TclIO.APPEND) != 0) {
+			((SeekableChannel) destination).prepareForAppendWrite();
+		}
+
+		java.nio.channels.FileChannel in = source.getFileChannelForTransfer();
+		WritableByteChannel out = destination.getByteChannelForTransfer();
+		SelectableChannel selectableOut = null;
+		if (out instanceof SelectableChannel && !((SelectableChannel) out).isBlocking()) {
+			selectableOut = (SelectableChannel) out;
+		}
+
+		long position = in.position();
+		while (true) {
+			long transferSize = DIRECT_TRANSFER_CHUNK;
+			if (size >= 0) {
+				long remaining = size - bytesWritten;
+				if (remaining <= 0)
+					break;
+				transferSize = Math.min(remaining, transferSize);
+			}
+			if (source.isClosed() || destination.isClosed())
+				break;
+			if (position >= in.size()) {
+				source.eofSeen = true;
+				break;
+			}
+
+			long cnt = in.transferTo(position, transferSize, out);
+			if (cnt == 0) {
+				if (selectableOut == null) {
+					/* the file was truncated under us */
+					source.eofSeen = true;
+					break;
+				}
+				/* the socket's send buffer is full */
+				ChannelSelector.getInstance().awaitReady(selectableOut, SelectionKey.OP_WRITE);
+				continue;
+			}
+			position += cnt;
+			in.position(position);
+			bytesWritten += cnt;
+		}
+		return bytesWritten;
+	}
+
 }
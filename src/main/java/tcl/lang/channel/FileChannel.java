@@ -20,6 +20,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.SyncFailedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 import tcl.lang.FileUtil;
 import tcl.lang.Interp;
@@ -41,6 +43,18 @@ public class FileChannel extends SeekableChannel {
 	 */
 	private RandomAccessFile file = null;
 
+	/**
+	 * If the channel is in mmap mode, the mapped file that input is read
+	 * from; null otherwise. Only read-only channels can be in mmap mode.
+	 */
+	private volatile MappedFileInputStream mapped = null;
+
+	/**
+	 * Reads the file through its NIO channel, for getDirectInputStream();
+	 * created on first use
+	 */
+	private InputStream fileDirect = null;
+
 	/**
 	 * Open a file with the read/write permissions determined by modeFlags. This
 	 * method must be called before any other methods will function properly.
@@ -165,10 +179,61 @@ public class FileChannel extends SeekableChannel {
 		if (file == null) {
 			throw new TclRuntimeError("FileChannel.close(): null file object");
 		}
+		mapped = null;
+		fileDirect = null;
 		file.close();
 		file = null;
 	}
 
+	/**
+	 * @return true if the channel reads through a memory mapping of the file
+	 */
+	public boolean getMmap() {
+		return mapped != null;
+	}
+
+	/**
+	 * Turn mmap mode on or off. In mmap mode input is read from a read-only
+	 * memory mapping of the whole file, which is taken when the mode is turned
+	 * on. The current position of the channel is kept.
+	 * 
+	 * @param interp
+	 *            current interpreter, for error reporting
+	 * @param mmap
+	 *            true to read through a memory mapping of the file
+	 * @throws TclException
+	 *             if the channel is not read-only, is busy, or the file can't
+	 *             be mapped
+	 */
+	public void setMmap(Interp interp, boolean mmap) throws TclException {
+		if (mmap == getMmap()) {
+			return;
+		}
+		if (!isReadOnly()) {
+			throw new TclException(interp, "-mmap is only supported on read-only file channels");
+		}
+		if (!setOwnership(true, READ_OWNERSHIP)) {
+			throw new TclException(interp, "channel is busy");
+		}
+		try {
+			long position = tell();
+			if (mmap) {
+				MappedFileInputStream m = new MappedFileInputStream(file.getChannel());
+				m.position(position);
+				seekReset();
+				mapped = m;
+			} else {
+				file.seek(position);
+				seekReset();
+				mapped = null;
+			}
+		} catch (IOException e) {
+			throw new TclException(interp, "couldn't map \"" + getChanName() + "\": " + e.getMessage());
+		} finally {
+			setOwnership(false, READ_OWNERSHIP);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -193,7 +258,12 @@ public class FileChannel extends SeekableChannel {
 		if (file == null) {
 			throw new TclRuntimeError("FileChannel.seek(): null file object");
 		}
-		file.seek(offset);
+		MappedFileInputStream m = mapped;
+		if (m != null) {
+			m.position(offset);
+		} else {
+			file.seek(offset);
+		}
 	}
 
 	/**
@@ -208,7 +278,8 @@ public class FileChannel extends SeekableChannel {
 		if (file == null) {
 			throw new TclRuntimeError("FileChannel.implTell(): null file object");
 		}
-		return file.getFilePointer();
+		MappedFileInputStream m = mapped;
+		return m != null ? m.position() : file.getFilePointer();
 	}
 
 	/*
@@ -221,7 +292,8 @@ public class FileChannel extends SeekableChannel {
 		if (file == null) {
 			throw new TclRuntimeError("FileChannel.getMaxSeek(): null file object");
 		}
-		return file.length();
+		MappedFileInputStream m = mapped;
+		return m != null ? m.length() : file.length();
 	}
 
 	/**
@@ -272,6 +344,58 @@ public class FileChannel extends SeekableChannel {
 		}
 	}
 
+	@Override
+	java.nio.channels.FileChannel getFileChannelForTransfer() {
+		/* in mmap mode the position is kept by the mapping, not the file */
+		return file == null || mapped != null ? null : file.getChannel();
+	}
+
+	@Override
+	WritableByteChannel getByteChannelForTransfer() {
+		return file == null ? null : file.getChannel();
+	}
+
+	/**
+	 * Returns the mapping in mmap mode. Otherwise returns a stream that reads
+	 * the file with bulk NIO reads at the file pointer, and whose available()
+	 * is the number of bytes from the file pointer to the end of the file, so
+	 * that the rest of a file can be read in one read.
+	 * 
+	 * @see tcl.lang.channel.Channel#getDirectInputStream()
+	 */
+	@Override
+	InputStream getDirectInputStream() {
+		MappedFileInputStream m = mapped;
+		if (m != null)
+			return m;
+		if (file == null)
+			return null;
+		if (fileDirect == null) {
+			final java.nio.channels.FileChannel fc = file.getChannel();
+			fileDirect = new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xff;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (len == 0)
+						return 0;
+					return fc.read(ByteBuffer.wrap(b, off, len));
+				}
+
+				@Override
+				public int available() throws IOException {
+					long n = fc.size() - fc.position();
+					return (int) Math.max(0, Math.min(n, Integer.MAX_VALUE));
+				}
+			};
+		}
+		return fileDirect;
+	}
+
 	@Override
 	String getChanType() {
 		return "file";
@@ -281,7 +405,36 @@ public class FileChannel extends SeekableChannel {
 	protected InputStream getInputStream() throws IOException {
 		if (file == null)
 			throw new IOException("file has not been opened, or has been closed");
-		return new FileInputStream(file.getFD());
+
+		// Read from the mapping in mmap mode, and from the file otherwise.
+		// The choice is made on each read, so mmap mode can be switched
+		// without rebuilding the input chain.
+		final FileInputStream fileStream = new FileInputStream(file.getFD());
+		return new InputStream() {
+
+			@Override
+			public int read() throws IOException {
+				MappedFileInputStream m = mapped;
+				return m != null ? m.read() : fileStream.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				MappedFileInputStream m = mapped;
+				return m != null ? m.read(b, off, len) : fileStream.read(b, off, len);
+			}
+
+			@Override
+			public int available() throws IOException {
+				MappedFileInputStream m = mapped;
+				return m != null ? m.available() : fileStream.available();
+			}
+
+			@Override
+			public void close() throws IOException {
+				fileStream.close();
+			}
+		};
 	}
 
 	@Override
@@ -7,6 +7,7 @@ import tcl.lang.Notifier;
 import tcl.lang.TCL;
 import tcl.lang.TclEvent;
 import tcl.lang.TclException;
+import tcl.lang.TclRuntimeError;
 import tcl.lang.TimerHandler;
 
 /**
@@ -20,7 +21,8 @@ import tcl.lang.TimerHandler;
 public class FileEvent extends TclEvent {
 	
 	/**
-	 * When input is not available, wait this long to requeue.
+	 * When the channel can't tell us that it has become ready, wait this long
+	 * to requeue.
 	 */
 	private final static long FILE_EVENT_DELAY_MS = 30;
 	
@@ -102,6 +104,33 @@ public class FileEvent extends TclEvent {
 		new FileEventTimer(FILE_EVENT_DELAY_MS, this.interp, this.channel, this.type);
 	}
 
+	/**
+	 * Put a duplicate FileEvent onto the queue as soon as the channel may have
+	 * become readable.
+	 * 
+	 * @return false if the channel can't watch for input, and requeueLater()
+	 *         has to be used instead
+	 * @throws IOException
+	 */
+	private boolean requeueWhenReadable() throws IOException {
+		final Interp interp = this.interp;
+		final Channel channel = this.channel;
+		final int type = this.type;
+		return channel.notifyWhenReadable(new Runnable() {
+			public void run() {
+				Notifier notifier = interp.getNotifier();
+				if (notifier == null || !notifier.hasActiveInterps()) {
+					return;
+				}
+				try {
+					queueFileEvent(interp, channel, type);
+				} catch (TclRuntimeError e) {
+					// the interp was disposed of in the meantime
+				}
+			}
+		});
+	}
+
 	/**
 	 * Permanently remove the FileEventScript for this FileEvent from the
 	 * interpreter
@@ -127,8 +156,10 @@ public class FileEvent extends TclEvent {
 		}
 		if (type == READABLE && !channel.isReadable()) {
 			try {
-				channel.fillInputBuffer();
-				requeueLater();
+				if (!requeueWhenReadable()) {
+					channel.fillInputBuffer();
+					requeueLater();
+				}
 			} catch (IOException e) {
 				new TclException(interp, e.getMessage());
 				interp.backgroundError();
@@ -137,6 +168,10 @@ public class FileEvent extends TclEvent {
 			return 1;
 		}
 		if (type == WRITABLE && !channel.isWritable()) {
+			/*
+			 * Only the script's own unflushed output makes a channel
+			 * unwritable, so there is nothing to wait on but a timer
+			 */
 			requeueLater();
 			return 1;
 		}
@@ -2,12 +2,19 @@ package tcl.lang.channel;
 
 import java.io.FilterInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 
 import tcl.lang.TclIO;
 
 /**
  * Implements a resizeable buffer as an InputStream for Tcl Channels. It is also
  * responsible for non-blocking reads.
+ * <p>
+ * Background refills run as tasks on the shared ChannelSelector rather than on
+ * a thread per channel. When the channel can wait for input on the selector
+ * (sockets), a refill that would block is parked there and resumed when input
+ * arrives, so it holds no thread while the channel is idle. Other channels do
+ * their blocking read on one of the selector's worker threads.
  * 
  * @author Dan Bodoh
  * 
@@ -65,13 +72,29 @@ class InputBuffer extends FilterInputStream {
 	 */
 	boolean requestRefill = false;
 	/**
-	 * This thread refills the buffer
+	 * This task refills the buffer
 	 */
 	Refiller refiller = null;
+	/**
+	 * The channel which contains this InputBuffer
+	 */
+	private final Channel channel;
+	/**
+	 * Runs refill tasks
+	 */
+	private final ChannelSelector selector;
 	/**
 	 * Set to true when refiller should stop
 	 */
-	boolean closed = false;
+	volatile boolean closed = false;
+	/**
+	 * Set to true when the last refill ended with an IOException
+	 */
+	private boolean lastRefillFailed = false;
+	/**
+	 * Callbacks to run when the current refill completes
+	 */
+	private ArrayList<Runnable> readyListeners = new ArrayList<Runnable>();
 
 	/**
 	 * Construct a new InputBuffer in blocking mode
@@ -87,19 +110,20 @@ class InputBuffer extends FilterInputStream {
 	 *            Set to true for blocking input, false for non-blocking input
 	 * @param channel
 	 *            Channel which contains this InputBuffer
+	 * @throws IOException
+	 *             if the ChannelSelector can't be started
 	 */
-	InputBuffer(EofInputFilter in, int size, int buffering, boolean blockingMode, Channel channel) {
+	InputBuffer(EofInputFilter in, int size, int buffering, boolean blockingMode, Channel channel) throws IOException {
 		super(in);
 		eofInputFilter = in;
+		this.channel = channel;
+		this.selector = ChannelSelector.getInstance();
 		setBuffering(buffering);
 		setBlockingMode(true);
 		setBufferSize(size);
 		setBlockingMode(blockingMode);
 		refiller = new Refiller();
 		resizeBuffer();
-		refiller.setDaemon(true);
-		refiller.setName("InputBuffer Refiller: " + channel.getChanName());
-		refiller.start();
 	}
 
 	/**
@@ -189,13 +213,13 @@ class InputBuffer extends FilterInputStream {
 	}
 
 	/**
-	 * Close the inputBuffer and kill the refiller
+	 * Close the inputBuffer and stop refilling
 	 */
 	@Override
 	public void close() throws IOException {
-		closed = true;
-		if (refiller != null) {
-			refiller.interrupt();
+		synchronized (getRefillerNotifier()) {
+			closed = true;
+			getRefillerNotifier().notifyAll();
 		}
 		super.close();
 	}
@@ -263,8 +287,10 @@ class InputBuffer extends FilterInputStream {
 	 */
 	void requestRefill(boolean wait) throws IOException {
 		synchronized (getRefillerNotifier()) {
-			requestRefill = true;
-			refiller.notifyAll();
+			if (!requestRefill && !closed) {
+				requestRefill = true;
+				selector.execute(refiller);
+			}
 			if (wait) {
 				while (isRefillInProgress()) {
 					try {
@@ -276,6 +302,131 @@ class InputBuffer extends FilterInputStream {
 		}
 	}
 
+	/**
+	 * Run a callback once, when bytes are in the buffer or EOF has been seen.
+	 * If that is already the case the callback runs right away, otherwise a
+	 * background refill is started and the callback runs on the thread that
+	 * completes it, so it must not block.
+	 * 
+	 * @param listener
+	 *            callback to run
+	 * @return true if the callback will run, false if the buffer is closed or
+	 *         the last refill failed, in which case the caller has to poll
+	 * @throws IOException
+	 */
+	boolean notifyWhenReady(Runnable listener) throws IOException {
+		boolean readyNow;
+		synchronized (getRefillerNotifier()) {
+			if (closed || lastRefillFailed)
+				return false;
+			readyNow = !refillInProgress && !requestRefill && (eofSeen || remaining() > 0);
+			if (!readyNow) {
+				readyListeners.add(listener);
+				requestRefill(false);
+			}
+		}
+		if (readyNow)
+			listener.run();
+		return true;
+	}
+
+	/**
+	 * Run the callbacks registered with notifyWhenReady() now, because the
+	 * channel became readable for some other reason than input
+	 */
+	void wakeReadyListeners() {
+		Runnable[] listeners;
+		synchronized (getRefillerNotifier()) {
+			listeners = refiller.takeReadyListeners();
+		}
+		refiller.runReadyListeners(listeners);
+	}
+
+	/**
+	 * Make sure that bytes are in the buffer, so that a caller can scan them
+	 * in place with array(), position(), limit() and consume(). In blocking
+	 * mode, bytes that are already available are read on the calling thread,
+	 * and otherwise a refill is waited for.
+	 * 
+	 * @param block
+	 *            if true, wait for input; if false, only report what is
+	 *            already in the buffer, without starting a refill
+	 * @return the number of bytes in the buffer, 0 if block is false and the
+	 *         buffer is empty, or -1 at EOF
+	 * @throws IOException
+	 */
+	int fill(boolean block) throws IOException {
+		synchronized (getRefillerNotifier()) {
+			lastReadWouldHaveBlocked = false;
+			if (!block) {
+				if (refillInProgress || requestRefill)
+					return 0;
+				refiller.throwIOExceptionIfCaught();
+				return remaining() == 0 && eofSeen ? -1 : remaining();
+			}
+			while (isRefillInProgress()) {
+				try {
+					getRefillerNotifier().wait();
+				} catch (InterruptedException e) {
+				}
+			}
+			if (remaining() > 0)
+				return remaining();
+			if (eofSeen)
+				return -1;
+			/*
+			 * As in read(), don't read ahead of the refiller for line
+			 * buffering
+			 */
+			int available = super.available();
+			if (buffering != TclIO.BUFF_LINE && available > 0) {
+				resizeBuffer();
+				int cnt = super.read(buffer, 0, Math.min(buffer.length, available));
+				position = 0;
+				limit = cnt < 0 ? 0 : cnt;
+				if (cnt == -1)
+					eofSeen = true;
+			} else {
+				requestRefill(true);
+			}
+			return remaining() == 0 && eofSeen ? -1 : remaining();
+		}
+	}
+
+	/**
+	 * @return the buffer array; bytes position() to limit() - 1 are valid
+	 *         after fill() returned a positive count
+	 */
+	final byte[] array() {
+		return buffer;
+	}
+
+	/**
+	 * @return index in array() of the next byte to read
+	 */
+	final int position() {
+		return position;
+	}
+
+	/**
+	 * @return index in array() after the last buffered byte
+	 */
+	final int limit() {
+		return limit;
+	}
+
+	/**
+	 * Consume bytes that were scanned in place
+	 * 
+	 * @param n
+	 *            number of bytes to consume, no more than remaining()
+	 */
+	final void consume(int n) {
+		synchronized (getRefillerNotifier()) {
+			position += n;
+		}
+	}
+
 	/**
 	 * Reads one byte from buffer or underlying stream. Does not honor
 	 * blockingMode; will block of no bytes are in the buffer
@@ -394,10 +545,16 @@ class InputBuffer extends FilterInputStream {
 	}
 
 	/**
-	 * Runs refill in the background
+	 * Runs refill in the background. Each run() is one step of a refill; a
+	 * step that would block on a selectable channel parks the refill on the
+	 * ChannelSelector, which runs the next step when input arrives.
 	 */
-	private class Refiller extends Thread {
+	private class Refiller implements Runnable {
 		IOException ioException = null;
+		/**
+		 * Set to true when a refill was parked, waiting for input
+		 */
+		private boolean waitingForInput = false;
 
 		/**
 		 * @throws IOException
@@ -413,19 +570,45 @@ class InputBuffer extends FilterInputStream {
 			}
 		}
 
+		/**
+		 * If a read from the underlying stream would block, arrange for this
+		 * Refiller to run again when input arrives.
+		 * 
+		 * @return true if the refill was parked, false if a read can be done
+		 *         now (which may still block for a channel that isn't
+		 *         selectable)
+		 * @throws IOException
+		 */
+		private boolean parkUntilInput() throws IOException {
+			if (eofInputFilter.available() > 0)
+				return false;
+			waitingForInput = true;
+			if (channel.notifyWhenInputReady(this))
+				return true;
+			waitingForInput = false;
+			return false;
+		}
+
 		/**
 		 * Refill the buffer from the underlying input stream. Any data in the
 		 * buffer is lost.
 		 * 
+		 * @param resumed
+		 *            true if this continues a refill that was parked
+		 * @return true if the refill is complete, false if it was parked
 		 * @throws IOException
 		 */
-		private void refill() throws IOException {
-			if (eofSeen)
-				return;
-			if (remaining() > 0)
-				return; // perhaps it was refilled in the background?
+		private boolean refill(boolean resumed) throws IOException {
+			if (!resumed) {
+				if (eofSeen)
+					return true;
+				if (remaining() > 0)
+					return true; // perhaps it was refilled in the background?
+			}
 
 			if (buffering == TclIO.BUFF_FULL || buffering == TclIO.BUFF_NONE) {
+				if (parkUntilInput())
+					return false;
 				/*
 				 * Get as many bytes as available in the underlying stream, up
 				 * to buffer.length. But we must always get at least one
@@ -444,68 +627,112 @@ class InputBuffer extends FilterInputStream {
 						eofSeen = true;
 						position = 0;
 						limit = 0;
-						return;
+						return true;
 					} else {
 						position = 0;
 						limit = cnt;
-						return;
+						return true;
 					}
 				}
 			} else {
 				/* line buffering, look for first eolChar */
-				synchronized (getRefillerNotifier()) {
-					limit = 0;
-					position = 0;
+				if (!resumed) {
+					synchronized (getRefillerNotifier()) {
+						limit = 0;
+						position = 0;
+					}
 				}
 				while (true) {
+					if (parkUntilInput())
+						return false;
 					/* don't put blocking read in synchronized section */
 					int c = eofInputFilter.read();
+					Runnable[] listeners = null;
 					synchronized (getRefillerNotifier()) {
 						if (c == -1) {
 							if (limit == 0)
 								eofSeen = true;
-							return;
+							return true;
 						}
 						buffer[limit++] = (byte) (c & 0xFF);
 						if (c == eolChar || limit >= buffer.length) {
-							return;
+							return true;
 						}
+						/*
+						 * A partial line makes a line buffered channel
+						 * readable, see Channel.isReadable()
+						 */
+						if (limit == 1)
+							listeners = takeReadyListeners();
 					}
+					runReadyListeners(listeners);
 				}
 			}
 		}
 
-		@Override
+		/**
+		 * Remove the callbacks registered with notifyWhenReady(). Call with
+		 * the refiller notifier locked.
+		 * 
+		 * @return the callbacks, or null if there are none
+		 */
+		private Runnable[] takeReadyListeners() {
+			if (readyListeners.isEmpty())
+				return null;
+			Runnable[] listeners = readyListeners.toArray(new Runnable[readyListeners.size()]);
+			readyListeners.clear();
+			return listeners;
+		}
+
+		/**
+		 * Run callbacks returned by takeReadyListeners(), without holding any
+		 * lock
+		 */
+		private void runReadyListeners(Runnable[] listeners) {
+			if (listeners == null)
+				return;
+			for (Runnable listener : listeners) {
+				listener.run();
+			}
+		}
+
+		/**
+		 * Run one step of a refill, on a ChannelSelector worker thread or on
+		 * the selector thread when resumed
+		 */
 		public void run() {
-			ioException = null;	
-			
-			while (!closed) {
-				synchronized (getRefillerNotifier()) {
-					while (!closed && !requestRefill) {
-						try {
-							getRefillerNotifier().wait();
-						} catch (InterruptedException e) {
-							return;
-						}
-					}
+			boolean resumed;
+			synchronized (getRefillerNotifier()) {
+				resumed = waitingForInput;
+				waitingForInput = false;
+				if (!resumed) {
 					ioException = null;
 					resizeBuffer();
 					refillInProgress = true;
 				}
+			}
 
+			boolean failed = false;
+			if (!closed) {
 				try {
-					refill();
+					if (!refill(resumed))
+						return;
 				} catch (IOException e) {
+					failed = true;
 					synchronized (getRefillerNotifier()) {
 						ioException = e;
 					}
 				}
-				synchronized (getRefillerNotifier()) {
-					refillInProgress = false;
-					requestRefill = false;
-					getRefillerNotifier().notifyAll();
-				}
 			}
+			Runnable[] listeners;
+			synchronized (getRefillerNotifier()) {
+				refillInProgress = false;
+				requestRefill = false;
+				lastRefillFailed = failed;
+				listeners = takeReadyListeners();
+				getRefillerNotifier().notifyAll();
+			}
+			runReadyListeners(listeners);
 		}
 	}
 }
@@ -0,0 +1,136 @@
+package tcl.lang.channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * An InputStream that reads a file through read-only MappedByteBuffers, so
+ * that the bytes are paged in by the operating system and are never copied
+ * through a Java buffer before they reach the reader. A MappedByteBuffer
+ * can't be larger than Integer.MAX_VALUE bytes, so the file is mapped in
+ * regions of REGION_SIZE bytes. The position is a plain long, so seeking and
+ * telling are O(1) whatever the file size.
+ * <p>
+ * The length of the file is taken when the stream is created; bytes appended
+ * to the file later are not seen.
+ *
+ */
+class MappedFileInputStream extends InputStream {
+	/**
+	 * log2 of REGION_SIZE
+	 */
+	private static final int REGION_SHIFT = 30;
+	/**
+	 * Number of bytes in each mapped region, except possibly the last
+	 */
+	static final long REGION_SIZE = 1L << REGION_SHIFT;
+	/**
+	 * The mapped regions of the file
+	 */
+	private final MappedByteBuffer[] regions;
+	/**
+	 * Length of the file when it was mapped
+	 */
+	private final long length;
+	/**
+	 * Offset of the next byte to read
+	 */
+	private long position = 0;
+
+	/**
+	 * Map a whole file
+	 *
+	 * @param file
+	 *            FileChannel of the file to map, which must be open for
+	 *            reading
+	 * @throws IOException
+	 *             if the file can't be mapped
+	 */
+	MappedFileInputStream(java.nio.channels.FileChannel file) throws IOException {
+		length = file.size();
+		regions = new MappedByteBuffer[(int) ((length + REGION_SIZE - 1) >>> REGION_SHIFT)];
+		for (int i = 0; i < regions.length; i++) {
+			long start = (long) i << REGION_SHIFT;
+			regions[i] = file.map(MapMode.READ_ONLY, start, Math.min(REGION_SIZE, length - start));
+		}
+	}
+
+	/**
+	 * @return the length of the mapped file
+	 */
+	long length() {
+		return length;
+	}
+
+	/**
+	 * @return the offset of the next byte to read
+	 */
+	synchronized long position() {
+		return position;
+	}
+
+	/**
+	 * Set the offset of the next byte to read. It may be past the end of the
+	 * file, in which case the stream is at EOF.
+	 *
+	 * @param newPosition
+	 *            offset from the beginning of the file
+	 */
+	synchronized void position(long newPosition) {
+		position = newPosition;
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		if (position >= length)
+			return -1;
+		int b = regions[(int) (position >>> REGION_SHIFT)].get((int) (position & (REGION_SIZE - 1))) & 0xff;
+		++position;
+		return b;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (position >= length)
+			return -1;
+		int total = 0;
+		while (total < len && position < length) {
+			MappedByteBuffer region = regions[(int) (position >>> REGION_SHIFT)];
+			int offset = (int) (position & (REGION_SIZE - 1));
+			int cnt = Math.min(len - total, region.limit() - offset);
+			region.position(offset);
+			region.get(b, off + total, cnt);
+			total += cnt;
+			position += cnt;
+		}
+		return total;
+	}
+
+	@Override
+	public synchronized long skip(long n) throws IOException {
+		if (n <= 0 || position >= length)
+			return 0;
+		long skipped = Math.min(n, length - position);
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		if (position >= length)
+			return 0;
+		return (int) Math.min(length - position, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Does nothing; the mapping is released when the stream is garbage
+	 * collected, and the file is closed by its channel.
+	 */
+	@Override
+	public void close() throws IOException {
+	}
+}
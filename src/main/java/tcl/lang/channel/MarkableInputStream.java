@@ -107,6 +107,14 @@ class MarkableInputStream extends FilterInputStream {
 		mark(0);
 	}
 
+	/**
+	 * @return true if no mark is set and no bytes are saved, so that reading
+	 *         from the underlying stream directly gives the same bytes
+	 */
+	boolean isEmpty() {
+		return !marked && readPos == writePos;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
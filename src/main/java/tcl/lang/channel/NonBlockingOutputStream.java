@@ -3,31 +3,51 @@ package tcl.lang.channel;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 
 import tcl.lang.TclIO;
 
 /**
- * This class implements non-blocking output for Tcl Channels
+ * This class implements non-blocking output for Tcl Channels.
+ * <p>
+ * Writes, flushes and closes are queued as Transactions, and the queue is
+ * drained by one thread at a time. In blocking mode the calling thread
+ * drains the queue itself, so a blocking write costs no thread hand-off. In
+ * non-blocking mode the queue is drained by a ChannelSelector worker. If the
+ * channel writes to a non-blocking NIO channel (a socket), the worker writes
+ * the queued buffers with one gathering write and, if the socket can't take
+ * them all, returns and resumes when the ChannelSelector sees that the socket
+ * is writable, so no thread waits on a slow peer.
  * 
  * @author Dan Bodoh
  * 
  */
-class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
+class NonBlockingOutputStream extends FilterOutputStream {
+	/**
+	 * Most queued writes that are gathered into one write to a NIO channel
+	 */
+	private static final int MAX_GATHER = 16;
 	/**
 	 * True if channel is in blocking mode, false for non-blocking
 	 */
-	private boolean blocking;
+	private volatile boolean blocking;
 	/**
-	 * Queue of writes to occur in background
+	 * Queue of writes to occur in background; guarded by notifier
 	 */
-	private ConcurrentLinkedQueue<Transaction> queue;
+	private final ArrayDeque<Transaction> queue = new ArrayDeque<Transaction>();
 	/**
-	 * Thread that empties the queue
+	 * True while a thread is draining the queue, or a drain is waiting for
+	 * the NIO channel to become writable; guarded by notifier
 	 */
-	private Thread bkgndWriter = null;
+	private boolean draining = false;
 	/**
-	 * Notifier between main thread and bkgndWriter thread
+	 * Notifier between the writing thread and the thread draining the queue
 	 */
 	private Object notifier = new Object();
 	/**
@@ -35,13 +55,42 @@ class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
 	 */
 	private Channel channel = null;
 	/**
-	 * Exception from writer thread
+	 * Exception from a background drain
 	 */
 	private volatile IOException ioException = null;
 	/**
 	 * Set to true when the channel is closed
 	 */
 	private boolean closed = false;
+	/**
+	 * Set once the channel has been asked for a NIO channel to write to
+	 */
+	private boolean selectableResolved = false;
+	/**
+	 * The non-blocking NIO channel that the channel writes to, or null if it
+	 * has none
+	 */
+	private SelectableChannel selectable = null;
+	/**
+	 * Drains the queue on a ChannelSelector worker
+	 */
+	private final Runnable drainTask = new Runnable() {
+		public void run() {
+			drain(true);
+		}
+	};
+	/**
+	 * Run by the ChannelSelector when selectable becomes writable
+	 */
+	private final Runnable resumeTask = new Runnable() {
+		public void run() {
+			try {
+				ChannelSelector.getInstance().execute(drainTask);
+			} catch (IOException e) {
+				ioException = e;
+			}
+		}
+	};
 
 	/**
 	 * Create a new non-blocking output stream
@@ -51,24 +100,13 @@ class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
 	 * @param blocking
 	 *            if true, perform blocking writes. If false, perform
 	 *            non-blocking writes
-	 * @param sync
-	 *            Channel implementation specific Sync object, can be null
+	 * @param channel
+	 *            the Channel that this stream writes for
 	 */
 	NonBlockingOutputStream(OutputStream out, boolean blocking, Channel channel) {
 		super(out);
 		setBlocking(blocking);
 		this.channel = channel;
-		queue = new ConcurrentLinkedQueue<Transaction>();
-		
-		/* 
-		 * The bkgndWriter thread reads the queue in both blocking and non-blocking mode.
-		 * Using the thread all the time avoids race conditions when switching between blocked
-		 * and non-blocked mode on the channel.
-		 */
-		bkgndWriter = new Thread(this);
-		bkgndWriter.setDaemon(true);
-		bkgndWriter.setName("NonBlockingOutputStream: " + channel.getChanName());
-		bkgndWriter.start();
 	}
 
 	/**
@@ -87,14 +125,7 @@ class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
 	 */
 	@Override
 	public void flush() throws IOException {
-		synchronized (notifier) {
-			checkClosed();
-			queue.offer(new Transaction(Transaction.Flush));
-			notifier.notifyAll();
-		}
-		if (blocking)
-			waitForEmptyQueue();
-		throwExceptionIfCaught();
+		submit(new Transaction(Transaction.Flush));
 	}
 
 	/**
@@ -115,20 +146,13 @@ class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
 	 */
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
-		synchronized (notifier) {
-			checkClosed();
-			if (blocking) {
-				queue.offer(new Transaction(b, off, len));
-			} else {
-				byte[] copy = new byte[len];
-				System.arraycopy(b, off, copy, 0, len);
-				queue.offer(new Transaction(copy, 0, len));
-			}
-			notifier.notifyAll();
+		if (blocking) {
+			submit(new Transaction(b, off, len));
+		} else {
+			byte[] copy = new byte[len];
+			System.arraycopy(b, off, copy, 0, len);
+			submit(new Transaction(copy, 0, len));
 		}
-		if (blocking)
-			waitForEmptyQueue();
-		throwExceptionIfCaught();
 	}
 
 	/**
@@ -145,14 +169,7 @@ class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
 	 * @throws IOException
 	 */
 	void writeAssumingExclusiveBufferUse(byte[] b, int off, int len) throws IOException {
-		synchronized (notifier) {
-			checkClosed();
-			queue.offer(new Transaction(b, off, len));
-			notifier.notifyAll();
-		}
-		if (blocking)
-			waitForEmptyQueue();
-		throwExceptionIfCaught();
+		submit(new Transaction(b, off, len));
 	}
 
 	/*
@@ -174,14 +191,41 @@ class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
 	 */
 	@Override
 	public void close() throws IOException {
+		submit(new Transaction(Transaction.Close));
+	}
+
+	/**
+	 * Queue a transaction. In blocking mode, perform it, and anything queued
+	 * before it, before returning.
+	 * 
+	 * @param transaction
+	 *            the transaction to queue
+	 * @throws IOException
+	 */
+	private void submit(Transaction transaction) throws IOException {
+		boolean drainHere = false;
 		synchronized (notifier) {
 			checkClosed();
-			queue.offer(new Transaction(Transaction.Close));
-			notifier.notifyAll();
+			queue.offer(transaction);
+			if (!draining) {
+				draining = true;
+				if (blocking) {
+					drainHere = true;
+				} else {
+					try {
+						ChannelSelector.getInstance().execute(drainTask);
+					} catch (IOException e) {
+						draining = false;
+						queue.pollLast();
+						throw e;
+					}
+				}
+			}
 		}
-		if (blocking) {
+		if (drainHere)
+			drain(false);
+		else if (blocking)
 			waitForEmptyQueue();
-		}
 		throwExceptionIfCaught();
 	}
 
@@ -191,7 +235,7 @@ class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
 	}
 
 	/**
-	 * If an exception was caught in the bkndWriter thread, throw it now
+	 * If an exception was caught while draining the queue, throw it now
 	 * 
 	 * @throws IOException
 	 */
@@ -207,16 +251,17 @@ class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
 	 * @return true if the queue is empty, false otherwise
 	 */
 	boolean isQueueEmpty() {
-		return (queue.peek() == null);
+		synchronized (notifier) {
+			return queue.isEmpty();
+		}
 	}
 
 	/**
 	 * Wait for the write queue to be empty
 	 */
 	void waitForEmptyQueue() {
-		while (true) {
-			synchronized (notifier) {
-				if (isQueueEmpty()) return;
+		synchronized (notifier) {
+			while (!queue.isEmpty()) {
 				try {
 					notifier.wait();
 				} catch (InterruptedException e) {
@@ -227,28 +272,41 @@ class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
 	}
 
 	/**
-	 * Runs as the background writer thread; writes data placed in the queue
-	 * in both blocking and non-blocking mode.
+	 * Perform the queued transactions, in order, until the queue is empty.
+	 * Only one thread drains the queue at a time.
 	 * 
-	 * @see java.lang.Runnable#run()
+	 * @param background
+	 *            true if running on a ChannelSelector worker; if so, writes
+	 *            to a non-blocking NIO channel don't wait for it to drain
 	 */
-	public void run() {
+	private void drain(boolean background) {
 		while (true) {
 			Transaction transaction;
 			synchronized (notifier) {
-				// don't remove it from the queue until we are done 
+				// don't remove it from the queue until we are done
 				// performing transaction
 				transaction = queue.peek();
+				if (transaction == null) {
+					draining = false;
+					notifier.notifyAll();
+					return;
+				}
+			}
 
-				if (transaction == null) { 
-					try {
-						notifier.wait();
-					} catch (InterruptedException e) {
-						closed = true;
+			if (background && transaction.type == Transaction.Write && getSelectable() != null) {
+				try {
+					if (!writeWithoutBlocking()) {
+						/* the socket is full; come back when it can take more */
+						ChannelSelector.getInstance().notifyWhenReady(selectable, SelectionKey.OP_WRITE, resumeTask);
 						return;
 					}
-					continue;
+				} catch (IOException e) {
+					ioException = e;
+					synchronized (notifier) {
+						queue.poll();
+					}
 				}
+				continue;
 			}
 
 			try {
@@ -257,21 +315,80 @@ class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
 				ioException = e;
 			}
 			synchronized (notifier) {
-				queue.poll();  // finally, remove it from the queue
+				queue.poll(); // finally, remove it from the queue
 				if (transaction.type == Transaction.Close) {
 					/* shut everything down after a Close is complete */
 					closed = true;
 					channel = null;
 					queue.clear();
+					draining = false;
 					notifier.notifyAll();
 					return;
 				}
-				if (isQueueEmpty())
+				if (queue.isEmpty())
 					notifier.notifyAll();
 			}
 		}
 	}
 
+	/**
+	 * Write the Write transactions at the head of the queue to selectable, as
+	 * one gathering write if there are several, and remove the ones that were
+	 * written completely.
+	 * 
+	 * @return true if the transaction at the head of the queue was written
+	 *         completely, false if the socket could not take all of it
+	 * @throws IOException
+	 */
+	private boolean writeWithoutBlocking() throws IOException {
+		ByteBuffer[] buffers;
+		synchronized (notifier) {
+			int n = 0;
+			buffers = new ByteBuffer[Math.min(queue.size(), MAX_GATHER)];
+			for (Iterator<Transaction> it = queue.iterator(); it.hasNext() && n < buffers.length;) {
+				Transaction t = it.next();
+				if (t.type != Transaction.Write)
+					break;
+				buffers[n++] = t.buffer();
+			}
+			if (n < buffers.length) {
+				ByteBuffer[] gathered = new ByteBuffer[n];
+				System.arraycopy(buffers, 0, gathered, 0, n);
+				buffers = gathered;
+			}
+		}
+		if (buffers.length == 1 || !(selectable instanceof GatheringByteChannel))
+			((WritableByteChannel) selectable).write(buffers[0]);
+		else
+			((GatheringByteChannel) selectable).write(buffers);
+		synchronized (notifier) {
+			for (ByteBuffer bb : buffers) {
+				if (bb.hasRemaining())
+					return false;
+				queue.poll();
+			}
+			if (queue.isEmpty())
+				notifier.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the non-blocking NIO channel that the channel writes to, or
+	 *         null if it does not write to one. This may wait for an
+	 *         asynchronous socket connection, so it is only called while
+	 *         draining the queue.
+	 */
+	private SelectableChannel getSelectable() {
+		if (!selectableResolved) {
+			WritableByteChannel writable = channel.getByteChannelForTransfer();
+			if (writable instanceof SelectableChannel && !((SelectableChannel) writable).isBlocking())
+				selectable = (SelectableChannel) writable;
+			selectableResolved = true;
+		}
+		return selectable;
+	}
+
 	/**
 	 * Encapsulates a write, flush or close request to the underlying stream
 	 */
@@ -289,6 +406,12 @@ class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
 		 */
 		int len;
 
+		/**
+		 * b as a ByteBuffer, created for a write to a NIO channel, which
+		 * tracks how much has been written
+		 */
+		ByteBuffer bb = null;
+
 		/**
 		 * Transaction type (Write, Flush or Close)
 		 */
@@ -334,6 +457,16 @@ class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
 			this.type = Write;
 		}
 
+		/**
+		 * @return the bytes to write, as a ByteBuffer whose position advances
+		 *         as they are written
+		 */
+		ByteBuffer buffer() {
+			if (bb == null)
+				bb = ByteBuffer.wrap(b, off, len);
+			return bb;
+		}
+
 		/**
 		 * Execute this transaction on the underlying stream, out.
 		 * 
@@ -345,7 +478,10 @@ class NonBlockingOutputStream extends FilterOutputStream implements Runnable {
 			}
 			switch (type) {
 			case Write:
-				out.write(b, off, len);
+				if (bb == null)
+					out.write(b, off, len);
+				else
+					out.write(b, bb.position(), bb.remaining());
 				break;
 			case Flush:
 				out.flush();
@@ -0,0 +1,130 @@
+/*
+ * PipeChannel.java
+ *
+ * One end of an in-process pipe created by 'chan pipe'.
+ */
+package tcl.lang.channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tcl.lang.TclIO;
+
+/**
+ * One end of a pipe that lives in the JVM, created with 'chan pipe'. The
+ * bytes written to the write end are copied into a RingBuffer, and read from
+ * it by the read end, without a socket or an operating system pipe. The two
+ * ends may be used by interpreters in different threads (see 'chan detach'
+ * and 'chan attach'), and each end can be read or written with the usual
+ * commands, in blocking or non-blocking mode, and watched with 'fileevent'.
+ * A non-blocking read end doesn't tie up a thread while the pipe is empty;
+ * the writer queues the FileEvent on the reading interpreter's Notifier
+ * when it writes.
+ * <p>
+ * Pipe channel names are unique in the JVM, so an end can be attached to any
+ * interpreter under the name it was created with.
+ *
+ */
+public class PipeChannel extends Channel {
+	/**
+	 * Number of bytes that can be written before the writer blocks, as for
+	 * an operating system pipe
+	 */
+	private static final int PIPE_SIZE = 64 * 1024;
+
+	/**
+	 * Number used to name the next pipe channel
+	 */
+	private static final AtomicInteger pipeCount = new AtomicInteger();
+
+	/**
+	 * The ring that connects the two ends
+	 */
+	private final RingBuffer ring;
+
+	/**
+	 * Create one end of a pipe
+	 *
+	 * @param ring
+	 *            the ring shared by both ends
+	 * @param mode
+	 *            TclIO.RDONLY for the read end, TclIO.WRONLY for the write
+	 *            end
+	 */
+	private PipeChannel(RingBuffer ring, int mode) {
+		this.ring = ring;
+		this.mode = mode;
+		setChanName("pipe" + pipeCount.getAndIncrement());
+	}
+
+	/**
+	 * Create a pipe. The channels are not registered in any interpreter.
+	 *
+	 * @return the read end and the write end of the new pipe
+	 */
+	public static PipeChannel[] createPipe() {
+		RingBuffer ring = new RingBuffer(PIPE_SIZE);
+		return new PipeChannel[] { new PipeChannel(ring, TclIO.RDONLY), new PipeChannel(ring, TclIO.WRONLY) };
+	}
+
+	@Override
+	String getChanType() {
+		return "pipe";
+	}
+
+	/**
+	 * The writer of the pipe runs the callback when it writes or closes
+	 *
+	 * @see tcl.lang.channel.Channel#notifyWhenInputReady(java.lang.Runnable)
+	 */
+	@Override
+	boolean notifyWhenInputReady(Runnable callback) throws IOException {
+		return ring.notifyWhenReadable(callback);
+	}
+
+	@Override
+	protected InputStream getInputStream() throws IOException {
+		if (mode != TclIO.RDONLY)
+			throw new RuntimeException("should not be called");
+		return ring.getInputStream();
+	}
+
+	@Override
+	protected OutputStream getOutputStream() throws IOException {
+		if (mode != TclIO.WRONLY)
+			throw new RuntimeException("should not be called");
+		return ring.getOutputStream();
+	}
+
+	/**
+	 * Output that is still buffered when the write end is closed after the
+	 * read end is just discarded, since nobody can read it
+	 *
+	 * @see tcl.lang.channel.Channel#close()
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			super.close();
+		} catch (IOException e) {
+			if (mode == TclIO.RDONLY || !ring.isReaderClosed())
+				throw e;
+		}
+	}
+
+	/**
+	 * Close this end of the pipe. Closing the write end gives the reader EOF;
+	 * closing the read end makes further writes fail.
+	 *
+	 * @see tcl.lang.channel.Channel#implClose()
+	 */
+	@Override
+	void implClose() throws IOException {
+		if (mode == TclIO.RDONLY)
+			ring.closeReader();
+		else
+			ring.closeWriter();
+	}
+}
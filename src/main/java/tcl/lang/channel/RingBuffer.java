@@ -0,0 +1,298 @@
+/*
+ * RingBuffer.java
+ *
+ * A byte ring buffer with one writing and one reading thread, that
+ * connects the two ends of a PipeChannel.
+ */
+package tcl.lang.channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A fixed size ring of bytes written by one thread and read by one other
+ * thread. The writer only moves tail and the reader only moves head, and both
+ * are volatile, so a read or write that finds data or space copies it with
+ * System.arraycopy() without taking a lock. A lock is only taken to sleep
+ * when the ring is empty (reader) or full (writer), and by the other side to
+ * wake a sleeper up. Each side publishes that it is about to sleep before it
+ * checks the ring a last time, and the other side moves its index before it
+ * checks for a sleeper, so a wakeup can't be missed.
+ * <p>
+ * A reader that must not block, such as the InputBuffer of a non-blocking
+ * channel, registers a callback with notifyWhenReadable() instead; the
+ * writer runs it when it next writes or closes. Like the callbacks run by
+ * the ChannelSelector thread, it must not block.
+ */
+class RingBuffer {
+	/**
+	 * The ring; its length is a power of two
+	 */
+	private final byte[] ring;
+
+	/**
+	 * ring.length - 1
+	 */
+	private final int mask;
+
+	/**
+	 * Number of bytes read so far; the next byte to read is at head & mask
+	 */
+	private volatile long head = 0;
+
+	/**
+	 * Number of bytes written so far; the next byte is written at tail & mask
+	 */
+	private volatile long tail = 0;
+
+	/**
+	 * Set to true when the reading end is closed; writes then fail
+	 */
+	private volatile boolean readerClosed = false;
+
+	/**
+	 * Set to true when the writing end is closed; reads return EOF once the
+	 * ring is empty
+	 */
+	private volatile boolean writerClosed = false;
+
+	/**
+	 * Set to true while the reader sleeps on lock, waiting for bytes
+	 */
+	private volatile boolean readerWaiting = false;
+
+	/**
+	 * Set to true while the writer sleeps on lock, waiting for space
+	 */
+	private volatile boolean writerWaiting = false;
+
+	/**
+	 * Callback registered with notifyWhenReadable(), or null
+	 */
+	private final AtomicReference<Runnable> readListener = new AtomicReference<Runnable>();
+
+	/**
+	 * Monitor that a side sleeps on
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * Create an empty ring buffer
+	 *
+	 * @param capacity
+	 *            number of bytes that can be written before the writer has to
+	 *            wait for the reader; rounded up to a power of two
+	 */
+	RingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+		ring = new byte[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * @return the number of bytes that can be read without blocking
+	 */
+	int available() {
+		return (int) (tail - head);
+	}
+
+	/**
+	 * Read up to len bytes, blocking until at least one byte is available or
+	 * the writing end is closed
+	 *
+	 * @return number of bytes read, or -1 at EOF
+	 * @throws IOException
+	 *             if the reading end is closed, or the thread is interrupted
+	 */
+	int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		while (true) {
+			if (readerClosed)
+				throw new IOException("pipe closed");
+			long h = head;
+			long t = tail;
+			if (t != h) {
+				int n = (int) Math.min(len, t - h);
+				int pos = (int) (h & mask);
+				int first = Math.min(n, ring.length - pos);
+				System.arraycopy(ring, pos, b, off, first);
+				System.arraycopy(ring, 0, b, off + first, n - first);
+				head = h + n;
+				if (writerWaiting)
+					wakeUp();
+				return n;
+			}
+			if (writerClosed) {
+				if (tail == head)
+					return -1;
+				continue;
+			}
+			synchronized (lock) {
+				readerWaiting = true;
+				try {
+					while (tail == head && !writerClosed && !readerClosed)
+						lock.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				} finally {
+					readerWaiting = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write len bytes, blocking while the ring is full
+	 *
+	 * @throws IOException
+	 *             if either end is closed, or the thread is interrupted
+	 */
+	void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (readerClosed)
+				throw new IOException("broken pipe");
+			if (writerClosed)
+				throw new IOException("pipe closed");
+			long t = tail;
+			int free = ring.length - (int) (t - head);
+			if (free == 0) {
+				synchronized (lock) {
+					writerWaiting = true;
+					try {
+						while (tail - head == ring.length && !readerClosed && !writerClosed)
+							lock.wait();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					} finally {
+						writerWaiting = false;
+					}
+				}
+				continue;
+			}
+			int n = Math.min(len, free);
+			int pos = (int) (t & mask);
+			int first = Math.min(n, ring.length - pos);
+			System.arraycopy(b, off, ring, pos, first);
+			System.arraycopy(b, off + first, ring, 0, n - first);
+			tail = t + n;
+			off += n;
+			len -= n;
+			signalReader();
+		}
+	}
+
+	/**
+	 * Run callback once, when a read won't block
+	 *
+	 * @return true if the callback will run, false if a read won't block now
+	 */
+	boolean notifyWhenReadable(Runnable callback) {
+		readListener.set(callback);
+		if (tail != head || writerClosed || readerClosed) {
+			/* the writer may have missed the callback; take it back */
+			if (readListener.compareAndSet(callback, null))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Close the reading end; the writer gets an error on its next write
+	 */
+	void closeReader() {
+		readerClosed = true;
+		readListener.set(null);
+		wakeUp();
+	}
+
+	/**
+	 * Close the writing end; the reader sees EOF after the bytes in the ring
+	 */
+	void closeWriter() {
+		writerClosed = true;
+		signalReader();
+	}
+
+	/**
+	 * @return true if the reading end has been closed
+	 */
+	boolean isReaderClosed() {
+		return readerClosed;
+	}
+
+	/**
+	 * Wake up the reader, if it is asleep or has registered a callback
+	 */
+	private void signalReader() {
+		if (readerWaiting)
+			wakeUp();
+		if (readListener.get() != null) {
+			Runnable callback = readListener.getAndSet(null);
+			if (callback != null)
+				callback.run();
+		}
+	}
+
+	private void wakeUp() {
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * @return an InputStream that reads the ring, and closes the reading end
+	 *         when it is closed
+	 */
+	InputStream getInputStream() {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int cnt = RingBuffer.this.read(b, 0, 1);
+				return cnt == -1 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return RingBuffer.this.read(b, off, len);
+			}
+
+			@Override
+			public int available() throws IOException {
+				return RingBuffer.this.available();
+			}
+
+			@Override
+			public void close() throws IOException {
+				closeReader();
+			}
+		};
+	}
+
+	/**
+	 * @return an OutputStream that writes the ring, and closes the writing
+	 *         end when it is closed
+	 */
+	OutputStream getOutputStream() {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				RingBuffer.this.write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				RingBuffer.this.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				closeWriter();
+			}
+		};
+	}
+}
@@ -0,0 +1,129 @@
+package tcl.lang.channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * An InputStream on a non-blocking NIO channel, such as a
+ * java.nio.channels.SocketChannel. Reads block the calling thread by waiting
+ * on the shared ChannelSelector rather than in the operating system, and
+ * available() reports bytes that can be read without blocking.
+ * <p>
+ * close() does nothing; the channel is closed by the owning Tcl Channel's
+ * implClose().
+ * 
+ */
+class SelectableChannelInputStream extends InputStream {
+	/**
+	 * The channel being read, as a SelectableChannel
+	 */
+	private final SelectableChannel selectable;
+	/**
+	 * The channel being read, as a ReadableByteChannel
+	 */
+	private final ReadableByteChannel readable;
+	/**
+	 * The selector used to wait for input
+	 */
+	private final ChannelSelector selector;
+	/**
+	 * Bytes read ahead by available(), returned by the next read
+	 */
+	private final ByteBuffer peek = ByteBuffer.allocate(4096);
+	/**
+	 * Set to true when the channel returns end-of-stream
+	 */
+	private boolean eofSeen = false;
+
+	/**
+	 * @param channel
+	 *            a SelectableChannel that is also a ReadableByteChannel, in
+	 *            non-blocking mode
+	 * @throws IOException
+	 *             if the ChannelSelector can't be started
+	 */
+	SelectableChannelInputStream(SelectableChannel channel) throws IOException {
+		this.selectable = channel;
+		this.readable = (ReadableByteChannel) channel;
+		this.selector = ChannelSelector.getInstance();
+		peek.flip();
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int cnt = read(b, 0, 1);
+		return cnt == -1 ? -1 : (b[0] & 0xff);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		while (true) {
+			int cnt = readNow(b, off, len);
+			if (cnt != 0)
+				return cnt;
+			selector.awaitReady(selectable, SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Read without blocking
+	 * 
+	 * @return number of bytes read, 0 if none are available or -1 at end of
+	 *         stream
+	 * @throws IOException
+	 */
+	private synchronized int readNow(byte[] b, int off, int len) throws IOException {
+		if (peek.hasRemaining()) {
+			int cnt = Math.min(len, peek.remaining());
+			peek.get(b, off, cnt);
+			return cnt;
+		}
+		if (eofSeen)
+			return -1;
+		int cnt = readable.read(ByteBuffer.wrap(b, off, len));
+		if (cnt == -1)
+			eofSeen = true;
+		return cnt;
+	}
+
+	/**
+	 * Reads ahead whatever the channel has without blocking
+	 * 
+	 * @see java.io.InputStream#available()
+	 */
+	@Override
+	public synchronized int available() throws IOException {
+		if (!peek.hasRemaining() && !eofSeen) {
+			peek.clear();
+			int cnt = readable.read(peek);
+			if (cnt == -1)
+				eofSeen = true;
+			peek.flip();
+		}
+		return peek.remaining();
+	}
+
+	/**
+	 * @return true if a read would have to wait for input
+	 * @throws IOException
+	 */
+	synchronized boolean wouldBlock() throws IOException {
+		return available() == 0 && !eofSeen;
+	}
+
+	/**
+	 * Does nothing; the channel is closed by its owner
+	 * 
+	 * @see java.io.InputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+	}
+}
@@ -0,0 +1,69 @@
+package tcl.lang.channel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An OutputStream on a non-blocking NIO channel, such as a
+ * java.nio.channels.SocketChannel. When the channel can't take more bytes,
+ * writes wait on the shared ChannelSelector until it can.
+ * <p>
+ * close() does nothing; the channel is closed by the owning Tcl Channel's
+ * implClose().
+ * 
+ */
+class SelectableChannelOutputStream extends OutputStream {
+	/**
+	 * The channel being written, as a SelectableChannel
+	 */
+	private final SelectableChannel selectable;
+	/**
+	 * The channel being written, as a WritableByteChannel
+	 */
+	private final WritableByteChannel writable;
+	/**
+	 * The selector used to wait for the channel to drain
+	 */
+	private final ChannelSelector selector;
+
+	/**
+	 * @param channel
+	 *            a SelectableChannel that is also a WritableByteChannel, in
+	 *            non-blocking mode
+	 * @throws IOException
+	 *             if the ChannelSelector can't be started
+	 */
+	SelectableChannelOutputStream(SelectableChannel channel) throws IOException {
+		this.selectable = channel;
+		this.writable = (WritableByteChannel) channel;
+		this.selector = ChannelSelector.getInstance();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+		while (bb.hasRemaining()) {
+			if (writable.write(bb) == 0) {
+				selector.awaitReady(selectable, SelectionKey.OP_WRITE);
+			}
+		}
+	}
+
+	/**
+	 * Does nothing; the channel is closed by its owner
+	 * 
+	 * @see java.io.OutputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+	}
+}
@@ -8,26 +8,28 @@ package tcl.lang.channel;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
 
 import tcl.lang.Interp;
 import tcl.lang.TCL;
-import tcl.lang.TclEvent;
 import tcl.lang.TclException;
 import tcl.lang.TclIO;
 import tcl.lang.TclObject;
 import tcl.lang.TclPosixException;
+import tcl.lang.TclRuntimeError;
 import tcl.lang.TclString;
 
 /**
  * The ServerSocketChannel class implements a channel object for ServerSocket
- * connections, created using the socket -server command.
+ * connections, created using the socket -server command. New connections are
+ * accepted by the shared ChannelSelector thread when the socket becomes ready,
+ * so a listening socket does not need a thread of its own.
  **/
 
 public class ServerSocketChannel extends AbstractSocketChannel {
@@ -38,6 +40,11 @@ public class ServerSocketChannel extends AbstractSocketChannel {
 
 	private ServerSocket sock;
 
+	/**
+	 * The NIO channel of sock, in non-blocking mode
+	 */
+	private java.nio.channels.ServerSocketChannel serverChannel;
+
 	/**
 	 * The interpreter to evaluate the callback in, when a connection is made.
 	 **/
@@ -51,15 +58,22 @@ public class ServerSocketChannel extends AbstractSocketChannel {
 	private TclObject callback;
 
 	/**
-	 * The thread which listens for new connections.
+	 * Accepts new connections when the socket is ready.
 	 **/
 
-	private AcceptThread acceptThread;
+	private Acceptor acceptor;
+
+	/**
+	 * Handles connections on worker threads, if -workers was given; null
+	 * if connections are handled by cbInterp
+	 **/
+
+	private SocketWorkerPool workerPool = null;
 
 	/**
 	 * Creates a new ServerSocketChannel object with the given options. Creates
-	 * an underlying ServerSocket object, and a thread to handle connections to
-	 * the socket.
+	 * an underlying ServerSocket object, and registers it with the
+	 * ChannelSelector to handle connections to the socket.
 	 * 
 	 * @param interp the current interpreter
 	 * @param localAddr the IP address to bind to, or an empty string
@@ -69,6 +83,26 @@ public class ServerSocketChannel extends AbstractSocketChannel {
 
 	public ServerSocketChannel(Interp interp, String localAddr, int port,
 			TclObject callback) throws TclException {
+		this(interp, localAddr, port, callback, 0, null);
+	}
+
+	/**
+	 * Creates a new ServerSocketChannel object whose connections are handled
+	 * by a pool of worker threads, each with its own interpreter; see
+	 * SocketWorkerPool.
+	 * 
+	 * @param interp the current interpreter
+	 * @param localAddr the IP address to bind to, or an empty string
+	 * @param port the port to bind to, or 0 for any port
+	 * @param callback the Tcl script specified by 'server -socket'
+	 * @param workers number of worker threads, or 0 to handle connections
+	 *        in interp
+	 * @param workerInit script that initializes each worker interpreter, or
+	 *        null
+	 **/
+
+	public ServerSocketChannel(Interp interp, String localAddr, int port,
+			TclObject callback, int workers, TclObject workerInit) throws TclException {
 		InetAddress localAddress = null;
 
 		// Resolve address (if given)
@@ -86,20 +120,26 @@ public class ServerSocketChannel extends AbstractSocketChannel {
 
 		// Create the server socket.
 		try {
-			if (localAddress == null)
-				sock = new ServerSocket(port);
-			else
-				sock = new ServerSocket(port, 0, localAddress);
+			serverChannel = java.nio.channels.ServerSocketChannel.open();
+			sock = serverChannel.socket();
+			try {
+				sock.bind(new InetSocketAddress(localAddress, port));
+				serverChannel.configureBlocking(false);
+				acceptor = new Acceptor(ChannelSelector.getInstance());
+			} catch (IOException ex) {
+				serverChannel.close();
+				throw ex;
+			}
 		} catch (IOException ex) {
 			throw new TclException(interp, "couldn't open socket: "+ex.getMessage().toLowerCase());
 		}
 
-		acceptThread = new AcceptThread(sock, this);
-
 		setChanName(TclIO.getNextDescriptor(interp, "sock"));
-		acceptThread.setDaemon(true);
-		acceptThread.setName("ServerSocketChannel (" + interp.toString() + "): " + getChanName() + " " + localAddr + ":" + port);
-		acceptThread.start();
+		if (workers > 0) {
+			workerPool = new SocketWorkerPool(sock, getChanName(), workers, callback.toString(),
+					workerInit == null ? null : workerInit.toString());
+		}
+		acceptor.awaitConnection();
 	}
 
 	/**
@@ -108,18 +148,69 @@ public class ServerSocketChannel extends AbstractSocketChannel {
 	 * @param s  the new socket returned from accept()
 	 */
 	synchronized void addConnection(Socket s) {
+		if (workerPool != null) {
+			workerPool.addConnection(s);
+			return;
+		}
 		SocketConnectionEvent evt = new SocketConnectionEvent(cbInterp, callback, s, this.sock);
 		cbInterp.getNotifier().queueEvent(evt, TCL.QUEUE_TAIL);
 	}
 
+	/**
+	 * Accepts all pending connections each time the ChannelSelector finds the
+	 * server socket ready, then waits for the next one.
+	 */
+	private class Acceptor implements Runnable {
+		private final ChannelSelector selector;
+
+		Acceptor(ChannelSelector selector) {
+			this.selector = selector;
+		}
+
+		/**
+		 * Ask the selector to run this when a connection is pending
+		 */
+		void awaitConnection() {
+			selector.notifyWhenReady(serverChannel, SelectionKey.OP_ACCEPT, this);
+		}
+
+		public void run() {
+			while (serverChannel.isOpen()) {
+				java.nio.channels.SocketChannel sc;
+				try {
+					sc = serverChannel.accept();
+				} catch (IOException e) {
+					// Socket closed
+					return;
+				}
+				if (sc == null) {
+					awaitConnection();
+					return;
+				}
+				try {
+					addConnection(sc.socket());
+				} catch (TclRuntimeError e) {
+					// the interp has gone away
+					try {
+						sc.close();
+					} catch (IOException e1) {
+					}
+					return;
+				}
+			}
+		}
+	}
+
 
 	/* (non-Javadoc)
 	 * @see tcl.lang.channel.Channel#implClose()
 	 */
 	@Override
 	void implClose() throws IOException {
-		acceptThread.pleaseStop();
 		sock.close();
+		ChannelSelector.getInstance().cancel(serverChannel);
+		if (workerPool != null)
+			workerPool.shutdown();
 		callback.release();
 	}
 
@@ -170,67 +261,3 @@ public class ServerSocketChannel extends AbstractSocketChannel {
 		return 0; // not supported
 	}
 }
-
-/**
- * Thread that accepts connections on the ServerSocket
- *
- */
-class AcceptThread extends Thread {
-
-	/**
-	 * The ServerSocket accepting connections
-	 */
-	private ServerSocket sock;
-	/**
-	 * The Tcl Channel associated with the socket
-	 */
-	private ServerSocketChannel sschan;
-	/**
-	 * Set to false when channel is shut down
-	 */
-	volatile boolean keepRunning;
-
-	public AcceptThread(ServerSocket s1, ServerSocketChannel s2) {
-		sock = s1;
-
-		// Every 10 seconds, we check to see if this socket has been closed:
-		try {
-			sock.setSoTimeout(10000);
-		} catch (SocketException e) {
-		}
-
-		sschan = s2;
-		keepRunning = true;
-	}
-
-	@Override
-	public void run() {
-		try {
-			while (keepRunning) {
-				Socket s = null;
-				try {
-					s = sock.accept();
-				} catch (InterruptedIOException ex) {
-					// Timeout
-					continue;
-				} catch (IOException ex) {
-					// Socket closed
-					break;
-				}
-				// Get a connection
-				sschan.addConnection(s);
-			}
-		} catch (Exception e) {
-			// Something went wrong.
-			e.printStackTrace();
-		}
-	}
-
-	/**
-	 * Request that this thread stop accepting connections
-	 */
-	public void pleaseStop() {
-		keepRunning = false;
-		interrupt();
-	}
-}
@@ -9,8 +9,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 
 import tcl.lang.Interp;
 import tcl.lang.TclException;
@@ -20,7 +24,9 @@ import tcl.lang.TclString;
 
 /**
  * The SocketChannel class implements a channel object for Socket connections,
- * created using the socket command.
+ * created using the socket command. The connection is a non-blocking
+ * java.nio.channels.SocketChannel, whose readiness, including the completion
+ * of an asynchronous connect, is tracked by the shared ChannelSelector.
  **/
 
 public class SocketChannel extends AbstractSocketChannel {
@@ -30,15 +36,25 @@ public class SocketChannel extends AbstractSocketChannel {
 	 **/
 	private Socket sock = null;
 
+	/**
+	 * The NIO channel of sock
+	 */
+	private java.nio.channels.SocketChannel socketChannel = null;
+
 	/**
 	 * Indicates an error during the connection
 	 */
 	private IOException connectException = null;
 
 	/**
-	 * Thread responsible for connecting socket asynchronously
+	 * Set to true if the socket is connected asynchronously
 	 */
-	private Thread asyncConnectThread = null;
+	private boolean asyncConnect = false;
+
+	/**
+	 * Callbacks to run when the asynchronous connect completes or fails
+	 */
+	private ArrayList<Runnable> connectWaiters = new ArrayList<Runnable>();
 
 	/**
 	 * Local address, or null if any address can be used
@@ -60,6 +76,16 @@ public class SocketChannel extends AbstractSocketChannel {
 	 */
 	OutputStream ostream = null;
 
+	/**
+	 * Stream that reads from the connected socket, created on first use
+	 */
+	private InputStream socketIn = null;
+
+	/**
+	 * Stream that writes to the connected socket, created on first use
+	 */
+	private OutputStream socketOut = null;
+
 	/**
 	 * Notifies that async connection has been made
 	 */
@@ -106,14 +132,8 @@ public class SocketChannel extends AbstractSocketChannel {
 
 		// Create the Socket object
 		if (async) {
-			asyncConnectThread = new Thread(new Runnable() {
-				public void run() {
-					connectSocket(addr, port, localAddress, localPort);
-				}
-			});
-			asyncConnectThread.setDaemon(true);
-			asyncConnectThread.setName("SocketChannel (" + interp.toString() + "): " + address + ":" + port);
-			asyncConnectThread.start();
+			asyncConnect = true;
+			startConnect(addr, port, localAddress, localPort);
 		} else {
 			connectSocket(addr, port, localAddress, localPort);
 			if (connectException != null) {
@@ -139,6 +159,10 @@ public class SocketChannel extends AbstractSocketChannel {
 	public SocketChannel(Interp interp, Socket s) throws IOException, TclException {
 		this.mode = TclIO.RDWR;
 		this.sock = s;
+		this.socketChannel = s.getChannel();
+		if (socketChannel != null) {
+			socketChannel.configureBlocking(false);
+		}
 
 		setChanName(TclIO.getNextDescriptor(interp, "sock"));
 	}
@@ -157,18 +181,135 @@ public class SocketChannel extends AbstractSocketChannel {
 	 * @throws IOException
 	 */
 	protected void connectSocket(InetAddress addr, int port, InetAddress localAddress, int localPort) {
-		Socket s;
 		try {
-			s = new Socket(addr, port, localAddress, localPort);
+			java.nio.channels.SocketChannel sc = java.nio.channels.SocketChannel.open();
+			try {
+				if (localAddress != null || localPort != 0) {
+					sc.socket().bind(new InetSocketAddress(localAddress, localPort));
+				}
+				sc.connect(new InetSocketAddress(addr, port));
+				sc.configureBlocking(false);
+			} catch (IOException e) {
+				sc.close();
+				throw e;
+			}
+			synchronized (asyncNotifier) {
+				socketChannel = sc;
+			}
+			connected(sc);
+		} catch (IOException e) {
+			connectFailed(e);
+		}
+	}
+
+	/**
+	 * Start a non-blocking connect, which is completed by the ChannelSelector
+	 * 
+	 * @param addr
+	 *            Address to connect to
+	 * @param port
+	 *            Port to connect to
+	 * @param localAddress
+	 *            Local address to bind, or null for default
+	 * @param localPort
+	 *            Local port to bind to, or 0 for any port
+	 */
+	private void startConnect(InetAddress addr, int port, InetAddress localAddress, int localPort) {
+		final java.nio.channels.SocketChannel sc;
+		try {
+			sc = java.nio.channels.SocketChannel.open();
 			synchronized (asyncNotifier) {
-				sock = s;
-				asyncNotifier.notifyAll();
+				socketChannel = sc;
+			}
+			if (localAddress != null || localPort != 0) {
+				sc.socket().bind(new InetSocketAddress(localAddress, localPort));
 			}
+			sc.configureBlocking(false);
+			if (sc.connect(new InetSocketAddress(addr, port))) {
+				connected(sc);
+				return;
+			}
+			ChannelSelector.getInstance().notifyWhenReady(sc, SelectionKey.OP_CONNECT, new Runnable() {
+				public void run() {
+					finishConnect(sc);
+				}
+			});
 		} catch (IOException e) {
-			synchronized (this) {
-				connectException = e;
-				this.notifyAll();
+			closeQuietly(socketChannel);
+			connectFailed(e);
+		}
+	}
+
+	/**
+	 * Called by the ChannelSelector when a non-blocking connect is ready to
+	 * complete, or the channel was closed
+	 */
+	private void finishConnect(final java.nio.channels.SocketChannel sc) {
+		try {
+			if (sc.finishConnect()) {
+				connected(sc);
+			} else {
+				ChannelSelector.getInstance().notifyWhenReady(sc, SelectionKey.OP_CONNECT, new Runnable() {
+					public void run() {
+						finishConnect(sc);
+					}
+				});
 			}
+		} catch (IOException e) {
+			closeQuietly(sc);
+			connectFailed(e);
+		}
+	}
+
+	/**
+	 * Record a completed connection, and wake anything waiting for it
+	 */
+	private void connected(java.nio.channels.SocketChannel sc) {
+		Runnable[] waiters;
+		synchronized (asyncNotifier) {
+			sock = sc.socket();
+			waiters = takeConnectWaiters();
+			asyncNotifier.notifyAll();
+		}
+		for (Runnable waiter : waiters) {
+			waiter.run();
+		}
+	}
+
+	/**
+	 * Record a failed connection, and wake anything waiting for it
+	 */
+	private void connectFailed(IOException e) {
+		synchronized (this) {
+			connectException = e;
+			this.notifyAll();
+		}
+		Runnable[] waiters;
+		synchronized (asyncNotifier) {
+			waiters = takeConnectWaiters();
+			asyncNotifier.notifyAll();
+		}
+		for (Runnable waiter : waiters) {
+			waiter.run();
+		}
+	}
+
+	/**
+	 * Remove the callbacks waiting for the connection. Call with asyncNotifier
+	 * locked.
+	 */
+	private Runnable[] takeConnectWaiters() {
+		Runnable[] waiters = connectWaiters.toArray(new Runnable[connectWaiters.size()]);
+		connectWaiters.clear();
+		return waiters;
+	}
+
+	private static void closeQuietly(java.nio.channels.SocketChannel sc) {
+		if (sc == null)
+			return;
+		try {
+			sc.close();
+		} catch (IOException e) {
 		}
 	}
 
@@ -177,7 +318,7 @@ public class SocketChannel extends AbstractSocketChannel {
 	 * immediately if connection is already made.
 	 */
 	private void waitForConnection() {
-		if (asyncConnectThread == null)
+		if (!asyncConnect)
 			return; // synchronous connection
 		synchronized (asyncNotifier) {
 			while (sock == null && connectException == null) {
@@ -198,17 +339,83 @@ public class SocketChannel extends AbstractSocketChannel {
 	@Override
 	void implClose() throws IOException {
 		synchronized (asyncNotifier) {
-			if (asyncConnectThread != null)
-				asyncConnectThread.interrupt();
-			if (sock != null)
+			if (socketChannel != null) {
+				socketChannel.close();
+				ChannelSelector.getInstance().cancel(socketChannel);
+			} else if (sock != null) {
 				sock.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the stream that reads from the connected socket
+	 * @throws IOException
+	 */
+	private InputStream socketInputStream() throws IOException {
+		synchronized (asyncNotifier) {
+			if (socketIn == null) {
+				if (socketChannel != null)
+					socketIn = new SelectableChannelInputStream(socketChannel);
+				else
+					socketIn = sock.getInputStream();
+			}
+			return socketIn;
+		}
+	}
+
+	/**
+	 * @return the stream that writes to the connected socket
+	 * @throws IOException
+	 */
+	private OutputStream socketOutputStream() throws IOException {
+		synchronized (asyncNotifier) {
+			if (socketOut == null) {
+				if (socketChannel != null)
+					socketOut = new SelectableChannelOutputStream(socketChannel);
+				else
+					socketOut = sock.getOutputStream();
+			}
+			return socketOut;
+		}
+	}
+
+	/**
+	 * Lets the InputBuffer wait for the connection and for input on the
+	 * ChannelSelector, instead of blocking a thread
+	 * 
+	 * @see tcl.lang.channel.Channel#notifyWhenInputReady(java.lang.Runnable)
+	 */
+	@Override
+	boolean notifyWhenInputReady(Runnable callback) throws IOException {
+		synchronized (asyncNotifier) {
+			if (sock == null) {
+				if (!asyncConnect || connectException != null)
+					return false;
+				connectWaiters.add(callback);
+				return true;
+			}
+		}
+		if (socketChannel == null)
+			return false;
+		if (!((SelectableChannelInputStream) socketInputStream()).wouldBlock())
+			return false;
+		ChannelSelector.getInstance().notifyWhenReady(socketChannel, SelectionKey.OP_READ, callback);
+		return true;
+	}
+
+	@Override
+	WritableByteChannel getByteChannelForTransfer() {
+		waitForConnection();
+		synchronized (asyncNotifier) {
+			return sock == null ? null : socketChannel;
 		}
 	}
 
 	@Override
 	protected InputStream getInputStream() throws IOException {
 		/*
-		 * Wrap sock.getInputStream() in a stream that waits for async
+		 * Wrap socketInputStream() in a stream that waits for async
 		 * connection to be made
 		 */
 		if (istream == null) {
@@ -218,7 +425,7 @@ public class SocketChannel extends AbstractSocketChannel {
 				public int read() throws IOException {
 					waitForConnection();
 					if (sock != null)
-						return sock.getInputStream().read();
+						return socketInputStream().read();
 					else if (connectException != null)
 						throw connectException;
 					else
@@ -234,7 +441,7 @@ public class SocketChannel extends AbstractSocketChannel {
 				public int read(byte[] b, int off, int len) throws IOException {
 					waitForConnection();
 					if (sock != null)
-						return sock.getInputStream().read(b, off, len);
+						return socketInputStream().read(b, off, len);
 					else if (connectException != null)
 						throw connectException;
 					else
@@ -252,7 +459,7 @@ public class SocketChannel extends AbstractSocketChannel {
 						if (sock == null)
 							return 0;
 						else
-							return sock.getInputStream().available();
+							return socketInputStream().available();
 					}
 				}
 
@@ -264,7 +471,7 @@ public class SocketChannel extends AbstractSocketChannel {
 	@Override
 	protected OutputStream getOutputStream() throws IOException {
 		/*
-		 * Wrap sock.getOutputStream() in a stream that waits for async
+		 * Wrap socketOutputStream() in a stream that waits for async
 		 * connection to be made
 		 */
 		if (ostream == null) {
@@ -274,7 +481,7 @@ public class SocketChannel extends AbstractSocketChannel {
 				public void write(int b) throws IOException {
 					waitForConnection();
 					if (sock != null)
-						sock.getOutputStream().write(b);
+						socketOutputStream().write(b);
 					else if (connectException != null)
 						throw connectException;
 					else
@@ -290,7 +497,7 @@ public class SocketChannel extends AbstractSocketChannel {
 				public void flush() throws IOException {
 					waitForConnection();
 					if (sock != null)
-						sock.getOutputStream().flush();
+						socketOutputStream().flush();
 					else if (connectException != null)
 						throw connectException;
 					else
@@ -306,7 +513,7 @@ public class SocketChannel extends AbstractSocketChannel {
 				public void write(byte[] b, int off, int len) throws IOException {
 					waitForConnection();
 					if (sock != null)
-						sock.getOutputStream().write(b, off, len);
+						socketOutputStream().write(b, off, len);
 					else if (connectException != null)
 						throw connectException;
 					else
@@ -0,0 +1,234 @@
+/*
+ * SocketWorkerPool.java
+ *
+ * Runs the callbacks of a 'socket -server ... -workers' server
+ * on a pool of threads, each with its own interpreter.
+ */
+package tcl.lang.channel;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import tcl.lang.Interp;
+import tcl.lang.TCL;
+import tcl.lang.TclException;
+import tcl.lang.TclIO;
+
+/**
+ * Handles the connections of a server socket created with
+ * 'socket -server command -workers count'. Instead of queueing a
+ * SocketConnectionEvent for the interpreter that created the server, each
+ * accepted connection is handed to one of count worker threads. Each worker
+ * thread owns an interpreter, created when the thread handles its first
+ * connection and initialized with the -workerinit script, and reused for the
+ * following connections. The command is evaluated in that interpreter, and
+ * the connection is handled with ordinary blocking I/O, so a server can use
+ * several processors with simple handler scripts such as
+ *
+ * <pre>
+ * proc echo {s addr port} {
+ *     while {[gets $s line] &gt;= 0} { puts $s $line; flush $s }
+ * }
+ * </pre>
+ *
+ * The connection is closed when the command returns, unless the command
+ * closed it itself. Worker interpreters don't share any state with each
+ * other, or with the interpreter that created the server.
+ *
+ */
+class SocketWorkerPool {
+	/**
+	 * Runs the connection handlers
+	 */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Each worker thread's interpreter
+	 */
+	private final ThreadLocal<Interp> workerInterp = new ThreadLocal<Interp>();
+
+	/**
+	 * Command that the connection's channel, address and port are appended to
+	 */
+	private final String callback;
+
+	/**
+	 * Script evaluated in each new worker interpreter, or null
+	 */
+	private final String initScript;
+
+	/**
+	 * The server socket that accepts the connections
+	 */
+	private final ServerSocket serverSock;
+
+	/**
+	 * Create a pool of worker threads; threads are started as connections
+	 * arrive
+	 *
+	 * @param serverSock
+	 *            the server socket that accepts the connections
+	 * @param name
+	 *            name of the server channel, used to name the threads
+	 * @param workers
+	 *            number of worker threads
+	 * @param callback
+	 *            the command given to socket -server
+	 * @param initScript
+	 *            script that initializes each worker interpreter, or null
+	 */
+	SocketWorkerPool(ServerSocket serverSock, final String name, int workers, String callback, String initScript) {
+		this.serverSock = serverSock;
+		this.callback = callback;
+		this.initScript = initScript;
+		executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread(final Runnable r) {
+						Thread t = new Thread(new Runnable() {
+							public void run() {
+								try {
+									r.run();
+								} finally {
+									Interp interp = workerInterp.get();
+									if (interp != null) {
+										workerInterp.remove();
+										interp.dispose();
+									}
+								}
+							}
+						});
+						t.setDaemon(true);
+						t.setName(name + " worker " + (++count));
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Hand a new connection to a worker thread
+	 *
+	 * @param s
+	 *            the accepted socket
+	 */
+	void addConnection(final Socket s) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					serve(s);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the server was closed
+			closeQuietly(s);
+		}
+	}
+
+	/**
+	 * Let the workers finish the connections they are handling, and then
+	 * dispose of their interpreters. Connections that are still queued are
+	 * closed.
+	 */
+	void shutdown() {
+		ArrayList<Runnable> queued = new ArrayList<Runnable>();
+		executor.getQueue().drainTo(queued);
+		executor.shutdown();
+		for (Runnable r : queued) {
+			r.run(); // serve() just closes the socket, since serverSock is closed
+		}
+	}
+
+	/**
+	 * Evaluate the command for a connection, in the worker thread's
+	 * interpreter
+	 *
+	 * @param s
+	 *            the accepted socket
+	 */
+	private void serve(Socket s) {
+		if (serverSock.isClosed()) {
+			closeQuietly(s);
+			return;
+		}
+		Interp interp = getInterp();
+
+		SocketChannel chan;
+		try {
+			chan = new SocketChannel(interp, s);
+		} catch (IOException e) {
+			closeQuietly(s);
+			return;
+		} catch (TclException e) {
+			interp.backgroundError();
+			closeQuietly(s);
+			processEvents(interp);
+			return;
+		}
+		TclIO.registerChannel(interp, chan);
+
+		StringBuffer cblist = new StringBuffer();
+		cblist.append(callback);
+		cblist.append(" ");
+		cblist.append(chan.getChanName());
+		cblist.append(" ");
+		cblist.append(s.getInetAddress().getHostAddress());
+		cblist.append(" ");
+		cblist.append(s.getPort());
+
+		try {
+			interp.eval(cblist.toString(), TCL.EVAL_GLOBAL);
+		} catch (TclException e) {
+			interp.addErrorInfo("\n  during server socket callback \n");
+			interp.backgroundError();
+		}
+		if (TclIO.getChannel(interp, chan.getChanName()) == chan) {
+			TclIO.unregisterChannel(interp, chan);
+		}
+		processEvents(interp);
+	}
+
+	/**
+	 * @return the calling worker thread's interpreter, created and
+	 *         initialized on first use
+	 */
+	private Interp getInterp() {
+		Interp interp = workerInterp.get();
+		if (interp == null) {
+			interp = new Interp();
+			workerInterp.set(interp);
+			if (initScript != null) {
+				try {
+					interp.eval(initScript, TCL.EVAL_GLOBAL);
+				} catch (TclException e) {
+					interp.addErrorInfo("\n  during server socket worker initialization \n");
+					interp.backgroundError();
+				}
+			}
+		}
+		return interp;
+	}
+
+	/**
+	 * Run the events that are pending in a worker interpreter, such as
+	 * background errors and after idle scripts, without waiting for more
+	 */
+	private static void processEvents(Interp interp) {
+		while (interp.getNotifier().doOneEvent(TCL.DONT_WAIT | TCL.ALL_EVENTS) != 0) {
+		}
+	}
+
+	private static void closeQuietly(Socket s) {
+		try {
+			s.close();
+		} catch (IOException e) {
+		}
+	}
+}
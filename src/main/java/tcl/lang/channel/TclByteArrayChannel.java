@@ -100,6 +100,17 @@ public class TclByteArrayChannel extends Channel {
 		
 	}
 
+	/**
+	 * The bytes are all in memory, and ByteArrayInputStream.available() is
+	 * exact, so the input stream can be read directly
+	 * 
+	 * @see tcl.lang.channel.Channel#getDirectInputStream()
+	 */
+	@Override
+	InputStream getDirectInputStream() {
+		return istream;
+	}
+
 	@Override
 	protected InputStream getInputStream() throws IOException {
 		if (istream == null)
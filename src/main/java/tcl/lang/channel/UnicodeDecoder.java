@@ -5,11 +5,10 @@ import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
-import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
-import java.nio.charset.CodingErrorAction;
 
+import tcl.lang.CharsetCodec;
 import tcl.lang.cmd.EncodingCmd;
 
 /**
@@ -37,6 +36,15 @@ class UnicodeDecoder extends Reader {
 	 * The Java string name for the requested charset, which may not yet be set
 	 */
 	String requestedEncoding = null;
+	/**
+	 * CharsetCodec kind of the encoding; LATIN1 and ASCII are decoded
+	 * without csd
+	 */
+	int kind = CharsetCodec.OTHER;
+	/**
+	 * Byte buffer reused across reads
+	 */
+	private byte[] byteArray = null;
 
 	/**
 	 * Set to true when the end of file is seen
@@ -81,11 +89,19 @@ class UnicodeDecoder extends Reader {
 		encoding = requestedEncoding;
 
 		if (encoding != null && ! "symbol".equals(encoding)) {
-			Charset cs = Charset.forName(encoding);
-			csd = cs.newDecoder();
-			csd.onMalformedInput(CodingErrorAction.REPLACE);
-			csd.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			/*
+			 * The decoder is owned by this channel rather than borrowed from
+			 * CharsetCodec's pool, because it carries partial characters
+			 * from one read to the next
+			 */
+			kind = CharsetCodec.getKind(encoding);
+			if (kind == CharsetCodec.LATIN1 || kind == CharsetCodec.ASCII) {
+				csd = null;
+			} else {
+				csd = CharsetCodec.newDecoder(encoding);
+			}
 		} else {
+			kind = CharsetCodec.OTHER;
 			csd = null;
 		}
 	}
@@ -182,6 +198,18 @@ class UnicodeDecoder extends Reader {
 			csd.reset();
 	}
 
+	/**
+	 * @param size
+	 *            minimum size
+	 * @return the reusable byte buffer, of at least size bytes
+	 */
+	private byte[] getByteArray(int size) {
+		if (byteArray == null || byteArray.length < size) {
+			byteArray = new byte[size];
+		}
+		return byteArray;
+	}
+
 	/**
 	 * Flush the decoder, and return number of new characters or -1 if none
 	 * 
@@ -230,8 +258,8 @@ class UnicodeDecoder extends Reader {
 			 * char worth of bytes
 			 */
 			int byteArraySize = len < 16 ? 16 : len;
-			byte[] byteArray = new byte[byteArraySize];
-			ByteBuffer bb = ByteBuffer.wrap(byteArray);
+			byte[] byteArray = getByteArray(byteArraySize);
+			ByteBuffer bb = ByteBuffer.wrap(byteArray, 0, byteArraySize);
 
 			boolean zeroLengthRead = false;
 
@@ -272,17 +300,22 @@ class UnicodeDecoder extends Reader {
 			
 		} else {
 			/*
-			 * otherwise, do a binary or symbol encoding, which means just translate bytes
-			 * to chars
+			 * otherwise, do a binary, symbol, iso8859-1 or ascii encoding,
+			 * which means just translate bytes to chars
 			 */
 
-			byte[] bbuf = new byte[len];
+			byte[] bbuf = getByteArray(len);
 			int cnt = in.read(bbuf, 0, len);
 			if (cnt == -1) {
 				eofSeen = true;
 				return -1;
 			}
-			if (encoding!=null) {
+			if (kind == CharsetCodec.ASCII) {
+				for (int i = 0; i < cnt; i++) {
+					byte b = bbuf[i];
+					cbuf[i + off] = b >= 0 ? (char) b : '\ufffd';
+				}
+			} else if (encoding != null && kind == CharsetCodec.OTHER) {
 				/* must be symbol encoding */
 				EncodingCmd.decodeSymbol(bbuf, cbuf, off, cnt);
 			} else {
@@ -6,11 +6,10 @@ import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
-import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
-import java.nio.charset.CodingErrorAction;
 
+import tcl.lang.CharsetCodec;
 import tcl.lang.cmd.EncodingCmd;
 
 /**
@@ -25,6 +24,15 @@ class UnicodeEncoder extends Writer {
 	private String requestedEncoding = null;
 	private OutputStream out;
 	private CharsetEncoder cse = null;
+	/**
+	 * Highest char that is written as a single byte without cse, for
+	 * ISO-8859-1 and ASCII; -1 if there is no fast path
+	 */
+	private int fastMax = -1;
+	/**
+	 * Byte buffer reused across writes
+	 */
+	private byte[] bbuf = null;
 
 	/**
 	 * Create a new UnicodeEncoder with the specified encoding
@@ -63,15 +71,31 @@ class UnicodeEncoder extends Writer {
 			return;
 
 		encoding = requestedEncoding;
+		fastMax = -1;
 		if (encoding == null || "symbol".equals(encoding))
 			cse = null;
 		else {
-			cse = Charset.forName(encoding).newEncoder();
-			cse.onMalformedInput(CodingErrorAction.REPLACE);
-			cse.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			cse = CharsetCodec.newEncoder(encoding);
+			int kind = CharsetCodec.getKind(encoding);
+			if (kind == CharsetCodec.LATIN1)
+				fastMax = 0xff;
+			else if (kind == CharsetCodec.ASCII)
+				fastMax = 0x7f;
 		}
 	}
 
+	/**
+	 * @param size
+	 *            minimum size
+	 * @return the reusable byte buffer, of at least size bytes
+	 */
+	private byte[] getByteBuffer(int size) {
+		if (bbuf == null || bbuf.length < size) {
+			bbuf = new byte[size];
+		}
+		return bbuf;
+	}
+
 	@Override
 	public void close() throws IOException {
 		if (cse != null) {
@@ -96,11 +120,35 @@ class UnicodeEncoder extends Writer {
 		setEncoding(); // encoding might have changed
 		
 
+		if (fastMax >= 0) {
+			/*
+			 * ISO-8859-1 or ASCII: one byte per char, with '?' for chars that
+			 * can't be mapped, as cse would do. A surrogate is left to cse,
+			 * which replaces a whole pair with a single byte.
+			 */
+			byte[] bbuf = getByteBuffer(len);
+			int i = 0;
+			for (; i < len; i++) {
+				char c = cbuf[i + off];
+				if (c <= fastMax) {
+					bbuf[i] = (byte) c;
+				} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+					break;
+				} else {
+					bbuf[i] = (byte) '?';
+				}
+			}
+			out.write(bbuf, 0, i);
+			if (i == len)
+				return;
+			off += i;
+			len -= i;
+		}
+
 		if (cse != null) {
 			/* need a minimum buffer size to handle at least one encoded character.  Liberally using 256 */
 			int encodedBufSize = Math.max(256, (int)Math.ceil(len*cse.averageBytesPerChar()));
-			byte[] bbuf = new byte[encodedBufSize];
-			ByteBuffer bb = ByteBuffer.wrap(bbuf);
+			ByteBuffer bb = ByteBuffer.wrap(getByteBuffer(encodedBufSize));
 			CharBuffer cb = CharBuffer.wrap(cbuf, off, len);
 
 			CoderResult result = CoderResult.OVERFLOW;
@@ -130,7 +178,7 @@ class UnicodeEncoder extends Writer {
 			byte[] bbuf;
 			
 			if (encoding==null) {
-				bbuf = new byte[len];
+				bbuf = getByteBuffer(len);
 				for (int i = 0; i < len; i++) {
 					bbuf[i] = (byte) (cbuf[i + off] & 0xff);
 				}
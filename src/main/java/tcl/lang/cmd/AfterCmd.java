@@ -17,6 +17,7 @@
 package tcl.lang.cmd;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 
 import tcl.lang.AssocData;
 import tcl.lang.Command;
@@ -72,7 +73,6 @@ public class AfterCmd implements Command {
 			TclObject argv[]) // Argument list.
 			throws TclException // A standard Tcl exception.
 	{
-		int i;
 		Notifier notifier = (Notifier) interp.getNotifier();
 		Object info;
 
@@ -153,7 +153,7 @@ public class AfterCmd implements Command {
 			timerInfo.command = cmd;
 			timerInfo.id = assocData.lastAfterId;
 
-			assocData.handlers.add(timerInfo);
+			assocData.handlers.put(timerInfo.id, timerInfo);
 
 			interp.setResult("after#" + timerInfo.id);
 
@@ -183,12 +183,17 @@ public class AfterCmd implements Command {
 			arg.preserve();
 
 			/*
-			 * Search the timer/idle handler by id or by command.
+			 * Search the timer/idle handler by id or by command. An id is
+			 * looked up first, so that cancelling one of many pending
+			 * handlers by id doesn't compare every script; a script that is
+			 * itself a pending "after#N" id is never a useful command.
 			 */
 
-			info = null;
-			for (i = 0; i < assocData.handlers.size(); i++) {
-				Object obj = assocData.handlers.get(i);
+			info = getAfterEvent(interp, arg.toString());
+			for (Object obj : assocData.handlers.values()) {
+				if (info != null) {
+					break;
+				}
 				if (obj instanceof TimerInfo) {
 					TclObject cmd = ((TimerInfo) obj).command;
 
@@ -205,9 +210,6 @@ public class AfterCmd implements Command {
 					}
 				}
 			}
-			if (info == null) {
-				info = getAfterEvent(interp, arg.toString());
-			}
 			arg.release();
 
 			/*
@@ -225,15 +227,12 @@ public class AfterCmd implements Command {
 					ii.command.release();
 				}
 
-				int hindex = assocData.handlers.indexOf(info);
-				if (hindex == -1) {
+				int id = (info instanceof TimerInfo) ? ((TimerInfo) info).id
+						: ((IdleInfo) info).id;
+				if (assocData.handlers.remove(id) == null) {
 					throw new TclRuntimeError("info " + info
 							+ " has no handler");
 				}
-				if (assocData.handlers.remove(hindex) == null) {
-					throw new TclRuntimeError("cound not remove handler "
-							+ hindex);
-				}
 			}
 			break;
 
@@ -252,7 +251,7 @@ public class AfterCmd implements Command {
 			idleInfo.command = cmd;
 			idleInfo.id = assocData.lastAfterId;
 
-			assocData.handlers.add(idleInfo);
+			assocData.handlers.put(idleInfo.id, idleInfo);
 
 			interp.setResult("after#" + idleInfo.id);
 			break;
@@ -264,14 +263,7 @@ public class AfterCmd implements Command {
 				 */
 
 				TclObject list = TclList.newInstance();
-				for (i = 0; i < assocData.handlers.size(); i++) {
-					int id;
-					Object obj = assocData.handlers.get(i);
-					if (obj instanceof TimerInfo) {
-						id = ((TimerInfo) obj).id;
-					} else {
-						id = ((IdleInfo) obj).id;
-					}
+				for (Integer id : assocData.handlers.keySet()) {
 					TclList.append(interp, list, TclString.newInstance("after#"
 							+ id));
 				}
@@ -362,20 +354,7 @@ public class AfterCmd implements Command {
 		} catch (Exception e) {
 			return null;
 		}
-		for (int i = 0; i < assocData.handlers.size(); i++) {
-			Object obj = assocData.handlers.get(i);
-			if (obj instanceof TimerInfo) {
-				if (((TimerInfo) obj).id == id) {
-					return obj;
-				}
-			} else {
-				if (((IdleInfo) obj).id == id) {
-					return obj;
-				}
-			}
-		}
-
-		return null;
+		return assocData.handlers.get(id);
 	}
 
 	/**
@@ -387,9 +366,10 @@ public class AfterCmd implements Command {
 	class AfterAssocData implements AssocData {
 
 		/**
-		 * The set of handlers created but not yet fired.
+		 * The handlers created but not yet fired, by id, in the order they
+		 * were created.
 		 */
-		ArrayList handlers = new ArrayList();
+		LinkedHashMap<Integer, Object> handlers = new LinkedHashMap<Integer, Object>();
 
 		/**
 		 * Timer identifier of most recently created timer.
@@ -409,11 +389,10 @@ public class AfterCmd implements Command {
 		 */
 		public void disposeAssocData(Interp interp) 
 		{
-			for (int i = assocData.handlers.size() - 1; i >= 0; i--) {
-				Object info = assocData.handlers.get(i);
-				if (assocData.handlers.remove(i) == null) {
-					throw new TclRuntimeError("cound not remove handler " + i);
-				}
+			ArrayList<Object> infos = new ArrayList<Object>(assocData.handlers.values());
+			assocData.handlers.clear();
+			for (int i = infos.size() - 1; i >= 0; i--) {
+				Object info = infos.get(i);
 				if (info instanceof TimerInfo) {
 					TimerInfo ti = (TimerInfo) info;
 					ti.cancel();
@@ -469,15 +448,10 @@ public class AfterCmd implements Command {
 
 		public void processTimerEvent() {
 			try {
-				int index = assocData.handlers.indexOf(this);
-				if (index == -1) {
+				if (assocData.handlers.remove(id) == null) {
 					throw new TclRuntimeError("this " + this
 							+ " has no handler");
 				}
-				if (assocData.handlers.remove(index) == null) {
-					throw new TclRuntimeError("cound not remove handler "
-							+ index);
-				}
 				interp.eval(command, TCL.EVAL_GLOBAL);
 			} catch (TclException e) {
 				interp.addErrorInfo("\n    (\"after\" script)");
@@ -533,15 +507,10 @@ public class AfterCmd implements Command {
 		 */
 		public void processIdleEvent() {
 			try {
-				int index = assocData.handlers.indexOf(this);
-				if (index == -1) {
+				if (assocData.handlers.remove(id) == null) {
 					throw new TclRuntimeError("this " + this
 							+ " has no handler");
 				}
-				if (assocData.handlers.remove(index) == null) {
-					throw new TclRuntimeError("cound not remove handler "
-							+ index);
-				}
 				interp.eval(command, TCL.EVAL_GLOBAL);
 			} catch (TclException e) {
 				interp.addErrorInfo("\n    (\"after\" script)");
@@ -16,7 +16,7 @@
 
 package tcl.lang.cmd;
 
-import java.text.ParsePosition;
+import java.nio.ByteBuffer;
 
 import tcl.lang.Command;
 import tcl.lang.Interp;
@@ -41,21 +41,17 @@ public class BinaryCmd implements Command {
 	static final private int CMD_FORMAT = 0;
 	static final private int CMD_SCAN = 1;
 
-	// The following constants are used by GetFormatSpec to indicate various
+	// The following constants are used by BinaryTemplate to indicate various
 	// special conditions in the parsing of a format specifier.
 
 	/**
 	 * Use all elements in the argument.
 	 */
-	static final private int BINARY_ALL = -1;
+	static final private int BINARY_ALL = BinaryTemplate.BINARY_ALL;
 	/**
 	 * No count was specified in format.
 	 */
-	static final private int BINARY_NOCOUNT = -2;
-	/**
-	 * End of format was found.
-	 */
-	static final private char FORMAT_END = ' ';
+	static final private int BINARY_NOCOUNT = BinaryTemplate.BINARY_NOCOUNT;
 
 	/**
 	 * This procedure is invoked as part of the Command interface to process the
@@ -66,14 +62,14 @@ public class BinaryCmd implements Command {
 	 */
 	public void cmdProc(Interp interp, TclObject[] argv) throws TclException {
 		int arg; // Index of next argument to consume.
-		char[] format = null; // User specified format string.
+		BinaryTemplate template; // Compiled format string.
 		char cmd; // Current format character.
 		int cursor; // Current position within result buffer.
 		int maxPos; // Greatest position within result buffer that
 					// cursor has visited.
 		int value = 0; // Current integer value to be packed.
 						// Initialized to avoid compiler warning.
-		int offset, size = 0, length, index;
+		int offset, size = 0, length;
 
 		if (argv.length < 2) {
 			throw new TclNumArgsException(interp, 1, argv, "option ?arg arg ...?");
@@ -90,14 +86,16 @@ public class BinaryCmd implements Command {
 			// The first pass computes the size of the output buffer. The
 			// second pass places the formatted data into the buffer.
 
-			format = argv[2].toString().toCharArray();
+			template = BinaryTemplate.get(argv[2]);
+			final char[] cmds = template.cmds;
+			final int[] counts = template.counts;
 			arg = 3;
 			length = 0;
 			offset = 0;
-			ParsePosition parsePos = new ParsePosition(0);
 
-			while ((cmd = GetFormatSpec(format, parsePos)) != FORMAT_END) {
-				int count = GetFormatCount(format, parsePos);
+			for (int op = 0; op < cmds.length; op++) {
+				cmd = cmds[op];
+				int count = counts[op];
 
 				switch (cmd) {
 				case 'a':
@@ -146,29 +144,7 @@ public class BinaryCmd implements Command {
 					if (arg >= argv.length) {
 						missingArg(interp);
 					}
-					switch (cmd) {
-					case 'c':
-						size = 1;
-						break;
-					case 's':
-					case 'S':
-						size = 2;
-						break;
-					case 'i':
-					case 'I':
-						size = 4;
-						break;
-					case 'w':
-					case 'W':
-						size = 8;
-						break;
-					case 'f':
-						size = 4;
-						break;
-					case 'd':
-						size = 8;
-						break;
-					}
+					size = BinaryTemplate.sizeOf(cmd);
 
 					// For number-type specifiers, the count corresponds
 					// to the number of elements in the list stored in
@@ -242,6 +218,7 @@ public class BinaryCmd implements Command {
 
 			TclObject resultObj = TclByteArray.newInstance();
 			byte[] resultBytes = TclByteArray.setLength(interp, resultObj, length);
+			ByteBuffer buf = ByteBuffer.wrap(resultBytes, 0, length);
 			interp.setResult(resultObj);
 
 			// Pack the data into the result object. Note that we can skip
@@ -251,10 +228,10 @@ public class BinaryCmd implements Command {
 			arg = 3;
 			cursor = 0;
 			maxPos = cursor;
-			parsePos.setIndex(0);
 
-			while ((cmd = GetFormatSpec(format, parsePos)) != FORMAT_END) {
-				int count = GetFormatCount(format, parsePos);
+			for (int op = 0; op < cmds.length; op++) {
+				cmd = cmds[op];
+				int count = counts[op];
 
 				if ((count == 0) && (cmd != '@')) {
 					if (cmd != 'x') {
@@ -267,8 +244,9 @@ public class BinaryCmd implements Command {
 				case 'a':
 				case 'A': {
 					byte pad = (cmd == 'a') ? (byte) 0 : (byte) ' ';
-					byte[] bytes = TclByteArray.getBytes(interp, argv[arg++]);
-					length = bytes.length;
+					TclObject bytesObj = argv[arg++];
+					byte[] bytes = TclByteArray.getBytes(interp, bytesObj);
+					length = TclByteArray.getLength(interp, bytesObj);
 
 					if (count == BINARY_ALL) {
 						count = length;
@@ -411,9 +389,10 @@ public class BinaryCmd implements Command {
 							count = listv.length;
 						}
 					}
-					for (int ix = 0; ix < count; ix++) {
-						cursor = FormatNumber(interp, cmd, listv[ix], resultBytes, cursor);
-					}
+					buf.position(cursor);
+					buf.order(BinaryTemplate.orderOf(cmd));
+					FormatNumbers(interp, cmd, listv, count, buf);
+					cursor = buf.position();
 					break;
 				}
 				case 'x': {
@@ -459,15 +438,18 @@ public class BinaryCmd implements Command {
 				throw new TclNumArgsException(interp, 2, argv, "value formatString ?varName varName ...?");
 			}
 			byte[] src = TclByteArray.getBytes(interp, argv[2]);
-			length = src.length;
-			format = argv[3].toString().toCharArray();
+			length = TclByteArray.getLength(interp, argv[2]);
+			ByteBuffer buf = ByteBuffer.wrap(src, 0, length);
+			template = BinaryTemplate.get(argv[3]);
+			final char[] cmds = template.cmds;
+			final int[] counts = template.counts;
 			arg = 4;
 			cursor = 0;
 			offset = 0;
-			ParsePosition parsePos = new ParsePosition(0);
 
-			while ((cmd = GetFormatSpec(format, parsePos)) != FORMAT_END) {
-				int count = GetFormatCount(format, parsePos);
+			for (int op = 0; op < cmds.length; op++) {
+				cmd = cmds[op];
+				int count = counts[op];
 
 				switch (cmd) {
 				case 'a':
@@ -519,7 +501,7 @@ public class BinaryCmd implements Command {
 							break;
 						}
 					}
-					StringBuffer s = new StringBuffer(count);
+					char[] s = new char[count];
 					int thisOffset = offset;
 
 					if (cmd == 'b') {
@@ -529,7 +511,7 @@ public class BinaryCmd implements Command {
 							} else {
 								value = src[thisOffset++];
 							}
-							s.append((value & 1) != 0 ? '1' : '0');
+							s[ix] = (value & 1) != 0 ? '1' : '0';
 						}
 					} else {
 						for (int ix = 0; ix < count; ix++) {
@@ -538,11 +520,11 @@ public class BinaryCmd implements Command {
 							} else {
 								value = src[thisOffset++];
 							}
-							s.append((value & 0x80) != 0 ? '1' : '0');
+							s[ix] = (value & 0x80) != 0 ? '1' : '0';
 						}
 					}
 
-					interp.setVar(argv[arg++], TclString.newInstance(s.toString()), 0);
+					interp.setVar(argv[arg++], TclString.newInstance(new String(s)), 0);
 
 					offset += (count + 7) / 8;
 					break;
@@ -562,7 +544,7 @@ public class BinaryCmd implements Command {
 							break;
 						}
 					}
-					StringBuffer s = new StringBuffer(count);
+					char[] s = new char[count];
 					int thisOffset = offset;
 
 					if (cmd == 'h') {
@@ -572,7 +554,7 @@ public class BinaryCmd implements Command {
 							} else {
 								value = src[thisOffset++];
 							}
-							s.append(Character.forDigit(value & 0xf, 16));
+							s[ix] = Character.forDigit(value & 0xf, 16);
 						}
 					} else {
 						for (int ix = 0; ix < count; ix++) {
@@ -581,11 +563,11 @@ public class BinaryCmd implements Command {
 							} else {
 								value = src[thisOffset++];
 							}
-							s.append(Character.forDigit(value >> 4 & 0xf, 16));
+							s[ix] = Character.forDigit(value >> 4 & 0xf, 16);
 						}
 					}
 
-					interp.setVar(argv[arg++], TclString.newInstance(s.toString()), 0);
+					interp.setVar(argv[arg++], TclString.newInstance(new String(s)), 0);
 
 					offset += (count + 1) / 2;
 					break;
@@ -602,35 +584,14 @@ public class BinaryCmd implements Command {
 					if (arg >= argv.length) {
 						missingArg(interp);
 					}
-					switch (cmd) {
-					case 'c':
-						size = 1;
-						break;
-					case 's':
-					case 'S':
-						size = 2;
-						break;
-					case 'i':
-					case 'I':
-						size = 4;
-						break;
-					case 'f':
-						size = 4;
-						break;
-					case 'd':
-						size = 8;
-						break;
-					case 'w':
-					case 'W':
-						size = 8;
-						break;
-					}
+					size = BinaryTemplate.sizeOf(cmd);
+					buf.order(BinaryTemplate.orderOf(cmd));
 					TclObject valueObj;
 					if (count == BINARY_NOCOUNT) {
 						if (length - offset < size) {
 							break;
 						}
-						valueObj = ScanNumber(src, offset, cmd);
+						valueObj = ScanNumber(buf, offset, cmd);
 						offset += size;
 					} else {
 						if (count == BINARY_ALL) {
@@ -639,12 +600,8 @@ public class BinaryCmd implements Command {
 						if (length - offset < count * size) {
 							break;
 						}
-						valueObj = TclList.newInstance();
-						int thisOffset = offset;
-						for (int ix = 0; ix < count; ix++) {
-							TclList.append(null, valueObj, ScanNumber(src, thisOffset, cmd));
-							thisOffset += size;
-						}
+						buf.position(offset);
+						valueObj = ScanNumbers(buf, cmd, count);
 						offset += count * size;
 					}
 
@@ -699,179 +656,101 @@ public class BinaryCmd implements Command {
 	}
 
 	/**
-	 * This function parses the format strings used in the binary format and
-	 * scan commands.
-	 * 
-	 * Results: Moves the parsePos to the start of the next command. Returns the
-	 * current command character or FORMAT_END if the string did not have a
-	 * format specifier.
-	 * 
-	 * @param format
-	 *            Format string.
-	 * @param parsePos
-	 *            Current position in input.
-	 * @return
-	 */
-	private char GetFormatSpec(char[] format, ParsePosition parsePos) {
-		int ix = parsePos.getIndex();
-
-		// Skip any leading blanks.
-
-		while (ix < format.length && format[ix] == ' ') {
-			ix++;
-		}
-
-		// The string was empty, except for whitespace, so fail.
-
-		if (ix >= format.length) {
-			parsePos.setIndex(ix);
-			return FORMAT_END;
-		}
-
-		// Extract the command character.
-
-		parsePos.setIndex(ix + 1);
-
-		return format[ix++];
-	}
-
-	/**
-	 * This function parses the format strings used in the binary format and
-	 * scan commands.
+	 * Restrict a double value to the valid float range, as done by "binary
+	 * format f".
 	 * 
-	 * Results: Moves the formatPtr to the start of the next command. Returns
-	 * the current command count. The count is set to BINARY_ALL if the count
-	 * character was '*' or BINARY_NOCOUNT if no count was specified.
-	 * 
-	 * @param format
-	 *            Format string.
-	 * @param parsePos
-	 *            Current position in input.
-	 * @return
+	 * @param dvalue
+	 *            value to convert
+	 * @return the float value to be stored
 	 */
-	private int GetFormatCount(char[] format, ParsePosition parsePos) {
-		int ix = parsePos.getIndex();
-
-		// Extract any trailing digits or '*'.
-
-		if (ix < format.length && format[ix] == '*') {
-			parsePos.setIndex(ix + 1);
-			return BINARY_ALL;
-		} else if (ix < format.length && Character.isDigit(format[ix])) {
-			int length = 1;
-			while (ix + length < format.length && Character.isDigit(format[ix + length])) {
-				length++;
-			}
-			parsePos.setIndex(ix + length);
-			return Integer.parseInt(new String(format, ix, length));
+	private static float toFloat(double dvalue) {
+		if (dvalue == Double.POSITIVE_INFINITY) {
+			return Float.POSITIVE_INFINITY;
+		} else if (dvalue == Double.NEGATIVE_INFINITY) {
+			return Float.NEGATIVE_INFINITY;
+		} else if (Math.abs(dvalue) > (double) Float.MAX_VALUE) {
+			return (dvalue >= 0.0) ? Float.MAX_VALUE : -Float.MAX_VALUE;
+		} else if (Math.abs(dvalue) < (double) Float.MIN_VALUE) {
+			return (dvalue >= 0.0) ? 0.0f : -0.0f;
 		} else {
-			return BINARY_NOCOUNT;
+			return (float) dvalue;
 		}
 	}
 
 	/**
-	 * This method is called by the binary cmdProc to format a number into a
-	 * location pointed at by cursor.
+	 * This method is called by the binary cmdProc to format count numbers
+	 * into a buffer at its current position. The buffer's byte order must
+	 * already be set for the type. Values are converted into a primitive
+	 * array first and stored with a single bulk put.
 	 * 
 	 * @param interp
 	 * @param type
 	 *            Type of number to format.
-	 * @param src
-	 *            Number to format.
-	 * @param resultBytes
-	 * @param cursor
-	 * @return
+	 * @param listv
+	 *            Numbers to format.
+	 * @param count
+	 *            Number of elements of listv to format.
+	 * @param buf
+	 *            Buffer to store numbers in, positioned after the stored
+	 *            numbers on return.
 	 * @throws TclException
 	 */
-	static int FormatNumber(Interp interp, char type, TclObject src, byte[] resultBytes, int cursor)
+	static void FormatNumbers(Interp interp, char type, TclObject[] listv, int count, ByteBuffer buf)
 			throws TclException {
-		if (type == 'd') {
-			double dvalue = TclDouble.get(interp, src);
-			// System.out.println("double value is \"" + dvalue + "\"");
-			long lvalue = Double.doubleToLongBits(dvalue);
-			// System.out.println("long hex value is \"" +
-			// Long.toHexString(lvalue) + "\"");
-			for (int ix = 7; ix >= 0; ix--) {
-				resultBytes[cursor++] = (byte) (lvalue >> ix * 8);
-				// byte b = resultBytes[cursor - 1];
-				// System.out.println("index " + ix + " is " +
-				// Integer.toHexString(b & 0xff));
+		int pos = buf.position();
+
+		switch (type) {
+		case 'c': {
+			for (int ix = 0; ix < count; ix++) {
+				buf.put((byte) TclInteger.getLong(interp, listv[ix]));
 			}
-		} else if (type == 'f') {
-			float fvalue;
-			double dvalue = TclDouble.get(interp, src);
-			// System.out.println("double value is \"" + dvalue + "\"");
-			// Restrict the double value to the valid float range
-			if (dvalue == Double.POSITIVE_INFINITY) {
-				fvalue = Float.POSITIVE_INFINITY;
-			} else if (dvalue == Double.NEGATIVE_INFINITY) {
-				fvalue = Float.NEGATIVE_INFINITY;
-			} else if (Math.abs(dvalue) > (double) Float.MAX_VALUE) {
-				fvalue = (dvalue >= 0.0) ? Float.MAX_VALUE : -Float.MAX_VALUE;
-			} else if (Math.abs(dvalue) < (double) Float.MIN_VALUE) {
-				fvalue = (dvalue >= 0.0) ? 0.0f : -0.0f;
-			} else {
-				fvalue = (float) dvalue;
+			return;
+		}
+		case 's':
+		case 'S': {
+			short[] values = new short[count];
+			for (int ix = 0; ix < count; ix++) {
+				values[ix] = (short) TclInteger.getLong(interp, listv[ix]);
 			}
-			// System.out.println("float value is \"" + fvalue + "\"");
-			int ivalue = Float.floatToIntBits(fvalue);
-			// System.out.println("int hex value is \"" +
-			// Integer.toHexString(ivalue) + "\"");
-			for (int ix = 3; ix >= 0; ix--) {
-				resultBytes[cursor++] = (byte) (ivalue >> ix * 8);
-				// byte b = resultBytes[cursor - 1];
-				// System.out.println("index " + ix + " is " +
-				// Integer.toHexString(b & 0xff));
+			buf.asShortBuffer().put(values);
+			break;
+		}
+		case 'i':
+		case 'I': {
+			int[] values = new int[count];
+			for (int ix = 0; ix < count; ix++) {
+				values[ix] = (int) TclInteger.getLong(interp, listv[ix]);
 			}
-		} else {
-			long value = TclInteger.getLong(interp, src);
-			switch (type) {
-			case 'c':
-				resultBytes[cursor++] = (byte) value;
-				break;
-			case 's':
-				resultBytes[cursor++] = (byte) value;
-				resultBytes[cursor++] = (byte) (value >> 8);
-				break;
-			case 'S':
-				resultBytes[cursor++] = (byte) (value >> 8);
-				resultBytes[cursor++] = (byte) value;
-				break;
-			case 'i':
-				resultBytes[cursor++] = (byte) value;
-				resultBytes[cursor++] = (byte) (value >> 8);
-				resultBytes[cursor++] = (byte) (value >> 16);
-				resultBytes[cursor++] = (byte) (value >> 24);
-				break;
-			case 'I':
-				resultBytes[cursor++] = (byte) (value >> 24);
-				resultBytes[cursor++] = (byte) (value >> 16);
-				resultBytes[cursor++] = (byte) (value >> 8);
-				resultBytes[cursor++] = (byte) value;
-				break;
-			case 'w':
-				resultBytes[cursor++] = (byte) value;
-				resultBytes[cursor++] = (byte) (value >> 8);
-				resultBytes[cursor++] = (byte) (value >> 16);
-				resultBytes[cursor++] = (byte) (value >> 24);
-				resultBytes[cursor++] = (byte) (value >> 32);
-				resultBytes[cursor++] = (byte) (value >> 40);
-				resultBytes[cursor++] = (byte) (value >> 48);
-				resultBytes[cursor++] = (byte) (value >> 56);
-				break;
-			case 'W':
-				resultBytes[cursor++] = (byte) (value >> 56);
-				resultBytes[cursor++] = (byte) (value >> 48);
-				resultBytes[cursor++] = (byte) (value >> 40);
-				resultBytes[cursor++] = (byte) (value >> 32);
-				resultBytes[cursor++] = (byte) (value >> 24);
-				resultBytes[cursor++] = (byte) (value >> 16);
-				resultBytes[cursor++] = (byte) (value >> 8);
-				resultBytes[cursor++] = (byte) value;
-				break;
+			buf.asIntBuffer().put(values);
+			break;
+		}
+		case 'w':
+		case 'W': {
+			long[] values = new long[count];
+			for (int ix = 0; ix < count; ix++) {
+				values[ix] = TclInteger.getLong(interp, listv[ix]);
 			}
+			buf.asLongBuffer().put(values);
+			break;
 		}
-		return cursor;
+		case 'f': {
+			int[] values = new int[count];
+			for (int ix = 0; ix < count; ix++) {
+				values[ix] = Float.floatToIntBits(toFloat(TclDouble.get(interp, listv[ix])));
+			}
+			buf.asIntBuffer().put(values);
+			break;
+		}
+		case 'd': {
+			long[] values = new long[count];
+			for (int ix = 0; ix < count; ix++) {
+				values[ix] = Double.doubleToLongBits(TclDouble.get(interp, listv[ix]));
+			}
+			buf.asLongBuffer().put(values);
+			break;
+		}
+		}
+		buf.position(pos + count * BinaryTemplate.sizeOf(type));
 	}
 
 	/**
@@ -881,65 +760,102 @@ public class BinaryCmd implements Command {
 	 * Results: Returns a newly created object containing the scanned number.
 	 * This object has a ref count of zero.
 	 * 
-	 * @param src
-	 *            Buffer to scan number.
+	 * @param buf
+	 *            Buffer to scan number, with the byte order set for type.
 	 * @param pos
 	 *            Position in buffer.
 	 * @param type
 	 *            Format character from "binary scan"
 	 * @return
 	 */
-	private static TclObject ScanNumber(byte[] src, int pos, int type) {
+	private static TclObject ScanNumber(ByteBuffer buf, int pos, int type) {
 		switch (type) {
-		case 'c': {
-			return TclInteger.newInstance((int) src[pos]);
+		case 'c':
+			return TclInteger.newInstance((int) buf.get(pos));
+		case 's':
+		case 'S':
+			return TclInteger.newInstance((int) buf.getShort(pos));
+		case 'i':
+		case 'I':
+			return TclInteger.newInstance(buf.getInt(pos));
+		case 'w':
+		case 'W':
+			return TclInteger.newInstance(buf.getLong(pos));
+		case 'f':
+			return TclDouble.newInstance(buf.getFloat(pos));
+		case 'd':
+			return TclDouble.newInstance(buf.getDouble(pos));
 		}
-		case 's': {
-			short value = (short) ((src[pos] & 0xff) + ((src[pos + 1] & 0xff) << 8));
-			return TclInteger.newInstance((int) value);
+		return null;
+	}
+
+	/**
+	 * Scan count numbers out of a buffer at its current position with a
+	 * single bulk get, and return them as a list.
+	 * 
+	 * @param buf
+	 *            Buffer to scan numbers, with the byte order set for type.
+	 * @param type
+	 *            Format character from "binary scan"
+	 * @param count
+	 *            Number of values to scan.
+	 * @return a new list object holding the scanned numbers
+	 */
+	private static TclObject ScanNumbers(ByteBuffer buf, int type, int count) {
+		TclObject[] elems = new TclObject[count];
+
+		switch (type) {
+		case 'c': {
+			for (int ix = 0; ix < count; ix++) {
+				elems[ix] = TclInteger.newInstance((int) buf.get());
+			}
+			break;
 		}
+		case 's':
 		case 'S': {
-			short value = (short) ((src[pos + 1] & 0xff) + ((src[pos] & 0xff) << 8));
-			return TclInteger.newInstance((int) value);
-		}
-		case 'i': {
-			int value = (src[pos] & 0xff) + ((src[pos + 1] & 0xff) << 8) + ((src[pos + 2] & 0xff) << 16)
-					+ ((src[pos + 3] & 0xff) << 24);
-			return TclInteger.newInstance(value);
+			short[] values = new short[count];
+			buf.asShortBuffer().get(values);
+			for (int ix = 0; ix < count; ix++) {
+				elems[ix] = TclInteger.newInstance((int) values[ix]);
+			}
+			break;
 		}
+		case 'i':
 		case 'I': {
-			int value = (src[pos + 3] & 0xff) + ((src[pos + 2] & 0xff) << 8) + ((src[pos + 1] & 0xff) << 16)
-					+ ((src[pos] & 0xff) << 24);
-			return TclInteger.newInstance(value);
-		}
-		case 'w': {
-			long value = (src[pos] & 0xffL) + ((src[pos + 1] & 0xffL) << 8) + ((src[pos + 2] & 0xffL) << 16)
-					+ ((src[pos + 3] & 0xffL) << 24) 
-					+  ((src[pos+4] & 0xffL) << 32) + ((src[pos + 5] & 0xffL) << 40) + ((src[pos + 6] & 0xffL) << 48)
-					+ ((src[pos + 7] & 0xffL) << 56);
-			return TclInteger.newInstance(value);
+			int[] values = new int[count];
+			buf.asIntBuffer().get(values);
+			for (int ix = 0; ix < count; ix++) {
+				elems[ix] = TclInteger.newInstance(values[ix]);
+			}
+			break;
 		}
+		case 'w':
 		case 'W': {
-			long value = (src[pos + 7] & 0xffL) + ((src[pos + 6] & 0xffL) << 8) + ((src[pos + 5] & 0xffL) << 16)
-			+ ((src[pos + 4] & 0xffL) << 24)
-			+  ((src[pos + 3] & 0xffL) << 32) + ((src[pos + 2] & 0xffL) << 40) + ((src[pos + 1] & 0xffL) << 48)
-			+ ((src[pos] & 0xffL) << 56);
-			return TclInteger.newInstance(value);
+			long[] values = new long[count];
+			buf.asLongBuffer().get(values);
+			for (int ix = 0; ix < count; ix++) {
+				elems[ix] = TclInteger.newInstance(values[ix]);
+			}
+			break;
 		}
 		case 'f': {
-			int value = (src[pos + 3] & 0xff) + ((src[pos + 2] & 0xff) << 8) + ((src[pos + 1] & 0xff) << 16)
-					+ ((src[pos] & 0xff) << 24);
-			return TclDouble.newInstance(Float.intBitsToFloat(value));
+			float[] values = new float[count];
+			buf.asFloatBuffer().get(values);
+			for (int ix = 0; ix < count; ix++) {
+				elems[ix] = TclDouble.newInstance(values[ix]);
+			}
+			break;
 		}
 		case 'd': {
-			long value = (((long) src[pos + 7]) & 0xff) + (((long) (src[pos + 6] & 0xff)) << 8)
-					+ (((long) (src[pos + 5] & 0xff)) << 16) + (((long) (src[pos + 4] & 0xff)) << 24)
-					+ (((long) (src[pos + 3] & 0xff)) << 32) + (((long) (src[pos + 2] & 0xff)) << 40)
-					+ (((long) (src[pos + 1] & 0xff)) << 48) + (((long) (src[pos] & 0xff)) << 56);
-			return TclDouble.newInstance(Double.longBitsToDouble(value));
+			double[] values = new double[count];
+			buf.asDoubleBuffer().get(values);
+			for (int ix = 0; ix < count; ix++) {
+				elems[ix] = TclDouble.newInstance(values[ix]);
+			}
+			break;
 		}
 		}
-		return null;
+		return TclList.newInstance(elems, 0, count);
 	}
 
 	/**
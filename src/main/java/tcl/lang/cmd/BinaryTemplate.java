@@ -0,0 +1,219 @@
+/*
+ * BinaryTemplate.java --
+ *
+ *	Compiled form of a "binary format" / "binary scan" format string.
+ *
+ * Copyright (c) 1999 Christian Krone.
+ * Copyright (c) 1997 by Sun Microsystems, Inc.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package tcl.lang.cmd;
+
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentHashMap;
+
+import tcl.lang.InternalRep;
+import tcl.lang.TclObject;
+
+/**
+ * A format string for the "binary" command, parsed once into a list of
+ * (field specifier, count) operations. The template is stored as the internal
+ * rep of the format string object, and is also kept in a small shared cache
+ * keyed by the format string, so that literal format strings that are
+ * re-parsed on each evaluation still avoid recompilation.
+ * <p>
+ * Templates are immutable and may be shared between objects, interps and
+ * threads.
+ */
+
+final class BinaryTemplate implements InternalRep {
+
+	/**
+	 * Use all elements in the argument.
+	 */
+	static final int BINARY_ALL = -1;
+
+	/**
+	 * No count was specified in format.
+	 */
+	static final int BINARY_NOCOUNT = -2;
+
+	/**
+	 * Upper bound on the number of templates held by the shared cache.
+	 */
+	private static final int CACHE_LIMIT = 256;
+
+	/**
+	 * Shared cache of compiled templates, keyed by format string.
+	 */
+	private static final ConcurrentHashMap<String, BinaryTemplate> cache = new ConcurrentHashMap<String, BinaryTemplate>();
+
+	/**
+	 * The format string this template was compiled from.
+	 */
+	private final String format;
+
+	/**
+	 * Field specifier character of each operation. Invalid specifiers are
+	 * kept as-is, so the error is raised at the point the original field is
+	 * reached.
+	 */
+	final char[] cmds;
+
+	/**
+	 * Count of each operation, BINARY_ALL or BINARY_NOCOUNT.
+	 */
+	final int[] counts;
+
+	private BinaryTemplate(String format, char[] cmds, int[] counts) {
+		this.format = format;
+		this.cmds = cmds;
+		this.counts = counts;
+	}
+
+	/**
+	 * Templates are immutable, so the duplicate can share this instance.
+	 */
+	public InternalRep duplicate() {
+		return this;
+	}
+
+	/**
+	 * Implement this no-op for the InternalRep interface.
+	 */
+	public void dispose() {
+	}
+
+	/**
+	 * @return the format string this template was compiled from
+	 */
+	public String toString() {
+		return format;
+	}
+
+	/**
+	 * Returns the compiled template for a format string object, compiling it
+	 * and caching the result as the object's internal rep if needed.
+	 *
+	 * @param tobj
+	 *            format string object
+	 * @return the compiled template
+	 */
+	static BinaryTemplate get(TclObject tobj) {
+		InternalRep rep = tobj.getInternalRep();
+		if (rep instanceof BinaryTemplate) {
+			return (BinaryTemplate) rep;
+		}
+		String format = tobj.toString();
+		BinaryTemplate template = cache.get(format);
+		if (template == null) {
+			template = compile(format);
+			if (cache.size() >= CACHE_LIMIT) {
+				cache.clear();
+			}
+			cache.put(format, template);
+		}
+		tobj.setInternalRep(template);
+		return template;
+	}
+
+	/**
+	 * Parse a format string into a template.
+	 *
+	 * @param format
+	 *            format string
+	 * @return the compiled template
+	 */
+	private static BinaryTemplate compile(String format) {
+		final int len = format.length();
+		char[] cmds = new char[len];
+		int[] counts = new int[len];
+		int n = 0;
+		int ix = 0;
+
+		while (true) {
+			// Skip any leading blanks.
+
+			while (ix < len && format.charAt(ix) == ' ') {
+				ix++;
+			}
+			if (ix >= len) {
+				break;
+			}
+
+			// Extract the command character and any trailing digits or '*'.
+
+			char cmd = format.charAt(ix++);
+			int count;
+			if (ix < len && format.charAt(ix) == '*') {
+				ix++;
+				count = BINARY_ALL;
+			} else if (ix < len && Character.isDigit(format.charAt(ix))) {
+				int start = ix;
+				while (ix < len && Character.isDigit(format.charAt(ix))) {
+					ix++;
+				}
+				count = Integer.parseInt(format.substring(start, ix));
+			} else {
+				count = BINARY_NOCOUNT;
+			}
+			cmds[n] = cmd;
+			counts[n] = count;
+			n++;
+		}
+
+		char[] c = new char[n];
+		int[] k = new int[n];
+		System.arraycopy(cmds, 0, c, 0, n);
+		System.arraycopy(counts, 0, k, 0, n);
+		return new BinaryTemplate(format, c, k);
+	}
+
+	/**
+	 * @param cmd
+	 *            numeric field specifier
+	 * @return the number of bytes used by one value of the field, or 0 if cmd
+	 *         is not a numeric field
+	 */
+	static int sizeOf(char cmd) {
+		switch (cmd) {
+		case 'c':
+			return 1;
+		case 's':
+		case 'S':
+			return 2;
+		case 'i':
+		case 'I':
+		case 'f':
+			return 4;
+		case 'w':
+		case 'W':
+		case 'd':
+			return 8;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * @param cmd
+	 *            numeric field specifier
+	 * @return the byte order used to encode the field; lower case integer
+	 *         fields are little-endian, everything else is big-endian
+	 */
+	static ByteOrder orderOf(char cmd) {
+		switch (cmd) {
+		case 's':
+		case 'i':
+		case 'w':
+			return ByteOrder.LITTLE_ENDIAN;
+		default:
+			return ByteOrder.BIG_ENDIAN;
+		}
+	}
+}
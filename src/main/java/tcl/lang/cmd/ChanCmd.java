@@ -0,0 +1,91 @@
+/*
+ * ChanCmd.java --
+ *
+ *	Implements the "chan" command.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ *
+ */
+
+package tcl.lang.cmd;
+
+import tcl.lang.Command;
+import tcl.lang.Interp;
+import tcl.lang.TclException;
+import tcl.lang.TclIO;
+import tcl.lang.TclIndex;
+import tcl.lang.TclList;
+import tcl.lang.TclNumArgsException;
+import tcl.lang.TclObject;
+import tcl.lang.TclRuntimeError;
+import tcl.lang.TclString;
+import tcl.lang.channel.PipeChannel;
+
+/**
+ * This class implements the "chan" command, with the subcommands that have
+ * no equivalent among the Tcl 8.4 channel commands:
+ *
+ * <pre>
+ * chan pipe
+ * chan detach channelId
+ * chan attach channelId
+ * </pre>
+ *
+ * 'chan pipe' creates an in-process pipe (see PipeChannel), and returns a
+ * list of its read end and its write end. 'chan detach' removes a channel
+ * from the interpreter without closing it, and 'chan attach' adds a detached
+ * channel to an interpreter, which may run in another thread, so that a pipe
+ * can stream data between the interpreters of a fleet.
+ */
+public class ChanCmd implements Command {
+
+	static final private String validCmds[] = { "attach", "detach", "pipe" };
+
+	static final private int OPT_ATTACH = 0;
+	static final private int OPT_DETACH = 1;
+	static final private int OPT_PIPE = 2;
+
+	public void cmdProc(Interp interp, TclObject argv[]) throws TclException {
+		if (argv.length < 2) {
+			throw new TclNumArgsException(interp, 1, argv, "subcommand ?argument ...?");
+		}
+
+		int index = TclIndex.get(interp, argv[1], validCmds, "subcommand", 0);
+
+		switch (index) {
+		case OPT_ATTACH: {
+			if (argv.length != 3) {
+				throw new TclNumArgsException(interp, 2, argv, "channelId");
+			}
+			TclIO.attachChannel(interp, argv[2].toString());
+			interp.resetResult();
+			break;
+		}
+		case OPT_DETACH: {
+			if (argv.length != 3) {
+				throw new TclNumArgsException(interp, 2, argv, "channelId");
+			}
+			TclIO.detachChannel(interp, argv[2].toString());
+			interp.resetResult();
+			break;
+		}
+		case OPT_PIPE: {
+			if (argv.length != 2) {
+				throw new TclNumArgsException(interp, 2, argv, null);
+			}
+			PipeChannel[] pipe = PipeChannel.createPipe();
+			TclObject result = TclList.newInstance();
+			for (PipeChannel end : pipe) {
+				TclIO.registerChannel(interp, end);
+				TclList.append(interp, result, TclString.newInstance(end.getChanName()));
+			}
+			interp.setResult(result);
+			break;
+		}
+		default:
+			throw new TclRuntimeError("ChanCmd.cmdProc() error: incorrect index returned from TclIndex.get()");
+		}
+	}
+}
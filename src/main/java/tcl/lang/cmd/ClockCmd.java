@@ -27,8 +27,10 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 import tcl.lang.Command;
 import tcl.lang.Interp;
@@ -39,6 +41,7 @@ import tcl.lang.TclIndex;
 import tcl.lang.TclInteger;
 import tcl.lang.TclNumArgsException;
 import tcl.lang.TclObject;
+import tcl.lang.Var;
 
 /**
  * This class implements the built-in "clock" command in Tcl.
@@ -53,9 +56,10 @@ public class ClockCmd implements Command {
 	static final private int CMD_SCAN = 2;
 	static final private int CMD_SECONDS = 3;
 
-	static final private String clicksOpts[] = { "-milliseconds" };
+	static final private String clicksOpts[] = { "-milliseconds", "-microseconds" };
 
 	static final private int OPT_CLICKS_MILLISECONDS = 0;
+	static final private int OPT_CLICKS_MICROSECONDS = 1;
 
 	static final private String[] formatOpts = { "-format", "-gmt" };
 
@@ -70,6 +74,39 @@ public class ClockCmd implements Command {
 	static final int EPOCH_YEAR = 1970;
 	static final int MILLIS_PER_HOUR = 60 * 60 * 1000;
 
+	/**
+	 * Wall clock time in microseconds and the System.nanoTime() value at which
+	 * it was sampled. "clock clicks -microseconds" adds the elapsed nanoTime
+	 * to this base, since System.currentTimeMillis() has only millisecond
+	 * resolution.
+	 */
+	static final private long MICROS_BASE = System.currentTimeMillis() * 1000L;
+	static final private long NANOS_BASE = System.nanoTime();
+
+	/**
+	 * Cache of time zones by ID. TimeZone.getTimeZone() is synchronized and
+	 * returns a fresh clone on every call; the zones kept here are never
+	 * modified, so they may be shared by all calendars. Only zones looked up
+	 * by their own ID are kept, so the cache can't grow beyond the zones
+	 * that TimeZone knows, whatever strings scripts pass as -timezone.
+	 */
+	static final private ConcurrentHashMap<String, TimeZone> zoneCache = new ConcurrentHashMap<String, TimeZone>();
+
+	/**
+	 * Cache of the zones found by GetTimeZoneFromRawOffset, by offset in
+	 * hours.
+	 */
+	static final private ConcurrentHashMap<Integer, TimeZone> offsetZoneCache = new ConcurrentHashMap<Integer, TimeZone>();
+
+	/**
+	 * Per-thread state used to format clock values, see FormatState.
+	 */
+	static final private ThreadLocal<FormatState> formatState = new ThreadLocal<FormatState>() {
+		protected FormatState initialValue() {
+			return new FormatState();
+		}
+	};
+
 	/**
 	 *----------------------------------------------------------------------
 	 * 
@@ -107,18 +144,22 @@ public class ClockCmd implements Command {
 		switch (cmd) {
 		case CMD_CLICKS: {
 			if (objv.length > 3) {
-				throw new TclNumArgsException(interp, 2, objv, "?-milliseconds?");
+				throw new TclNumArgsException(interp, 2, objv, "?switch?");
 			}
+			int clicksOpt = OPT_CLICKS_MILLISECONDS;
 			if (objv.length == 3) {
-				// We can safely ignore the -milliseconds options, since
-				// we measure the clicks in milliseconds anyway...
-				TclIndex.get(interp, objv[2], clicksOpts, "switch", 0);
 				if (objv[2].toString().equals("-")) {
 					/* Special case - can't abbreviate this much */
-					throw new TclException(interp, "bad switch \"-\": must be -milliseconds");
+					throw new TclException(interp, "bad switch \"-\": must be -milliseconds or -microseconds");
 				}
+				clicksOpt = TclIndex.get(interp, objv[2], clicksOpts, "switch", 0);
+			}
+			if (clicksOpt == OPT_CLICKS_MICROSECONDS) {
+				interp.setResult(MICROS_BASE + (System.nanoTime() - NANOS_BASE) / 1000L);
+			} else {
+				// We measure plain clicks in milliseconds as well.
+				interp.setResult(System.currentTimeMillis());
 			}
-			interp.setResult(System.currentTimeMillis());
 			break;
 		}
 
@@ -222,28 +263,41 @@ public class ClockCmd implements Command {
 	 * @throws TclException
 	 */
 	private void FormatClock(Interp interp, int clockVal, boolean useGMT, String format) throws TclException {
-		Date date = new Date((long) clockVal * 1000);
-		GregorianCalendar calendar = new GregorianCalendar();
-		SimpleDateFormat fmt, locFmt;
-		FieldPosition fp = new FieldPosition(0);
-		StringBuffer result = new StringBuffer();
+		TimeZone zone = null;
 
 		if (format == null) {
-			format = new String("%a %b %d %H:%M:%S %Z %Y");
+			format = "%a %b %d %H:%M:%S %Z %Y";
 		}
 
+		// Resolve the zone before touching the per-thread state, since a
+		// trace on env(TZ) could itself run "clock format".
+
 		if (useGMT) {
-			calendar.setTimeZone(TimeZone.getTimeZone("GMT"));
+			zone = getTimeZone("GMT");
 		} else {
-			try {
-				TclObject tz = interp.getVar("env", "TZ", TCL.GLOBAL_ONLY);
-				calendar.setTimeZone(TimeZone.getTimeZone(tz.toString()));
-			} catch (TclException e) {
+			// Without TCL.LEAVE_ERR_MSG a missing env(TZ) yields null instead
+			// of an exception, which is costly on every call.
+
+			TclObject tz = Var.getVar(interp, "env", "TZ", TCL.GLOBAL_ONLY);
+			if (tz != null) {
+				zone = getTimeZone(tz.toString());
 			}
 		}
+		if (zone == null) {
+			zone = TimeZone.getDefault();
+		}
+
+		FormatState state = formatState.get();
+		Date date = state.date;
+		GregorianCalendar calendar = state.calendar;
+		SimpleDateFormat locFmt;
+		FieldPosition fp = state.fp;
+		StringBuffer result = state.result;
+
+		date.setTime((long) clockVal * 1000);
+		calendar.setTimeZone(zone);
 		calendar.setTime(date);
-		fmt = new SimpleDateFormat("mm.dd.yy", Locale.US);
-		fmt.setCalendar(calendar);
+		result.setLength(0);
 
 		if (format.equals("%Q")) { // Enterprise Stardate.
 			int trekYear = calendar.get(Calendar.YEAR) + 377 - 2323;
@@ -262,26 +316,21 @@ public class ClockCmd implements Command {
 					result.append('%');
 					break;
 				case 'a': // Abbreviated weekday name (Mon, Tue, etc.).
-					fmt.applyPattern("EEE");
-					fmt.format(date, result, fp);
+					result.append(Symbols.shortWeekdays[calendar.get(Calendar.DAY_OF_WEEK)]);
 					break;
 				case 'A': // Full weekday name (Monday, Tuesday, etc.).
-					fmt.applyPattern("EEEE");
-					fmt.format(date, result, fp);
+					result.append(Symbols.weekdays[calendar.get(Calendar.DAY_OF_WEEK)]);
 					break;
 				case 'b':
 					/* falls through */
 				case 'h': // Abbreviated month name (Jan,Feb,etc.).
-					fmt.applyPattern("MMM");
-					fmt.format(date, result, fp);
+					result.append(Symbols.shortMonths[calendar.get(Calendar.MONTH)]);
 					break;
 				case 'B': // Full month name.
-					fmt.applyPattern("MMMM");
-					fmt.format(date, result, fp);
+					result.append(Symbols.months[calendar.get(Calendar.MONTH)]);
 					break;
 				case 'c': // Locale specific date and time.
-					locFmt = (SimpleDateFormat) DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
-					locFmt.setCalendar(calendar);
+					locFmt = state.getDateTimeFormat();
 					locFmt.format(date, result, fp);
 					break;
 				case 'C': // Century (00 - 99).
@@ -289,17 +338,13 @@ public class ClockCmd implements Command {
 					result.append((century < 10 ? "0" : "") + century);
 					break;
 				case 'd': // Day of month (01 - 31).
-					fmt.applyPattern("dd");
-					fmt.format(date, result, fp);
+					appendNumber(result, calendar.get(Calendar.DAY_OF_MONTH), 2, '0');
 					break;
 				case 'D': // Date as %m/%d/%y.
-					fmt.applyPattern("MM/dd/yy");
-					fmt.format(date, result, fp);
+					state.getFormat("MM/dd/yy").format(date, result, fp);
 					break;
 				case 'e': // Day of month (1 - 31), no leading zeros.
-					fmt.applyPattern("d");
-					String day = fmt.format(date);
-					result.append((day.length() < 2 ? " " : "") + day);
+					appendNumber(result, calendar.get(Calendar.DAY_OF_MONTH), 2, ' ');
 					break;
 				case 'g': // The ISO8601 year number corresponding to the
 					// ISO8601 week (%V),
@@ -324,69 +369,53 @@ public class ClockCmd implements Command {
 
 					break;
 				case 'H': // Hour in 24-hour format (00 - 23).
-					fmt.applyPattern("HH");
-					fmt.format(date, result, fp);
+					appendNumber(result, calendar.get(Calendar.HOUR_OF_DAY), 2, '0');
 					break;
 				case 'I': // Hour in 12-hour format (01 - 12).
-					fmt.applyPattern("hh");
-					fmt.format(date, result, fp);
+					appendNumber(result, hour12(calendar), 2, '0');
 					break;
 				case 'j': // Day of year (001 - 366).
-					fmt.applyPattern("DDD");
-					fmt.format(date, result, fp);
+					appendNumber(result, calendar.get(Calendar.DAY_OF_YEAR), 3, '0');
 					break;
 				case 'k': // Hour in 24-hour format (0 - 23), no leading zeros.
-					fmt.applyPattern("H");
-					String h24 = fmt.format(date);
-					result.append((h24.length() < 2 ? " " : "") + h24);
+					appendNumber(result, calendar.get(Calendar.HOUR_OF_DAY), 2, ' ');
 					break;
 				case 'l': // Hour in 12-hour format (1 - 12), no leading zeros.
-					fmt.applyPattern("h");
-					String h12 = fmt.format(date);
-					result.append((h12.length() < 2 ? " " : "") + h12);
+					appendNumber(result, hour12(calendar), 2, ' ');
 					break;
 				case 'm': // Month number (01 - 12).
-					fmt.applyPattern("MM");
-					fmt.format(date, result, fp);
+					appendNumber(result, calendar.get(Calendar.MONTH) + 1, 2, '0');
 					break;
 				case 'M': // Minute (00 - 59).
-					fmt.applyPattern("mm");
-					fmt.format(date, result, fp);
+					appendNumber(result, calendar.get(Calendar.MINUTE), 2, '0');
 					break;
 				case 'n': // Insert a newline.
 					result.append('\n');
 					break;
 				case 'p': // AM/PM indicator.
-					fmt.applyPattern("aa");
-					fmt.format(date, result, fp);
+					result.append(Symbols.amPm[calendar.get(Calendar.AM_PM)]);
 					break;
 				case 'r': // Time as %I:%M:%S %p.
-					fmt.applyPattern("KK:mm:ss aaaa");
-					fmt.format(date, result, fp);
+					state.getFormat("KK:mm:ss aaaa").format(date, result, fp);
 					break;
 				case 'R': // Time as %H:%M.
-					fmt.applyPattern("hh:mm");
-					fmt.format(date, result, fp);
+					state.getFormat("hh:mm").format(date, result, fp);
 					break;
 				case 's': // seconds since epoch.
-					long millis = calendar.getTime().getTime();
+					long millis = date.getTime();
 					if (useGMT) {
-						Calendar localCalendar = Calendar.getInstance();
-						localCalendar.setTime(calendar.getTime());
-						millis -= localCalendar.get(Calendar.ZONE_OFFSET) + localCalendar.get(Calendar.DST_OFFSET);
+						millis -= TimeZone.getDefault().getOffset(millis);
 					}
 					result.append((int) (millis / 1000));
 					break;
 				case 'S': // Seconds (00 - 59).
-					fmt.applyPattern("ss");
-					fmt.format(date, result, fp);
+					appendNumber(result, calendar.get(Calendar.SECOND), 2, '0');
 					break;
 				case 't': // Insert a tab.
 					result.append('\t');
 					break;
 				case 'T': // Time as %H:%M:%S.
-					fmt.applyPattern("hh:mm:ss");
-					fmt.format(date, result, fp);
+					state.getFormat("hh:mm:ss").format(date, result, fp);
 					break;
 				case 'u': // Weekday number (1 - 7) Sunday = 7.
 					int dayOfWeek17 = calendar.get(Calendar.DAY_OF_WEEK);
@@ -413,26 +442,21 @@ public class ClockCmd implements Command {
 					result.append((weekM < 10 ? "0" : "") + weekM);
 					break;
 				case 'x': // Locale specific date format.
-					locFmt = (SimpleDateFormat) DateFormat.getDateInstance(DateFormat.SHORT);
-					locFmt.setCalendar(calendar);
+					locFmt = state.getDateFormat();
 					locFmt.format(date, result, fp);
 					break;
 				case 'X': // Locale specific time format.
-					locFmt = (SimpleDateFormat) DateFormat.getTimeInstance(DateFormat.SHORT);
-					locFmt.setCalendar(calendar);
+					locFmt = state.getTimeFormat();
 					locFmt.format(date, result, fp);
 					break;
 				case 'y': // Year without century (00 - 99).
-					fmt.applyPattern("yy");
-					fmt.format(date, result, fp);
+					appendNumber(result, calendar.get(Calendar.YEAR) % 100, 2, '0');
 					break;
 				case 'Y': // Year with century (e.g. 1990)
-					fmt.applyPattern("yyyy");
-					fmt.format(date, result, fp);
+					appendNumber(result, calendar.get(Calendar.YEAR), 4, '0');
 					break;
 				case 'Z': // Time zone name.
-					fmt.applyPattern("zzz");
-					fmt.format(date, result, fp);
+					state.getFormat("zzz").format(date, result, fp);
 					break;
 				default:
 					result.append(format.charAt(ix));
@@ -445,6 +469,57 @@ public class ClockCmd implements Command {
 		interp.setResult(result.toString());
 	}
 
+	/**
+	 * Append a non-negative number to a buffer, padded on the left to the
+	 * given width.
+	 * 
+	 * @param buf
+	 *            buffer to append to
+	 * @param value
+	 *            number to append
+	 * @param width
+	 *            minimum number of characters to append
+	 * @param pad
+	 *            padding character
+	 */
+	private static void appendNumber(StringBuffer buf, int value, int width, char pad) {
+		for (int limit = 10; width > 1; width--, limit *= 10) {
+			if (value < limit) {
+				buf.append(pad);
+			}
+		}
+		buf.append(value);
+	}
+
+	/**
+	 * @param calendar
+	 *            calendar with given date
+	 * @return the hour in 12-hour format (1 - 12)
+	 */
+	private static int hour12(Calendar calendar) {
+		int hour = calendar.get(Calendar.HOUR);
+		return (hour == 0) ? 12 : hour;
+	}
+
+	/**
+	 * Look up a time zone by ID, using the shared zone cache.
+	 * 
+	 * @param id
+	 *            time zone ID, as accepted by TimeZone.getTimeZone()
+	 * @return the time zone; unknown IDs yield the GMT zone, as with
+	 *         TimeZone.getTimeZone()
+	 */
+	private static TimeZone getTimeZone(String id) {
+		TimeZone zone = zoneCache.get(id);
+		if (zone == null) {
+			zone = TimeZone.getTimeZone(id);
+			if (zone.getID().equals(id)) {
+				zoneCache.put(id, zone);
+			}
+		}
+		return zone;
+	}
+
 	/**
 	 * Calculate the correct year for an ISO8601 week
 	 * 
@@ -585,11 +660,10 @@ public class ClockCmd implements Command {
 			boolean useGMT) // Boolean
 	{
 		GregorianCalendar calendar = new GregorianCalendar();
-		Calendar now = Calendar.getInstance();
-		now.setTime(baseDate);
-		calendar.set(now.get(Calendar.YEAR), now.get(Calendar.MONTH), now.get(Calendar.DAY_OF_MONTH), 0, 0, 0);
+		calendar.setTime(baseDate);
+		calendar.set(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH), calendar.get(Calendar.DAY_OF_MONTH), 0, 0, 0);
 		if (useGMT) {
-			calendar.setTimeZone(TimeZone.getTimeZone("GMT"));
+			calendar.setTimeZone(getTimeZone("GMT"));
 		}
 
 		ClockToken[] dt = GetTokens(dateString, false);
@@ -1413,7 +1487,6 @@ public class ClockCmd implements Command {
 	{
 		int ix;
 		String[] names;
-		String[][] zones;
 
 		if (word.equalsIgnoreCase("am") || word.equalsIgnoreCase("a.m.")) {
 			return new ClockToken(ClockToken.MERIDIAN, Calendar.AM);
@@ -1434,11 +1507,10 @@ public class ClockCmd implements Command {
 			abbrev = false;
 		}
 
-		DateFormatSymbols symbols = new DateFormatSymbols(Locale.US);
 		if (abbrev) {
-			names = symbols.getShortMonths();
+			names = Symbols.shortMonths;
 		} else {
-			names = symbols.getMonths();
+			names = Symbols.months;
 		}
 		for (ix = 0; ix < names.length; ix++) {
 			if (word.equalsIgnoreCase(names[ix])) {
@@ -1446,9 +1518,9 @@ public class ClockCmd implements Command {
 			}
 		}
 		if (abbrev) {
-			names = symbols.getShortWeekdays();
+			names = Symbols.shortWeekdays;
 		} else {
-			names = symbols.getWeekdays();
+			names = Symbols.weekdays;
 		}
 		for (ix = 0; ix < names.length; ix++) {
 			if (word.equalsIgnoreCase(names[ix])) {
@@ -1466,13 +1538,10 @@ public class ClockCmd implements Command {
 		}
 
 		String withoutDots = new String(withoutDotsBuf);
-		zones = symbols.getZoneStrings();
+		String zoneId = Symbols.zoneIds.get(withoutDots.toLowerCase(Locale.US));
 
-		for (ix = 0; ix < zones.length; ix++) {
-			if (withoutDots.equalsIgnoreCase(zones[ix][2]) || withoutDots.equalsIgnoreCase(zones[ix][4])) {
-				TimeZone zone = TimeZone.getTimeZone(zones[ix][0]);
-				return new ClockToken(ClockToken.ZONE, zone);
-			}
+		if (zoneId != null) {
+			return new ClockToken(ClockToken.ZONE, getTimeZone(zoneId));
 		}
 		if (withoutDots.equalsIgnoreCase("dst")) {
 			return new ClockToken(ClockToken.DST, null);
@@ -1576,13 +1645,125 @@ public class ClockCmd implements Command {
 	// GMT (in
 	// hours).
 	) {
-		String tzNames[] = TimeZone.getAvailableIDs(rawOffset * MILLIS_PER_HOUR);
+		Integer key = new Integer(rawOffset);
+		TimeZone zone = offsetZoneCache.get(key);
 
-		if (tzNames.length > 0) {
-			TimeZone zone = TimeZone.getTimeZone(tzNames[0]);
-			return new ClockToken(ClockToken.ZONE, zone);
+		if (zone == null) {
+			String tzNames[] = TimeZone.getAvailableIDs(rawOffset * MILLIS_PER_HOUR);
+			if (tzNames.length == 0) {
+				return null;
+			}
+			zone = getTimeZone(tzNames[0]);
+			offsetZoneCache.put(key, zone);
+		}
+		return new ClockToken(ClockToken.ZONE, zone);
+	}
+
+	/**
+	 * Per-thread state used by FormatClock. Calendars and date formats are
+	 * not thread-safe, so each thread keeps its own set and reuses them
+	 * across calls. Each date format pattern is compiled only once per thread
+	 * and shares the thread's calendar.
+	 */
+	private static final class FormatState {
+		final GregorianCalendar calendar = new GregorianCalendar();
+		final Date date = new Date();
+		final FieldPosition fp = new FieldPosition(0);
+		final StringBuffer result = new StringBuffer();
+
+		private final HashMap<String, SimpleDateFormat> formats = new HashMap<String, SimpleDateFormat>();
+		private SimpleDateFormat dateTimeFormat;
+		private SimpleDateFormat dateFormat;
+		private SimpleDateFormat timeFormat;
+
+		/**
+		 * @param pattern
+		 *            SimpleDateFormat pattern
+		 * @return a US locale format for pattern, using this thread's
+		 *         calendar
+		 */
+		SimpleDateFormat getFormat(String pattern) {
+			SimpleDateFormat fmt = formats.get(pattern);
+			if (fmt == null) {
+				fmt = new SimpleDateFormat(pattern, Locale.US);
+				formats.put(pattern, fmt);
+			}
+			fmt.setCalendar(calendar);
+			return fmt;
+		}
+
+		/**
+		 * @return the locale specific short date and time format
+		 */
+		SimpleDateFormat getDateTimeFormat() {
+			if (dateTimeFormat == null) {
+				dateTimeFormat = (SimpleDateFormat) DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+			}
+			dateTimeFormat.setCalendar(calendar);
+			return dateTimeFormat;
+		}
+
+		/**
+		 * @return the locale specific short date format
+		 */
+		SimpleDateFormat getDateFormat() {
+			if (dateFormat == null) {
+				dateFormat = (SimpleDateFormat) DateFormat.getDateInstance(DateFormat.SHORT);
+			}
+			dateFormat.setCalendar(calendar);
+			return dateFormat;
+		}
+
+		/**
+		 * @return the locale specific short time format
+		 */
+		SimpleDateFormat getTimeFormat() {
+			if (timeFormat == null) {
+				timeFormat = (SimpleDateFormat) DateFormat.getTimeInstance(DateFormat.SHORT);
+			}
+			timeFormat.setCalendar(calendar);
+			return timeFormat;
+		}
+	}
+
+	/**
+	 * US locale date symbols used by FormatClock and LookupWord, computed
+	 * once. In particular DateFormatSymbols.getZoneStrings() copies the full
+	 * zone table on every call, so zone names are kept in a map from lower
+	 * case name to zone ID.
+	 */
+	private static final class Symbols {
+		static final String[] months;
+		static final String[] shortMonths;
+		static final String[] weekdays;
+		static final String[] shortWeekdays;
+		static final String[] amPm;
+		static final HashMap<String, String> zoneIds;
+
+		static {
+			DateFormatSymbols symbols = new DateFormatSymbols(Locale.US);
+			months = symbols.getMonths();
+			shortMonths = symbols.getShortMonths();
+			weekdays = symbols.getWeekdays();
+			shortWeekdays = symbols.getShortWeekdays();
+			amPm = symbols.getAmPmStrings();
+
+			// The first zone in the table with a matching short name wins.
+
+			String[][] zones = symbols.getZoneStrings();
+			zoneIds = new HashMap<String, String>();
+			for (int ix = 0; ix < zones.length; ix++) {
+				for (int j = 2; j <= 4; j += 2) {
+					if (zones[ix][j] == null) {
+						continue;
+					}
+					String name = zones[ix][j].toLowerCase(Locale.US);
+					if (!zoneIds.containsKey(name)) {
+						zoneIds.put(name, zones[ix][0]);
+					}
+				}
+			}
 		}
-		return null;
 	}
 
 } // end ClockCmd
@@ -27,6 +27,7 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Set;
 
+import tcl.lang.CharsetCodec;
 import tcl.lang.Command;
 import tcl.lang.Interp;
 import tcl.lang.TclByteArray;
@@ -321,7 +322,7 @@ public class EncodingCmd implements Command {
 						byte [] bbuf = encodeSymbol(data.toString().toCharArray(), 0, data.toString().length());
 						interp.setResult(TclByteArray.newInstance(bbuf, 0, bbuf.length));
 					} else {
-						TclObject rv = TclByteArray.newInstance(data.toString().getBytes(javaEncoding));
+						TclObject rv = TclByteArray.newInstance(CharsetCodec.encode(javaEncoding, data.toString()));
 						interp.setResult(rv);
 					}
 				}
@@ -329,6 +330,9 @@ public class EncodingCmd implements Command {
 			} catch (UnsupportedEncodingException ex) {
 				throw new TclException(interp,"Encoding.cmdProc() error: "
 						+ "unsupported java encoding \"" + javaEncoding + "\"");
+			} catch (UnsupportedCharsetException ex) {
+				throw new TclException(interp,"Encoding.cmdProc() error: "
+						+ "unsupported java encoding \"" + javaEncoding + "\"");
 			} catch (IOException e) {
 				 throw new TclException(interp, e.getMessage());
 			}
@@ -28,6 +28,7 @@ import tcl.lang.TclRuntimeError;
 import tcl.lang.TclString;
 import tcl.lang.channel.AbstractSocketChannel;
 import tcl.lang.channel.Channel;
+import tcl.lang.channel.FileChannel;
 
 /**
  * This class implements the built-in "fconfigure" command in Tcl.
@@ -188,6 +189,13 @@ public class FconfigureCmd implements Command {
 				return;
 			}
 
+			// -mmap is only known to file channels, and isn't listed with the
+			// common options, so that their fconfigure output doesn't change.
+			if (chan instanceof FileChannel && argv[2].toString().equals("-mmap")) {
+				interp.setResult(((FileChannel) chan).getMmap());
+				return;
+			}
+
 			int index = 0;
 			try {
 				index = TclIndex.get(interp, argv[2], validCmds, "option", 0);
@@ -296,6 +304,11 @@ public class FconfigureCmd implements Command {
 			// Iterate through the list setting the name with the
 			// corresponding value.
 
+			if (chan instanceof FileChannel && argv[i-1].toString().equals("-mmap")) {
+				((FileChannel) chan).setMmap(interp, TclBoolean.get(interp, argv[i]));
+				continue;
+			}
+
 			int index;
 			try {
 				index = TclIndex.get(interp, argv[i-1], commonValidCommands, "option", 0);
@@ -57,9 +57,10 @@ public class InterpCmd implements Command {
 	static final private int OPT_TARGET = 15;
 	static final private int OPT_TRANSFER = 16;
 
-	static final private String createOptions[] = { "-safe", "--" };
-	static final private int OPT_CREATE_SAFE = 0;
-	static final private int OPT_CREATE_LAST = 1;
+	static final private String createOptions[] = { "-clone", "-safe", "--" };
+	static final private int OPT_CREATE_CLONE = 0;
+	static final private int OPT_CREATE_SAFE = 1;
+	static final private int OPT_CREATE_LAST = 2;
 
 	static final private String hiddenOptions[] = { "-global", "--" };
 	static final private int OPT_HIDDEN_GLOBAL = 0;
@@ -130,6 +131,7 @@ public class InterpCmd implements Command {
 			// Weird historical rules: "-safe" is accepted at the end, too.
 
 			boolean safe = interp.isSafe;
+			boolean clone = false;
 
 			TclObject slaveNameObj = null;
 			boolean last = false;
@@ -138,6 +140,9 @@ public class InterpCmd implements Command {
 					int index = TclIndex.get(interp, objv[i], createOptions,
 							"option", 0);
 					switch (index) {
+					case OPT_CREATE_CLONE:
+						clone = true;
+						break;
 					case OPT_CREATE_SAFE:
 						safe = true;
 						break;
@@ -149,7 +154,7 @@ public class InterpCmd implements Command {
 				}
 				if (slaveNameObj != null) {
 					throw new TclNumArgsException(interp, 2, objv,
-							"?-safe? ?--? ?path?");
+							"?-clone? ?-safe? ?--? ?path?");
 				}
 				slaveNameObj = objv[i];
 			}
@@ -166,7 +171,7 @@ public class InterpCmd implements Command {
 				}
 				slaveNameObj = TclString.newInstance("interp" + i);
 			}
-			InterpSlaveCmd.create(interp, slaveNameObj, safe);
+			InterpSlaveCmd.create(interp, slaveNameObj, safe, clone);
 			interp.setResult(slaveNameObj);
 			break;
 		}
@@ -313,12 +313,14 @@ public class InterpSlaveCmd implements CommandWithDispose, AssocData {
 	 * @param interp interpreter to start search from
 	 * @param path path of slave to create
 	 * @param safe true if it should be made safe
+	 * @param clone true if it should start as a copy of its master
 	 * @return new slave interpreter
 	 * @throws TclException
 	 */
 	static Interp create(Interp interp, // Interp. to start search from.
 			TclObject path, // Path (name) of slave to create.
-			boolean safe) // Should we make it "safe"?
+			boolean safe, // Should we make it "safe"?
+			boolean clone) // Should we copy the master's state?
 			throws TclException // A standard Tcl exception.
 	{
 		Interp masterInterp;
@@ -345,7 +347,17 @@ public class InterpSlaveCmd implements CommandWithDispose, AssocData {
 					+ "\" already exists, cannot create");
 		}
 
-		Interp slaveInterp = new Interp();
+		Interp slaveInterp;
+		if (clone) {
+			try {
+				slaveInterp = masterInterp.createClone();
+			} catch (TclException e) {
+				interp.setResult(e.getMessage());
+				throw e;
+			}
+		} else {
+			slaveInterp = new Interp();
+		}
 		InterpSlaveCmd slave = new InterpSlaveCmd();
 
 		slaveInterp.setMaxNestingDepth(masterInterp.getMaxNestingDepth());
@@ -14,6 +14,8 @@
 
 package tcl.lang.cmd;
 
+import java.util.ArrayList;
+
 import tcl.lang.Command;
 import tcl.lang.Interp;
 import tcl.lang.TclException;
@@ -39,24 +41,30 @@ public class JoinCmd implements Command {
 		} else {
 			throw new TclNumArgsException(interp, 1, argv, "list ?joinString?");
 		}
-		TclObject list = argv[1];
-		int size = TclList.getLength(interp, list);
+		ArrayList<TclObject> elems = TclList.getElementsList(interp, argv[1]);
+		final int size = elems.size();
 
 		if (size == 0) {
 			interp.resetResult();
 			return;
 		}
+		if (sep == null) {
+			sep = " ";
+		}
 
-		StringBuffer sbuf = new StringBuffer(TclList.index(interp, list, 0)
-				.toString());
+		// Size the buffer exactly. Element string reps are cached by
+		// toString(), so the second pass does not regenerate them.
+
+		int total = sep.length() * (size - 1);
+		for (int i = 0; i < size; i++) {
+			total += elems.get(i).toString().length();
+		}
 
+		StringBuilder sbuf = new StringBuilder(total);
+		sbuf.append(elems.get(0).toString());
 		for (int i = 1; i < size; i++) {
-			if (sep == null) {
-				sbuf.append(' ');
-			} else {
-				sbuf.append(sep);
-			}
-			sbuf.append(TclList.index(interp, list, i).toString());
+			sbuf.append(sep);
+			sbuf.append(elems.get(i).toString());
 		}
 		interp.setResult(sbuf.toString());
 	}
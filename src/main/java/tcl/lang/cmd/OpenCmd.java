@@ -49,11 +49,23 @@ public class OpenCmd implements Command {
 		int prot = 0666; /* Final rdwr permissions of file */
 		boolean isBinaryEncoding = false;
 		boolean isReadWrite = false;
+		boolean mmap = false; /* True if the file is read through a mapping */
 		int modeFlags = TclIO.RDONLY; /*
 									 * Rdwr mode for the file. See the TclIO
 									 * class for more info on the valid modes
 									 */
 
+		/*
+		 * A trailing -mmap asks for a read-only file to be read through a
+		 * memory mapping, as with "fconfigure $chan -mmap 1".
+		 */
+		if (argv.length > 2 && argv[argv.length - 1].toString().equals("-mmap")) {
+			mmap = true;
+			TclObject[] args = new TclObject[argv.length - 1];
+			System.arraycopy(argv, 0, args, 0, args.length);
+			argv = args;
+		}
+
 		if ((argv.length < 2) || (argv.length > 4)) {
 			throw new TclNumArgsException(interp, 1, argv,
 					"fileName ?access? ?permissions?");
@@ -183,6 +195,10 @@ public class OpenCmd implements Command {
 			throw new TclException(interp, "couldn't open \"\": no such file or directory");
 		}
 		
+		if (mmap && (pipeline || (modeFlags & (TclIO.WRONLY | TclIO.RDWR)) != 0 || fileName.startsWith("resource:/"))) {
+			throw new TclException(interp, "-mmap is only supported on read-only file channels");
+		}
+
 		if (!pipeline) {
 			try {
 				if (fileName.startsWith("resource:/")) {
@@ -196,6 +212,14 @@ public class OpenCmd implements Command {
 				} else {
 					FileChannel file = new FileChannel();
 					file.open(interp, fileName, modeFlags);
+					if (mmap) {
+						try {
+							file.setMmap(interp, true);
+						} catch (TclException e) {
+							file.close();
+							throw e;
+						}
+					}
 					TclIO.registerChannel(interp, file);
 					if (isBinaryEncoding) {
 						file.setEncoding(null);
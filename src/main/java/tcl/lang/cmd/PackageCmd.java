@@ -15,6 +15,7 @@ package tcl.lang.cmd;
 
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -261,6 +262,82 @@ public class PackageCmd implements Command {
 				+ pkgName + "\": have " + pkg.version + ", need " + version);
 	}
 
+	/**
+	 * Record the version of each package that is provided in an
+	 * interpreter, to be restored later by restoreProvidedVersions().
+	 * 
+	 * @param interp
+	 *            the interpreter
+	 * @return map of each package name known to the interpreter to the
+	 *         version provided, or to null if the package is only available
+	 */
+	public static Map<String, String> getProvidedVersions(Interp interp) {
+		Map<String, String> versions = new HashMap<String, String>();
+		for (Object obj : interp.packageTable.entrySet()) {
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) obj;
+			versions.put((String) entry.getKey(), ((Package) entry.getValue()).version);
+		}
+		return versions;
+	}
+
+	/**
+	 * Replace the package table of an interpreter with a copy of the package
+	 * table of another one: the provided version and the "package ifneeded"
+	 * scripts of each package.
+	 * 
+	 * @param from
+	 *            interpreter the packages are copied from
+	 * @param to
+	 *            interpreter the packages are copied to
+	 */
+	@SuppressWarnings("unchecked") // packageTable is a raw HashMap
+	public static void copyPackages(Interp from, Interp to) {
+		to.packageTable.clear();
+		for (Object obj : from.packageTable.entrySet()) {
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) obj;
+			Package pkg = (Package) entry.getValue();
+			Package copy = new Package();
+			copy.version = pkg.version;
+			PkgAvail last = null;
+			for (PkgAvail avail = pkg.avail; avail != null; avail = avail.next) {
+				PkgAvail availCopy = new PkgAvail();
+				availCopy.version = avail.version;
+				availCopy.script = avail.script;
+				if (last == null) {
+					copy.avail = availCopy;
+				} else {
+					last.next = availCopy;
+				}
+				last = availCopy;
+			}
+			to.packageTable.put(entry.getKey(), copy);
+		}
+		to.packageUnknown = from.packageUnknown;
+	}
+
+	/**
+	 * Forget the packages that were not known when getProvidedVersions() was
+	 * called, and set the provided version of the others back to what it
+	 * was. The "package ifneeded" scripts of known packages are kept, so a
+	 * package can be required again.
+	 * 
+	 * @param interp
+	 *            the interpreter
+	 * @param versions
+	 *            map returned by getProvidedVersions()
+	 */
+	public static void restoreProvidedVersions(Interp interp, Map<String, String> versions) {
+		for (Iterator<?> iter = interp.packageTable.entrySet().iterator(); iter.hasNext();) {
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) iter.next();
+			String name = (String) entry.getKey();
+			if (versions.containsKey(name)) {
+				((Package) entry.getValue()).version = versions.get(name);
+			} else {
+				iter.remove();
+			}
+		}
+	}
+
 	/*
 	 * ----------------------------------------------------------------------
 	 * 
@@ -89,12 +89,7 @@ public class PutsCmd implements Command {
 		}
 
 		try {
-			if (newline) {
-				chan.write(interp, argv[i]);
-				chan.write(interp, "\n");
-			} else {
-				chan.write(interp, argv[i]);
-			}
+			chan.write(interp, argv[i], newline);
 		} catch (IOException e) {
 			throw new TclRuntimeError(
 					"PutsCmd.cmdProc() Error: IOException when putting "
@@ -28,6 +28,7 @@ import tcl.lang.TclList;
 import tcl.lang.TclNumArgsException;
 import tcl.lang.TclObject;
 import tcl.lang.TclString;
+import tcl.lang.TclSubstring;
 
 /**
  * This class implements the built-in "regexp" command in Tcl.
@@ -374,8 +375,7 @@ public class RegexpCmd implements Command {
 							obj = TclList.newInstance();
 						} else {
 							int end = reg.end(group);
-							String substr = string.substring(start, end);
-							obj = TclString.newInstance(substr);
+							obj = TclSubstring.newInstance(string, start, end);
 						}
 
 						group++;
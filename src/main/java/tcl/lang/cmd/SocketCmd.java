@@ -20,6 +20,7 @@ import tcl.lang.Interp;
 import tcl.lang.TclException;
 import tcl.lang.TclIO;
 import tcl.lang.TclIndex;
+import tcl.lang.TclInteger;
 import tcl.lang.TclObject;
 import tcl.lang.TclString;
 import tcl.lang.Util;
@@ -59,10 +60,28 @@ public class SocketCmd implements Command {
 		String host = ""; // The server fot the client
 		int myport = 0; // The port to connect from
 		int port = 0; // The port to connect to
+		int workers = 0; // Number of worker threads for a server
+		TclObject workerInit = null; // Script that initializes worker interps
 		int index; // Index to the correct cmd
 		int i; // Index to the current arg from argv
 
 		for (i = 1; (i < argv.length); i++) {
+			/*
+			 * -workers and -workerinit are JTcl extensions; they are matched
+			 * exactly and left out of the error message, which stays as in Tcl
+			 */
+			if (argv[i].toString().equals("-workers") && i + 1 < argv.length - 1) {
+				workers = TclInteger.getInt(interp, argv[++i]);
+				if (workers < 1) {
+					throw new TclException(interp, "bad worker count \""
+							+ argv[i] + "\": must be a positive integer");
+				}
+				continue;
+			}
+			if (argv[i].toString().equals("-workerinit") && i + 1 < argv.length - 1) {
+				workerInit = argv[++i];
+				continue;
+			}
 			if ((argv[i].toString().length() > 0)
 					&& (argv[i].toString().charAt(0) == '-')) {
 				index = TclIndex.get(interp, argv[i], validCmds, "option", 0);
@@ -125,6 +144,13 @@ public class SocketCmd implements Command {
 				throw new TclException(interp,
 						"Option -myport is not valid for servers");
 			}
+			if (workerInit != null && workers == 0) {
+				throw new TclException(interp,
+						"Option -workerinit requires -workers");
+			}
+		} else if (workers != 0 || workerInit != null) {
+			throw new TclException(interp,
+					"Options -workers and -workerinit are only valid for servers");
 		} else if ((i + 1) < argv.length) {
 			host = argv[i].toString();
 			i++;
@@ -141,7 +167,7 @@ public class SocketCmd implements Command {
 		if (server) {
 			TclObject scr = TclString.newInstance(script);
 			ServerSocketChannel sock = new ServerSocketChannel(interp, myaddr,
-					port, scr);
+					port, scr, workers, workerInit);
 
 			TclIO.registerChannel(interp, sock);
 			interp.setResult(sock.getChanName());
@@ -27,10 +27,6 @@ import tcl.lang.TclString;
 
 public class SplitCmd implements Command {
 
-	// Default characters for splitting up strings.
-
-	private final static char defSplitChars[] = { ' ', '\n', '\t', '\r' };
-
 	/**
 	 * This procedure is invoked to process the "split" Tcl command. See Tcl
 	 * user documentation for details.
@@ -48,7 +44,9 @@ public class SplitCmd implements Command {
 		String splitString = null;
 
 		if (objv.length == 2) {
-			numSplitChars = defSplitChars.length;
+			// Default characters for splitting up strings: space, newline,
+			// tab and carriage return.
+			numSplitChars = 4;
 		} else if (objv.length == 3) {
 			splitString = objv[2].toString();
 			if (splitString.equals("")) {
@@ -90,10 +88,26 @@ public class SplitCmd implements Command {
 
 				char splitChar = splitString.charAt(0);
 
+				int next;
+				while ((next = string.indexOf(splitChar, elemStart)) != -1) {
+					appendElement(interp, list, string, elemStart, next);
+					elemStart = next + 1;
+				}
+				if (slen != 0) {
+					appendElement(interp, list, string, elemStart, slen);
+				}
+			} else if (objv.length == 2) {
+				// Splitting on the default whitespace characters.
+
 				for (; i < slen; i++) {
-					if (string.charAt(i) == splitChar) {
+					switch (string.charAt(i)) {
+					case ' ':
+					case '\n':
+					case '\t':
+					case '\r':
 						appendElement(interp, list, string, elemStart, i);
 						elemStart = i + 1;
+						break;
 					}
 				}
 				if (i != 0) {
@@ -103,21 +117,10 @@ public class SplitCmd implements Command {
 				// Splitting on any char in a group of character.
 				// Discard instances of the split characters.
 
-				char[] splitChars;
-				if (objv.length == 2) {
-					splitChars = defSplitChars;
-				} else {
-					splitChars = splitString.toCharArray();
-				}
-
 				for (; i < slen; i++) {
-					char c = string.charAt(i);
-					for (int j = 0; j < numSplitChars; j++) {
-						if (c == splitChars[j]) {
-							appendElement(interp, list, string, elemStart, i);
-							elemStart = i + 1;
-							break;
-						}
+					if (splitString.indexOf(string.charAt(i)) != -1) {
+						appendElement(interp, list, string, elemStart, i);
+						elemStart = i + 1;
 					}
 				}
 				if (i != 0) {
@@ -31,6 +31,7 @@ import tcl.lang.TclNumArgsException;
 import tcl.lang.TclObject;
 import tcl.lang.TclRuntimeError;
 import tcl.lang.TclString;
+import tcl.lang.TclSubstring;
 import tcl.lang.Util;
 
 /**
@@ -272,8 +273,7 @@ public class StringCmd implements Command {
 						"string charIndex");
 			}
 
-			String string1 = objv[2].toString();
-			int length1 = string1.length();
+			int length1 = TclSubstring.length(objv[2]);
 
 			int i = Util.getIntForIndex(interp, objv[3], length1 - 1);
 
@@ -283,9 +283,10 @@ public class StringCmd implements Command {
 				// single character, and allocate a new
 				// TclString if not found.
 
-				TclObject obj = interp.checkCommonCharacter(string1.charAt(i));
+				char c = TclSubstring.charAt(objv[2], i);
+				TclObject obj = interp.checkCommonCharacter(c);
 				if (obj == null) {
-					obj = TclString.newInstance(string1.substring(i, i + 1));
+					obj = TclString.newInstance(c);
 				}
 				interp.setResult(obj);
 			}
@@ -615,7 +616,7 @@ public class StringCmd implements Command {
 			if (objv[2].isByteArrayType()) {
 				interp.setResult(TclByteArray.getLength(interp, objv[2]));
 			} else {
-				interp.setResult(objv[2].toString().length());
+				interp.setResult(TclSubstring.length(objv[2]));
 			}
 			break;
 		}
@@ -755,13 +756,12 @@ public class StringCmd implements Command {
 						"string first last");
 			}
 
-			String string1=null;
+			boolean isByteArray = objv[2].isByteArrayType();
 			int length1;
-			if (objv[2].isByteArrayType()) {
+			if (isByteArray) {
 				length1 = TclByteArray.getLength(interp, objv[2]);
 			} else {
-				string1 = objv[2].toString();
-				length1 = string1.length();
+				length1 = TclSubstring.length(objv[2]);
 			}
 
 			int first = Util.getIntForIndex(interp, objv[3], length1 - 1);
@@ -776,12 +776,13 @@ public class StringCmd implements Command {
 			if (first > last) {
 				interp.resetResult();
 			} else {
-				if (string1==null) {
+				if (isByteArray) {
 					byte [] bytes = TclByteArray.getBytes(interp, objv[2]);
 					TclObject rv = TclByteArray.newInstance(bytes, first, last+1-first);
 					interp.setResult(rv);
 				} else {
-					interp.setResult(string1.substring(first, last + 1));
+					// Share the chars of large ranges with the source
+					interp.setResult(TclSubstring.newInstance(objv[2], first, last + 1));
 				}
 			}
 			break;
@@ -31,13 +31,23 @@ package tcl.lang.embed.jsr223;
 
 import javax.script.*;
 import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import tcl.lang.*;
 
-public class JtclScriptEngine extends AbstractScriptEngine {
+public class JtclScriptEngine extends AbstractScriptEngine
+        implements Compilable, Invocable {
 
     // my factory, may be null
     private ScriptEngineFactory factory;
 
+    // link engine scope bindings as Tcl variables?
+    private volatile boolean linkBindings;
+
     // we maintain thread-local cache of interpreters
     private static ThreadLocal<Interp> interpreters;
     static {
@@ -47,11 +57,12 @@ public class JtclScriptEngine extends AbstractScriptEngine {
 
     private static final String CONTEXT = "javax.script.ScriptContext";
 
+    /*
+     * The script context of an interpreter, installed once when the
+     * interpreter is created, and the engine scope bindings that are
+     * linked as Tcl variables in the interpreter, if any.
+     */
     private static class ContextData implements AssocData {
-        ContextData(ScriptContext ctx) {
-            context = ctx;
-        }
-
         ScriptContext getContext() {
             return context;
         }
@@ -61,6 +72,174 @@ public class JtclScriptEngine extends AbstractScriptEngine {
         }
 
         private ScriptContext context;
+
+        // the linked bindings, or null, and the context whose lock guards
+        // them
+        private Bindings linked;
+        private ScriptContext linkedContext;
+        private final Map<String, BindingLink> links =
+                new HashMap<String, BindingLink>();
+        // incremented by each link(), to find removed bindings
+        private int generation;
+        // set while link() updates variables, so traces ignore it
+        private boolean updating;
+
+        /*
+         * Make each entry of the engine scope bindings of ctx a global
+         * variable with the Tcl value of the entry. A value is only
+         * converted when the entry is new or refers to another object than
+         * at the last call; otherwise the variable still holds the
+         * converted value. Variables of entries that were removed since the
+         * last call are unset. The bindings are read while holding the lock
+         * of ctx, like the 'context' command does.
+         */
+        void link(Interp interp, ScriptContext ctx) throws TclException {
+            synchronized (ctx) {
+                Bindings bindings = ctx.getBindings(ScriptContext.ENGINE_SCOPE);
+                if (bindings != linked) {
+                    unlink(interp);
+                    linked = bindings;
+                }
+                linkedContext = ctx;
+                generation++;
+                updating = true;
+                try {
+                    for (Map.Entry<String, Object> entry : bindings.entrySet()) {
+                        setLink(interp, entry.getKey(), entry.getValue());
+                    }
+                    for (Iterator<BindingLink> i = links.values().iterator(); i.hasNext();) {
+                        BindingLink link = i.next();
+                        if (link.generation != generation) {
+                            i.remove();
+                            removeLink(interp, link);
+                        }
+                    }
+                } finally {
+                    updating = false;
+                }
+            }
+        }
+
+        /*
+         * Link the variable name to an entry of the linked bindings that
+         * was set to value
+         */
+        void linkEntry(Interp interp, String name, Object value)
+                throws TclException {
+            updating = true;
+            try {
+                setLink(interp, name, value);
+            } finally {
+                updating = false;
+            }
+        }
+
+        /*
+         * Unset the variable of an entry that was removed from the linked
+         * bindings
+         */
+        void unlinkEntry(Interp interp, String name) {
+            BindingLink link = links.remove(name);
+            if (link != null) {
+                updating = true;
+                try {
+                    removeLink(interp, link);
+                } finally {
+                    updating = false;
+                }
+            }
+        }
+
+        private void setLink(Interp interp, String name, Object value)
+                throws TclException {
+            BindingLink link = links.get(name);
+            if (link == null) {
+                if (name.length() == 0 || name.indexOf("::") >= 0
+                        || name.indexOf('(') >= 0) {
+                    return;
+                }
+                link = new BindingLink(this, name);
+                interp.setVar(name, java2tcl(interp, value),
+                        TCL.GLOBAL_ONLY);
+                interp.traceVar(name, link, BindingLink.FLAGS);
+                links.put(name, link);
+            } else if (link.value != value) {
+                interp.setVar(name, java2tcl(interp, value),
+                        TCL.GLOBAL_ONLY);
+            }
+            link.value = value;
+            link.generation = generation;
+        }
+
+        private void removeLink(Interp interp, BindingLink link) {
+            interp.untraceVar(link.name, link, BindingLink.FLAGS);
+            try {
+                interp.unsetVar(link.name, TCL.GLOBAL_ONLY);
+            } catch (TclException e) {
+                interp.resetResult();
+            }
+        }
+
+        /*
+         * Unset the variables of the linked bindings
+         */
+        void unlink(Interp interp) {
+            updating = true;
+            try {
+                for (BindingLink link : links.values()) {
+                    interp.untraceVar(link.name, link, BindingLink.FLAGS);
+                    try {
+                        interp.unsetVar(link.name, TCL.GLOBAL_ONLY);
+                    } catch (TclException e) {
+                        interp.resetResult();
+                    }
+                }
+            } finally {
+                updating = false;
+            }
+            links.clear();
+            linked = null;
+            linkedContext = null;
+        }
+    }
+
+    /*
+     * Writes a linked variable back to its binding, and removes the binding
+     * when the variable is unset.
+     */
+    private static class BindingLink implements VarTrace {
+        static final int FLAGS = TCL.GLOBAL_ONLY | TCL.TRACE_WRITES
+                | TCL.TRACE_UNSETS;
+
+        private final ContextData data;
+        private final String name;
+        // the binding's value that the variable holds
+        private Object value;
+        private int generation;
+
+        BindingLink(ContextData data, String name) {
+            this.data = data;
+            this.name = name;
+        }
+
+        public void traceProc(Interp interp, String part1, String part2,
+                              int flags) throws TclException {
+            if (data.updating || part2 != null) {
+                return;
+            }
+            if ((flags & TCL.TRACE_WRITES) != 0) {
+                value = tcl2java(interp,
+                        interp.getVar(name, TCL.GLOBAL_ONLY));
+                synchronized (data.linkedContext) {
+                    data.linked.put(name, value);
+                }
+            } else if ((flags & TCL.INTERP_DESTROYED) == 0) {
+                data.links.remove(name);
+                synchronized (data.linkedContext) {
+                    data.linked.remove(name);
+                }
+            }
+        }
     }
 
 
@@ -124,6 +303,31 @@ public class JtclScriptEngine extends AbstractScriptEngine {
         }
     }
 
+    /*
+     * Convert the result of a command to the return type of an interface
+     * method.
+     */
+    private static Object tcl2java(Interp interp, TclObject tclObj,
+                                   Class<?> type) throws TclException {
+        if (type == Void.TYPE) {
+            return null;
+        } else if (type == String.class) {
+            return tclObj.toString();
+        } else if (type == Integer.TYPE || type == Integer.class) {
+            return new Integer(TclInteger.getInt(interp, tclObj));
+        } else if (type == Long.TYPE || type == Long.class) {
+            return new Long(TclInteger.getLong(interp, tclObj));
+        } else if (type == Double.TYPE || type == Double.class) {
+            return new Double(TclDouble.get(interp, tclObj));
+        } else if (type == Boolean.TYPE || type == Boolean.class) {
+            return new Boolean(TclBoolean.get(interp, tclObj));
+        } else if (type == TclObject.class) {
+            return tclObj;
+        } else {
+            return tcl2java(interp, tclObj);
+        }
+    }
+
     private static class ContextCommand implements Command {
         private void getVariable(Interp interp, ScriptContext ctx,
                                  String name) throws TclException {
@@ -141,34 +345,60 @@ public class JtclScriptEngine extends AbstractScriptEngine {
 
         private void setVariable(Interp interp, ScriptContext ctx,
                                  String name, TclObject value) throws TclException {
+            Object javaValue = tcl2java(interp, value);
+            int scope;
             synchronized (ctx) {
-                int scope = ctx.getAttributesScope(name);
+                scope = ctx.getAttributesScope(name);
                 if (scope == -1) {
                     scope = ScriptContext.ENGINE_SCOPE;
                 }
-                ctx.setAttribute(name, tcl2java(interp, value), scope);
-                interp.setResult(value);
+                ctx.setAttribute(name, javaValue, scope);
             }
+            ContextData data = linkedData(interp, ctx, scope);
+            if (data != null) {
+                data.linkEntry(interp, name, javaValue);
+            }
+            interp.setResult(value);
         }
 
         private void deleteVariable(Interp interp, ScriptContext ctx,
                                     String name) throws TclException {
+            int scope;
             synchronized (ctx) {
-                int scope = ctx.getAttributesScope(name);
-                if (scope == -1) {
-                    // nothing to delete
-                    interp.setResult(false);
-                } else {
+                scope = ctx.getAttributesScope(name);
+                if (scope != -1) {
                     ctx.removeAttribute(name, scope);
-                    interp.setResult(true);
                 }
             }
+            if (scope == -1) {
+                // nothing to delete
+                interp.setResult(false);
+            } else {
+                ContextData data = linkedData(interp, ctx, scope);
+                if (data != null) {
+                    data.unlinkEntry(interp, name);
+                }
+                interp.setResult(true);
+            }
+        }
+
+        // The ContextData of interp, if an entry of scope was changed
+        // and the engine scope bindings of ctx are linked as variables
+        private ContextData linkedData(Interp interp, ScriptContext ctx,
+                                       int scope) {
+            ContextData data = (ContextData) interp.getAssocData(CONTEXT);
+            if (scope == ScriptContext.ENGINE_SCOPE
+                    && data.linked == ctx.getBindings(ScriptContext.ENGINE_SCOPE)) {
+                return data;
+            }
+            return null;
         }
 
         public void cmdProc(Interp interp, TclObject[] argv)
                 throws TclException {
             AssocData data = interp.getAssocData(CONTEXT);
-            if (data != null && data instanceof ContextData) {
+            if (data instanceof ContextData
+                    && ((ContextData) data).getContext() != null) {
                 ScriptContext context = ((ContextData)data).getContext();
                 switch (argv.length) {
                     case 1:
@@ -204,7 +434,8 @@ public class JtclScriptEngine extends AbstractScriptEngine {
                 throws TclException {
             AssocData data = interp.getAssocData(CONTEXT);
             Writer writer;
-            if (data != null && data instanceof ContextData) {
+            if (data instanceof ContextData
+                    && ((ContextData) data).getContext() != null) {
                 ScriptContext context = ((ContextData)data).getContext();
                 writer = context.getWriter();
             } else {
@@ -224,27 +455,337 @@ public class JtclScriptEngine extends AbstractScriptEngine {
     }
 
 
+    /*
+     * A script compiled by compile(). The script is read and checked once.
+     * JTcl has no bytecode, and the TclObjects that the parser creates
+     * belong to one interpreter, so a script is still parsed when it is
+     * evaluated, by the interpreter of the evaluating thread. A script that
+     * is a single command of plain words, such as a call of a proc with
+     * constant arguments, is split into its words here, and is run as a
+     * pure list, which the interpreter invokes without parsing it. The
+     * object only holds strings, so it can be evaluated by any number of
+     * threads at the same time.
+     */
+    private static class JtclCompiledScript extends CompiledScript {
+        private final JtclScriptEngine engine;
+        private final String script;
+        // the words of the script, if it is a single command of plain words
+        private final String[] words;
+
+        JtclCompiledScript(JtclScriptEngine engine, String script) {
+            this.engine = engine;
+            this.script = script;
+            this.words = splitPlainCommand(script);
+        }
+
+        public Object eval(ScriptContext ctx) throws ScriptException {
+            Interp interp = engine.getInterp();
+            if (words == null) {
+                return engine.eval(interp, script, null, ctx);
+            }
+            TclObject list = TclList.newInstance();
+            try {
+                for (int i = 0; i < words.length; i++) {
+                    TclList.append(interp, list, TclString.newInstance(words[i]));
+                }
+            } catch (TclException exp) {
+                // can't happen, list is a list
+                throw new TclRuntimeError("unexpected TclException: " + exp);
+            }
+            return engine.eval(interp, null, list, ctx);
+        }
+
+        public ScriptEngine getEngine() {
+            return engine;
+        }
+    }
+
+    /*
+     * Split a script that consists of one command whose words need no
+     * substitution and no quoting. Returns null for any other script.
+     */
+    private static String[] splitPlainCommand(String script) {
+        java.util.ArrayList<String> words = new java.util.ArrayList<String>();
+        int len = script.length();
+        int i = 0;
+        while (i < len) {
+            char c = script.charAt(i);
+            if (c == ' ' || c == '\t') {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < len) {
+                c = script.charAt(i);
+                if (c == ' ' || c == '\t') {
+                    break;
+                }
+                if (c < ' ' || "$[]\\;\"{}#".indexOf(c) >= 0) {
+                    return null;
+                }
+                i++;
+            }
+            words.add(script.substring(start, i));
+        }
+        if (words.isEmpty()) {
+            return null;
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
     public Object eval(String str, ScriptContext ctx)
             throws ScriptException {
-        Interp interp = getInterp();
-        AssocData oldAssocData = interp.getAssocData(CONTEXT);
+        return eval(getInterp(), str, null, ctx);
+    }
+
+    /*
+     * Evaluate the script str, or the pure list cmd, with ctx as the
+     * script context.
+     */
+    private Object eval(Interp interp, String str, TclObject cmd,
+                        ScriptContext ctx) throws ScriptException {
+        ContextData data = (ContextData) interp.getAssocData(CONTEXT);
+        ScriptContext oldContext = data.context;
         try {
-            interp.setAssocData(CONTEXT, new ContextData(ctx));
             ctx.setAttribute("context", ctx, ScriptContext.ENGINE_SCOPE);
-            interp.eval(str);
+            enterContext(interp, data, ctx);
+            if (str != null) {
+                interp.eval(str);
+            } else {
+                interp.eval(cmd, 0);
+            }
             return interp.getResult();
         } catch (TclException exp) {
-            String errMsg = interp.getResult().toString();
-            ScriptException se = new ScriptException(errMsg);
-            se.initCause(exp);
-            throw se;
+            throw scriptException(interp, exp);
         } finally {
-            if (oldAssocData != null) {
-                interp.setAssocData(CONTEXT, oldAssocData);
+            if (oldContext != null) {
+                data.context = oldContext;
             }
         }
     }
 
+    /*
+     * Make ctx the script context of interp, and link or unlink its engine
+     * scope bindings
+     */
+    private void enterContext(Interp interp, ContextData data,
+                              ScriptContext ctx) throws TclException {
+        data.context = ctx;
+        if (linkBindings) {
+            data.link(interp, ctx);
+        } else if (data.linked != null) {
+            data.unlink(interp);
+        }
+    }
+
+    /**
+     * Set whether the engine scope bindings are linked as Tcl variables.
+     * When they are, each entry of the engine scope Bindings is a global
+     * variable of the same name while a script runs, so scripts read it as
+     * $name instead of with the 'context' command. The value of an entry
+     * is converted to Tcl once, and only converted again when the entry is
+     * replaced; setting the variable converts the value back and stores it
+     * in the entry, and unsetting it removes the entry. Entries whose names
+     * contain "::" or "(" are not linked. The variables are global
+     * variables of the calling thread's interpreter, so reading one takes
+     * no lock; setting or unsetting one updates the Bindings while holding
+     * the lock of the script context, as the 'context' command does.
+     *
+     * @param link true to link the bindings, false to use only the
+     *             'context' command
+     */
+    public void setLinkBindings(boolean link) {
+        linkBindings = link;
+    }
+
+    /**
+     * @return true if the engine scope bindings are linked as Tcl
+     *         variables
+     */
+    public boolean isLinkBindings() {
+        return linkBindings;
+    }
+
+    private static ScriptException scriptException(Interp interp,
+                                                   TclException exp) {
+        String errMsg = interp.getResult().toString();
+        ScriptException se = new ScriptException(errMsg);
+        se.initCause(exp);
+        return se;
+    }
+
+    public CompiledScript compile(String script) throws ScriptException {
+        if (!Interp.commandComplete(script)) {
+            throw new ScriptException("incomplete script: missing close-brace, close-bracket or quote");
+        }
+        return new JtclCompiledScript(this, script);
+    }
+
+    public CompiledScript compile(Reader script) throws ScriptException {
+        return compile(readFully(script));
+    }
+
+    /**
+     * Call the Tcl command name, usually a proc, with args as its
+     * arguments. The arguments are converted to Tcl values as for the
+     * 'context' command and passed to the command as they are, without
+     * building and parsing a script. The command runs in the interpreter
+     * of the calling thread, with the engine's context as the script
+     * context.
+     *
+     * @return the result of the command, a TclObject, as for eval()
+     * @throws NoSuchMethodException
+     *             if there is no command called name
+     */
+    public Object invokeFunction(String name, Object... args)
+            throws ScriptException, NoSuchMethodException {
+        if (name == null) {
+            throw new NullPointerException("function name is null");
+        }
+        return invoke(getInterp(), null, name, args);
+    }
+
+    /**
+     * Call the method name of the Tcl object thiz, that is the command
+     * thiz with name and args as its arguments. thiz is usually a Java
+     * object, which is passed as a java::* object handle, or the name of an
+     * object command.
+     *
+     * @return the result of the command, a TclObject, as for eval()
+     * @throws NoSuchMethodException
+     *             if thiz is a name and there is no command of that name
+     */
+    public Object invokeMethod(Object thiz, String name, Object... args)
+            throws ScriptException, NoSuchMethodException {
+        if (thiz == null) {
+            throw new IllegalArgumentException("script object is null");
+        }
+        if (name == null) {
+            throw new NullPointerException("method name is null");
+        }
+        return invoke(getInterp(), thiz, name, args);
+    }
+
+    private Object invoke(Interp interp, Object thiz, String name,
+                          Object[] args)
+            throws ScriptException, NoSuchMethodException {
+        int extra = (thiz == null) ? 1 : 2;
+        int nargs = (args == null) ? 0 : args.length;
+        TclObject[] objv = new TclObject[nargs + extra];
+        ContextData data = (ContextData) interp.getAssocData(CONTEXT);
+        ScriptContext oldContext = data.context;
+        try {
+            if (thiz == null) {
+                objv[0] = TclString.newInstance(name);
+            } else {
+                objv[0] = (thiz instanceof TclObject) ? (TclObject) thiz
+                        : java2tcl(interp, thiz);
+                objv[1] = TclString.newInstance(name);
+            }
+            if (interp.getCommand(objv[0].toString()) == null) {
+                throw new NoSuchMethodException(objv[0].toString());
+            }
+            for (int i = 0; i < nargs; i++) {
+                objv[i + extra] = java2tcl(interp, args[i]);
+            }
+            for (int i = 0; i < objv.length; i++) {
+                objv[i].preserve();
+            }
+
+            enterContext(interp, data, context);
+            int code = interp.invoke(objv, 0);
+            if (code == TCL.ERROR) {
+                throw new TclException(code);
+            }
+            return interp.getResult();
+        } catch (TclException exp) {
+            throw scriptException(interp, exp);
+        } finally {
+            for (int i = 0; i < objv.length; i++) {
+                if (objv[i] != null) {
+                    objv[i].release();
+                }
+            }
+            if (oldContext != null) {
+                data.context = oldContext;
+            }
+        }
+    }
+
+    public <T> T getInterface(Class<T> clasz) {
+        return makeInterface(null, clasz);
+    }
+
+    public <T> T getInterface(Object thiz, Class<T> clasz) {
+        if (thiz == null) {
+            throw new IllegalArgumentException("script object is null");
+        }
+        return makeInterface(thiz, clasz);
+    }
+
+    /*
+     * Implement the interface clasz with calls of the Tcl commands named
+     * after its methods, or of the methods of thiz. Returns null if a
+     * command is missing. The methods of Object are implemented by the
+     * proxy itself. Errors that the interface method doesn't declare are
+     * thrown as a RuntimeException with the Tcl error message.
+     */
+    private <T> T makeInterface(final Object thiz, final Class<T> clasz) {
+        if (clasz == null || !clasz.isInterface()) {
+            throw new IllegalArgumentException("interface Class expected");
+        }
+        if (thiz == null) {
+            Interp interp = getInterp();
+            for (Method m : clasz.getMethods()) {
+                if (interp.getCommand(m.getName()) == null) {
+                    return null;
+                }
+            }
+        }
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method m, Object[] args)
+                    throws Throwable {
+                if (m.getDeclaringClass() == Object.class) {
+                    return invokeObjectMethod(proxy, m, args);
+                }
+                Interp interp = getInterp();
+                try {
+                    Object result = JtclScriptEngine.this.invoke(interp, thiz,
+                            m.getName(), args);
+                    return tcl2java(interp, (TclObject) result,
+                            m.getReturnType());
+                } catch (TclException e) {
+                    throw new RuntimeException(m.getName() + ": "
+                            + interp.getResult(), e);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    for (Class<?> type : m.getExceptionTypes()) {
+                        if (type.isInstance(e)) {
+                            throw e;
+                        }
+                    }
+                    throw new RuntimeException(e.getMessage(), e);
+                }
+            }
+
+            private Object invokeObjectMethod(Object proxy, Method m,
+                                              Object[] args) {
+                String name = m.getName();
+                if (name.equals("equals")) {
+                    return Boolean.valueOf(proxy == args[0]);
+                } else if (name.equals("hashCode")) {
+                    return Integer.valueOf(System.identityHashCode(proxy));
+                } else {
+                    return "jtcl " + clasz.getName()
+                            + ((thiz == null) ? "" : (" of " + thiz));
+                }
+            }
+        };
+        return clasz.cast(Proxy.newProxyInstance(clasz.getClassLoader(),
+                new Class<?>[] { clasz }, handler));
+    }
+
     public Object eval(Reader reader, ScriptContext ctx)
             throws ScriptException {
         return eval(readFully(reader), ctx);
@@ -290,6 +831,7 @@ public class JtclScriptEngine extends AbstractScriptEngine {
             // alias for 'context' command...
             interp.createCommand("var", cmd);
             interp.createCommand("echo", new EchoCommand());
+            interp.setAssocData(CONTEXT, new ContextData());
             interpreters.set(interp);
         }
         return interp;
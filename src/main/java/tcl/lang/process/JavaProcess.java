@@ -10,6 +10,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import tcl.lang.ManagedSystemInStream;
@@ -21,11 +25,17 @@ import tcl.lang.channel.Channel;
 
 /**
  * Implements a pure Java process. Combines java.lang.ProcessBuilder and
- * java.lang.Process. Has the disadvantage of possibly sucking up too much
- * stdin, and cannot outlive the JVM if it has any PIPE or CHANNEL or INHERIT
- * redirects. When Java 1.7 is available, this class should be re-written to do
- * a proper INHERIT redirect, instead of using the pipe model of Java 1.5, to
- * avoid sucking up too much stdin.
+ * java.lang.Process. On Java 7 and later, FILE redirects, and INHERIT
+ * redirects of stdout and stderr, are done by the operating system through
+ * ProcessBuilder.Redirect, which is looked up by reflection so that the class
+ * still runs on Java 6; there, a Coupler thread copies the bytes to and from
+ * the files. On Java 9 and later, a pipeline of JavaProcesses is started with
+ * ProcessBuilder.startPipeline(), so the operating system also connects the
+ * stages; otherwise a Coupler thread copies the bytes between them. stdin is
+ * still inherited through a Coupler, because the console may be reading
+ * System.in too; so a JavaProcess has the disadvantage of possibly sucking up
+ * too much stdin, and cannot outlive the JVM if it has any CHANNEL or stdin
+ * INHERIT redirects.
  * 
  * @author danb
  * 
@@ -52,6 +62,41 @@ public class JavaProcess extends TclProcess {
 	 */
 	protected OutputStream stderrStream = null;
 
+	/**
+	 * ProcessBuilder.startPipeline(List), or null if it is not available
+	 * (before Java 9)
+	 */
+	private static final Method startPipeline = findStartPipeline();
+
+	/**
+	 * ProcessBuilder.Redirect, or null if it is not available (before Java 7)
+	 */
+	private static final OsRedirect osRedirect = OsRedirect.find();
+
+	/**
+	 * Set to true by configure() for each stream that the operating system
+	 * connects to its redirect
+	 */
+	private boolean stdinByOs = false;
+	private boolean stdoutByOs = false;
+	private boolean stderrByOs = false;
+
+	/**
+	 * Set to true by configure() if stderr is written to stdout's descriptor
+	 */
+	private boolean stderrMerged = false;
+
+	/**
+	 * Set to true if this process was started along with the processes it
+	 * pipes from or to, with ProcessBuilder.startPipeline()
+	 */
+	protected boolean pipelined = false;
+
+	/**
+	 * Command of the process that could not be started by start()
+	 */
+	private List<String> failedCommand = null;
+
 	/**
 	 * Coupler that reads this process's stdout
 	 */
@@ -99,30 +144,196 @@ public class JavaProcess extends TclProcess {
 		pbenv.putAll(getenv());
 	}
 	
-	@Override
-	public void start() throws IOException {
+	/**
+	 * @return ProcessBuilder.startPipeline(List), or null if this Java
+	 *         doesn't have it
+	 */
+	private static Method findStartPipeline() {
+		try {
+			return ProcessBuilder.class.getMethod("startPipeline", List.class);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Set up processBuilder for this process's command, environment and the
+	 * redirects that the operating system can do by itself
+	 *
+	 * @throws IOException
+	 *             if a redirect can't be set up
+	 */
+	private void configure() throws IOException {
 		processBuilder.command(command);
 		initializeEnv(processBuilder);
-		
-		if (stderrRedirect != null && stderrRedirect.type == Redirect.Type.MERGE_ERROR) {
+
+		/* '>&' writes both to one file descriptor, as Tcl does */
+		stderrMerged = stderrRedirect != null
+				&& (stderrRedirect.type == Redirect.Type.MERGE_ERROR
+						|| (stderrRedirect == stdoutRedirect && stderrRedirect.type == Redirect.Type.FILE));
+		if (stderrMerged) {
 			processBuilder.redirectErrorStream(true);
 		}
-		process = processBuilder.start();
-		
+		if (osRedirect == null) {
+			return;
+		}
+		if (stdinRedirect != null && stdinRedirect.type == Redirect.Type.FILE) {
+			osRedirect.set(processBuilder, osRedirect.redirectInput,
+					osRedirect.invoke(osRedirect.from, stdinRedirect.file));
+			stdinByOs = true;
+		}
+		stdoutByOs = setOsOutput(osRedirect.redirectOutput, stdoutRedirect);
+		if (!stderrMerged) {
+			stderrByOs = setOsOutput(osRedirect.redirectError, stderrRedirect);
+		}
+	}
+
+	/**
+	 * Let the operating system connect stdout or stderr to a FILE or INHERIT
+	 * redirect
+	 *
+	 * @param setter
+	 *            ProcessBuilder.redirectOutput or redirectError
+	 * @return true if the operating system connects the stream, false if it
+	 *         has to be read by a Coupler or a stream
+	 */
+	private boolean setOsOutput(Method setter, Redirect redirect) throws IOException {
+		if (redirect == null) {
+			return false;
+		}
+		Object osValue;
+		switch (redirect.type) {
+		case FILE:
+			osValue = osRedirect.invoke(redirect.appendToFile ? osRedirect.appendTo : osRedirect.to, redirect.file);
+			break;
+		case INHERIT:
+			osValue = osRedirect.inherit;
+			break;
+		default:
+			return false;
+		}
+		osRedirect.set(processBuilder, setter, osValue);
+		return true;
+	}
+
+	/**
+	 * @return this process, followed by the processes that its stdout is
+	 *         piped into, if they can all be started together with
+	 *         ProcessBuilder.startPipeline()
+	 */
+	private List<JavaProcess> pipelineFromHere() {
+		List<JavaProcess> stages = new ArrayList<JavaProcess>();
+		stages.add(this);
+		if (startPipeline == null || (stdinRedirect != null && stdinRedirect.type == Redirect.Type.PIPE))
+			return stages;
+		JavaProcess stage = this;
+		while (stage.stdoutRedirect != null && stage.stdoutRedirect.type == Redirect.Type.PIPE
+				&& stage.stdoutRedirect.pipePartner instanceof JavaProcess) {
+			stage = (JavaProcess) stage.stdoutRedirect.pipePartner;
+			if (stage.isStarted())
+				break;
+			stages.add(stage);
+		}
+		return stages;
+	}
+
+	/**
+	 * Start the stages of a pipeline with ProcessBuilder.startPipeline(), so
+	 * that each stage's stdout is connected straight to the next stage's stdin
+	 *
+	 * @param stages
+	 *            the processes, in pipeline order
+	 * @throws IOException
+	 *             if any stage can't be started; none of them are left running
+	 */
+	private void startPipeline(List<JavaProcess> stages) throws IOException {
+		List<ProcessBuilder> builders = new ArrayList<ProcessBuilder>(stages.size());
+		for (JavaProcess stage : stages) {
+			stage.configure();
+			builders.add(stage.processBuilder);
+		}
+		List<?> started;
+		try {
+			started = (List<?>) startPipeline.invoke(null, builders);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				failedCommand = findFailedCommand(stages, cause.getMessage());
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		}
+		for (int i = 0; i < stages.size(); i++) {
+			stages.get(i).process = (Process) started.get(i);
+			stages.get(i).pipelined = true;
+		}
+	}
+
+	/**
+	 * @return the command of the stage that ProcessBuilder couldn't start,
+	 *         found from the exception message, which names the program
+	 */
+	private List<String> findFailedCommand(List<JavaProcess> stages, String message) {
+		if (message != null) {
+			for (JavaProcess stage : stages) {
+				if (message.startsWith("Cannot run program \"" + stage.command.get(0) + "\""))
+					return stage.command;
+			}
+		}
+		return command;
+	}
+
+	@Override
+	public List<String> failedCommand() {
+		return failedCommand == null ? command : failedCommand;
+	}
+
+	@Override
+	public void start() throws IOException {
+		List<JavaProcess> stages = pipelineFromHere();
+		if (stages.size() > 1) {
+			startPipeline(stages);
+			for (JavaProcess stage : stages) {
+				stage.connect();
+			}
+		} else {
+			configure();
+			process = processBuilder.start();
+			connect();
+		}
+	}
+
+	/**
+	 * Connect the started process's streams to the redirects that the
+	 * operating system doesn't handle
+	 *
+	 * @throws IOException
+	 */
+	private void connect() throws IOException {
 		/*
 		 * Connect the process's stdin
 		 */
+		boolean readAvailable = false;
 		if (stdinRedirect != null) {
 			switch (stdinRedirect.type) {
 			case FILE:
-				stdinStream = new BufferedInputStream(new FileInputStream(stdinRedirect.file));
+				if (!stdinByOs) {
+					stdinStream = new BufferedInputStream(new FileInputStream(stdinRedirect.file));
+				}
 				break;
 			case PIPE:
-				JavaProcess upstream = (JavaProcess) stdinRedirect.pipePartner;
-				stdinStream = upstream.getInputStream();
+				if (!pipelined) {
+					JavaProcess upstream = (JavaProcess) stdinRedirect.pipePartner;
+					stdinStream = upstream.getInputStream();
+				}
 				break;
 			case INHERIT:
 				stdinStream = new ManagedSystemInStream();
+				readAvailable = true;
 				break;
 			case STREAM:
 				stdinStream = null;
@@ -139,7 +350,7 @@ public class JavaProcess extends TclProcess {
 								return -1;
 							int cnt = stdinRedirect.channel.read(interp, tclbuf, TclIO.READ_N_BYTES, 1);
 							if (cnt > 0)
-								return TclByteArray.getBytes(interp, tclbuf)[0];
+								return TclByteArray.getBytes(interp, tclbuf)[0] & 0xFF;
 							else
 								return -1;
 						} catch (TclException e) {
@@ -149,11 +360,13 @@ public class JavaProcess extends TclProcess {
 					}
 
 				};
+				readAvailable = true;
 				break;
 			}
 		}
 		if (stdinStream != null) {
-			Thread coupler = new Coupler(stdinStream, process.getOutputStream(), true, true);
+			Coupler coupler = new Coupler(stdinStream, process.getOutputStream(), true, true);
+			coupler.readAvailable = readAvailable;
 			coupler.setDaemon(true);
 			coupler.setName("JavaProcess Coupler stdin");
 			coupler.start();
@@ -168,7 +381,7 @@ public class JavaProcess extends TclProcess {
 		 * Connect process's stdout
 		 */
 		boolean closeOutput = true;
-		if (stdoutRedirect != null) {
+		if (stdoutRedirect != null && !stdoutByOs) {
 			switch (stdoutRedirect.type) {
 			case FILE:
 				stdoutStream = new BufferedOutputStream(new FileOutputStream(stdoutRedirect.file,
@@ -176,7 +389,7 @@ public class JavaProcess extends TclProcess {
 				break;
 			case INHERIT:
 				stdoutStream = new FileOutputStream(FileDescriptor.out);
-				closeOutput = false;  // don't want to close FileDescriptor.out
+				closeOutput = false; // don't want to close FileDescriptor.out
 				break;
 			case STREAM:
 				stdoutStream = null;
@@ -197,6 +410,19 @@ public class JavaProcess extends TclProcess {
 						}
 					}
 
+					/* (non-Javadoc)
+					 * @see java.io.OutputStream#write(byte[], int, int)
+					 */
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						tclbuf = TclByteArray.newInstance(b, off, len);
+						try {
+							stdoutRedirect.channel.write(interp, tclbuf);
+						} catch (TclException e) {
+							throw new IOException(e.getMessage());
+						}
+					}
+
 					/*
 					 * (non-Javadoc)
 					 * 
@@ -221,8 +447,8 @@ public class JavaProcess extends TclProcess {
 			// don't close inherited STDOUT; that will close the descriptor and
 			// TCL won't be
 			// able to write
-			stdoutCoupler = new Coupler(process.getInputStream(), stdoutStream,
-					closeOutput, stdoutRedirect.type == Redirect.Type.INHERIT);
+			stdoutCoupler = new Coupler(process.getInputStream(), stdoutStream, closeOutput,
+					stdoutRedirect.type == Redirect.Type.INHERIT);
 			stdoutCoupler.setDaemon(true);
 			stdoutCoupler.setName("JavaProcess Coupler stdout");
 			stdoutCoupler.start();
@@ -233,7 +459,7 @@ public class JavaProcess extends TclProcess {
 		 * Connect process's stderr
 		 */
 		closeOutput = true;
-		if (stderrRedirect != null && stderrRedirect.type != Redirect.Type.MERGE_ERROR) {
+		if (stderrRedirect != null && !stderrMerged && !stderrByOs) {
 			switch (stderrRedirect.type) {
 			case FILE:
 				stderrStream = new BufferedOutputStream(new FileOutputStream(stderrRedirect.file,
@@ -241,7 +467,7 @@ public class JavaProcess extends TclProcess {
 				break;
 			case INHERIT:
 				stderrStream = new FileOutputStream(FileDescriptor.err);
-				closeOutput = false;  // don't close FileDescriptor.err
+				closeOutput = false; // don't close FileDescriptor.err
 				break;
 			case STREAM:
 				stderrStream = null;
@@ -401,6 +627,64 @@ public class JavaProcess extends TclProcess {
 		return false;
 	}
 
+	/**
+	 * ProcessBuilder.Redirect and the ProcessBuilder methods that use it,
+	 * found by reflection, since they were added in Java 7
+	 */
+	private static class OsRedirect {
+		final Method from;
+		final Method to;
+		final Method appendTo;
+		final Object inherit;
+		final Method redirectInput;
+		final Method redirectOutput;
+		final Method redirectError;
+
+		private OsRedirect() throws Exception {
+			Class<?> cls = Class.forName("java.lang.ProcessBuilder$Redirect");
+			from = cls.getMethod("from", File.class);
+			to = cls.getMethod("to", File.class);
+			appendTo = cls.getMethod("appendTo", File.class);
+			inherit = cls.getField("INHERIT").get(null);
+			redirectInput = ProcessBuilder.class.getMethod("redirectInput", cls);
+			redirectOutput = ProcessBuilder.class.getMethod("redirectOutput", cls);
+			redirectError = ProcessBuilder.class.getMethod("redirectError", cls);
+		}
+
+		/**
+		 * @return the Redirect support of this Java, or null if it has none
+		 */
+		static OsRedirect find() {
+			try {
+				return new OsRedirect();
+			} catch (Exception e) {
+				return null;
+			}
+		}
+
+		/**
+		 * @return the Redirect that a static factory method returns for file
+		 */
+		Object invoke(Method factory, File file) throws IOException {
+			try {
+				return factory.invoke(null, file);
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * Call a ProcessBuilder redirect setter
+		 */
+		void set(ProcessBuilder processBuilder, Method setter, Object redirect) throws IOException {
+			try {
+				setter.invoke(processBuilder, redirect);
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
 	/**
 	 * Stuff data into process's stdin, or get data out of stdout/stderr
 	 * 
@@ -412,6 +696,12 @@ public class JavaProcess extends TclProcess {
 		OutputStream out = null;
 		boolean closeOut;
 		boolean flushOut;
+		/**
+		 * If true, only read what in.available() says can be read without
+		 * blocking, or a single byte, so that bytes that the process may
+		 * never consume aren't taken from an interactive source
+		 */
+		boolean readAvailable = false;
 
 		public Coupler(InputStream in, OutputStream out, boolean closeOut, boolean flushOut) {
 			this.in = in;
@@ -422,13 +712,16 @@ public class JavaProcess extends TclProcess {
 
 		@Override
 		public void run() {
-			byte [] buf = new byte [256];
+			byte [] buf = new byte [readAvailable ? 256 : 64 * 1024];
 			while (true) {
 				int b = -1;
 				try {
-					int avail = in.available();
-					avail = avail > buf.length ? buf.length : avail;
-					avail = avail == 0 ? 1 : avail;
+					int avail = buf.length;
+					if (readAvailable) {
+						avail = in.available();
+						avail = avail > buf.length ? buf.length : avail;
+						avail = avail == 0 ? 1 : avail;
+					}
 
 					b = in.read(buf, 0, avail);
 					if (b == -1) {
@@ -91,6 +91,16 @@ public abstract class TclProcess {
 		return this.command;
 	}
 
+	/**
+	 * @return The command words of the process that could not be started,
+	 *         after start() has thrown an IOException. This is the process's
+	 *         own command, unless start() also started the processes that it
+	 *         pipes to.
+	 */
+	public List<String> failedCommand() {
+		return this.command;
+	}
+
 	/**
 	 * @return a unmodifiable Map containing the environment that the subprocess should
 	 * inherit.  System.getenv() is not sufficient because JTcl cannot update
@@ -3,6 +3,8 @@ package tcl.pkg.fleet;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import tcl.lang.*;
 
 public class FleetCmd implements Command {
@@ -11,7 +13,16 @@ public class FleetCmd implements Command {
     private long memberCount = 0;
     Namespace ns;
     String fleetName;
-    final static private HashMap<String,FleetMember> fleetMembers = new HashMap<String,FleetMember>();
+    // Members by name; only used by the thread of the fleet's interp
+    final private HashMap<String,FleetMember> fleetMembers = new LinkedHashMap<String,FleetMember>();
+    // The same members, for members that look for work to steal
+    final private CopyOnWriteArrayList<FleetMember> memberList = new CopyOnWriteArrayList<FleetMember>();
+    // Idle members take messages queued for busy members
+    boolean steal = false;
+    // Number of messages a member can queue before tell blocks
+    int capacity = Integer.MAX_VALUE;
+    // Number of messages a member takes from its queue at a time
+    int batchSize = 16;
     private enum SubCmds {
 
         create() {
@@ -19,8 +30,20 @@ public class FleetCmd implements Command {
             void eval(final Interp interp, final TclObject argv[], final FleetCmd mCmd) throws TclException {
                 ArgOptions argOptions = new ArgOptions(interp, argv, 2);
                 String name = argOptions.get("-name", "fleet" + fleetCount);
+                int capacity = argOptions.get("-capacity", Integer.MAX_VALUE);
+                int batchSize = argOptions.get("-batch", 16);
+                boolean steal = argOptions.get("-steal");
+                if (capacity < 1) {
+                    throw new TclException(interp, "bad capacity \"" + capacity + "\": must be at least 1");
+                }
+                if (batchSize < 1) {
+                    throw new TclException(interp, "bad batch size \"" + batchSize + "\": must be at least 1");
+                }
                 fleetCount++;
                 FleetCmd fleetCmd = new FleetCmd();
+                fleetCmd.capacity = capacity;
+                fleetCmd.batchSize = batchSize;
+                fleetCmd.steal = steal;
                 interp.createCommand(name, fleetCmd);
                 fleetCmd.fleetName = name;
                 interp.setResult(name);
@@ -33,8 +56,12 @@ public class FleetCmd implements Command {
                 ArgOptions argOptions = new ArgOptions(interp, argv, 2);
                 String name = argOptions.get("-name", "member" + mCmd.memberCount);
                 mCmd.memberCount++;
+                if (mCmd.fleetMembers.containsKey(name)) {
+                    throw new TclException(interp,"Member \"" + name + "\" already exists in fleet \"" + mCmd.fleetName+"\"");
+                }
                 FleetMember fleetMember = new FleetMember(mCmd,name);
-                fleetMembers.put(name,fleetMember);
+                mCmd.fleetMembers.put(name,fleetMember);
+                mCmd.memberList.add(fleetMember);
                 interp.setResult(name);
             }
         },
@@ -43,10 +70,11 @@ public class FleetCmd implements Command {
             void eval(final Interp interp, final TclObject argv[], final FleetCmd mCmd) throws TclException {
                 ArgOptions argOptions = new ArgOptions(interp, argv, 4);
                 if (argv.length < 4) {
-                    throw new TclNumArgsException(interp, 2, argv, "memberName msg ?-reply reply? ?-var varName?");
+                    throw new TclNumArgsException(interp, 2, argv, "memberName msg ?-reply reply? ?-var varName? ?-pin?");
                 }
                 String replyCmd = argOptions.get("-reply", (String) null);
                 String doneVar = argOptions.get("-var", (String) null);
+                boolean pinned = argOptions.get("-pin");
                 String memberName = argv[2].toString();
 
                 TclObject[] cmdArgs = TclList.getElements(interp, argv[3]);
@@ -59,7 +87,7 @@ public class FleetCmd implements Command {
                              cmdArg.preserve();
                              TclList.append(interp, messageList, cmdArg);
                          }
-                         sendCommand(interp, member, messageList, replyCmd, doneVar);
+                         sendCommand(interp, member, messageList, replyCmd, doneVar, true);
                      }
                 } else {
                     TclObject messageList = TclList.newInstance();
@@ -72,7 +100,7 @@ public class FleetCmd implements Command {
                     if (member == null) {
                         throw new TclException(interp,"Can't find member \"" + memberName + "\" in fleet \"" + mCmd.fleetName+"\"");
                     }
-                    sendCommand(interp, member, messageList, replyCmd, doneVar);
+                    sendCommand(interp, member, messageList, replyCmd, doneVar, pinned);
                 }
             }
         },
@@ -126,11 +154,80 @@ public class FleetCmd implements Command {
                         double waitingTime = member.getWaitingTime();
                         TclDict.put(interp, tDict, TclString.newInstance("processing"),TclDouble.newInstance(processingTime));
                         TclDict.put(interp, tDict, TclString.newInstance("waiting"),TclDouble.newInstance(waitingTime));
+                        TclDict.put(interp, tDict, TclString.newInstance("messages"),TclInteger.newInstance(member.getMessagesProcessed()));
+                        TclDict.put(interp, tDict, TclString.newInstance("stolen"),TclInteger.newInstance(member.getMessagesStolen()));
                         interp.setResult(tDict);
                     }
                 }
             }
         },
+        map() {
+            void eval(final Interp interp, final TclObject argv[], final FleetCmd mCmd) throws TclException {
+                if (argv.length < 4 || (argv.length % 2) != 0) {
+                    throw new TclNumArgsException(interp, 2, argv, "?-chunk size? ?-timeout ms? lambda list");
+                }
+                TclObject[] optv = new TclObject[argv.length - 2];
+                System.arraycopy(argv, 0, optv, 0, optv.length);
+                ArgOptions argOptions = new ArgOptions(interp, optv, 2);
+                int chunkSize = argOptions.get("-chunk", 0);
+                int timeout = argOptions.get("-timeout", 0);
+                if (chunkSize < 0) {
+                    throw new TclException(interp, "bad chunk size \"" + chunkSize + "\": must be at least 1");
+                }
+                if (timeout < 0) {
+                    throw new TclException(interp, "bad timeout \"" + timeout + "\": must not be negative");
+                }
+
+                TclObject[] elems = TclList.getElements(interp, argv[argv.length - 1]);
+                TclObject result = TclList.newInstance();
+                if (elems.length == 0) {
+                    interp.setResult(result);
+                    return;
+                }
+                int memberCount = mCmd.memberList.size();
+                if (memberCount == 0) {
+                    throw new TclException(interp, "fleet \"" + mCmd.fleetName + "\" has no members");
+                }
+                if (chunkSize == 0) {
+                    // a few chunks per member, so that members that are
+                    // faster or less busy can take more of them
+                    chunkSize = Math.max(1, (elems.length + 4 * memberCount - 1) / (4 * memberCount));
+                }
+
+                String[] values = new String[elems.length];
+                for (int i = 0; i < elems.length; i++) {
+                    values[i] = elems[i].toString();
+                }
+                MapJob job = new MapJob(argv[argv.length - 2].toString(), values, chunkSize, memberCount);
+                int sent = 0;
+                try {
+                    for (FleetMember member : mCmd.memberList) {
+                        if (sent == memberCount) {
+                            break;
+                        }
+                        if (!member.execJob(job)) {
+                            // a full queue, and this is a member thread
+                            job.memberDone();
+                        }
+                        sent++;
+                    }
+                } catch (InterruptedException e) {
+                    job.cancel();
+                    throw new TclException(interp, "fleet map interrupted");
+                } finally {
+                    // members that didn't get the job are done with it
+                    for (; sent < memberCount; sent++) {
+                        job.memberDone();
+                    }
+                }
+
+                String[] results = job.await(interp, timeout);
+                for (String value : results) {
+                    TclList.append(interp, result, TclString.newInstance(value));
+                }
+                interp.setResult(result);
+            }
+        },
         destroy() {
 
             void eval(final Interp interp, final TclObject argv[], final FleetCmd mCmd) throws TclException {
@@ -143,8 +240,15 @@ public class FleetCmd implements Command {
                     if (member == null) {
                         throw new TclException(interp,"Can't find member \"" + memberName + "\" in fleet \"" + mCmd.fleetName+"\"");
                     } else {
-                        member.execCommand(null);
+                        try {
+                            if (!member.execCommand(null)) {
+                                throw new TclException(interp, "queue of member \"" + memberName + "\" is full");
+                            }
+                        } catch (InterruptedException e) {
+                            throw new TclException(interp, "interrupted while destroying member \"" + memberName + "\"");
+                        }
                         mCmd.fleetMembers.remove(memberName);
+                        mCmd.memberList.remove(member);
                     }
                 } else {
                     Namespace.deleteNamespace(mCmd.ns);
@@ -231,9 +335,53 @@ public class FleetCmd implements Command {
     }
 
     static void sendCommand(final Interp interp, final FleetMember member, final TclObject messageList, final String readyCmd,
-            final String readyVar) throws TclException {
+            final String readyVar, final boolean pinned) throws TclException {
         Message cjobj = new Message(interp, messageList,readyCmd, readyVar);
-        member.execCommand(cjobj);
+        cjobj.targetName = member.getName();
+        try {
+            if (!member.execCommand(cjobj, pinned)) {
+                throw new TclException(interp, "queue of member \"" + member.getName() + "\" is full");
+            }
+        } catch (InterruptedException e) {
+            throw new TclException(interp, "interrupted while waiting for the queue of member \"" + member.getName() + "\"");
+        }
+    }
+
+    // Invoked by an idle member of a fleet that steals work: take a
+    // message that isn't pinned from the member with the longest queue.
+    FleetMember.ExecEvent stealFor(final FleetMember thief) {
+        FleetMember victim = null;
+        int longest = 0;
+        for (FleetMember member : memberList) {
+            int count = member.messageCount();
+            if (member != thief && count > longest) {
+                victim = member;
+                longest = count;
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+        FleetMember.ExecEvent event = victim.steal();
+        if (event == null) {
+            for (FleetMember member : memberList) {
+                if (member != thief && member != victim && (event = member.steal()) != null) {
+                    break;
+                }
+            }
+        }
+        return event;
     }
+
+    // Invoked after a message is queued for a busy member of a fleet
+    // that steals work: wake up a member that waits for work.
+    void wakeIdleMember() {
+        for (FleetMember member : memberList) {
+            if (member.wakeIfIdle()) {
+                return;
+            }
+        }
+    }
+
 }
 
@@ -1,4 +1,3 @@
-
 /* Heavily modified from TJCThread code  by bjohnson */
 //
 // TJC Runtime Compiler main thread. This thread is accessed
@@ -9,8 +8,12 @@
 // Interp when ready.
 package tcl.pkg.fleet;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import tcl.lang.*;
 
 public class FleetMember implements Runnable {
@@ -18,13 +21,23 @@ public class FleetMember implements Runnable {
     public static final int STATUS_OK = 0;
     public static final int STATUS_ERROR = 1;
     private static boolean debug = false;
-    private boolean terminated = false;
+    private volatile boolean terminated = false;
     // The FleetMember instance, it is possible that
     // the thread could be terminated and then
     // started again which would replace this instance.
     private Thread thread = null;
-    // Thread safe queue of events to process.
-    private BlockingQueue queue = new LinkedBlockingQueue();
+    // Thread safe queue of events to process. Its capacity
+    // is set by the fleet; a sender blocks while it is full.
+    private final BlockingDeque<ExecEvent> queue;
+    // Events taken from the queue in one go, and processed
+    // one after the other. Only used by the member thread.
+    private final ArrayList<ExecEvent> batch = new ArrayList<ExecEvent>();
+    // Number of events in the current batch that the member hasn't
+    // started yet. forget() takes them by setting it to 0, so that the
+    // member drops the rest of its batch as well.
+    private final AtomicInteger batchLeft = new AtomicInteger();
+    // The member that runs in the current thread, if any
+    private static final ThreadLocal<FleetMember> currentMember = new ThreadLocal<FleetMember>();
     // Jacl interp used to process events. The
     // interp is created in the other thread.
     // it should never be accessed from the
@@ -32,25 +45,45 @@ public class FleetMember implements Runnable {
     private Interp interp = null;
     private final FleetCmd fleet;
     private final String name;
-    private long processingTime=0;
-    private long waitingTime=0;
+    // Times are updated by the member thread and read by any
+    // thread; busySince and idleSince are 0 unless the member
+    // is processing or waiting now.
+    private volatile long processingTime = 0;
+    private volatile long waitingTime = 0;
+    private volatile long busySince = 0;
+    private volatile long idleSince = 0;
+    private volatile long messagesProcessed = 0;
+    private volatile long messagesStolen = 0;
     public static interface MessageResult {
 
         public void completed(final int status, final FleetCmd fleet, final FleetMember member, final TclObject result);
     }
 
-    private static class ExecEvent {
+    static class ExecEvent {
 
         final Message callback;
+        // A list to map, for "fleetName map"; callback is null then
+        final MapJob job;
+        // Must be processed by the member it was sent to
+        final boolean pinned;
 
-        ExecEvent(final Message callback) {
+        ExecEvent(final Message callback, final boolean pinned) {
             this.callback = callback;
+            this.job = null;
+            this.pinned = pinned;
+        }
+
+        ExecEvent(final MapJob job) {
+            this.callback = null;
+            this.job = job;
+            this.pinned = true;
         }
     }
 
     FleetMember(final FleetCmd fleet, final String name) {
         this.name = name;
         this.fleet = fleet;
+        queue = new LinkedBlockingDeque<ExecEvent>(fleet.capacity);
         thread = new Thread(this);
         thread.setDaemon(true);
 
@@ -64,27 +97,80 @@ public class FleetMember implements Runnable {
 
     }
 
-    // Invoked to send a message that will be evaluated as a command
-    public synchronized void execCommand(Message callback) {
+    // Invoked to send a message that will be evaluated as a command.
+    // A null message terminates the member once the messages before
+    // it have been processed. Blocks while the queue is full, and
+    // returns false if the queue is full and the caller is a member
+    // of a fleet itself.
+    public boolean execCommand(Message callback) throws InterruptedException {
+        return execCommand(callback, callback == null);
+    }
+
+    // Invoked to send a message that will be evaluated as a command.
+    // If pinned is false, and the fleet steals work, the message may
+    // be processed by another member that has nothing else to do.
+    public boolean execCommand(Message callback, boolean pinned) throws InterruptedException {
         if (debug) {
             System.out.println("execCommand ");
         }
 
-        ExecEvent event = new ExecEvent(callback);
-        queue.add(event);
+        return queueEvent(new ExecEvent(callback, pinned || callback == null));
+    }
 
-        synchronized (this) {
-            if (debug) {
-                System.out.println("notify in execCommand");
-            }
-            notify(); // wake up other thread
+    // Invoked to make the member take part in mapping a list
+    boolean execJob(MapJob job) throws InterruptedException {
+        return queueEvent(new ExecEvent(job));
+    }
+
+    // A member thread must not wait for room in a queue: the queue may
+    // be its own, or that of a member that waits for room in its queue.
+    private boolean queueEvent(ExecEvent event) throws InterruptedException {
+        if (currentMember.get() == null) {
+            queue.put(event);
+        } else if (!queue.offer(event)) {
+            return false;
+        }
+
+        if (idleSince != 0) {
+            LockSupport.unpark(thread);
+        } else if (fleet.steal) {
+            fleet.wakeIdleMember();
         }
+        return true;
     }
 
+    // Drop the queued messages, and the messages the member has taken
+    // from its queue but not started yet. Returns the number of
+    // messages dropped.
     public int forget() {
-        int size = queue.size();
-        queue.clear();
-        return size;
+        ArrayList<ExecEvent> events = new ArrayList<ExecEvent>();
+        queue.drainTo(events);
+        int dropped = batchLeft.getAndSet(0);
+        for (ExecEvent event : events) {
+            dropEvent(event);
+        }
+        return events.size() + dropped;
+    }
+
+    // Invoked by the member thread before it starts an event of its
+    // batch; false if forget() dropped it
+    private boolean takeFromBatch() {
+        int left;
+        do {
+            left = batchLeft.get();
+            if (left == 0) {
+                return false;
+            }
+        } while (!batchLeft.compareAndSet(left, left - 1));
+        return true;
+    }
+
+    // A map job that won't be run must still be told that this member
+    // is done with it
+    private void dropEvent(ExecEvent event) {
+        if (event.job != null) {
+            event.job.memberDone();
+        }
     }
 
     public int messageCount() {
@@ -95,22 +181,76 @@ public class FleetMember implements Runnable {
         return name;
     }
 
+    // Wake the member up if it waits for messages
+    boolean wakeIfIdle() {
+        if (idleSince != 0) {
+            LockSupport.unpark(thread);
+            return true;
+        }
+        return false;
+    }
+
+    // Invoked by another member of the fleet that is idle: take the
+    // newest message that isn't pinned from the end of the queue.
+    ExecEvent steal() {
+        Iterator<ExecEvent> iter = queue.descendingIterator();
+        while (iter.hasNext()) {
+            ExecEvent event = iter.next();
+            if (!event.pinned) {
+                if (queue.removeLastOccurrence(event)) {
+                    return event;
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
     public void run() {
         if (debug) {
             System.out.println("thread start");
         }
 
-        // Loop forever waiting for next request to be
-        // added to the queue.
+        // Loop forever, processing the queued messages in batches,
+        // and waiting for the next request to be added to the queue
+        // (or, in a fleet that steals work, to any queue) when there
+        // is nothing to do.
+        currentMember.set(this);
         try {
-            while (true) {
-                long startTime = System.nanoTime();
-                ExecEvent event = (ExecEvent) queue.take();
-                if (event.callback == null) {
-                    break;
+            while (!terminated) {
+                // In a fleet that steals work, leave at least half
+                // of the queue for the other members
+                int batchSize = fleet.batchSize;
+                if (fleet.steal) {
+                    batchSize = Math.max(1, Math.min(batchSize, queue.size() / 2));
                 }
-                waitingTime = waitingTime + (System.nanoTime() - startTime);
-                processEvent(event);
+                queue.drainTo(batch, batchSize);
+                if (batch.isEmpty()) {
+                    ExecEvent event = fleet.steal ? fleet.stealFor(this) : null;
+                    if (event == null) {
+                        event = waitForEvent();
+                        if (event == null) {
+                            continue;
+                        }
+                    } else {
+                        messagesStolen++;
+                    }
+                    batch.add(event);
+                }
+                batchLeft.set(batch.size());
+                for (ExecEvent event : batch) {
+                    if (terminated || !takeFromBatch()) {
+                        dropEvent(event);
+                    } else if (event.job != null) {
+                        processJob(event.job);
+                    } else if (event.callback == null) {
+                        terminated = true;
+                    } else {
+                        processEvent(event);
+                    }
+                }
+                batchLeft.set(0);
+                batch.clear();
             }
         } catch (InterruptedException ieE) {
             ieE.printStackTrace();
@@ -133,6 +273,51 @@ public class FleetMember implements Runnable {
         }
     }
 
+    // Park until a message is sent to this member, or to another
+    // member that it can steal from. idleSince is set before the
+    // queues are checked the last time, and senders check it after
+    // they queue a message, so a wake up can't be lost.
+    private ExecEvent waitForEvent() throws InterruptedException {
+        long startTime = System.nanoTime();
+        idleSince = startTime;
+        try {
+            ExecEvent event = queue.poll();
+            if (event == null && fleet.steal) {
+                event = fleet.stealFor(this);
+                if (event != null) {
+                    messagesStolen++;
+                }
+            }
+            if (event == null) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return event;
+        } finally {
+            idleSince = 0;
+            waitingTime = waitingTime + (System.nanoTime() - startTime);
+        }
+    }
+
+    // Invoked for each map job: map chunks of the list until none
+    // are left
+    private void processJob(MapJob job) {
+        long startTime = System.nanoTime();
+        busySince = startTime;
+        try {
+            if (interp == null) {
+                interp = new Interp();
+            }
+            job.run(interp, this);
+        } finally {
+            busySince = 0;
+            processingTime = processingTime + (System.nanoTime() - startTime);
+            messagesProcessed++;
+        }
+    }
+
     // Invoked once for each event ExecEvent processed in the
     // TJC compile thread.
     private void processEvent(ExecEvent event) {
@@ -141,6 +326,8 @@ public class FleetMember implements Runnable {
             System.out.println("PROCESS QUEUE EVENT: " + event);
         }
 
+        long startTime = System.nanoTime();
+        busySince = startTime;
         try {
             // Init interp if needed
             if (interp == null) {
@@ -171,6 +358,9 @@ public class FleetMember implements Runnable {
 
             event.callback.completed(1, fleet, this, TclString.newInstance(msg.toString()));
         } finally {
+            busySince = 0;
+            processingTime = processingTime + (System.nanoTime() - startTime);
+            messagesProcessed++;
             try {
                 TclObject[] cmdArgs = TclList.getElements(interp, event.callback.messageList);
                 for (TclObject cmdArg : cmdArgs) {
@@ -183,26 +373,48 @@ public class FleetMember implements Runnable {
         }
     }
 
+    // Time spent evaluating messages, in seconds, including the
+    // message that is being evaluated now
     public double getProcessingTime() {
-        return processingTime/1.0e9;
+        long since = busySince;
+        long time = processingTime;
+        if (since != 0) {
+            time += System.nanoTime() - since;
+        }
+        return time/1.0e9;
     }
 
+    // Time spent waiting for messages, in seconds, including the
+    // current wait
     public double getWaitingTime() {
-        return waitingTime/1.0e9;
+        long since = idleSince;
+        long time = waitingTime;
+        if (since != 0) {
+            time += System.nanoTime() - since;
+        }
+        return time/1.0e9;
+    }
+
+    // Number of messages evaluated so far
+    public long getMessagesProcessed() {
+        return messagesProcessed;
+    }
+
+    // Number of messages taken from the queues of other members
+    public long getMessagesStolen() {
+        return messagesStolen;
     }
 
     private void evalScript(Message callback) throws TclException {
         if (debug) {
             System.out.println("evalCmd ");
         }
-        long startTime = System.nanoTime();
 
         interp.eval(callback.messageList, TCL.EVAL_GLOBAL);
         // fixme need to worry about refcount etc of sending result as TclObject
 
         TclObject result = interp.getResult().duplicate();
         result.preserve();
-        processingTime = processingTime + (System.nanoTime() - startTime);
         //interp.resetResult();
         callback.completed(0, fleet, this, result);
     }
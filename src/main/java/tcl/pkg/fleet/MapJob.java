@@ -0,0 +1,154 @@
+package tcl.pkg.fleet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import tcl.lang.*;
+
+/**
+ * A list that is mapped by the members of a fleet, for "fleetName map".
+ * Each member of the fleet gets one MapJob message, and then takes chunks
+ * of the list until none are left, so members that are fast, or have
+ * nothing else queued, do more of the work. The elements, the lambda and
+ * the results are passed between the threads as Strings, since a TclObject
+ * must only be used by the interp that it belongs to.
+ */
+class MapJob {
+
+    private final String lambda;
+    private final String[] elements;
+    private final String[] results;
+    private final int chunkSize;
+    private final int chunkCount;
+    // The next chunk to hand out
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    // Set when a lambda fails, or the caller gives up
+    private volatile boolean cancelled = false;
+    // Guarded by this
+    private int chunksDone = 0;
+    private int membersLeft;
+    private String errorMsg = null;
+    private String errorInfo = null;
+
+    MapJob(final String lambda, final String[] elements, final int chunkSize, final int memberCount) {
+        this.lambda = lambda;
+        this.elements = elements;
+        this.results = new String[elements.length];
+        this.chunkSize = chunkSize;
+        this.chunkCount = (elements.length + chunkSize - 1) / chunkSize;
+        this.membersLeft = memberCount;
+    }
+
+    // Invoked by a member thread: apply the lambda to the elements of
+    // chunks until all chunks are taken or the job is cancelled.
+    void run(final Interp interp, final FleetMember member) {
+        TclObject applyObj = TclString.newInstance("apply");
+        TclObject lambdaObj = TclString.newInstance(lambda);
+        applyObj.preserve();
+        lambdaObj.preserve();
+        int i = -1;
+        try {
+            int chunk;
+            while (!cancelled && (chunk = nextChunk.getAndIncrement()) < chunkCount) {
+                int end = Math.min((chunk + 1) * chunkSize, elements.length);
+                for (i = chunk * chunkSize; i < end; i++) {
+                    if (cancelled) {
+                        return;
+                    }
+                    TclObject[] objv = { applyObj, lambdaObj, TclString.newInstance(elements[i]) };
+                    objv[2].preserve();
+                    try {
+                        TclLambda.apply(interp, lambdaObj, objv);
+                        results[i] = interp.getResult().toString();
+                    } finally {
+                        objv[2].release();
+                    }
+                }
+                chunkDone();
+            }
+        } catch (TclException e) {
+            String msg = interp.getResult().toString();
+            String info = msg;
+            try {
+                info = interp.getVar("errorInfo", null, TCL.GLOBAL_ONLY).toString();
+            } catch (TclException e2) {
+            }
+            fail(msg, info + "\n    (mapping element " + i + " in fleet member \"" + member.getName() + "\")");
+        } catch (RuntimeException e) {
+            fail("error mapping element " + i + " in fleet member \"" + member.getName() + "\": " + e, null);
+        } finally {
+            applyObj.release();
+            lambdaObj.release();
+            interp.resetResult();
+            memberDone();
+        }
+    }
+
+    private synchronized void chunkDone() {
+        chunksDone++;
+        if (chunksDone == chunkCount) {
+            notifyAll();
+        }
+    }
+
+    // Invoked when a member has finished with the job, or dropped it
+    // from its queue
+    synchronized void memberDone() {
+        membersLeft--;
+        if (membersLeft == 0 && chunksDone < chunkCount && !cancelled) {
+            fail("fleet map: no members left to map the list", null);
+        }
+    }
+
+    private synchronized void fail(final String msg, final String info) {
+        if (errorMsg == null) {
+            errorMsg = msg;
+            errorInfo = info;
+        }
+        cancel();
+    }
+
+    // Stop handing out chunks; members stop after their current element
+    synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    /**
+     * Wait until all elements are mapped, or the job fails
+     *
+     * @param interp the interp that waits, for error messages
+     * @param timeout maximum time to wait in milliseconds, or 0 to wait
+     *            as long as it takes
+     * @return the results, in the order of the elements
+     * @throws TclException if a lambda failed, or the job timed out or was
+     *             interrupted; the job is cancelled then
+     */
+    String[] await(final Interp interp, final long timeout) throws TclException {
+        synchronized (this) {
+            long deadline = System.nanoTime() + timeout * 1000000L;
+            try {
+                while (!cancelled && chunksDone < chunkCount) {
+                    if (timeout == 0) {
+                        wait();
+                    } else {
+                        long left = (deadline - System.nanoTime()) / 1000000L;
+                        if (left <= 0) {
+                            fail("fleet map timed out", null);
+                            break;
+                        }
+                        wait(left);
+                    }
+                }
+            } catch (InterruptedException e) {
+                fail("fleet map interrupted", null);
+            }
+            if (errorMsg == null) {
+                return results;
+            }
+        }
+        TclException tclE = new TclException(interp, errorMsg);
+        if (errorInfo != null && errorInfo.startsWith(errorMsg)) {
+            interp.addErrorInfo(errorInfo.substring(errorMsg.length()));
+        }
+        throw tclE;
+    }
+}
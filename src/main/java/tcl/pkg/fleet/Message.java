@@ -15,6 +15,9 @@ class Message extends TclEvent implements
     String errorMsg = "";
     FleetCmd fleet=null;
     String memberName="";
+    // the member the message was sent to; memberName is the member
+    // that evaluated it, which differs if the message was stolen
+    String targetName="";
     int count=0;
 
     Message(Interp interp, TclObject messageList,String readyCmd,
@@ -100,6 +103,7 @@ class Message extends TclEvent implements
 
                 TclDict.put(interp, tDict, TclString.newInstance("fleet"),TclString.newInstance(fleet.fleetName));
                 TclDict.put(interp, tDict, TclString.newInstance("member"),TclString.newInstance(memberName));
+                TclDict.put(interp, tDict, TclString.newInstance("target"),TclString.newInstance(targetName));
                 TclDict.put(interp, tDict, TclString.newInstance("value"),result);
                 TclDict.put(interp, tDict, TclString.newInstance("count"),TclInteger.newInstance(count));
 
@@ -123,6 +127,7 @@ class Message extends TclEvent implements
 
                 TclDict.put(interp, tDict, TclString.newInstance("fleet"),TclString.newInstance(fleet.fleetName));
                 TclDict.put(interp, tDict, TclString.newInstance("member"),TclString.newInstance(memberName));
+                TclDict.put(interp, tDict, TclString.newInstance("target"),TclString.newInstance(targetName));
                 TclDict.put(interp, tDict, TclString.newInstance("value"),result);
                 TclDict.put(interp, tDict, TclString.newInstance("count"),TclInteger.newInstance(count));
                 TclList.append(interp,tlist,tDict);
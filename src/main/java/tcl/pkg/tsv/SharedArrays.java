@@ -0,0 +1,267 @@
+/*
+ * SharedArrays.java --
+ *
+ *	The storage of the tsv package: named arrays that are shared by
+ *	all interpreters in the JVM.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ */
+
+package tcl.pkg.tsv;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import tcl.lang.Util;
+
+/**
+ * Named arrays of Strings shared by all interpreters in the JVM, whatever
+ * thread they run in. A TclObject must only be used by the thread of its
+ * interpreter, so values are stored as Strings, which are immutable and can
+ * be read by any thread; an interpreter makes a new TclObject of a value
+ * when it reads it.
+ * <p>
+ * The arrays and their elements are kept in ConcurrentHashMaps, which are
+ * split into independently locked segments, so reads never lock and
+ * writes to different elements rarely contend. Operations that derive a new
+ * value from the old one (incr, append, lappend) retry a compare-and-swap of
+ * the element until no other thread changed it in between, so they are
+ * atomic without a lock. A write that stored its value in an array that
+ * another thread removed at the same time is done again in the array that
+ * is registered now, so writes are never lost in a removed array.
+ * <p>
+ * Java code can use this class to share values with scripts.
+ */
+public class SharedArrays {
+	/**
+	 * Number of segments of the maps, that is, of writers that can update
+	 * a map at the same time
+	 */
+	private static final int CONCURRENCY = 64;
+
+	/**
+	 * The shared arrays, by name
+	 */
+	private static final ConcurrentMap<String, ConcurrentMap<String, String>> arrays = new ConcurrentHashMap<String, ConcurrentMap<String, String>>(
+			16, 0.75f, CONCURRENCY);
+
+	private SharedArrays() {
+	}
+
+	/**
+	 * @return the array called name, or null if it doesn't exist
+	 */
+	public static ConcurrentMap<String, String> getArray(String name) {
+		return arrays.get(name);
+	}
+
+	/**
+	 * @return the array called name, created if it doesn't exist
+	 */
+	public static ConcurrentMap<String, String> getOrCreateArray(String name) {
+		ConcurrentMap<String, String> array = arrays.get(name);
+		if (array == null) {
+			array = new ConcurrentHashMap<String, String>(16, 0.75f, CONCURRENCY);
+			ConcurrentMap<String, String> other = arrays.putIfAbsent(name, array);
+			if (other != null) {
+				array = other;
+			}
+		}
+		return array;
+	}
+
+	/**
+	 * Replace an array by a new one with the given elements, in one step
+	 */
+	public static void replaceArray(String name, Map<String, String> elements) {
+		ConcurrentMap<String, String> array = new ConcurrentHashMap<String, String>(Math.max(16,
+				(int) (elements.size() / 0.75f) + 1), 0.75f, CONCURRENCY);
+		array.putAll(elements);
+		arrays.put(name, array);
+	}
+
+	/**
+	 * Remove an array with all its elements
+	 *
+	 * @return true if the array existed
+	 */
+	public static boolean removeArray(String name) {
+		return arrays.remove(name) != null;
+	}
+
+	/**
+	 * @return the value of an element, or null if the element or the array
+	 *         doesn't exist
+	 */
+	public static String get(String array, String key) {
+		ConcurrentMap<String, String> map = arrays.get(array);
+		return map == null ? null : map.get(key);
+	}
+
+	/**
+	 * @return true if map is still the array called name; false if the
+	 *         array was removed or replaced, so that a write to map was lost
+	 */
+	private static boolean isRegistered(String name, ConcurrentMap<String, String> map) {
+		return arrays.get(name) == map;
+	}
+
+	/**
+	 * Set the value of an element, creating the array if needed
+	 */
+	public static void set(String array, String key, String value) {
+		ConcurrentMap<String, String> map;
+		do {
+			map = getOrCreateArray(array);
+			map.put(key, value);
+		} while (!isRegistered(array, map));
+	}
+
+	/**
+	 * Set the values of elements, creating the array if needed
+	 */
+	public static void setAll(String array, Map<String, String> elements) {
+		ConcurrentMap<String, String> map;
+		do {
+			map = getOrCreateArray(array);
+			map.putAll(elements);
+		} while (!isRegistered(array, map));
+	}
+
+	/**
+	 * Set the value of an element, unless it already has a value
+	 *
+	 * @return the value the element had, or null if value was stored
+	 */
+	public static String setIfAbsent(String array, String key, String value) {
+		while (true) {
+			ConcurrentMap<String, String> map = getOrCreateArray(array);
+			String old = map.putIfAbsent(key, value);
+			if (isRegistered(array, map)) {
+				return old;
+			}
+		}
+	}
+
+	/**
+	 * Replace the value of an element, if it is equal to expected
+	 *
+	 * @return true if the value was replaced
+	 */
+	public static boolean compareAndSet(String array, String key, String expected, String value) {
+		while (true) {
+			ConcurrentMap<String, String> map = arrays.get(array);
+			if (map == null) {
+				return false;
+			}
+			boolean replaced = map.replace(key, expected, value);
+			if (!replaced || isRegistered(array, map)) {
+				return replaced;
+			}
+		}
+	}
+
+	/**
+	 * Remove an element
+	 *
+	 * @return true if the element existed
+	 */
+	public static boolean remove(String array, String key) {
+		ConcurrentMap<String, String> map = arrays.get(array);
+		return map != null && map.remove(key) != null;
+	}
+
+	/**
+	 * Compute the new value of an element from its old value
+	 */
+	public static interface Update {
+		/**
+		 * @param oldValue
+		 *            the value of the element, or null if it has none
+		 * @return the new value; must not be null
+		 * @throws Exception
+		 *             to leave the element as it is
+		 */
+		String update(String oldValue) throws Exception;
+	}
+
+	/**
+	 * Atomically replace the value of an element by a value computed from
+	 * it. If another thread changes the element while the new value is
+	 * computed, the value is computed again from the other thread's value,
+	 * so update may be called more than once.
+	 *
+	 * @return the new value
+	 * @throws Exception
+	 *             if update throws one; the element isn't changed then
+	 */
+	public static String update(String array, String key, Update update) throws Exception {
+		while (true) {
+			ConcurrentMap<String, String> map = getOrCreateArray(array);
+			String oldValue = map.get(key);
+			String newValue = update.update(oldValue);
+			boolean stored;
+			if (oldValue == null) {
+				stored = map.putIfAbsent(key, newValue) == null;
+			} else {
+				stored = map.replace(key, oldValue, newValue);
+			}
+			if (stored && isRegistered(array, map)) {
+				return newValue;
+			}
+		}
+	}
+
+	/**
+	 * @return the names of the arrays that match the glob pattern, or of all
+	 *         arrays if pattern is null
+	 */
+	public static ArrayList<String> names(String pattern) {
+		return match(arrays.keySet(), pattern);
+	}
+
+	/**
+	 * @return the keys of the array that match the glob pattern, or all keys
+	 *         if pattern is null; an empty list if the array doesn't exist
+	 */
+	public static ArrayList<String> keys(String array, String pattern) {
+		ConcurrentMap<String, String> map = arrays.get(array);
+		if (map == null) {
+			return new ArrayList<String>();
+		}
+		return match(map.keySet(), pattern);
+	}
+
+	/**
+	 * @return the keys and values of the array, for keys that match the glob
+	 *         pattern, or for all keys if pattern is null; an empty list if
+	 *         the array doesn't exist
+	 */
+	public static ArrayList<String> getAll(String array, String pattern) {
+		ArrayList<String> result = new ArrayList<String>();
+		ConcurrentMap<String, String> map = arrays.get(array);
+		if (map != null) {
+			for (Map.Entry<String, String> entry : map.entrySet()) {
+				if (pattern == null || Util.stringMatch(entry.getKey(), pattern)) {
+					result.add(entry.getKey());
+					result.add(entry.getValue());
+				}
+			}
+		}
+		return result;
+	}
+
+	private static ArrayList<String> match(Iterable<String> names, String pattern) {
+		ArrayList<String> result = new ArrayList<String>();
+		for (String name : names) {
+			if (pattern == null || Util.stringMatch(name, pattern)) {
+				result.add(name);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * TsvCmd.java --
+ *
+ *	Implements the commands of the tsv package.
+ *
+ * See the file "license.terms" for information on usage and
+ * redistribution of this file, and for a DISCLAIMER OF ALL
+ * WARRANTIES.
+ */
+
+package tcl.pkg.tsv;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import tcl.lang.Command;
+import tcl.lang.Interp;
+import tcl.lang.TclException;
+import tcl.lang.TclIndex;
+import tcl.lang.TclInteger;
+import tcl.lang.TclList;
+import tcl.lang.TclNumArgsException;
+import tcl.lang.TclObject;
+import tcl.lang.TclRuntimeError;
+import tcl.lang.TclString;
+
+/**
+ * This class implements the commands of the tsv package, which share
+ * variables between interpreters in different threads:
+ *
+ * <pre>
+ * tsv::set array key ?value?
+ * tsv::get array key ?varName?
+ * tsv::unset array ?key?
+ * tsv::exists array ?key?
+ * tsv::incr array key ?increment?
+ * tsv::append array key value ?value ...?
+ * tsv::lappend array key value ?value ...?
+ * tsv::setifabsent array key value
+ * tsv::cas array key expected value
+ * tsv::names ?pattern?
+ * tsv::keys array ?pattern?
+ * tsv::array set|reset array list
+ * tsv::array get array ?pattern?
+ * tsv::array size array
+ * </pre>
+ *
+ * The values are kept in SharedArrays. incr, append and lappend are atomic.
+ * setifabsent sets an element that has no value and returns the value the
+ * element has afterwards. cas sets an element to value if its value is
+ * equal to expected, and returns 1 if it did. lappend appends the elements
+ * to the value as a string, like lappend of a variable, without checking
+ * that the old value is a list.
+ */
+public class TsvCmd implements Command {
+
+	static final int SET = 0;
+	static final int GET = 1;
+	static final int UNSET = 2;
+	static final int EXISTS = 3;
+	static final int INCR = 4;
+	static final int APPEND = 5;
+	static final int LAPPEND = 6;
+	static final int SETIFABSENT = 7;
+	static final int CAS = 8;
+	static final int NAMES = 9;
+	static final int KEYS = 10;
+	static final int ARRAY = 11;
+
+	/**
+	 * Names of the commands, in the order of the numbers above
+	 */
+	static final String[] cmdNames = { "set", "get", "unset", "exists", "incr", "append", "lappend",
+			"setifabsent", "cas", "names", "keys", "array" };
+
+	static final private String arrayOptions[] = { "get", "reset", "set", "size" };
+	static final private int OPT_ARRAY_GET = 0;
+	static final private int OPT_ARRAY_RESET = 1;
+	static final private int OPT_ARRAY_SET = 2;
+	static final private int OPT_ARRAY_SIZE = 3;
+
+	/**
+	 * Which command this is
+	 */
+	private final int op;
+
+	TsvCmd(int op) {
+		this.op = op;
+	}
+
+	public void cmdProc(Interp interp, TclObject[] objv) throws TclException {
+		switch (op) {
+		case SET: {
+			if (objv.length != 3 && objv.length != 4) {
+				throw new TclNumArgsException(interp, 1, objv, "array key ?value?");
+			}
+			String array = objv[1].toString();
+			String key = objv[2].toString();
+			if (objv.length == 4) {
+				SharedArrays.set(array, key, objv[3].toString());
+				interp.setResult(objv[3]);
+			} else {
+				interp.setResult(getValue(interp, array, key));
+			}
+			break;
+		}
+		case GET: {
+			if (objv.length != 3 && objv.length != 4) {
+				throw new TclNumArgsException(interp, 1, objv, "array key ?varName?");
+			}
+			String array = objv[1].toString();
+			String key = objv[2].toString();
+			if (objv.length == 4) {
+				String value = SharedArrays.get(array, key);
+				if (value != null) {
+					interp.setVar(objv[3], TclString.newInstance(value), 0);
+				}
+				interp.setResult(value != null);
+			} else {
+				interp.setResult(getValue(interp, array, key));
+			}
+			break;
+		}
+		case UNSET: {
+			if (objv.length != 2 && objv.length != 3) {
+				throw new TclNumArgsException(interp, 1, objv, "array ?key?");
+			}
+			String array = objv[1].toString();
+			if (objv.length == 3) {
+				String key = objv[2].toString();
+				if (!SharedArrays.remove(array, key)) {
+					throw new TclException(interp, "no key \"" + key + "\" in shared array \"" + array + "\"");
+				}
+			} else if (!SharedArrays.removeArray(array)) {
+				throw new TclException(interp, "no shared array \"" + array + "\"");
+			}
+			interp.resetResult();
+			break;
+		}
+		case EXISTS: {
+			if (objv.length != 2 && objv.length != 3) {
+				throw new TclNumArgsException(interp, 1, objv, "array ?key?");
+			}
+			String array = objv[1].toString();
+			if (objv.length == 3) {
+				interp.setResult(SharedArrays.get(array, objv[2].toString()) != null);
+			} else {
+				interp.setResult(SharedArrays.getArray(array) != null);
+			}
+			break;
+		}
+		case INCR: {
+			if (objv.length != 3 && objv.length != 4) {
+				throw new TclNumArgsException(interp, 1, objv, "array key ?increment?");
+			}
+			final long incr = (objv.length == 4) ? TclInteger.getLong(interp, objv[3]) : 1;
+			final Interp fInterp = interp;
+			String value = update(interp, objv, new SharedArrays.Update() {
+				public String update(String oldValue) throws TclException {
+					long old = 0;
+					if (oldValue != null) {
+						old = TclInteger.getLong(fInterp, TclString.newInstance(oldValue));
+					}
+					return Long.toString(old + incr);
+				}
+			});
+			interp.setResult(TclInteger.newInstance(Long.parseLong(value)));
+			break;
+		}
+		case APPEND:
+		case LAPPEND: {
+			if (objv.length < 4) {
+				throw new TclNumArgsException(interp, 1, objv, "array key value ?value ...?");
+			}
+			final String added;
+			if (op == APPEND) {
+				StringBuilder sb = new StringBuilder();
+				for (int i = 3; i < objv.length; i++) {
+					sb.append(objv[i].toString());
+				}
+				added = sb.toString();
+			} else {
+				TclObject list = TclList.newInstance();
+				for (int i = 3; i < objv.length; i++) {
+					TclList.append(interp, list, objv[i]);
+				}
+				added = list.toString();
+			}
+			final boolean isList = (op == LAPPEND);
+			String value = update(interp, objv, new SharedArrays.Update() {
+				public String update(String oldValue) {
+					if (oldValue == null || oldValue.length() == 0) {
+						return added;
+					}
+					return isList ? oldValue + " " + added : oldValue + added;
+				}
+			});
+			interp.setResult(value);
+			break;
+		}
+		case SETIFABSENT: {
+			if (objv.length != 4) {
+				throw new TclNumArgsException(interp, 1, objv, "array key value");
+			}
+			String old = SharedArrays.setIfAbsent(objv[1].toString(), objv[2].toString(), objv[3].toString());
+			if (old == null) {
+				interp.setResult(objv[3]);
+			} else {
+				interp.setResult(old);
+			}
+			break;
+		}
+		case CAS: {
+			if (objv.length != 5) {
+				throw new TclNumArgsException(interp, 1, objv, "array key expected value");
+			}
+			interp.setResult(SharedArrays.compareAndSet(objv[1].toString(), objv[2].toString(),
+					objv[3].toString(), objv[4].toString()));
+			break;
+		}
+		case NAMES: {
+			if (objv.length > 2) {
+				throw new TclNumArgsException(interp, 1, objv, "?pattern?");
+			}
+			String pattern = (objv.length == 2) ? objv[1].toString() : null;
+			interp.setResult(toList(interp, SharedArrays.names(pattern)));
+			break;
+		}
+		case KEYS: {
+			if (objv.length != 2 && objv.length != 3) {
+				throw new TclNumArgsException(interp, 1, objv, "array ?pattern?");
+			}
+			String pattern = (objv.length == 3) ? objv[2].toString() : null;
+			interp.setResult(toList(interp, SharedArrays.keys(objv[1].toString(), pattern)));
+			break;
+		}
+		case ARRAY:
+			arrayCmd(interp, objv);
+			break;
+		default:
+			throw new TclRuntimeError("TsvCmd.cmdProc() error: unknown command " + op);
+		}
+	}
+
+	private void arrayCmd(Interp interp, TclObject[] objv) throws TclException {
+		if (objv.length < 3) {
+			throw new TclNumArgsException(interp, 1, objv, "option array ?arg?");
+		}
+		int index = TclIndex.get(interp, objv[1], arrayOptions, "option", 0);
+		String array = objv[2].toString();
+		switch (index) {
+		case OPT_ARRAY_GET: {
+			if (objv.length > 4) {
+				throw new TclNumArgsException(interp, 2, objv, "array ?pattern?");
+			}
+			String pattern = (objv.length == 4) ? objv[3].toString() : null;
+			interp.setResult(toList(interp, SharedArrays.getAll(array, pattern)));
+			break;
+		}
+		case OPT_ARRAY_RESET:
+		case OPT_ARRAY_SET: {
+			if (objv.length != 4) {
+				throw new TclNumArgsException(interp, 2, objv, "array list");
+			}
+			TclObject[] elems = TclList.getElements(interp, objv[3]);
+			if (elems.length % 2 != 0) {
+				throw new TclException(interp, "list must have an even number of elements");
+			}
+			LinkedHashMap<String, String> elements = new LinkedHashMap<String, String>();
+			for (int i = 0; i < elems.length; i += 2) {
+				elements.put(elems[i].toString(), elems[i + 1].toString());
+			}
+			if (index == OPT_ARRAY_RESET) {
+				SharedArrays.replaceArray(array, elements);
+			} else {
+				SharedArrays.setAll(array, elements);
+			}
+			interp.resetResult();
+			break;
+		}
+		case OPT_ARRAY_SIZE: {
+			if (objv.length != 3) {
+				throw new TclNumArgsException(interp, 2, objv, "array");
+			}
+			Map<String, String> map = SharedArrays.getArray(array);
+			interp.setResult(map == null ? 0 : map.size());
+			break;
+		}
+		default:
+			throw new TclRuntimeError("TsvCmd.arrayCmd() error: incorrect index returned from TclIndex.get()");
+		}
+	}
+
+	/**
+	 * @return the value of an element
+	 * @throws TclException
+	 *             if it doesn't exist
+	 */
+	private static String getValue(Interp interp, String array, String key) throws TclException {
+		String value = SharedArrays.get(array, key);
+		if (value == null) {
+			throw new TclException(interp, "no key \"" + key + "\" in shared array \"" + array + "\"");
+		}
+		return value;
+	}
+
+	/**
+	 * Atomically update the element objv[1], objv[2]
+	 */
+	private static String update(Interp interp, TclObject[] objv, SharedArrays.Update update)
+			throws TclException {
+		try {
+			return SharedArrays.update(objv[1].toString(), objv[2].toString(), update);
+		} catch (TclException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new TclException(interp, e.toString());
+		}
+	}
+
+	private static TclObject toList(Interp interp, ArrayList<String> strings) throws TclException {
+		TclObject list = TclList.newInstance();
+		for (String s : strings) {
+			TclList.append(interp, list, TclString.newInstance(s));
+		}
+		return list;
+	}
+}
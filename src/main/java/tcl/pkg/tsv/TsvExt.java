@@ -0,0 +1,22 @@
+package tcl.pkg.tsv;
+
+import tcl.lang.Extension;
+import tcl.lang.Interp;
+
+/**
+ * The Java extension of the "tsv" package, which creates the tsv::*
+ * commands that share arrays between interpreters and threads.
+ */
+public class TsvExt extends Extension {
+
+	/**
+	 * Create the tsv::* commands
+	 *
+	 * @param interp
+	 */
+	public void init(Interp interp) {
+		for (int i = 0; i < TsvCmd.cmdNames.length; i++) {
+			interp.createCommand("::tsv::" + TsvCmd.cmdNames[i], new TsvCmd(i));
+		}
+	}
+}
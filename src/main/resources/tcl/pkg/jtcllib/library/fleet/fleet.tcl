@@ -17,7 +17,9 @@ proc ::fleet::processReply {reply} {
    } else {
        set fleet [dict get $reply fleet]
        upvar #0 ::fleet::${fleet}::pars pars
-       set memberName [dict get $reply member]
+       # the member the message was sent to, which is not the member
+       # that evaluated it if another member stole the message
+       set memberName [dict get $reply target]
        set value [dict get $reply value]
        $pars(calcProc) $value
        incr pars(nResults) 
@@ -61,8 +63,8 @@ proc ::fleet::sendMessagesToMember {fleet member newCount} {
     }
 }
 
-proc ::fleet::initFleet {nMembers {script {}} } {
-   set fleet [fleet create]
+proc ::fleet::initFleet {nMembers {script {}} args} {
+   set fleet [eval fleet create $args]
    upvar #0 ::fleet::${fleet}::pars pars
    array set pars {
        nMembers 2
@@ -85,7 +87,7 @@ proc ::fleet::initFleet {nMembers {script {}} } {
        set pars($member,nSent) 0
        set pars($member,nResults) 0
        if {$script ne {}} {
-           $fleet tell $pars(members,$i) $script -reply ::fleet::initResults
+           $fleet tell $pars(members,$i) $script -reply ::fleet::initResults -pin
        }
    }
    return $fleet
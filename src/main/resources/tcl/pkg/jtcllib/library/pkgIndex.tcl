@@ -13,5 +13,6 @@ set maindir $dir
 set dir [file join $maindir hyde] ;	 source [file join $dir pkgIndex.tcl]
 set dir [file join $maindir ziplib] ;	 source [file join $dir pkgIndex.tcl]
 set dir [file join $maindir fleet] ;	 source [file join $dir pkgIndex.tcl]
+set dir [file join $maindir tsv] ;	 source [file join $dir pkgIndex.tcl]
 unset maindir
 
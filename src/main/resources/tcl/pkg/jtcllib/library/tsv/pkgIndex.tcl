@@ -0,0 +1 @@
+package ifneeded tsv 1.0 "source [file join $dir tsv.tcl]"
@@ -0,0 +1,5 @@
+package provide tsv 1.0
+package require java
+
+namespace eval ::tsv {}
+java::load tcl.pkg.tsv.TsvExt
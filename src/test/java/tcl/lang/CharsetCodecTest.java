@@ -0,0 +1,169 @@
+package tcl.lang;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class CharsetCodecTest extends TestCase {
+
+	private static final String MIXED = "plain ascii, caf\u00e9, \u20ac 5, \u4e2d\u6587, "
+			+ "\ud834\udd1e, then ascii again";
+
+	/**
+	 * Decode with a fresh JDK decoder, for the expected results
+	 */
+	private static String reference(String javaName, byte[] bytes, CodingErrorAction onMalformed)
+			throws CharacterCodingException {
+		CharsetDecoder csd = Charset.forName(javaName).newDecoder();
+		csd.onMalformedInput(onMalformed);
+		csd.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		return csd.decode(ByteBuffer.wrap(bytes)).toString();
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	/**
+	 * Decode all of bytes with both decode methods, check that they agree,
+	 * and return the result
+	 */
+	private static String decode(String javaName, byte[] bytes, CodingErrorAction onMalformed) {
+		String str = CharsetCodec.decode(javaName, bytes, 0, bytes.length, onMalformed);
+		char[] chars = new char[3 + bytes.length * 2];
+		int n = CharsetCodec.decode(javaName, bytes, 0, bytes.length, chars, 3, onMalformed);
+		assertEquals(str, new String(chars, 3, n));
+		return str;
+	}
+
+	public void testLatin1() throws Exception {
+		byte[] all = new byte[256];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = (byte) i;
+		}
+		String str = decode("ISO-8859-1", all, CodingErrorAction.IGNORE);
+		assertEquals(reference("ISO-8859-1", all, CodingErrorAction.IGNORE), str);
+		assertEquals('\u00ff', str.charAt(255));
+		assertEquals("caf\u00e9?", new String(CharsetCodec.encode("ISO-8859-1", "caf\u00e9\u20ac"), "ISO-8859-1"));
+	}
+
+	public void testAsciiNonAsciiBytes() throws Exception {
+		byte[] bytes = bytes('a', 0xe9, 'b', 0x80, 0xff, 'c');
+		assertEquals("a\ufffdb\ufffd\ufffdc", decode("US-ASCII", bytes, CodingErrorAction.REPLACE));
+		assertEquals("abc", decode("US-ASCII", bytes, CodingErrorAction.IGNORE));
+		assertEquals(reference("US-ASCII", bytes, CodingErrorAction.REPLACE),
+				decode("US-ASCII", bytes, CodingErrorAction.REPLACE));
+		assertEquals(reference("US-ASCII", bytes, CodingErrorAction.IGNORE),
+				decode("US-ASCII", bytes, CodingErrorAction.IGNORE));
+		assertEquals("caf?", new String(CharsetCodec.encode("US-ASCII", "caf\u00e9"), "US-ASCII"));
+	}
+
+	public void testUtf8MixedText() throws Exception {
+		byte[] bytes = MIXED.getBytes("UTF-8");
+		assertTrue(Arrays.equals(bytes, CharsetCodec.encode("UTF-8", MIXED)));
+		assertEquals(MIXED, decode("UTF-8", bytes, CodingErrorAction.REPLACE));
+		assertEquals(MIXED, decode("UTF-8", bytes, CodingErrorAction.IGNORE));
+
+		String bmp = "ascii \u00e9\u20ac\u4e2d ascii";
+		assertTrue(Arrays.equals(bmp.getBytes("UTF-8"), CharsetCodec.encode("UTF-8", bmp)));
+		assertEquals("only ascii", decode("UTF-8", "only ascii".getBytes("UTF-8"), CodingErrorAction.REPLACE));
+		assertEquals("", decode("UTF-8", new byte[0], CodingErrorAction.REPLACE));
+	}
+
+	public void testUtf8MalformedBytes() throws Exception {
+		// a stray continuation byte, an invalid byte, and a truncated
+		// sequence at the end, between and after valid text
+		byte[] bytes = bytes('a', 'b', 0x80, 'c', 0xc3, 0xa9, 0xff, 'd', 0xe2, 0x82);
+		for (CodingErrorAction onMalformed : new CodingErrorAction[] { CodingErrorAction.REPLACE,
+				CodingErrorAction.IGNORE }) {
+			assertEquals(onMalformed.toString(), reference("UTF-8", bytes, onMalformed),
+					decode("UTF-8", bytes, onMalformed));
+		}
+		assertEquals("abc\u00e9d", decode("UTF-8", bytes, CodingErrorAction.IGNORE));
+		assertTrue(decode("UTF-8", bytes, CodingErrorAction.REPLACE).startsWith("ab\ufffdc\u00e9\ufffdd"));
+	}
+
+	public void testOtherCharset() throws Exception {
+		String text = "ascii \u65e5\u672c\u8a9e ascii";
+		byte[] bytes = text.getBytes("Shift_JIS");
+		assertTrue(Arrays.equals(bytes, CharsetCodec.encode("Shift_JIS", text)));
+		assertEquals(text, decode("Shift_JIS", bytes, CodingErrorAction.REPLACE));
+		byte[] utf16 = MIXED.getBytes("UTF-16BE");
+		assertEquals(MIXED, decode("UTF-16BE", utf16, CodingErrorAction.REPLACE));
+	}
+
+	public void testReportIsRejected() {
+		byte[] bytes = bytes('a', 0xff);
+		try {
+			CharsetCodec.decode("UTF-8", bytes, 0, bytes.length, CodingErrorAction.REPORT);
+			fail("REPORT accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			CharsetCodec.decode("US-ASCII", bytes, 0, bytes.length, new char[2], 0, CodingErrorAction.REPORT);
+			fail("REPORT accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * The pooled decoder of a thread is reset between calls, and takes the
+	 * error action of each call
+	 */
+	public void testPooledDecoderReuse() throws Exception {
+		byte[] bad = bytes('x', 0xe2, 0x82);
+		byte[] good = "\u20ac!".getBytes("UTF-8");
+		assertEquals("x", decode("UTF-8", bad, CodingErrorAction.IGNORE));
+		assertEquals("\u20ac!", decode("UTF-8", good, CodingErrorAction.REPLACE));
+		assertEquals("x\ufffd", decode("UTF-8", bad, CodingErrorAction.REPLACE));
+		assertEquals("x", decode("UTF-8", bad, CodingErrorAction.IGNORE));
+		assertEquals("\u20ac!", decode("UTF-8", good, CodingErrorAction.IGNORE));
+	}
+
+	public void testPooledCodersInManyThreads() throws Exception {
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final String text = t + " " + MIXED + " " + t;
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 2000; i++) {
+							String javaName = (i % 2 == 0) ? "UTF-8" : "Shift_JIS";
+							String expected = (i % 2 == 0) ? text : new String(text.getBytes(javaName), javaName);
+							byte[] bytes = CharsetCodec.encode(javaName, text);
+							String str = CharsetCodec.decode(javaName, bytes, 0, bytes.length,
+									CodingErrorAction.REPLACE);
+							if (!str.equals(expected)) {
+								throw new AssertionError(javaName + ": " + str);
+							}
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(errors.toString(), 0, errors.size());
+	}
+}
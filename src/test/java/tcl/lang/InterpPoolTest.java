@@ -0,0 +1,101 @@
+package tcl.lang;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+public class InterpPoolTest extends TestCase {
+
+	private static final String INIT = "set a 1; array set arr {x 1 y 2}; "
+			+ "proc base {} {return base}; namespace eval basens {variable v 5}";
+
+	private InterpPool pool;
+
+	public void setUp() {
+		pool = new InterpPool(INIT, 2, 0);
+	}
+
+	public void tearDown() {
+		pool.disposeIdle();
+	}
+
+	/**
+	 * Lease an interp, evaluate script in it and release it, then lease
+	 * again, expecting the same interp back
+	 */
+	private Interp useAndReuse(String script) throws TclException {
+		Interp interp = pool.lease();
+		interp.eval(script);
+		pool.release(interp);
+		Interp again = pool.lease();
+		assertSame(interp, again);
+		assertEquals(1, pool.getReuseCount());
+		return again;
+	}
+
+	private String eval(Interp interp, String script) throws TclException {
+		interp.eval(script);
+		return interp.getResult().toString();
+	}
+
+	public void testVarsRestored() throws Exception {
+		Interp interp = useAndReuse("set a 2; set b 3; set arr(x) 10; set arr(z) 4; unset arr(y)");
+		assertEquals("1", eval(interp, "set a"));
+		assertEquals("0", eval(interp, "info exists b"));
+		assertEquals("1 2 x y", eval(interp, "lsort [array get arr]"));
+		pool.release(interp);
+	}
+
+	public void testProcsAndNamespacesRestored() throws Exception {
+		Interp interp = useAndReuse("proc extra {} {}; namespace eval newns {proc p {} {}}; "
+				+ "set basens::v 6; set basens::w 7");
+		assertEquals("base", eval(interp, "base"));
+		assertEquals("", eval(interp, "info commands extra"));
+		assertEquals("0", eval(interp, "namespace exists newns"));
+		assertEquals("5", eval(interp, "set basens::v"));
+		assertEquals("0", eval(interp, "info exists basens::w"));
+		pool.release(interp);
+	}
+
+	public void testChannelsClosed() throws Exception {
+		File file = File.createTempFile("pooltest", null);
+		try {
+			Interp interp = pool.lease();
+			String before = eval(interp, "lsort [file channels]");
+			TclObject cmd = TclList.newInstance();
+			TclList.append(interp, cmd, TclString.newInstance("open"));
+			TclList.append(interp, cmd, TclString.newInstance(file.getPath()));
+			interp.eval(cmd, 0);
+			pool.release(interp);
+			interp = pool.lease();
+			assertEquals(before, eval(interp, "lsort [file channels]"));
+			pool.release(interp);
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testTimersCancelled() throws Exception {
+		Interp interp = useAndReuse("after 100000 {set a 2}; after idle {set a 3}");
+		assertEquals("", eval(interp, "after info"));
+		pool.release(interp);
+	}
+
+	public void testSlavesDeleted() throws Exception {
+		Interp interp = useAndReuse("interp create child; interp create -safe child2");
+		assertEquals("", eval(interp, "interp slaves"));
+		pool.release(interp);
+	}
+
+	public void testRenamedProcDiscards() throws Exception {
+		Interp interp = pool.lease();
+		interp.eval("rename base renamed");
+		pool.release(interp);
+		assertEquals(1, pool.getDiscardCount());
+		assertEquals(0, pool.getIdleCount());
+		Interp other = pool.lease();
+		assertNotSame(interp, other);
+		assertEquals("base", eval(other, "base"));
+		pool.release(other);
+	}
+}
@@ -0,0 +1,192 @@
+package tcl.lang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class NotifierTest extends TestCase {
+
+	private Interp interp;
+	private Notifier notifier;
+
+	public void setUp() {
+		interp = new Interp();
+		notifier = interp.getNotifier();
+	}
+
+	public void tearDown() {
+		interp.dispose();
+	}
+
+	/**
+	 * Appends its name to a log when processed
+	 */
+	private static class LogEvent extends TclEvent {
+		private final List<String> log;
+		private final String name;
+
+		LogEvent(List<String> log, String name) {
+			this.log = log;
+			this.name = name;
+		}
+
+		public int processEvent(int flags) {
+			log.add(name);
+			return 1;
+		}
+	}
+
+	/**
+	 * Process the queued events without waiting
+	 */
+	private void drainEvents() {
+		while (notifier.doOneEvent(TCL.ALL_EVENTS | TCL.DONT_WAIT) != 0) {
+		}
+	}
+
+	/**
+	 * Run r in another thread and wait until it is done
+	 */
+	private static void runInThread(Runnable r) throws InterruptedException {
+		Thread thread = new Thread(r);
+		thread.start();
+		thread.join();
+	}
+
+	public void testEventFromOtherThreadWakesVwait() throws Exception {
+		final long[] times = new long[2];
+		interp.eval("set done 0; set guard [after 5000 {set done timeout}]");
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				times[0] = System.nanoTime();
+				notifier.queueEvent(new TclEvent() {
+					public int processEvent(int flags) {
+						times[1] = System.nanoTime();
+						try {
+							interp.setVar("done", "event", TCL.GLOBAL_ONLY);
+						} catch (TclException e) {
+						}
+						return 1;
+					}
+				}, TCL.QUEUE_TAIL);
+			}
+		};
+		producer.start();
+		interp.eval("vwait done; after cancel $guard");
+		producer.join();
+		assertEquals("event", interp.getVar("done", TCL.GLOBAL_ONLY).toString());
+		long delay = (times[1] - times[0]) / 1000000L;
+		assertTrue("event processed after " + delay + " ms", delay < 50);
+	}
+
+	public void testAfterFiresOnTimeWhileIdle() throws Exception {
+		interp.eval("set t0 [clock clicks -milliseconds]; after 1 {set fired [clock clicks -milliseconds]};"
+				+ " vwait fired; expr {$fired - $t0}");
+		long late = TclInteger.getLong(interp, interp.getResult());
+		assertTrue("after 1 fired after " + late + " ms", late < 50);
+
+		interp.eval("set t0 [clock clicks -milliseconds];"
+				+ " for {set i 0} {$i < 20} {incr i} {after 1 {set tick 1}; vwait tick};"
+				+ " expr {[clock clicks -milliseconds] - $t0}");
+		long total = TclInteger.getLong(interp, interp.getResult());
+		assertTrue("20 times after 1 took " + total + " ms", total < 300);
+
+		interp.eval("set t0 [clock clicks -milliseconds]; after 40 {set fired [clock clicks -milliseconds]};"
+				+ " vwait fired; expr {$fired - $t0}");
+		long elapsed = TclInteger.getLong(interp, interp.getResult());
+		assertTrue("after 40 fired after " + elapsed + " ms", elapsed >= 40 && elapsed < 100);
+	}
+
+	public void testManyProducersKeepTheirOrder() throws Exception {
+		final int producers = 4;
+		final int perProducer = 2000;
+		final int[] expected = new int[producers];
+		final int[] outOfOrder = new int[1];
+		final int[] processed = new int[1];
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			// half of the producers queue at the marker, which also keeps
+			// the events of each producer in order
+			final int position = (p % 2 == 0) ? TCL.QUEUE_TAIL : TCL.QUEUE_MARK;
+			threads.add(new Thread() {
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						final int seq = i;
+						notifier.queueEvent(new TclEvent() {
+							public int processEvent(int flags) {
+								if (expected[producer] != seq) {
+									outOfOrder[0]++;
+								}
+								expected[producer] = seq + 1;
+								processed[0]++;
+								return 1;
+							}
+						}, position);
+						if (i % 100 == 0) {
+							Thread.yield();
+						}
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		// wait for events; the timer makes doOneEvent return if some are lost
+		interp.eval("set guard [after 20000 {}]");
+		long deadline = System.nanoTime() + 30 * 1000000000L;
+		while (processed[0] < producers * perProducer && System.nanoTime() - deadline < 0) {
+			notifier.doOneEvent(TCL.ALL_EVENTS);
+		}
+		interp.eval("after cancel $guard");
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		drainEvents();
+
+		assertEquals(producers * perProducer, processed[0]);
+		assertEquals(0, outOfOrder[0]);
+		for (int p = 0; p < producers; p++) {
+			assertEquals(perProducer, expected[p]);
+		}
+	}
+
+	public void testHeadAndMarkPositions() throws Exception {
+		final List<String> log = new ArrayList<String>();
+		runInThread(new Runnable() {
+			public void run() {
+				notifier.queueEvent(new LogEvent(log, "T1"), TCL.QUEUE_TAIL);
+				notifier.queueEvent(new LogEvent(log, "H1"), TCL.QUEUE_HEAD);
+				notifier.queueEvent(new LogEvent(log, "M1"), TCL.QUEUE_MARK);
+				notifier.queueEvent(new LogEvent(log, "T2"), TCL.QUEUE_TAIL);
+				notifier.queueEvent(new LogEvent(log, "M2"), TCL.QUEUE_MARK);
+				notifier.queueEvent(new LogEvent(log, "H2"), TCL.QUEUE_HEAD);
+			}
+		});
+		// head events last in first out, marked events first in first out
+		// and before the tail events
+		notifier.doOneEvent(TCL.ALL_EVENTS | TCL.DONT_WAIT);
+		notifier.doOneEvent(TCL.ALL_EVENTS | TCL.DONT_WAIT);
+		assertEquals("[H2, M1]", log.toString());
+
+		// events posted after some were taken from the queue go after the
+		// marker that is still queued
+		runInThread(new Runnable() {
+			public void run() {
+				notifier.queueEvent(new LogEvent(log, "M3"), TCL.QUEUE_MARK);
+				notifier.queueEvent(new LogEvent(log, "T3"), TCL.QUEUE_TAIL);
+				notifier.queueEvent(new LogEvent(log, "H3"), TCL.QUEUE_HEAD);
+			}
+		});
+		drainEvents();
+		assertEquals("[H2, M1, H3, M2, M3, H1, T1, T2, T3]", log.toString());
+	}
+}
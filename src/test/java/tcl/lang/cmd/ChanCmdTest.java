@@ -0,0 +1,10 @@
+package tcl.lang.cmd;
+
+import tcl.lang.TclCmdTest;
+
+public class ChanCmdTest extends TclCmdTest {
+	public void testCmd() throws Exception {
+		String resName = "/tcl/lang/cmd/chan.test";
+		tclTestResource(resName);
+	}
+}
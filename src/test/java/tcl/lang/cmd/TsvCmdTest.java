@@ -0,0 +1,10 @@
+package tcl.lang.cmd;
+
+import tcl.lang.TclCmdTest;
+
+public class TsvCmdTest extends TclCmdTest {
+	public void testCmd() throws Exception {
+		String resName = "/tcl/lang/cmd/tsv.test";
+		tclTestResource(resName);
+	}
+}
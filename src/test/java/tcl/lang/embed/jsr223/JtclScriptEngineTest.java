@@ -0,0 +1,162 @@
+package tcl.lang.embed.jsr223;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import junit.framework.TestCase;
+
+public class JtclScriptEngineTest extends TestCase {
+
+	public interface Calc {
+		int add(int a, int b);
+
+		String greet(String name);
+	}
+
+	public interface CheckedGreeter {
+		String greet(String name) throws ScriptException;
+	}
+
+	private ScriptEngine engine;
+
+	public void setUp() throws Exception {
+		engine = new JtclScriptEngineFactory().getScriptEngine();
+		engine.eval("proc add {a b} {expr {$a + $b}}; proc greet {name} {return \"hello $name\"}");
+	}
+
+	public void testCompiledScriptReevaluated() throws Exception {
+		engine.eval("set n 0");
+		CompiledScript script = ((Compilable) engine).compile("incr n\nset n");
+		assertEquals("1", script.eval().toString());
+		assertEquals("2", script.eval().toString());
+		assertSame(engine, script.getEngine());
+
+		// a single command of plain words
+		CompiledScript call = ((Compilable) engine).compile("add 2 3");
+		assertEquals("5", call.eval().toString());
+		engine.eval("proc add {a b} {expr {$a * $b}}");
+		assertEquals("6", call.eval().toString());
+	}
+
+	public void testCompileIncompleteScript() {
+		try {
+			((Compilable) engine).compile("set x {");
+			fail("incomplete script compiled");
+		} catch (ScriptException e) {
+			// expected
+		}
+	}
+
+	public void testInvokeFunction() throws Exception {
+		Invocable invocable = (Invocable) engine;
+		assertEquals("5", invocable.invokeFunction("add", 2, 3).toString());
+		assertEquals("hello a b", invocable.invokeFunction("greet", "a b").toString());
+		try {
+			invocable.invokeFunction("add", 1);
+			fail("wrong # args didn't fail");
+		} catch (ScriptException e) {
+			assertTrue(e.getMessage(), e.getMessage().indexOf("wrong # args") >= 0);
+		}
+	}
+
+	public void testInvokeMissingFunction() throws Exception {
+		try {
+			((Invocable) engine).invokeFunction("noSuchProc", 1);
+			fail("missing proc invoked");
+		} catch (NoSuchMethodException e) {
+			// expected
+		}
+	}
+
+	public void testGetInterface() throws Exception {
+		Calc calc = ((Invocable) engine).getInterface(Calc.class);
+		assertNotNull(calc);
+		assertEquals(7, calc.add(3, 4));
+		assertEquals("hello world", calc.greet("world"));
+
+		engine.eval("rename greet {}");
+		assertNull(((Invocable) engine).getInterface(Calc.class));
+	}
+
+	public void testInterfaceObjectMethods() throws Exception {
+		Calc calc = ((Invocable) engine).getInterface(Calc.class);
+		Calc other = ((Invocable) engine).getInterface(Calc.class);
+		assertTrue(calc.toString(), calc.toString().indexOf("Calc") >= 0);
+		assertEquals(System.identityHashCode(calc), calc.hashCode());
+		assertTrue(calc.equals(calc));
+		assertFalse(calc.equals(other));
+		HashMap<Calc, String> map = new HashMap<Calc, String>();
+		map.put(calc, "calc");
+		map.put(other, "other");
+		assertEquals("calc", map.get(calc));
+		assertEquals(2, map.size());
+	}
+
+	public void testInterfaceErrors() throws Exception {
+		Calc calc = ((Invocable) engine).getInterface(Calc.class);
+		engine.eval("proc add {a b} {return abc}; proc greet {name} {error \"no greeting for $name\"}");
+		try {
+			calc.add(1, 2);
+			fail("bad integer result converted");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().indexOf("expected integer but got \"abc\"") >= 0);
+		}
+		try {
+			calc.greet("bob");
+			fail("error in greet not thrown");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().indexOf("no greeting for bob") >= 0);
+		}
+		CheckedGreeter greeter = ((Invocable) engine).getInterface(CheckedGreeter.class);
+		try {
+			greeter.greet("bob");
+			fail("error in greet not thrown");
+		} catch (ScriptException e) {
+			assertTrue(e.getMessage(), e.getMessage().indexOf("no greeting for bob") >= 0);
+		}
+	}
+
+	public void testLinkedBindingsFromManyThreads() throws Exception {
+		final JtclScriptEngine jtcl = (JtclScriptEngine) engine;
+		jtcl.setLinkBindings(true);
+		jtcl.put("shared", 0);
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final String name = "x" + t;
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 500; i++) {
+							jtcl.eval("context " + name + "_" + i + " " + i + "; set shared " + i + "; context -del "
+									+ name + "_" + i);
+						}
+						jtcl.eval("context " + name + " done");
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(errors.toString(), 0, errors.size());
+		for (int t = 0; t < 4; t++) {
+			assertEquals("done", jtcl.get("x" + t));
+			assertEquals("0", jtcl.eval("info exists x" + t + "_0").toString());
+		}
+		assertEquals("$x0 $x3", "done done", jtcl.eval("list $x0 $x3").toString());
+	}
+}